@@ -56,6 +56,17 @@ public class Version  {
         return version;
     }
 
+    /**
+     * Create a Version for a file without reading the whole file onto the heap.
+     *
+     * @see VersionBuilder
+     */
+    public static Version createFromFile (File file) throws IOException, NoSuchAlgorithmException {
+        VersionBuilder versionBuilder = new VersionBuilder();
+        versionBuilder.appendRemainder(file);
+        return versionBuilder.build();
+    }
+
     public String getSha1() {
         return sha1;
     }
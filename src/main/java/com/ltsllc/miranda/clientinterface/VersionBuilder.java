@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface;
+
+import com.ltsllc.common.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Build a {@link Version} incrementally.
+ *
+ * <p>
+ *     Unlike the {@link Version} constructors, a builder does not need the whole content
+ *     in memory.  Records can be appended as they are written and a file can be hashed
+ *     through its {@link FileChannel}.  The state of the digest can be saved with
+ *     {@link #saveState()} and a new builder can pick up where the old one left off, so
+ *     content that has only been appended to never needs to be hashed twice.
+ * </p>
+ *
+ * <p>
+ *     A builder is not thread safe.
+ * </p>
+ */
+public class VersionBuilder {
+    public static final String ALGORITHM = "SHA-1";
+
+    /**
+     * The largest region of a file that is mapped at one time.
+     */
+    public static final long MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * A saved digest state.
+     *
+     * <p>
+     *     A state is never changed once it has been created: resuming from a state
+     *     works on a copy of the digest.
+     * </p>
+     */
+    public static class DigestState {
+        private MessageDigest digest;
+        private long length;
+
+        private DigestState (MessageDigest digest, long length) {
+            this.digest = digest;
+            this.length = length;
+        }
+
+        /**
+         * The number of bytes that had been hashed when the state was saved.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        private MessageDigest copyDigest () {
+            try {
+                return (MessageDigest) digest.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("digest does not support cloning", e);
+            }
+        }
+    }
+
+    private MessageDigest digest;
+    private long length;
+
+    public VersionBuilder () throws NoSuchAlgorithmException {
+        this.digest = MessageDigest.getInstance(ALGORITHM);
+        this.length = 0;
+    }
+
+    /**
+     * Create a builder that continues from a saved state.
+     *
+     * @param state The state to continue from.
+     */
+    public VersionBuilder (DigestState state) {
+        this.digest = state.copyDigest();
+        this.length = state.getLength();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public VersionBuilder append (byte[] data) {
+        return append(data, 0, data.length);
+    }
+
+    public VersionBuilder append (byte[] data, int offset, int count) {
+        digest.update(data, offset, count);
+        length += count;
+
+        return this;
+    }
+
+    public VersionBuilder append (String content) {
+        return append(content.getBytes());
+    }
+
+    /**
+     * Hash the remaining bytes of a buffer.
+     *
+     * <p>
+     *     When this method returns, the buffer's position will be equal to its limit.
+     * </p>
+     */
+    public VersionBuilder append (ByteBuffer buffer) {
+        length += buffer.remaining();
+        digest.update(buffer);
+
+        return this;
+    }
+
+    /**
+     * Hash a region of a file.
+     *
+     * <p>
+     *     The region is mapped into memory {@link #MAP_CHUNK_SIZE} bytes at a time, so the
+     *     content is never copied onto the heap.
+     * </p>
+     *
+     * @param channel The channel to read from.
+     * @param position Where the region starts.
+     * @param count The number of bytes in the region.
+     * @throws IOException If there is a problem mapping the file.
+     */
+    public VersionBuilder append (FileChannel channel, long position, long count) throws IOException {
+        long end = position + count;
+
+        while (position < end) {
+            long size = Math.min(MAP_CHUNK_SIZE, end - position);
+            MappedByteBuffer mappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            append(mappedByteBuffer);
+            position += size;
+        }
+
+        return this;
+    }
+
+    /**
+     * Hash everything in a file after the bytes that have already been hashed.
+     *
+     * <p>
+     *     For a new builder this hashes the whole file.  For a builder that was resumed from
+     *     a saved state, this hashes only what has been appended to the file since.
+     * </p>
+     */
+    public VersionBuilder appendRemainder (File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+
+            if (size < length)
+                throw new IOException("file is shorter than what has already been hashed: " + file);
+
+            return append(channel, length, size - length);
+        }
+    }
+
+    /**
+     * Save the state of the digest so that a later builder can continue from here.
+     */
+    public DigestState saveState () {
+        try {
+            return new DigestState((MessageDigest) digest.clone(), length);
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("digest does not support cloning", e);
+        }
+    }
+
+    /**
+     * Create a {@link Version} for everything that has been appended so far.
+     *
+     * <p>
+     *     The builder can continue to be used after this method has been called.
+     * </p>
+     */
+    public Version build () {
+        MessageDigest copy = saveState().digest;
+        String sha1 = Utils.bytesToString(copy.digest());
+        return Version.createWithSha1(sha1);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of file {@link Version}s.
+ *
+ * <p>
+ *     An entry is keyed by the file's path and remembers the size and last modified
+ *     time of the file when it was hashed.  If neither has changed, the cached Version
+ *     is returned without reading the file.
+ * </p>
+ *
+ * <p>
+ *     If the cache was created for append only files, and a file has grown since it was
+ *     last hashed, then only the new bytes are hashed --- the cache resumes from the
+ *     digest state saved with the entry.  Files that are rewritten rather than appended
+ *     to should use a cache where appendOnly is false.
+ * </p>
+ */
+public class VersionCache {
+    private static class Entry {
+        private long size;
+        private long lastModified;
+        private Version version;
+        private VersionBuilder.DigestState state;
+
+        public Entry (long size, long lastModified, Version version, VersionBuilder.DigestState state) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.version = version;
+            this.state = state;
+        }
+    }
+
+    private boolean appendOnly;
+    private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public VersionCache (boolean appendOnly) {
+        this.appendOnly = appendOnly;
+    }
+
+    public VersionCache () {
+        this(false);
+    }
+
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    public int size () {
+        return entries.size();
+    }
+
+    public void invalidate (File file) {
+        entries.remove(file.getPath());
+    }
+
+    public void clear () {
+        entries.clear();
+    }
+
+    /**
+     * Return the Version of a file, hashing as little of the file as possible.
+     *
+     * @param file The file to get the Version for.
+     * @return The Version of the file.
+     * @throws IOException If there is a problem reading the file.
+     * @throws NoSuchAlgorithmException If the digest algorithm is not available.
+     */
+    public Version getVersion (File file) throws IOException, NoSuchAlgorithmException {
+        String key = file.getPath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        Entry entry = entries.get(key);
+        if (null != entry && entry.size == size && entry.lastModified == lastModified)
+            return entry.version;
+
+        VersionBuilder versionBuilder;
+        if (appendOnly && null != entry && entry.size <= size)
+            versionBuilder = new VersionBuilder(entry.state);
+        else
+            versionBuilder = new VersionBuilder();
+
+        versionBuilder.appendRemainder(file);
+
+        Version version = versionBuilder.build();
+        entries.put(key, new Entry(versionBuilder.getLength(), lastModified, version, versionBuilder.saveState()));
+
+        return version;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.objects.ChangeRecord;
+import com.ltsllc.miranda.clientinterface.results.ChangeFeedResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sequence numbered stream of the creates, updates and deletes of one type of object.
+ *
+ * <p>
+ *     The feed keeps the most recent capacity records in a ring buffer.  A consumer reads
+ *     the records after the last sequence number it has seen, so it only gets what changed.
+ *     A consumer that falls so far behind that its records have been overwritten gets a
+ *     truncated result and must re-list.
+ * </p>
+ *
+ * <p>
+ *     Sequence numbers are only kept in memory, so they start again at 1 when the feed is
+ *     created again, for example after a restart.  Each feed therefore has an epoch, which is
+ *     returned with every read.  A consumer that passes back an epoch other than the feed's,
+ *     or a sequence number the feed has not reached, gets a truncated result starting at the
+ *     beginning of the feed, rather than silently getting nothing until the sequence numbers
+ *     catch up.
+ * </p>
+ *
+ * <p>
+ *     A feed can listen to a {@link KeyedStore}, in which case it records every change to
+ *     the store.  Objects are recorded as frozen copies (see {@link MirandaObject#freeze()}),
+ *     so later changes to the store do not change what is in the feed.  An object that is
+ *     changed in place is copied while holding its lock, which is the lock the store merges
+ *     under, so a copy is never of a half finished merge.
+ * </p>
+ *
+ * <p>
+ *     The store tells its listeners about changes after it has made them, so two updates to
+ *     the same object can arrive in the opposite order to the one they were made in.  An
+ *     update whose change stamp is older than the last change recorded for the same key is
+ *     therefore left out: the feed already has the newer state.  So is an update that is
+ *     equal to what was last recorded, since nothing changed.  An update with the same change
+ *     stamp as the last one recorded but different contents, such as a modified object that
+ *     was put back without being stamped again, is recorded.
+ * </p>
+ *
+ * @param <T> The type of object in the feed.
+ */
+public class ChangeFeed<T extends MirandaObject & PrimaryKey<String>> implements KeyedStore.Listener<T> {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private ChangeRecord<T>[] records;
+    private long lastSequence;
+    private long epoch;
+
+    /**
+     * The change stamps of the last changes recorded for the keys that are in the feed, and
+     * the records they came from, so an entry can be dropped when its record is overwritten.
+     */
+    private Map<String, Long> stamps = new HashMap<String, Long>();
+    private Map<String, ChangeRecord<T>> latest = new HashMap<String, ChangeRecord<T>>();
+
+    /**
+     * Create a feed.
+     *
+     * @param capacity The number of records to keep.
+     * @param epoch What distinguishes this feed from earlier feeds of the same objects.  It
+     *              should never be 0 and never repeat.
+     */
+    public ChangeFeed (int capacity, long epoch) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ChangeRecord<T>[] records = (ChangeRecord<T>[]) new ChangeRecord[capacity];
+
+        this.records = records;
+        this.lastSequence = 0;
+        this.epoch = epoch;
+    }
+
+    public ChangeFeed (int capacity) {
+        this(capacity, System.currentTimeMillis());
+    }
+
+    public ChangeFeed () {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public int getCapacity () {
+        return records.length;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * The lowest sequence number that is still in the feed.
+     */
+    public synchronized long getFirstSequence () {
+        return Math.max(1, lastSequence - records.length + 1);
+    }
+
+    /**
+     * Add a record to the feed.
+     *
+     * @param changeType What happened.
+     * @param key The primary key of the object.
+     * @param object The object after the change, or null for a delete.
+     * @return The record that was added.
+     */
+    public ChangeRecord<T> append (ChangeRecord.ChangeTypes changeType, String key, T object) {
+        return append(changeType, key, object, null == object ? 0 : object.getChangeStamp());
+    }
+
+    /**
+     * Add a record to the feed.
+     *
+     * @param changeType What happened.
+     * @param key The primary key of the object.
+     * @param object The object after the change, or null for a delete.
+     * @param changeStamp The change stamp of the change.  For a delete, this is the stamp of
+     *                    the object that was deleted.
+     * @return The record that was added, or null if it was an update that was out of date or
+     * did not change anything.
+     */
+    public ChangeRecord<T> append (ChangeRecord.ChangeTypes changeType, String key, T object, long changeStamp) {
+        if (null == object || object.isFrozen())
+            return appendSnapshot(changeType, key, object, changeStamp);
+
+        //
+        // the store merges into unfrozen objects while holding their locks
+        //
+        synchronized (object) {
+            return appendSnapshot(changeType, key, object, object.getChangeStamp());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized ChangeRecord<T> appendSnapshot (ChangeRecord.ChangeTypes changeType, String key, T object,
+                                                        long changeStamp) {
+        if (ChangeRecord.ChangeTypes.Update == changeType && isRecorded(key, object, changeStamp))
+            return null;
+
+        T snapshot = object;
+        if (null != object && !object.isFrozen()) {
+            snapshot = (T) object.copy();
+            snapshot.freeze();
+        }
+
+        lastSequence++;
+        ChangeRecord<T> changeRecord = new ChangeRecord<T>(lastSequence, changeType, key, snapshot);
+
+        int slot = (int) (lastSequence % records.length);
+        ChangeRecord<T> overwritten = records[slot];
+        if (null != overwritten && latest.get(overwritten.getKey()) == overwritten) {
+            latest.remove(overwritten.getKey());
+            stamps.remove(overwritten.getKey());
+        }
+
+        records[slot] = changeRecord;
+        latest.put(key, changeRecord);
+        stamps.put(key, changeStamp);
+
+        notifyAll();
+
+        return changeRecord;
+    }
+
+    /**
+     * Does the feed already have this state of an object, or a newer one?
+     */
+    private boolean isRecorded (String key, T object, long changeStamp) {
+        Long recorded = stamps.get(key);
+        if (null == recorded)
+            return false;
+
+        if (changeStamp < recorded)
+            return true;
+
+        ChangeRecord<T> last = latest.get(key);
+        return changeStamp == recorded && null != last && null != object && object.equals(last.getObject());
+    }
+
+    /**
+     * Read the records after a sequence number.
+     *
+     * @param epoch The epoch of the feed the sequence number came from, or 0 if the caller is
+     *              starting at the beginning.
+     * @param afterSequence The last sequence number the caller has seen, or 0 to start at the beginning.
+     * @param maxRecords The most records to return.
+     * @return The records, in sequence order, together with the epoch and the sequence number to
+     * use for the next read.
+     */
+    public synchronized ChangeFeedResultObject<T> read (long epoch, long afterSequence, int maxRecords) {
+        ChangeFeedResultObject<T> result = new ChangeFeedResultObject<T>();
+        List<ChangeRecord<T>> list = new ArrayList<ChangeRecord<T>>();
+
+        long first = getFirstSequence();
+        long next = afterSequence + 1;
+
+        if (!isCurrent(epoch, afterSequence)) {
+            result.setTruncated(true);
+            next = first;
+        } else if (next < first) {
+            result.setTruncated(true);
+            next = first;
+        }
+
+        while (next <= lastSequence && list.size() < maxRecords) {
+            list.add(records[(int) (next % records.length)]);
+            next++;
+        }
+
+        result.setRecords(list);
+        result.setEpoch(this.epoch);
+        result.setLastSequence(next - 1);
+        result.setResult(Results.Success);
+
+        return result;
+    }
+
+    /**
+     * Read the records after a sequence number from this feed.
+     *
+     * @see #read(long, long, int)
+     */
+    public ChangeFeedResultObject<T> read (long afterSequence, int maxRecords) {
+        return read(epoch, afterSequence, maxRecords);
+    }
+
+    /**
+     * Read the records after a sequence number, waiting for one to be added if there are none.
+     *
+     * @param epoch See {@link #read(long, long, int)}.
+     * @param afterSequence See {@link #read(long, long, int)}.
+     * @param maxRecords See {@link #read(long, long, int)}.
+     * @param waitMillis The longest time to wait for a new record.
+     * @return See {@link #read(long, long, int)}.  If no records were added in time, the result is empty.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized ChangeFeedResultObject<T> read (long epoch, long afterSequence, int maxRecords,
+                                                        long waitMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+
+        while (isCurrent(epoch, afterSequence) && lastSequence <= afterSequence) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+
+            wait(remaining);
+        }
+
+        return read(epoch, afterSequence, maxRecords);
+    }
+
+    /**
+     * Could a sequence number have come from this feed?
+     */
+    private boolean isCurrent (long epoch, long afterSequence) {
+        if (afterSequence <= 0)
+            return true;
+
+        return epoch == this.epoch && afterSequence <= lastSequence;
+    }
+
+    public void added (T value) {
+        append(ChangeRecord.ChangeTypes.Create, value.getPrimaryKey(), value);
+    }
+
+    public void updated (T oldValue, T newValue) {
+        append(ChangeRecord.ChangeTypes.Update, newValue.getPrimaryKey(), newValue);
+    }
+
+    public void removed (T value) {
+        append(ChangeRecord.ChangeTypes.Delete, value.getPrimaryKey(), null, value.getChangeStamp());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An index of the changes to the objects in a {@link KeyedStore}, in the order they were
+ * applied on this node.
+ *
+ * <p>
+ *     Each change is given the next number from a {@link ChangeSequence} when the store tells
+ *     the index about it.  The index answers "what has changed since this watermark" by
+ *     walking the entries after the watermark, so the cost is proportional to the number of
+ *     changes rather than the size of the store.  Each key has at most one entry: when an
+ *     object changes again, its old entry is replaced by one at the end.
+ * </p>
+ *
+ * <p>
+ *     The numbers are local rather than the objects' change stamps, because an object merged
+ *     from another node keeps that node's stamp, which can be older than a watermark a client
+ *     already has.  When an object is removed, its entry becomes a tombstone, so that clients
+ *     learn about deletes too.  Tombstones are kept for as long as the index, one per key.
+ * </p>
+ *
+ * <p>
+ *     The store tells its listeners about changes after making them, so notifications for
+ *     the same key can arrive out of order.  The index therefore looks at what is in the
+ *     store when a notification arrives, rather than at the notification: the last
+ *     notification for a key always leaves the index with the state of the store.
+ * </p>
+ *
+ * @param <K> The type of primary key.
+ * @param <T> The type of object being indexed.
+ */
+public class ChangeIndex<K extends Comparable<K>, T extends MirandaObject & PrimaryKey<K>>
+        implements KeyedStore.Listener<T> {
+    /**
+     * One change: the object as it is now, or the key of an object that was removed.
+     */
+    public static class Change<K, T> {
+        private long sequence;
+        private K key;
+        private T value;
+
+        public Change (long sequence, K key, T value) {
+            this.sequence = sequence;
+            this.key = key;
+            this.value = value;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * The object, or null if it was removed.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        public boolean isDeleted () {
+            return null == value;
+        }
+    }
+
+    private static class Entry<K, T> {
+        private long sequence;
+        private K key;
+
+        /**
+         * The object that was in the store and its change stamp when it was indexed, or null
+         * for a tombstone.
+         */
+        private T value;
+        private long changeStamp;
+    }
+
+    private KeyedStore<K, T> store;
+    private ChangeSequence sequence;
+    private NavigableMap<Long, Entry<K, T>> entries = new TreeMap<Long, Entry<K, T>>();
+    private Map<K, Entry<K, T>> byKey = new HashMap<K, Entry<K, T>>();
+
+    /**
+     * Index a store and keep the index up to date as the store changes.
+     *
+     * @param store The store.
+     * @param sequence Where the numbers of the changes come from.  Indexes that are read
+     *                 together share one.
+     */
+    public ChangeIndex (KeyedStore<K, T> store, ChangeSequence sequence) {
+        this.store = store;
+        this.sequence = sequence;
+
+        store.addListener(this);
+
+        for (T value : store) {
+            index(value.getPrimaryKey());
+        }
+    }
+
+    public ChangeIndex (KeyedStore<K, T> store) {
+        this(store, new ChangeSequence());
+    }
+
+    public ChangeSequence getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The number of entries, tombstones included.
+     */
+    public int size () {
+        synchronized (sequence) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The number of the last change in the index, or 0 if the index is empty.
+     */
+    public long getLastSequence () {
+        synchronized (sequence) {
+            return entries.isEmpty() ? 0 : entries.lastKey();
+        }
+    }
+
+    /**
+     * The changes after a watermark, in the order they were applied.
+     *
+     * @param watermark The number of the last change the caller has seen, or 0 for all of them.
+     * @param maxResults The most changes to return.
+     * @return The changes.  The sequence number of the last one is the watermark for the next
+     * call.
+     */
+    public List<Change<K, T>> changedSince (long watermark, int maxResults) {
+        List<Change<K, T>> list = new ArrayList<Change<K, T>>();
+
+        synchronized (sequence) {
+            for (Entry<K, T> entry : entries.tailMap(watermark, false).values()) {
+                if (list.size() >= maxResults)
+                    break;
+
+                list.add(new Change<K, T>(entry.sequence, entry.key, entry.value));
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Bring the entry for a key up to date with the store.
+     */
+    private void index (K key) {
+        synchronized (sequence) {
+            T current = store.get(key);
+            Entry<K, T> previous = byKey.get(key);
+
+            if (null == current) {
+                //
+                // a key that was never indexed needs no tombstone
+                //
+                if (null == previous || null == previous.value)
+                    return;
+            } else if (null != previous && previous.value == current
+                    && previous.changeStamp == current.getChangeStamp()) {
+                return;
+            }
+
+            if (null != previous)
+                entries.remove(previous.sequence);
+
+            Entry<K, T> entry = new Entry<K, T>();
+            entry.sequence = sequence.next();
+            entry.key = key;
+            entry.value = current;
+            entry.changeStamp = null == current ? 0 : current.getChangeStamp();
+
+            entries.put(entry.sequence, entry);
+            byKey.put(key, entry);
+        }
+    }
+
+    public void added (T value) {
+        index(value.getPrimaryKey());
+    }
+
+    public void updated (T oldValue, T newValue) {
+        index(newValue.getPrimaryKey());
+    }
+
+    public void removed (T value) {
+        index(value.getPrimaryKey());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+/**
+ * The local sequence numbers that {@link ChangeIndex}es give to the changes they see.
+ *
+ * <p>
+ *     A number is given out when a change is applied on this node, so the numbers only go up,
+ *     even for objects merged from other nodes whose change stamps are older than changes
+ *     already seen here.  Indexes that share a sequence can be read together behind one
+ *     watermark.  They also take this object's lock to number and record a change in one
+ *     step, so that a reader that holds the lock never sees a number before an earlier one
+ *     has been recorded.
+ * </p>
+ *
+ * <p>
+ *     The numbers are only kept in memory, so they start again when the sequence is created
+ *     again.  Each sequence therefore has an epoch, as a {@link ChangeFeed} does.
+ * </p>
+ */
+public class ChangeSequence {
+    private long epoch;
+    private long last;
+
+    /**
+     * @param epoch What distinguishes this sequence from earlier ones.  It should never be 0
+     *              and never repeat.
+     */
+    public ChangeSequence (long epoch) {
+        this.epoch = epoch;
+    }
+
+    public ChangeSequence () {
+        this(System.currentTimeMillis());
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getLast () {
+        return last;
+    }
+
+    /**
+     * The next number.  The caller should hold this object's lock until it has recorded it.
+     */
+    public synchronized long next () {
+        return ++last;
+    }
+}
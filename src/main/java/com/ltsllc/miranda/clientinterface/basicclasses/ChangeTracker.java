@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.requests.ChangesSinceRequest;
+import com.ltsllc.miranda.clientinterface.results.ChangesSinceResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+
+import java.util.List;
+
+/**
+ * Answer {@link ChangesSinceRequest}s from the {@link ChangeIndex}es of the Topics,
+ * Subscriptions, Users and NodeElements.
+ *
+ * <p>
+ *     The four indexes share a {@link ChangeSequence}, so their changes are merged in the
+ *     order they were applied and one watermark covers all of them.  A request whose epoch is
+ *     not the sequence's, because the node has been started again since the client's last
+ *     request, is answered from the beginning, with reset set so the client knows to drop
+ *     what it has.
+ * </p>
+ */
+public class ChangeTracker {
+    private ChangeSequence sequence;
+    private ChangeIndex<String, Topic> topics;
+    private ChangeIndex<String, Subscription> subscriptions;
+    private ChangeIndex<String, User> users;
+    private ChangeIndex<String, NodeElement> nodes;
+
+    public ChangeTracker (ChangeSequence sequence, KeyedStore<String, Topic> topics,
+                          KeyedStore<String, Subscription> subscriptions, KeyedStore<String, User> users,
+                          KeyedStore<String, NodeElement> nodes) {
+        this.sequence = sequence;
+        this.topics = new ChangeIndex<String, Topic>(topics, sequence);
+        this.subscriptions = new ChangeIndex<String, Subscription>(subscriptions, sequence);
+        this.users = new ChangeIndex<String, User>(users, sequence);
+        this.nodes = new ChangeIndex<String, NodeElement>(nodes, sequence);
+    }
+
+    public ChangeTracker (KeyedStore<String, Topic> topics, KeyedStore<String, Subscription> subscriptions,
+                          KeyedStore<String, User> users, KeyedStore<String, NodeElement> nodes) {
+        this(new ChangeSequence(), topics, subscriptions, users, nodes);
+    }
+
+    public ChangeSequence getSequence() {
+        return sequence;
+    }
+
+    public ChangesSinceResultObject query (ChangesSinceRequest request) {
+        ChangesSinceResultObject result = new ChangesSinceResultObject();
+        int maxResults = Math.max(1, request.getMaxResults());
+        long watermark = request.getWatermark();
+
+        //
+        // holding the sequence's lock means no change can be numbered, and so none can be
+        // missed, while the indexes are read
+        //
+        synchronized (sequence) {
+            if (watermark > 0 && (request.getEpoch() != sequence.getEpoch() || watermark > sequence.getLast())) {
+                result.setReset(true);
+                watermark = 0;
+            }
+
+            List<ChangeIndex.Change<String, Topic>> topicChanges = topics.changedSince(watermark, maxResults + 1);
+            List<ChangeIndex.Change<String, Subscription>> subscriptionChanges =
+                    subscriptions.changedSince(watermark, maxResults + 1);
+            List<ChangeIndex.Change<String, User>> userChanges = users.changedSince(watermark, maxResults + 1);
+            List<ChangeIndex.Change<String, NodeElement>> nodeChanges = nodes.changedSince(watermark, maxResults + 1);
+
+            //
+            // take the changes with the lowest numbers across the four lists
+            //
+            int t = 0, s = 0, u = 0, n = 0;
+            int count = 0;
+
+            while (count < maxResults) {
+                long next = Long.MAX_VALUE;
+                int which = -1;
+
+                if (t < topicChanges.size() && topicChanges.get(t).getSequence() < next) {
+                    next = topicChanges.get(t).getSequence();
+                    which = 0;
+                }
+
+                if (s < subscriptionChanges.size() && subscriptionChanges.get(s).getSequence() < next) {
+                    next = subscriptionChanges.get(s).getSequence();
+                    which = 1;
+                }
+
+                if (u < userChanges.size() && userChanges.get(u).getSequence() < next) {
+                    next = userChanges.get(u).getSequence();
+                    which = 2;
+                }
+
+                if (n < nodeChanges.size() && nodeChanges.get(n).getSequence() < next) {
+                    next = nodeChanges.get(n).getSequence();
+                    which = 3;
+                }
+
+                if (-1 == which)
+                    break;
+
+                switch (which) {
+                    case 0:
+                        add(topicChanges.get(t++), result.getTopics(), result.getDeletedTopics());
+                        break;
+
+                    case 1:
+                        add(subscriptionChanges.get(s++), result.getSubscriptions(), result.getDeletedSubscriptions());
+                        break;
+
+                    case 2:
+                        add(userChanges.get(u++), result.getUsers(), result.getDeletedUsers());
+                        break;
+
+                    default:
+                        add(nodeChanges.get(n++), result.getNodes(), result.getDeletedNodes());
+                        break;
+                }
+
+                watermark = next;
+                count++;
+            }
+
+            result.setMore(t < topicChanges.size() || s < subscriptionChanges.size() || u < userChanges.size()
+                    || n < nodeChanges.size());
+        }
+
+        result.setEpoch(sequence.getEpoch());
+        result.setWatermark(watermark);
+        result.setResult(Results.Success);
+
+        return result;
+    }
+
+    private static <T> void add (ChangeIndex.Change<String, T> change, List<T> values, List<String> deleted) {
+        if (change.isDeleted())
+            deleted.add(change.getKey());
+        else
+            values.add(change.getValue());
+    }
+}
@@ -6,6 +6,16 @@ import java.util.List;
 /**
  * Created by ltsllc on 7/2/2017.
  */
+
+/**
+ * The guids of the Events that could not be delivered to a Subscription, held in memory.
+ *
+ * <p>
+ *     The whole list is kept in memory and written out at once, which is only practical for
+ *     small queues.  Subscriptions whose queues can get large should use a
+ *     {@link com.ltsllc.miranda.clientinterface.storage.DeadLetterStore} instead.
+ * </p>
+ */
 public class DeadLetterQueue extends MirandaObject {
     private List<String> events;
 
@@ -19,6 +19,8 @@ package com.ltsllc.miranda.clientinterface.basicclasses;
 import com.google.gson.Gson;
 
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -26,9 +28,21 @@ import java.util.UUID;
  */
 
 /**
- * A successful delivery of an {@link Event} to a {@lin Subscription}.
+ * A successful delivery of an {@link Event} to a {@link Subscription}.
+ *
+ * <p>
+ *     The Deliveries for a batch of Events that was acknowledged at once are made with
+ *     {@link #forBatch(List, long, Subscription)}.  They share one random batch id, and the guid
+ *     of each is the batch id followed by the Event's place in the batch, so a batch of a
+ *     thousand Events costs one random UUID rather than a thousand.
+ * </p>
+ *
+ * <p>
+ *     A Subscription that keeps a {@link DeliveryLedger} does not need a Delivery per Event at
+ *     all; the ledger makes one only when it is asked for.
+ * </p>
  */
-public class Delivery extends MirandaObject {
+public class Delivery extends MirandaObject implements PrimaryKey<String> {
     private static SecureRandom ourRandom = new SecureRandom();
 
     private String guid;
@@ -50,6 +64,50 @@ public class Delivery extends MirandaObject {
         this.subscription = subscription;
     }
 
+    /**
+     * Create the Deliveries for a batch of Events that was acknowledged at once.
+     *
+     * @param events The Events, in the order they were sent.
+     * @param delivered When the batch was acknowledged.
+     * @param subscription The Subscription the batch was sent to.
+     * @return One Delivery per Event, in the same order.
+     */
+    public static List<Delivery> forBatch (List<Event> events, long delivered, Subscription subscription) {
+        String batchId = UUID.randomUUID().toString();
+        String name = subscription.getName();
+        List<Delivery> deliveries = new ArrayList<Delivery>(events.size());
+
+        for (int i = 0; i < events.size(); i++) {
+            deliveries.add(new Delivery(batchId + ":" + i, events.get(i).getGuid(), delivered, name));
+        }
+
+        return deliveries;
+    }
+
+    /**
+     * The id of the batch this Delivery was part of, or null if the Event was delivered on its own.
+     *
+     * <p>
+     *     Only a guid that ends in a colon and the Event's place in the batch is taken for part
+     *     of a batch; the guids a {@link DeliveryLedger} makes are not.
+     * </p>
+     */
+    public String getBatchId () {
+        if (null == guid)
+            return null;
+
+        int index = guid.lastIndexOf(':');
+        if (index <= 0 || index == guid.length() - 1)
+            return null;
+
+        for (int i = index + 1; i < guid.length(); i++) {
+            if (!Character.isDigit(guid.charAt(i)))
+                return null;
+        }
+
+        return guid.substring(0, index);
+    }
+
     public String getAttemptId() {
         return attemptId;
     }
@@ -113,10 +171,11 @@ public class Delivery extends MirandaObject {
     }
 
     /**
-     *  Like the {@link Event} it is based on, an object of this class never expires.
+     * An object of this class never expires.  The {@link Event} it is based on may expire
+     * (see {@link Event#expired(long)}), but the record that it was delivered does not.
      *
      * @param time The time to compare to.
-     * @return This method always returns flse.
+     * @return This method always returns false.
      */
     public boolean expired(long time) {
         return false;
@@ -126,6 +185,10 @@ public class Delivery extends MirandaObject {
         throw new IllegalStateException("updateFrom is not applicable for Delivery");
     }
 
+    public String getPrimaryKey () {
+        return getGuid();
+    }
+
     public boolean matches (Delivery other) {
         return getGuid().equals(other.getGuid());
     }
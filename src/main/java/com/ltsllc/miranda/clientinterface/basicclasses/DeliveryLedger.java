@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A record of which {@link Event}s have been delivered to a {@link Subscription}, without a
+ * {@link Delivery} per Event.
+ *
+ * <p>
+ *     Each Event queued for the Subscription gets an offset, one more than the last (see
+ *     {@link #next()}).  The ledger keeps a watermark: every offset below it has been delivered.
+ *     Offsets at or above the watermark that are acknowledged out of order go into a compressed
+ *     bitmap, and when the offset at the watermark is acknowledged, the watermark moves up past
+ *     it and past every acknowledged offset after it.  Since most acknowledgements arrive in
+ *     order, the bitmap stays small, and asking whether an offset was delivered is a comparison
+ *     or a single bitmap lookup.
+ * </p>
+ *
+ * <p>
+ *     The bitmap is split into chunks of {@link #CHUNK_SIZE} offsets.  A chunk with few offsets
+ *     holds them in a sorted array of shorts; once it has more than {@link #MAX_ARRAY_SIZE}, it
+ *     switches to a plain bitmap, which never takes more than 8KB.  A chunk is dropped when the
+ *     watermark passes it.
+ * </p>
+ *
+ * <p>
+ *     The ledger keeps nothing per Event.  To ask about an Event rather than an offset, the
+ *     offset comes from the Event itself: it is the Event's sequence in its Topic (see
+ *     {@link Event#getSequence()}) less one, so a ledger for a Subscription that sees every
+ *     Event of its Topic starts at offset 0.  A Subscription created after its Topic already
+ *     had Events starts its ledger at the offset of the first Event it will see, with
+ *     {@link #DeliveryLedger(String, long)}.  An Event that has not been numbered has no
+ *     offset and is never recorded.  Callers that keep their own numbering can use
+ *     {@link #next()} instead.
+ * </p>
+ *
+ * <p>
+ *     The ledger does not keep a time per Event.  It keeps the time of the latest
+ *     acknowledgement in each chunk, and a Delivery made on demand by
+ *     {@link #getDelivery(long, String)} carries that time, which is never earlier than the
+ *     actual time of delivery.  The guid of such a Delivery is the Subscription and the offset
+ *     joined by {@link #DELIVERY_SEPARATOR}, which {@link Delivery#getBatchId()} does not take
+ *     for a batch.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class DeliveryLedger {
+    public static final int CHUNK_BITS = 16;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    public static final int MAX_ARRAY_SIZE = 4096;
+    public static final char DELIVERY_SEPARATOR = '@';
+
+    private static final int FORMAT = 3;
+    private static final int FORMAT_WITH_GUIDS = 2;
+    private static final int FORMAT_WITHOUT_GUIDS = 1;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static class Chunk {
+        private short[] values = new short[4];
+        private int size;
+        private long[] bits;
+
+        public boolean contains (int low) {
+            if (null != bits)
+                return 0 != (bits[low >>> 6] & (1L << low));
+
+            return Arrays.binarySearch(values, 0, size, (short) (low + Short.MIN_VALUE)) >= 0;
+        }
+
+        /**
+         * @return true if the offset was not already there.
+         */
+        public boolean add (int low) {
+            if (null != bits) {
+                long mask = 1L << low;
+                if (0 != (bits[low >>> 6] & mask))
+                    return false;
+
+                bits[low >>> 6] |= mask;
+                return true;
+            }
+
+            //
+            // the shorts are stored offset by Short.MIN_VALUE so they sort as unsigned values
+            //
+            short value = (short) (low + Short.MIN_VALUE);
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0)
+                return false;
+
+            if (size >= MAX_ARRAY_SIZE) {
+                toBitmap();
+                return add(low);
+            }
+
+            index = -index - 1;
+            if (size == values.length)
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, size * 2));
+
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return true;
+        }
+
+        private void toBitmap () {
+            bits = new long[CHUNK_SIZE / 64];
+            for (int i = 0; i < size; i++) {
+                int low = values[i] - Short.MIN_VALUE;
+                bits[low >>> 6] |= 1L << low;
+            }
+
+            values = null;
+            size = 0;
+        }
+    }
+
+    private String subscription;
+    private long nextOffset;
+    private long watermark;
+    private long outOfOrder;
+    private Map<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+    private TreeMap<Long, Long> chunkTimes = new TreeMap<Long, Long>();
+
+    /**
+     * Create a ledger whose first offset is 0.
+     */
+    public DeliveryLedger (String subscription) {
+        this(subscription, 0);
+    }
+
+    /**
+     * Create a ledger whose first offset is not 0, for example for a Subscription that was
+     * created after its Topic already had Events.  Everything before the first offset counts
+     * as delivered.
+     */
+    public DeliveryLedger (String subscription, long firstOffset) {
+        this.subscription = subscription;
+        this.watermark = Math.max(0, firstOffset);
+        this.nextOffset = watermark;
+    }
+
+    public String getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * Every offset below the watermark has been delivered.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * The number of offsets at or above the watermark that have been delivered.
+     */
+    public synchronized long getOutOfOrder() {
+        return outOfOrder;
+    }
+
+    /**
+     * The number of bitmap chunks in use.
+     */
+    public synchronized int getChunkCount () {
+        return chunks.size();
+    }
+
+    /**
+     * Give out the offset for the next Event queued for the Subscription.
+     */
+    public synchronized long next () {
+        return nextOffset++;
+    }
+
+    /**
+     * The offset of an Event in a ledger, from its sequence.
+     *
+     * @return The offset, or -1 if the Event has not been numbered.
+     */
+    public static long offsetOf (Event event) {
+        return event.getSequence() > 0 ? event.getSequence() - 1 : -1;
+    }
+
+    /**
+     * Record that the Event at an offset was delivered.
+     *
+     * @param offset The offset.
+     * @param time When it was delivered.
+     * @return true if it was not already recorded.
+     */
+    public synchronized boolean acknowledge (long offset, long time) {
+        if (offset < watermark)
+            return false;
+
+        nextOffset = Math.max(nextOffset, offset + 1);
+        recordTime(offset, time);
+
+        if (offset > watermark) {
+            Chunk chunk = chunks.get(offset >>> CHUNK_BITS);
+            if (null == chunk) {
+                chunk = new Chunk();
+                chunks.put(offset >>> CHUNK_BITS, chunk);
+            }
+
+            if (!chunk.add((int) (offset & CHUNK_MASK)))
+                return false;
+
+            outOfOrder++;
+            return true;
+        }
+
+        advance();
+
+        while (outOfOrder > 0 && isSet(watermark)) {
+            outOfOrder--;
+            advance();
+        }
+
+        return true;
+    }
+
+    /**
+     * Record that the Events at a range of offsets, such as a batch, were delivered.
+     *
+     * @param from The first offset.
+     * @param to The last offset.
+     * @param time When they were delivered.
+     */
+    public synchronized void acknowledge (long from, long to, long time) {
+        for (long offset = Math.max(from, watermark); offset <= to; offset++) {
+            acknowledge(offset, time);
+        }
+    }
+
+    public synchronized boolean isDelivered (long offset) {
+        return offset < watermark || isSet(offset);
+    }
+
+    /**
+     * Was an Event delivered?
+     *
+     * @return true if the Event has been numbered and its offset was delivered.
+     */
+    public synchronized boolean isDelivered (Event event) {
+        long offset = offsetOf(event);
+        return offset >= 0 && isDelivered(offset);
+    }
+
+    /**
+     * Record that an Event was delivered.
+     *
+     * @return true if it was not already recorded, false if it was or the Event has not been
+     * numbered.
+     */
+    public synchronized boolean acknowledge (Event event, long time) {
+        long offset = offsetOf(event);
+        return offset >= 0 && acknowledge(offset, time);
+    }
+
+    /**
+     * Make a Delivery for an offset that was delivered.
+     *
+     * <p>
+     *     The guid of the Delivery is made from the Subscription and the offset, so asking twice
+     *     gives equal Deliveries.  It is not the guid of a batch Delivery.
+     * </p>
+     *
+     * @param offset The offset.
+     * @param eventGuid The guid of the Event at that offset.
+     * @return The Delivery, or null if the offset was not delivered.
+     */
+    public synchronized Delivery getDelivery (long offset, String eventGuid) {
+        if (!isDelivered(offset))
+            return null;
+
+        Long time = chunkTimes.get(offset >>> CHUNK_BITS);
+        return new Delivery(subscription + DELIVERY_SEPARATOR + offset, eventGuid, null == time ? 0 : time,
+                subscription);
+    }
+
+    /**
+     * Make a Delivery for an Event.
+     *
+     * @return The Delivery, or null if the Event has not been numbered or was not delivered.
+     */
+    public synchronized Delivery getDelivery (Event event) {
+        long offset = offsetOf(event);
+        return offset < 0 ? null : getDelivery(offset, event.getGuid());
+    }
+
+    public synchronized void writeTo (DataOutput dataOutput) throws IOException {
+        dataOutput.writeByte(FORMAT);
+        dataOutput.writeUTF(subscription);
+        dataOutput.writeLong(nextOffset);
+        dataOutput.writeLong(watermark);
+        dataOutput.writeLong(outOfOrder);
+
+        dataOutput.writeInt(chunkTimes.size());
+        for (Map.Entry<Long, Long> entry : chunkTimes.entrySet()) {
+            dataOutput.writeLong(entry.getKey());
+            dataOutput.writeLong(entry.getValue());
+        }
+
+        dataOutput.writeInt(chunks.size());
+        for (Map.Entry<Long, Chunk> entry : chunks.entrySet()) {
+            Chunk chunk = entry.getValue();
+            dataOutput.writeLong(entry.getKey());
+
+            if (null != chunk.bits) {
+                dataOutput.writeBoolean(true);
+                for (long word : chunk.bits) {
+                    dataOutput.writeLong(word);
+                }
+            } else {
+                dataOutput.writeBoolean(false);
+                dataOutput.writeShort(chunk.size);
+                for (int i = 0; i < chunk.size; i++) {
+                    dataOutput.writeShort(chunk.values[i]);
+                }
+            }
+        }
+    }
+
+    public static DeliveryLedger readFrom (DataInput dataInput) throws IOException {
+        int format = dataInput.readByte();
+        if (format != FORMAT && format != FORMAT_WITH_GUIDS && format != FORMAT_WITHOUT_GUIDS)
+            throw new IOException("unknown ledger format: " + format);
+
+        DeliveryLedger ledger = new DeliveryLedger(dataInput.readUTF());
+        ledger.nextOffset = dataInput.readLong();
+        ledger.watermark = dataInput.readLong();
+        ledger.outOfOrder = dataInput.readLong();
+
+        int count = dataInput.readInt();
+        for (int i = 0; i < count; i++) {
+            ledger.chunkTimes.put(dataInput.readLong(), dataInput.readLong());
+        }
+
+        count = dataInput.readInt();
+        for (int i = 0; i < count; i++) {
+            long key = dataInput.readLong();
+            Chunk chunk = new Chunk();
+
+            if (dataInput.readBoolean()) {
+                chunk.values = null;
+                chunk.bits = new long[CHUNK_SIZE / 64];
+                for (int j = 0; j < chunk.bits.length; j++) {
+                    chunk.bits[j] = dataInput.readLong();
+                }
+            } else {
+                chunk.size = dataInput.readUnsignedShort();
+                chunk.values = new short[Math.max(4, chunk.size)];
+                for (int j = 0; j < chunk.size; j++) {
+                    chunk.values[j] = dataInput.readShort();
+                }
+            }
+
+            ledger.chunks.put(key, chunk);
+        }
+
+        //
+        // offsets now come from the Events, so the guids an older ledger kept are skipped
+        //
+        if (FORMAT_WITH_GUIDS == format) {
+            count = dataInput.readInt();
+            for (int i = 0; i < count; i++) {
+                dataInput.readUTF();
+                dataInput.readLong();
+            }
+        }
+
+        return ledger;
+    }
+
+    private boolean isSet (long offset) {
+        Chunk chunk = chunks.get(offset >>> CHUNK_BITS);
+        return null != chunk && chunk.contains((int) (offset & CHUNK_MASK));
+    }
+
+    /**
+     * Move the watermark up one, dropping the chunk it leaves.
+     */
+    private void advance () {
+        watermark++;
+
+        if (0 == (watermark & CHUNK_MASK))
+            chunks.remove((watermark - 1) >>> CHUNK_BITS);
+    }
+
+    private void recordTime (long offset, long time) {
+        Long key = offset >>> CHUNK_BITS;
+        Long previous = chunkTimes.get(key);
+
+        if (null == previous || previous < time)
+            chunkTimes.put(key, time);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keep track of the deliveries of an {@link Event} that are still pending.
+ *
+ * <p>
+ *     The tracker is a counter of pending deliveries, plus an optional list of the
+ *     deliverers --- usually subscription names --- that are pending.  A delivery added
+ *     with a null deliverer is only counted.  The list is held as a small array that is
+ *     replaced, with a compare and set, on every change; an Event rarely has more than a
+ *     handful of pending deliveries, so this uses much less memory than a list or a
+ *     concurrent set and needs no locks.
+ * </p>
+ *
+ * <p>
+ *     Like the list Event used to keep, the tracker counts a deliverer that is added twice
+ *     twice, and it stays pending until it has been removed as many times as it was added.
+ * </p>
+ *
+ * <p>
+ *     The counter goes up before a deliverer is added to the list and down after it is
+ *     removed, so while a delivery is being added {@link #isComplete()} is already false,
+ *     and an Event cannot be evicted in the middle of having a delivery added.  The counter
+ *     never goes below zero: removing a deliverer that is not pending changes nothing.
+ * </p>
+ *
+ * <p>
+ *     When the number of pending deliveries drops to zero, the completion listeners are
+ *     called on the thread that made the last change.  A listener stays registered until it
+ *     is removed, so it is called every time the Event goes from pending to complete.  A
+ *     listener that is added when the tracker is already complete is not called; callers
+ *     should check {@link #isComplete()} after adding one.
+ * </p>
+ */
+public class DeliveryTracker {
+    private static final Object[] EMPTY = new Object[0];
+    private static final Runnable[] NO_LISTENERS = new Runnable[0];
+
+    private AtomicInteger pending = new AtomicInteger();
+    private AtomicInteger counted = new AtomicInteger();
+    private AtomicReference<Object[]> deliverers = new AtomicReference<Object[]>(EMPTY);
+    private AtomicReference<Runnable[]> completionListeners = new AtomicReference<Runnable[]>(NO_LISTENERS);
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public boolean isComplete () {
+        return pending.get() <= 0;
+    }
+
+    public void addCompletionListener (Runnable listener) {
+        while (true) {
+            Runnable[] current = completionListeners.get();
+            Runnable[] replacement = Arrays.copyOf(current, current.length + 1);
+            replacement[current.length] = listener;
+
+            if (completionListeners.compareAndSet(current, replacement))
+                return;
+        }
+    }
+
+    /**
+     * Stop calling a completion listener.
+     *
+     * @return true if the listener was registered.
+     */
+    public boolean removeCompletionListener (Runnable listener) {
+        while (true) {
+            Runnable[] current = completionListeners.get();
+
+            int index = -1;
+            for (int i = 0; i < current.length && -1 == index; i++) {
+                if (current[i] == listener)
+                    index = i;
+            }
+
+            if (-1 == index)
+                return false;
+
+            Runnable[] replacement = NO_LISTENERS;
+            if (current.length > 1) {
+                replacement = new Runnable[current.length - 1];
+                System.arraycopy(current, 0, replacement, 0, index);
+                System.arraycopy(current, index + 1, replacement, index, current.length - index - 1);
+            }
+
+            if (completionListeners.compareAndSet(current, replacement))
+                return true;
+        }
+    }
+
+    /**
+     * The deliverers that are pending.
+     */
+    public List<Object> getDeliverers () {
+        return Collections.unmodifiableList(Arrays.asList(deliverers.get()));
+    }
+
+    public boolean isPending (Object deliverer) {
+        return indexOf(deliverers.get(), deliverer) != -1;
+    }
+
+    /**
+     * Record a pending delivery.
+     *
+     * @param deliverer Who is delivering, or null to only count the delivery.
+     */
+    public void add (Object deliverer) {
+        if (null == deliverer) {
+            changePending(1);
+            counted.incrementAndGet();
+            return;
+        }
+
+        addAll(Collections.singletonList(deliverer));
+    }
+
+    /**
+     * Record several pending deliveries with one change.  Null deliverers are ignored.
+     *
+     * @return The number of deliveries that were recorded.
+     */
+    public int addAll (Collection<?> newDeliverers) {
+        int added = 0;
+        for (Object deliverer : newDeliverers) {
+            if (null != deliverer)
+                added++;
+        }
+
+        if (0 == added)
+            return 0;
+
+        changePending(added);
+
+        while (true) {
+            Object[] current = deliverers.get();
+            List<Object> list = new ArrayList<Object>(current.length + added);
+            list.addAll(Arrays.asList(current));
+
+            for (Object deliverer : newDeliverers) {
+                if (null != deliverer)
+                    list.add(deliverer);
+            }
+
+            if (deliverers.compareAndSet(current, list.toArray()))
+                return added;
+        }
+    }
+
+    /**
+     * Record that a delivery is no longer pending.
+     *
+     * @param deliverer Who was delivering, or null for a delivery that was only counted.
+     * @return true if the delivery was pending.
+     */
+    public boolean remove (Object deliverer) {
+        if (null == deliverer) {
+            while (true) {
+                int current = counted.get();
+                if (current <= 0)
+                    return false;
+
+                if (counted.compareAndSet(current, current - 1)) {
+                    changePending(-1);
+                    return true;
+                }
+            }
+        }
+
+        return removeAll(Collections.singletonList(deliverer)) == 1;
+    }
+
+    /**
+     * Record that several deliveries are no longer pending with one change.  Each deliverer
+     * given removes one of its pending deliveries.
+     *
+     * @return The number of deliveries that were pending.
+     */
+    public int removeAll (Collection<?> oldDeliverers) {
+        while (true) {
+            Object[] current = deliverers.get();
+            List<Object> list = new ArrayList<Object>(Arrays.asList(current));
+
+            int removed = 0;
+            for (Object deliverer : oldDeliverers) {
+                if (null != deliverer && list.remove(deliverer))
+                    removed++;
+            }
+
+            if (0 == removed)
+                return 0;
+
+            Object[] replacement = list.isEmpty() ? EMPTY : list.toArray();
+            if (deliverers.compareAndSet(current, replacement)) {
+                changePending(-removed);
+                return removed;
+            }
+        }
+    }
+
+    private void changePending (int delta) {
+        if (pending.addAndGet(delta) == 0) {
+            for (Runnable listener : completionListeners.get()) {
+                listener.run();
+            }
+        }
+    }
+
+    private static int indexOf (Object[] array, Object deliverer) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(deliverer))
+                return i;
+        }
+
+        return -1;
+    }
+}
@@ -19,11 +19,14 @@ package com.ltsllc.miranda.clientinterface.basicclasses;
 import com.google.gson.Gson;
 import com.ltsllc.common.util.ImprovedRandom;
 import com.ltsllc.common.util.Utils;
+import com.ltsllc.miranda.clientinterface.storage.PayloadArena;
+import com.ltsllc.miranda.clientinterface.storage.PayloadHandle;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
 import java.util.UUID;
 
 /**
@@ -65,11 +68,48 @@ import java.util.UUID;
  *         <td>The name of the Topic that this instance was published to.</td>
  *     </tr>
  *     <tr>
- *         <td>awaitingDelivery</td>
- *         <td>List of Objects</td>
+ *         <td>partitionKey</td>
+ *         <td>String</td>
+ *         <td>
+ *             An optional key, chosen by the publisher, that decides which partition of the Topic
+ *             the Event goes to (see {@link Topic#partitionFor(Event)}).  Events with the same
+ *             key are delivered in the order they were published.
+ *         </td>
+ *     </tr>
+ *     <tr>
+ *         <td>idempotencyKey</td>
+ *         <td>String</td>
+ *         <td>
+ *             An optional key, chosen by the publisher, that identifies the publication rather
+ *             than the Event.  A publisher that retries a request sends the same key, and the
+ *             retry is rejected as a duplicate instead of creating a second Event (see
+ *             {@link com.ltsllc.miranda.clientinterface.storage.DuplicateDetector}).
+ *         </td>
+ *     </tr>
+ *     <tr>
+ *         <td>expiresAt</td>
+ *         <td>long</td>
+ *         <td>
+ *             The time after which the Event may be removed, or 0 if it never expires.  This is
+ *             usually set from the maxAge of the Event's Topic, with {@link #applyRetention(Topic)}.
+ *         </td>
+ *     </tr>
+ *     <tr>
+ *         <td>sequence</td>
+ *         <td>long</td>
+ *         <td>
+ *             The place of the Event in its Topic: the node numbers the Events of a Topic 1, 2,
+ *             3 and so on as it accepts them.  0 means the Event has not been numbered.  A
+ *             {@link DeliveryLedger} uses this to record deliveries without keeping the Event's
+ *             guid.
+ *         </td>
+ *     </tr>
+ *     <tr>
+ *         <td>deliveryTracker</td>
+ *         <td>{@link DeliveryTracker}</td>
  *         <td>
  *             <p>
- *             The objects that are trying to deliver the Event.
+ *             The deliveries of the Event that are still pending.
  *             </p>
  *             <p>
  *             Generally, clients do not interact with this property directly.
@@ -77,8 +117,9 @@ import java.util.UUID;
  *             or {@link #canBeEvicted()} to ascertain the state of this property.
  *             </p>
  *             <p>
- *                 If this is empty, then it is because the Event has just been created or when
- *                 everyone who was trying to deliver the Event has done so.
+ *                 The tracker is only created when the first delivery is added, so an Event
+ *                 that nobody is delivering does not pay for one.  It is transient: pending
+ *                 deliveries are not part of the JSON form of an Event.
  *             </p>
  *         </td>
  *     </tr>
@@ -102,11 +143,17 @@ import java.util.UUID;
  *                 for example an HTTP POST that has an empty body,
  *                 this property will generally be a zero length array.
  *             </p>
+ *             <p>
+ *                 The content can be moved off the heap, into a {@link PayloadArena}, with
+ *                 {@link #moveContentOffHeap(PayloadArena)}.  After that {@link #getContent()}
+ *                 returns a new copy of the content each time it is called, so code that only
+ *                 needs to send the content should use {@link #writeContentTo(WritableByteChannel)}.
+ *             </p>
  *         </td>
  *     </tr>
  * </table>
  */
-public class Event extends MirandaObject implements DirectoryEntry {
+public class Event extends MirandaObject implements DirectoryEntry, PrimaryKey<String> {
     private static SecureRandom random = new SecureRandom();
 
     public enum Methods {
@@ -118,12 +165,17 @@ public class Event extends MirandaObject implements DirectoryEntry {
     }
 
     private String guid;
-    private byte[] content;
+    private volatile byte[] content;
+    private transient volatile PayloadHandle payload;
     private String userName;
     private long timeOfCreation;
     private Methods method;
     private String topicName;
-    private List awaitingDelivery;
+    private String partitionKey;
+    private String idempotencyKey;
+    private long expiresAt;
+    private long sequence;
+    private transient volatile DeliveryTracker deliveryTracker;
 
     public Event (Methods method, String hexString) throws IOException {
         byte[] content = Utils.hexStringToBytes(hexString);
@@ -157,8 +209,6 @@ public class Event extends MirandaObject implements DirectoryEntry {
         this.timeOfCreation = timeOfCreation;
         this.method = method;
         this.content = content;
-
-        this.awaitingDelivery = new ArrayList();
     }
 
     public long getTimeOfCreation() {
@@ -177,6 +227,62 @@ public class Event extends MirandaObject implements DirectoryEntry {
         this.topicName = topicName;
     }
 
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Set when this Event expires from the maxAge of its Topic.  An Event that already has an
+     * expiration time keeps it.
+     */
+    public void applyRetention (Topic topic) {
+        if (0 == expiresAt && topic.getMaxAge() > 0)
+            expiresAt = timeOfCreation + topic.getMaxAge();
+    }
+
+    /**
+     * Has this Event expired?
+     *
+     * <p>
+     *     Whether an expired Event can actually be removed also depends on whether it has
+     *     pending deliveries; see {@link #canBeEvicted()}.
+     * </p>
+     *
+     * @param time The time to compare to.
+     * @return true if the Event has an expiration time and time is at or after it.
+     */
+    public boolean expired (long time) {
+        return expiresAt > 0 && time >= expiresAt;
+    }
+
     public void setGuid(String guid) {
         this.guid = guid;
     }
@@ -189,13 +295,159 @@ public class Event extends MirandaObject implements DirectoryEntry {
         this.userName = userName;
     }
 
-    public void setContent(byte[] content) {
-
+    public synchronized void setContent(byte[] content) {
+        releasePayload();
         this.content = content;
     }
 
+    /**
+     * Move the content of this Event into an arena.
+     *
+     * <p>
+     *     The Event keeps a handle to the content instead of the content itself.  The caller
+     *     should call {@link #releasePayload()} when the Event is no longer needed, so the arena
+     *     can reuse the space.
+     * </p>
+     *
+     * @param arena Where to put the content.
+     * @throws IOException If the arena could not allocate the space.
+     */
+    public synchronized void moveContentOffHeap (PayloadArena arena) throws IOException {
+        if (null == content)
+            return;
+
+        payload = arena.allocate(content);
+        content = null;
+    }
+
+    public boolean isContentOffHeap () {
+        return null != payload;
+    }
+
+    /**
+     * Give up the Event's reference to its off-heap content, if it has any.  The content is
+     * null afterwards.
+     *
+     * <p>
+     *     Readers of the content take their own reference while they read (see
+     *     {@link PayloadHandle#tryRetain()}), so the space is only reused once the last of them
+     *     is done; a reader that loses the race sees the content as null.
+     * </p>
+     */
+    public synchronized void releasePayload () {
+        PayloadHandle handle = payload;
+        payload = null;
+
+        if (null != handle)
+            handle.release();
+    }
+
+    /**
+     * The length of the content, or -1 if the content is null.
+     */
+    public int getContentLength () {
+        PayloadHandle handle = payload;
+        if (null != handle)
+            return handle.getLength();
+
+        byte[] bytes = content;
+        return null == bytes ? -1 : bytes.length;
+    }
+
+    /**
+     * Write the content to a channel.  Off-heap content is written without being copied onto
+     * the heap.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeContentTo (WritableByteChannel channel) throws IOException {
+        PayloadHandle handle = retainPayload();
+        if (null != handle) {
+            try {
+                return handle.writeTo(channel);
+            } finally {
+                handle.release();
+            }
+        }
+
+        byte[] bytes = content;
+        if (null == bytes && isPayloadLive())
+            return writeContentTo(channel);
+
+        if (null == bytes)
+            return 0;
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        return bytes.length;
+    }
+
+    /**
+     * The tracker for this Event, creating it if this is the first delivery.
+     */
+    public DeliveryTracker getDeliveryTracker () {
+        DeliveryTracker tracker = deliveryTracker;
+
+        if (null == tracker) {
+            synchronized (this) {
+                if (null == deliveryTracker)
+                    deliveryTracker = new DeliveryTracker();
+
+                tracker = deliveryTracker;
+            }
+        }
+
+        return tracker;
+    }
+
     public void addAwaitingDelivery (Object deliverer) {
-        this.awaitingDelivery.add(deliverer);
+        getDeliveryTracker().add(deliverer);
+    }
+
+    public void addAwaitingDeliveries (Collection<?> deliverers) {
+        getDeliveryTracker().addAll(deliverers);
+    }
+
+    /**
+     * Record that someone is no longer trying to deliver this Event.
+     *
+     * @param deliverer The object passed to {@link #addAwaitingDelivery(Object)}.
+     * @return true if the deliverer was trying to deliver this Event.
+     */
+    public boolean removeAwaitingDelivery (Object deliverer) {
+        DeliveryTracker tracker = deliveryTracker;
+        return null != tracker && tracker.remove(deliverer);
+    }
+
+    public int removeAwaitingDeliveries (Collection<?> deliverers) {
+        DeliveryTracker tracker = deliveryTracker;
+        return null == tracker ? 0 : tracker.removeAll(deliverers);
+    }
+
+    public int getAwaitingDeliveryCount () {
+        DeliveryTracker tracker = deliveryTracker;
+        return null == tracker ? 0 : tracker.getPending();
+    }
+
+    /**
+     * Have something run whenever the last pending delivery of this Event is removed.
+     *
+     * <p>
+     *     A listener added when the Event has no pending deliveries is not called until the
+     *     Event has had a delivery added and removed; check {@link #canBeEvicted()} after
+     *     adding one.
+     * </p>
+     */
+    public void addDeliveryCompletionListener (Runnable listener) {
+        getDeliveryTracker().addCompletionListener(listener);
+    }
+
+    public boolean removeDeliveryCompletionListener (Runnable listener) {
+        DeliveryTracker tracker = deliveryTracker;
+        return null != tracker && tracker.removeCompletionListener(listener);
     }
 
     /**
@@ -225,6 +477,18 @@ public class Event extends MirandaObject implements DirectoryEntry {
         if (!stringsAreEqual(getUserName(), other.getUserName()))
             return false;
 
+        if (!stringsAreEqual(getPartitionKey(), other.getPartitionKey()))
+            return false;
+
+        if (!stringsAreEqual(getIdempotencyKey(), other.getIdempotencyKey()))
+            return false;
+
+        if (getExpiresAt() != other.getExpiresAt())
+            return false;
+
+        if (getSequence() != other.getSequence())
+            return false;
+
         return true;
     }
 
@@ -254,6 +518,18 @@ public class Event extends MirandaObject implements DirectoryEntry {
 
         if (!stringsAreEqual(getUserName(), other.getUserName()))
             setUserName(getUserName());
+
+        if (!stringsAreEqual(getPartitionKey(), other.getPartitionKey()))
+            setPartitionKey(other.getPartitionKey());
+
+        if (!stringsAreEqual(getIdempotencyKey(), other.getIdempotencyKey()))
+            setIdempotencyKey(other.getIdempotencyKey());
+
+        if (getExpiresAt() != other.getExpiresAt())
+            setExpiresAt(other.getExpiresAt());
+
+        if (getSequence() != other.getSequence())
+            setSequence(other.getSequence());
     }
 
     public boolean matches (Object o) {
@@ -296,7 +572,50 @@ public class Event extends MirandaObject implements DirectoryEntry {
     }
 
     public byte[] getContent() {
-        return content;
+        PayloadHandle handle = retainPayload();
+        if (null != handle) {
+            try {
+                return handle.toBytes();
+            } finally {
+                handle.release();
+            }
+        }
+
+        //
+        // the content may have been moved off heap between reading payload and reading content
+        //
+        byte[] bytes = content;
+        if (null == bytes && isPayloadLive())
+            return getContent();
+
+        return bytes;
+    }
+
+    private boolean isPayloadLive () {
+        PayloadHandle handle = payload;
+        return null != handle && !handle.isReleased();
+    }
+
+    /**
+     * Take a reference to the off-heap content, so that it cannot be given back to the arena
+     * while it is being read.
+     *
+     * @return The handle, which the caller must release, or null if the content is on the heap
+     * or has been released.
+     */
+    private PayloadHandle retainPayload () {
+        while (true) {
+            PayloadHandle handle = payload;
+            if (null == handle || handle.tryRetain())
+                return handle;
+
+            //
+            // releasePayload clears the field before it releases the handle, so unless someone
+            // else released it, the next read of the field sees what replaced it
+            //
+            if (payload == handle)
+                return null;
+        }
     }
 
     public String getContentAsHexString () {
@@ -317,7 +636,18 @@ public class Event extends MirandaObject implements DirectoryEntry {
 
 
     public String toJson () {
-        return getGson().toJson(this);
+        if (!isContentOffHeap())
+            return getGson().toJson(this);
+
+        Event onHeap = new Event(getUserName(), getGuid(), getTopicName(), getTimeOfCreation(), getMethod(),
+                getContent());
+        onHeap.setPartitionKey(getPartitionKey());
+        onHeap.setExpiresAt(getExpiresAt());
+        onHeap.setIdempotencyKey(getIdempotencyKey());
+        onHeap.setSequence(getSequence());
+        onHeap.copyChangeStampFrom(this);
+
+        return getGson().toJson(onHeap);
     }
 
     public void updateFrom (Event other) {
@@ -332,6 +662,10 @@ public class Event extends MirandaObject implements DirectoryEntry {
         return getGuid();
     }
 
+    public String getPrimaryKey () {
+        return getGuid();
+    }
+
 
     public boolean isEquivalentTo(DirectoryEntry other) {
         if (!(other instanceof Event))
@@ -349,6 +683,7 @@ public class Event extends MirandaObject implements DirectoryEntry {
      * </p>
      */
     public boolean canBeEvicted () {
-        return awaitingDelivery.size() <= 0;
+        DeliveryTracker tracker = deliveryTracker;
+        return null == tracker || tracker.isComplete();
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hybrid logical clock.
+ *
+ * <p>
+ *     The clock produces change stamps that are packed into a single long.  From most
+ *     significant to least significant, a stamp holds the physical time in milliseconds,
+ *     a logical counter and the ID of the node that issued it.  Comparing two stamps as
+ *     longs therefore orders them by time, then by counter, then by node.
+ * </p>
+ *
+ * <p>
+ *     The physical part of a stamp is never less than the physical part of any stamp the
+ *     clock has issued or seen through {@link #update(long)}, so stamps stay close to
+ *     wall clock time while still respecting causality.  Two nodes with different IDs
+ *     never issue the same stamp.
+ * </p>
+ *
+ * <p>
+ *     A stamp of 0 means "never changed."
+ * </p>
+ */
+public class HybridLogicalClock {
+    public static final int NODE_BITS = 10;
+    public static final int COUNTER_BITS = 11;
+
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    public static final int MAX_COUNTER = (1 << COUNTER_BITS) - 1;
+
+    private int node;
+    private AtomicLong last = new AtomicLong();
+
+    public HybridLogicalClock (int node) {
+        if (node < 0 || node > MAX_NODE)
+            throw new IllegalArgumentException("node must be between 0 and " + MAX_NODE + ", was " + node);
+
+        this.node = node;
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * The last stamp issued or seen by this clock.
+     */
+    public long getLast () {
+        return last.get();
+    }
+
+    public long currentTimeMillis () {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Issue a stamp for a local change.
+     *
+     * @return A stamp that is greater than every stamp this clock has issued or seen.
+     */
+    public long tick () {
+        while (true) {
+            long previous = last.get();
+            long physical = Math.max(currentTimeMillis(), physicalTime(previous));
+            int counter = physical == physicalTime(previous) ? counter(previous) + 1 : 0;
+
+            long next = nextStamp(physical, counter);
+            if (last.compareAndSet(previous, next))
+                return next;
+        }
+    }
+
+    /**
+     * Take a stamp from another node into account.
+     *
+     * <p>
+     *     This should be called whenever a change from another node is received so that
+     *     the next local change is ordered after it.
+     * </p>
+     *
+     * @param remote The stamp from the other node.
+     * @return A stamp that is greater than both the remote stamp and every stamp this
+     * clock has issued or seen.
+     */
+    public long update (long remote) {
+        while (true) {
+            long previous = last.get();
+            long physical = Math.max(currentTimeMillis(), Math.max(physicalTime(previous), physicalTime(remote)));
+
+            int counter;
+            if (physical == physicalTime(previous) && physical == physicalTime(remote))
+                counter = Math.max(counter(previous), counter(remote)) + 1;
+            else if (physical == physicalTime(previous))
+                counter = counter(previous) + 1;
+            else if (physical == physicalTime(remote))
+                counter = counter(remote) + 1;
+            else
+                counter = 0;
+
+            long next = nextStamp(physical, counter);
+            if (last.compareAndSet(previous, next))
+                return next;
+        }
+    }
+
+    private long nextStamp (long physical, int counter) {
+        if (counter > MAX_COUNTER) {
+            physical++;
+            counter = 0;
+        }
+
+        return pack(physical, counter, node);
+    }
+
+    public static long pack (long physicalTime, int counter, int node) {
+        return (physicalTime << (COUNTER_BITS + NODE_BITS)) | (((long) counter) << NODE_BITS) | node;
+    }
+
+    public static long physicalTime (long stamp) {
+        return stamp >>> (COUNTER_BITS + NODE_BITS);
+    }
+
+    public static int counter (long stamp) {
+        return (int) ((stamp >>> NODE_BITS) & MAX_COUNTER);
+    }
+
+    public static int node (long stamp) {
+        return (int) (stamp & MAX_NODE);
+    }
+}
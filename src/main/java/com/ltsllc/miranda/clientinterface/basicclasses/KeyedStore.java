@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A concurrent collection of {@link MirandaObject}s indexed by their {@link PrimaryKey}s.
+ *
+ * <p>
+ *     Lookups and merges into an existing object are constant time.  Adding or removing a
+ *     key also updates a sorted set of keys, which is what {@link #iterator()} and
+ *     {@link #keys()} use to return objects in key order.
+ * </p>
+ *
+ * <p>
+ *     Operations on the same key are atomic with respect to each other.  Operations on
+ *     different keys do not block each other.  If the object in the store is frozen (see
+ *     {@link MirandaObject#freeze()}), then a merge replaces it with a new, frozen, copy
+ *     instead of changing it.
+ * </p>
+ *
+ * @param <K> The type of the primary key.
+ * @param <T> The type of object that the store holds.
+ */
+public class KeyedStore<K extends Comparable<K>, T extends MirandaObject & PrimaryKey<K>> implements Iterable<T> {
+    /**
+     * Something that wants to know when the contents of a store change.
+     *
+     * <p>
+     *     Listeners are called after the change has been made, on the thread that made it.
+     *     When an object is merged in place, both arguments to updated are the same object.
+     * </p>
+     */
+    public interface Listener<T> {
+        public void added(T value);
+        public void updated(T oldValue, T newValue);
+        public void removed(T value);
+    }
+
+    private ConcurrentHashMap<K, T> map = new ConcurrentHashMap<K, T>();
+    private NavigableSet<K> keys = new ConcurrentSkipListSet<K>();
+    private List<Listener<T>> listeners = new CopyOnWriteArrayList<Listener<T>>();
+
+    public void addListener(Listener<T> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener<T> listener) {
+        listeners.remove(listener);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public T get(K key) {
+        return map.get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /**
+     * Find the object in the store that matches another object.
+     *
+     * @param o The object to look for.
+     * @return The object in the store with the same primary key, or null if there isn't one.
+     */
+    public T find(T o) {
+        return map.get(o.getPrimaryKey());
+    }
+
+    /**
+     * Add an object to the store, replacing any object with the same primary key.
+     *
+     * @param value The object to add.
+     * @return The object that was replaced, or null if there wasn't one.
+     */
+    public T put(T value) {
+        K key = value.getPrimaryKey();
+        T oldValue = map.put(key, value);
+
+        if (null == oldValue) {
+            keys.add(key);
+            fireAdded(value);
+        } else {
+            fireUpdated(oldValue, value);
+        }
+
+        return oldValue;
+    }
+
+    public T remove(K key) {
+        T oldValue = map.remove(key);
+
+        if (null != oldValue) {
+            keys.remove(key);
+
+            //
+            // another thread may have added the key again after we removed it from the map
+            //
+            if (map.containsKey(key))
+                keys.add(key);
+
+            fireRemoved(oldValue);
+        }
+
+        return oldValue;
+    }
+
+    /**
+     * Merge an object into the store.
+     *
+     * <p>
+     *     If there is no object with the same primary key, the object is added.  Otherwise
+     *     the object is merged into the existing object with {@link MirandaObject#merge(Object)}.
+     * </p>
+     *
+     * @param value The object to merge.
+     * @return The object in the store after the merge.
+     * @throws MergeException See {@link MirandaObject#merge(Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    public T merge(T value) throws MergeException {
+        K key = value.getPrimaryKey();
+
+        while (true) {
+            T existing = map.get(key);
+
+            if (null == existing) {
+                if (null == map.putIfAbsent(key, value)) {
+                    keys.add(key);
+                    fireAdded(value);
+                    return value;
+                }
+            } else if (existing.isFrozen()) {
+                T copy = (T) existing.copy();
+                copy.merge(value);
+
+                if (copy.getChangeStamp() == existing.getChangeStamp())
+                    return existing;
+
+                copy.freeze();
+
+                if (map.replace(key, existing, copy)) {
+                    fireUpdated(existing, copy);
+                    return copy;
+                }
+            } else {
+                long changeStamp;
+
+                synchronized (existing) {
+                    if (map.get(key) != existing)
+                        continue;
+
+                    changeStamp = existing.getChangeStamp();
+                    existing.merge(value);
+                }
+
+                if (changeStamp != existing.getChangeStamp())
+                    fireUpdated(existing, existing);
+
+                return existing;
+            }
+        }
+    }
+
+    /**
+     * The primary keys in the store, in order.
+     *
+     * <p>
+     *     The result is a read only, live, view: it reflects later additions and removals.
+     * </p>
+     */
+    public NavigableSet<K> keys() {
+        return Collections.unmodifiableNavigableSet(keys);
+    }
+
+    /**
+     * The objects in the store, in primary key order.
+     */
+    public List<T> values() {
+        List<T> list = new ArrayList<T>(map.size());
+
+        for (T value : this) {
+            list.add(value);
+        }
+
+        return list;
+    }
+
+    /**
+     * Iterate over the objects in the store in primary key order.
+     *
+     * <p>
+     *     The iterator is weakly consistent, like the iterators of the java.util.concurrent
+     *     collections, and does not support remove.
+     * </p>
+     */
+    public Iterator<T> iterator() {
+        final Iterator<K> keyIterator = keys.iterator();
+
+        return new Iterator<T>() {
+            private T next = advance();
+
+            private T advance() {
+                while (keyIterator.hasNext()) {
+                    T value = map.get(keyIterator.next());
+                    if (null != value)
+                        return value;
+                }
+
+                return null;
+            }
+
+            public boolean hasNext() {
+                return null != next;
+            }
+
+            public T next() {
+                if (null == next)
+                    throw new NoSuchElementException();
+
+                T result = next;
+                next = advance();
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("remove is not supported");
+            }
+        };
+    }
+
+    public void clear() {
+        for (K key : keys) {
+            remove(key);
+        }
+    }
+
+    private void fireAdded(T value) {
+        for (Listener<T> listener : listeners) {
+            listener.added(value);
+        }
+    }
+
+    private void fireUpdated(T oldValue, T newValue) {
+        for (Listener<T> listener : listeners) {
+            listener.updated(oldValue, newValue);
+        }
+    }
+
+    private void fireRemoved(T value) {
+        for (Listener<T> listener : listeners) {
+            listener.removed(value);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Merge updates from other nodes into a {@link KeyedStore} in parallel.
+ *
+ * <p>
+ *     Keys are spread over a fixed number of stripes, each with its own lock.  Updates
+ *     to keys in different stripes are merged at the same time; updates to keys in the
+ *     same stripe are merged one after the other, in the order they were given.
+ * </p>
+ *
+ * <p>
+ *     A batch from {@link #mergeAll(List)} is split by stripe and each stripe's share is
+ *     handed to the executor as one task, so a batch uses as many cores as it has busy
+ *     stripes.  A {@link MergeException} does not stop a batch: it is reported as a
+ *     {@link Conflict} in the {@link Result} and the rest of the batch is merged.
+ * </p>
+ *
+ * @param <K> The type of primary key.
+ * @param <T> The type of object being merged.
+ */
+public class MergeEngine<K extends Comparable<K>, T extends MirandaObject & PrimaryKey<K>> {
+    public static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * An update that could not be merged.
+     */
+    public static class Conflict<T> {
+        private T local;
+        private T remote;
+        private MergeException mergeException;
+
+        public Conflict (T local, T remote, MergeException mergeException) {
+            this.local = local;
+            this.remote = remote;
+            this.mergeException = mergeException;
+        }
+
+        public T getLocal() {
+            return local;
+        }
+
+        public T getRemote() {
+            return remote;
+        }
+
+        public MergeException getMergeException() {
+            return mergeException;
+        }
+    }
+
+    /**
+     * What happened when a batch was merged.
+     */
+    public static class Result<T> {
+        private int added;
+        private int updated;
+        private int unchanged;
+        private List<Conflict<T>> conflicts = new ArrayList<Conflict<T>>();
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public List<Conflict<T>> getConflicts() {
+            return conflicts;
+        }
+
+        public boolean hasConflicts () {
+            return !conflicts.isEmpty();
+        }
+
+        public void add (Result<T> other) {
+            added += other.added;
+            updated += other.updated;
+            unchanged += other.unchanged;
+            conflicts.addAll(other.conflicts);
+        }
+    }
+
+    private KeyedStore<K, T> store;
+    private ReentrantLock[] locks;
+    private ExecutorService executorService;
+
+    /**
+     * Create a new instance.
+     *
+     * @param store The store to merge into.
+     * @param stripes The number of stripes.  This is rounded up to a power of 2.
+     * @param executorService The executor that batches run on.  If this is null, batches are
+     *                        merged on the calling thread.
+     */
+    public MergeEngine (KeyedStore<K, T> store, int stripes, ExecutorService executorService) {
+        int size = 1;
+        while (size < stripes)
+            size = size << 1;
+
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+
+        this.store = store;
+        this.executorService = executorService;
+    }
+
+    public MergeEngine (KeyedStore<K, T> store, ExecutorService executorService) {
+        this(store, DEFAULT_STRIPES, executorService);
+    }
+
+    public KeyedStore<K, T> getStore() {
+        return store;
+    }
+
+    public int getStripes () {
+        return locks.length;
+    }
+
+    public int stripeFor (K key) {
+        int hash = key.hashCode();
+        hash = hash ^ (hash >>> 16);
+        return hash & (locks.length - 1);
+    }
+
+    /**
+     * Merge one update.
+     */
+    public Result<T> merge (T update) {
+        Result<T> result = new Result<T>();
+        ReentrantLock lock = locks[stripeFor(update.getPrimaryKey())];
+
+        lock.lock();
+        try {
+            mergeLocked(update, result);
+        } finally {
+            lock.unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * Merge a batch of updates.
+     *
+     * @param updates The updates to merge.
+     * @return What happened.
+     * @throws InterruptedException If the thread is interrupted while waiting for the batch.
+     */
+    public Result<T> mergeAll (List<T> updates) throws InterruptedException {
+        List<List<T>> partitions = new ArrayList<List<T>>(locks.length);
+        for (int i = 0; i < locks.length; i++) {
+            partitions.add(null);
+        }
+
+        for (T update : updates) {
+            int stripe = stripeFor(update.getPrimaryKey());
+            List<T> partition = partitions.get(stripe);
+            if (null == partition) {
+                partition = new ArrayList<T>();
+                partitions.set(stripe, partition);
+            }
+
+            partition.add(update);
+        }
+
+        Result<T> result = new Result<T>();
+
+        if (null == executorService) {
+            for (int i = 0; i < partitions.size(); i++) {
+                if (null != partitions.get(i))
+                    result.add(mergeStripe(i, partitions.get(i)));
+            }
+
+            return result;
+        }
+
+        List<Future<Result<T>>> futures = new ArrayList<Future<Result<T>>>();
+
+        for (int i = 0; i < partitions.size(); i++) {
+            final int stripe = i;
+            final List<T> partition = partitions.get(i);
+
+            if (null != partition) {
+                futures.add(executorService.submit(new Callable<Result<T>>() {
+                    public Result<T> call() {
+                        return mergeStripe(stripe, partition);
+                    }
+                }));
+            }
+        }
+
+        for (Future<Result<T>> future : futures) {
+            try {
+                result.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("exception merging updates", e.getCause());
+            }
+        }
+
+        return result;
+    }
+
+    private Result<T> mergeStripe (int stripe, List<T> partition) {
+        Result<T> result = new Result<T>();
+        ReentrantLock lock = locks[stripe];
+
+        lock.lock();
+        try {
+            for (T update : partition) {
+                mergeLocked(update, result);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return result;
+    }
+
+    private void mergeLocked (T update, Result<T> result) {
+        T existing = store.get(update.getPrimaryKey());
+        long changeStamp = null == existing ? 0 : existing.getChangeStamp();
+
+        try {
+            T merged = store.merge(update);
+
+            if (null == existing)
+                result.added++;
+            else if (merged != existing || merged.getChangeStamp() != changeStamp)
+                result.updated++;
+            else
+                result.unchanged++;
+        } catch (MergeException e) {
+            result.conflicts.add(new Conflict<T>(existing, update, e));
+        }
+    }
+}
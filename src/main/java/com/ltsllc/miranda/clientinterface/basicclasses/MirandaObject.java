@@ -14,31 +14,145 @@ import com.google.gson.Gson;
  * </th>
  * <tr>
  * <td>lastChange</td>
- * <td>Long</td>
- * <td>The Java time when the object was last changed.</td>
+ * <td>long</td>
+ * <td>The Java time when the object was last changed, or 0 if it has never been changed.</td>
+ * </tr>
+ * <tr>
+ * <td>changeCounter</td>
+ * <td>int</td>
+ * <td>The logical counter of the change, which orders changes made in the same millisecond.</td>
+ * </tr>
+ * <tr>
+ * <td>changeNode</td>
+ * <td>int</td>
+ * <td>The ID of the node that made the change.</td>
  * </tr>
  * </table>
+ *
+ * <p>
+ *     Together, these three properties make up a {@link HybridLogicalClock} stamp,
+ *     which is what {@link #merge(Object)} uses to decide which of two objects is newer.
+ * </p>
  */
 public class MirandaObject implements Matchable {
-    private static Gson gson;
+    private static Gson gson = new Gson();
 
-    private Long lastChange;
+    private long lastChange;
+    private int changeCounter;
+    private int changeNode;
+    private transient boolean frozen;
 
     public static Gson getGson() {
         return gson;
     }
 
-    public Long getLastChange() {
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Make this object immutable.
+     *
+     * <p>
+     *     Once an object has been frozen, its setters, and therefore methods like
+     *     {@link #mergeFavorOther(Object)} and updateFrom, throw an {@link IllegalStateException}.
+     *     A frozen object can be shared between threads without locking.  To change it, make a
+     *     {@link #copy()}, change the copy, and publish the copy in its place.
+     * </p>
+     *
+     * @see SnapshotReference
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * Throw an {@link IllegalStateException} if this object has been frozen.
+     */
+    public void checkMutable() {
+        if (frozen)
+            throw new IllegalStateException("attempt to modify a frozen " + getClass().getSimpleName());
+    }
+
+    /**
+     * Create an unfrozen copy of this object, including its change stamp.
+     *
+     * @return The copy.
+     */
+    public MirandaObject copy() {
+        throw new IllegalStateException("copy is not applicable for " + getClass().getSimpleName());
+    }
+
+    public void copyChangeStampFrom(MirandaObject other) {
+        setChangeStamp(other.getChangeStamp());
+    }
+
+    public long getLastChange() {
         return lastChange;
     }
 
-    public void setLastChange(Long lastChange) {
-        if (lastChange == null)
-            this.lastChange = null;
+    public void setLastChange(long lastChange) {
+        checkMutable();
+
+        this.lastChange = lastChange;
+        this.changeCounter = 0;
+        this.changeNode = 0;
+    }
+
+    public int getChangeCounter() {
+        return changeCounter;
+    }
+
+    public int getChangeNode() {
+        return changeNode;
+    }
+
+    /**
+     * The {@link HybridLogicalClock} stamp of the last change to this object.
+     *
+     * @return The stamp, or 0 if the object has never been changed.
+     */
+    public long getChangeStamp() {
+        return HybridLogicalClock.pack(lastChange, changeCounter, changeNode);
+    }
+
+    public void setChangeStamp(long changeStamp) {
+        checkMutable();
 
-        this.lastChange = new Long(lastChange.longValue());
+        this.lastChange = HybridLogicalClock.physicalTime(changeStamp);
+        this.changeCounter = HybridLogicalClock.counter(changeStamp);
+        this.changeNode = HybridLogicalClock.node(changeStamp);
     }
 
+    /**
+     * Record that this object has been changed locally.
+     *
+     * @param clock The clock of the local node.
+     */
+    public void markChanged(HybridLogicalClock clock) {
+        setChangeStamp(clock.tick());
+    }
+
+    /**
+     * Which object was changed more recently?
+     *
+     * @param other The object to compare with.
+     * @return A negative value if this object was changed before the other object, a positive
+     * value if this object was changed after the other object, and 0 if they have the same stamp.
+     */
+    public int compareChange(MirandaObject other) {
+        return Long.compare(getChangeStamp(), other.getChangeStamp());
+    }
+
+    /**
+     * Does this object match another object?
+     *
+     * <p>
+     *     If this object has a {@link PrimaryKey}, then the two objects match if they are of the
+     *     same class and their primary keys are equal.  Otherwise they match if they are of the same
+     *     class and have the same change stamp.
+     * </p>
+     */
     @Override
     public boolean matches(Object o) {
         if (o == null)
@@ -47,8 +161,32 @@ public class MirandaObject implements Matchable {
         if (getClass() != o.getClass())
             return false;
 
+        if (this instanceof PrimaryKey) {
+            Object key = ((PrimaryKey) this).getPrimaryKey();
+            Object otherKey = ((PrimaryKey) o).getPrimaryKey();
+            return null == key ? null == otherKey : key.equals(otherKey);
+        }
+
         MirandaObject other = (MirandaObject) o;
-        return getLastChange() == other.getLastChange();
+        return getChangeStamp() == other.getChangeStamp();
+    }
+
+    /**
+     * The hash code of this object.
+     *
+     * <p>
+     *     If this object has a {@link PrimaryKey}, this is the hash code of the primary key,
+     *     which is consistent with both {@link #equals(Object)} and {@link #matches(Object)}.
+     * </p>
+     */
+    @Override
+    public int hashCode() {
+        if (this instanceof PrimaryKey) {
+            Object key = ((PrimaryKey) this).getPrimaryKey();
+            return null == key ? 0 : key.hashCode();
+        }
+
+        return Long.hashCode(getChangeStamp());
     }
 
     /**
@@ -68,7 +206,7 @@ public class MirandaObject implements Matchable {
 
         MirandaObject other = (MirandaObject) o;
 
-        return longObjectsAreEquivalent(getLastChange(), other.getLastChange());
+        return getChangeStamp() == other.getChangeStamp();
     }
 
     /**
@@ -89,8 +227,8 @@ public class MirandaObject implements Matchable {
 
         MirandaObject other = (MirandaObject) o;
 
-        if (!longObjectsAreEquivalent(getLastChange(), other.getLastChange()))
-            setLastChange(other.getLastChange());
+        if (getChangeStamp() != other.getChangeStamp())
+            setChangeStamp(other.getChangeStamp());
     }
 
     /**
@@ -188,7 +326,7 @@ public class MirandaObject implements Matchable {
      * <li>The other object is null</li>
      * <li>The other object is == equivalent to this instance</li>
      * <li>The other object is {@link #equals(Object)} equivalent to this instance.</li>
-     * <li>This object was changed more recently than the other object</li>
+     * <li>This object has a greater change stamp than the other object</li>
      * </ul>
      * <p>
      * <p>
@@ -196,18 +334,24 @@ public class MirandaObject implements Matchable {
      * </p>
      * <ul>
      *     <li>This object has never been changed and the other object has</li>
-     *     <li>The other object has been chaged more recently than this object</li>
+     *     <li>The other object has a greater change stamp than this object</li>
      * </ul>
      *
      * <p>
+     *     Change stamps are compared by time, then by logical counter, then by node, so two
+     *     changes made by different nodes in the same millisecond are always ordered the
+     *     same way on every node.
+     * </p>
+     *
+     * <p>
      *     This method throws an exception if
      * </p>
      * <ul>
-     *     <li>The change times of both objects are the same, but the objects are not equivalent</li>
+     *     <li>The change stamps of both objects are the same, but the objects are not equivalent</li>
      * </ul>
      *
      * @param o The other object to merge with.
-     * @throws MergeException If the two objects have the same modification time but are not equivalent.
+     * @throws MergeException If the two objects have the same change stamp but are not equivalent.
      * @throws IllegalArgumentException If the other object is not of the same class as this object.
      */
     public void merge(Object o) throws MergeException {
@@ -225,19 +369,31 @@ public class MirandaObject implements Matchable {
             return;
         else if (equals(o))
             return;
-        else if (longObjectsAreEquivalent(getLastChange(), other.getLastChange()))
-            throw new MergeException("two objects have the same modification time but are not eqivalent");
-        else if (null == other.getLastChange())
-            return;
-        else if (null == getLastChange())
-            mergeFavorOther(other);
-        else if (other.getLastChange() < getLastChange())
+
+        int comparison = compareChange(other);
+
+        if (comparison > 0)
             return;
-        else if (other.getLastChange() > getLastChange())
+        else if (comparison < 0)
             mergeFavorOther(other);
-        else {
-            throw new MergeException("impossible case");
-        }
+        else
+            throw new MergeException("two objects have the same change stamp but are not eqivalent");
+    }
+
+    /**
+     * Merge with an object from another node, and advance the local clock past the other
+     * object's change stamp.
+     *
+     * @param o The other object to merge with.
+     * @param clock The clock of the local node.
+     * @throws MergeException See {@link #merge(Object)}.
+     * @see #merge(Object)
+     */
+    public void merge(Object o, HybridLogicalClock clock) throws MergeException {
+        if (o instanceof MirandaObject)
+            clock.update(((MirandaObject) o).getChangeStamp());
+
+        merge(o);
     }
 
     public String toJson () {
@@ -25,7 +25,7 @@ import java.util.Date;
 /**
  * Created by Clark on 1/21/2017.
  */
-public class NodeElement extends MirandaObject {
+public class NodeElement extends MirandaObject implements PrimaryKey<String> {
     private static SimpleDateFormat ourSimpleDateFormat = new SimpleDateFormat("yyyy.MM.dd@HH:mm:ss.SSS");
 
     private String dns;
@@ -38,6 +38,8 @@ public class NodeElement extends MirandaObject {
     }
 
     public void setLastConnected(long lastConnected) {
+        checkMutable();
+
         this.lastConnected = lastConnected;
     }
 
@@ -46,6 +48,8 @@ public class NodeElement extends MirandaObject {
     }
 
     public void setDescription(String description) {
+        checkMutable();
+
         this.description = description;
     }
 
@@ -54,6 +58,8 @@ public class NodeElement extends MirandaObject {
     }
 
     public void setDns(String dns) {
+        checkMutable();
+
         this.dns = dns;
     }
 
@@ -62,6 +68,8 @@ public class NodeElement extends MirandaObject {
     }
 
     public void setPort(int port) {
+        checkMutable();
+
         this.port = port;
     }
 
@@ -72,8 +80,16 @@ public class NodeElement extends MirandaObject {
         this.lastConnected = -1;
     }
 
+    public NodeElement copy () {
+        NodeElement nodeElement = new NodeElement(getDns(), getPort(), getDescription());
+        nodeElement.setLastConnected(getLastConnected());
+        nodeElement.copyChangeStampFrom(this);
+
+        return nodeElement;
+    }
+
     public boolean equals(Object o) {
-        if (!equals(o))
+        if (!super.equals(o))
             return false;
 
         NodeElement other = (NodeElement) o;
@@ -228,6 +244,18 @@ public class NodeElement extends MirandaObject {
         setDescription(other.getDescription());
     }
 
+    /**
+     * The primary key of a NodeElement, which is its DNS name and port, in the form dns:port.
+     */
+    public String getPrimaryKey () {
+        return getDns() + ":" + getPort();
+    }
+
+    public int hashCode () {
+        int hashCode = null == getDns() ? 0 : getDns().hashCode();
+        return 31 * hashCode + getPort();
+    }
+
     public boolean matches (NodeElement other) {
         return getDns().equals(other.getDns()) && getPort() == other.getPort();
     }
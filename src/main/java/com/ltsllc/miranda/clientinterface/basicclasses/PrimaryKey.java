@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+/**
+ * An object that has a primary key.
+ *
+ * <p>
+ *     The primary key is made up of the attributes that {@link Matchable#matches(Object)}
+ *     compares.  Two objects that match must have equal primary keys, and a
+ *     {@link MirandaObject} that implements this interface uses the hash code of its primary
+ *     key as its own hash code, so these objects can be used as hash keys.
+ * </p>
+ *
+ * @param <K> The type of the primary key.
+ */
+public interface PrimaryKey<K extends Comparable<K>> {
+    /**
+     * The primary key of this object.
+     *
+     * @return The primary key.  This should not be null for an object that is in a
+     * {@link KeyedStore}.
+     */
+    public K getPrimaryKey();
+}
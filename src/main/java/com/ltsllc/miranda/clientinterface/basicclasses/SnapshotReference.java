@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A reference to the current, frozen, version of a {@link MirandaObject}.
+ *
+ * <p>
+ *     Readers call {@link #get()} and get an object that will never change, so they
+ *     do not need to lock or make defensive copies.  Writers never modify the current
+ *     version.  Instead they modify a {@link MirandaObject#copy()}, freeze it, and
+ *     publish it with a compare and set.  If another writer got there first, the
+ *     update is tried again against the new version.
+ * </p>
+ *
+ * <p>
+ *     Since an update may be tried more than once, an {@link Update} should not have
+ *     side effects other than changing the copy it is given.
+ * </p>
+ *
+ * @param <T> The type of object being referred to.
+ */
+public class SnapshotReference<T extends MirandaObject> {
+    /**
+     * A change to a copy of the current version.
+     */
+    public interface Update<T> {
+        public void apply(T copy) throws MergeException;
+    }
+
+    private AtomicReference<T> current = new AtomicReference<T>();
+
+    public SnapshotReference () {
+    }
+
+    public SnapshotReference (T initial) {
+        set(initial);
+    }
+
+    /**
+     * The current version.
+     *
+     * @return The current version, which is frozen, or null if there isn't one.
+     */
+    public T get () {
+        return current.get();
+    }
+
+    /**
+     * Replace the current version with a frozen copy of another object.
+     */
+    @SuppressWarnings("unchecked")
+    public void set (T value) {
+        if (null == value) {
+            current.set(null);
+        } else {
+            T copy = (T) value.copy();
+            copy.freeze();
+            current.set(copy);
+        }
+    }
+
+    /**
+     * Apply a change to a copy of the current version and publish the copy.
+     *
+     * @param update The change to make.
+     * @return The version that was published.
+     * @throws MergeException If the update throws it.
+     * @throws IllegalStateException If there is no current version.
+     */
+    @SuppressWarnings("unchecked")
+    public T update (Update<T> update) throws MergeException {
+        while (true) {
+            T previous = current.get();
+            if (null == previous)
+                throw new IllegalStateException("no current version to update");
+
+            T copy = (T) previous.copy();
+            update.apply(copy);
+            copy.freeze();
+
+            if (current.compareAndSet(previous, copy))
+                return copy;
+        }
+    }
+
+    /**
+     * Merge another object into the current version.
+     *
+     * <p>
+     *     If the merge does not change anything, the current version is left in place.
+     *     If there is no current version, a frozen copy of the other object becomes the
+     *     current version.
+     * </p>
+     *
+     * @param other The object to merge with.
+     * @return The version that is current after the merge.
+     * @throws MergeException See {@link MirandaObject#merge(Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    public T merge (T other) throws MergeException {
+        while (true) {
+            T previous = current.get();
+            T next;
+
+            if (null == previous) {
+                next = (T) other.copy();
+            } else {
+                next = (T) previous.copy();
+                next.merge(other);
+
+                if (next.getChangeStamp() == previous.getChangeStamp())
+                    return previous;
+            }
+
+            next.freeze();
+
+            if (current.compareAndSet(previous, next))
+                return next;
+        }
+    }
+}
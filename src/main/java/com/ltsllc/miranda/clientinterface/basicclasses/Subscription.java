@@ -89,7 +89,8 @@ import com.google.gson.Gson;
  *             </p>
  *
  *             <p>
- *                 After a configurable number of tries, the system will discard the Event.
+ *                 After a configurable number of tries, the system will discard the Event,
+ *                 or put it in the dead letter queue if there is one.
  *             </p>
  *
  *             <p>
@@ -101,9 +102,69 @@ import com.google.gson.Gson;
  *             </p>
  *         </td>
  *     </tr>
+ *     <tr>
+ *         <td>batchMaxEvents</td>
+ *         <td>int</td>
+ *         <td>The most Events sent to the dataUrl in one request.  The default, 1, sends each
+ *             Event on its own; anything larger turns on batched delivery, where the Events are
+ *             POSTed together as a JSON array.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>batchMaxBytes</td>
+ *         <td>long</td>
+ *         <td>The most bytes of content in one batch, or 0 for no limit.  An Event larger than
+ *             the limit is sent in a batch of its own.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>batchLingerMillis</td>
+ *         <td>long</td>
+ *         <td>How long a batch that is not full waits for more Events before it is sent.  With
+ *             the default, 0, a batch is sent as soon as the previous one is acknowledged.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>maxAttempts</td>
+ *         <td>int</td>
+ *         <td>With the Retry error policy, how many times delivery of an Event is tried in all
+ *             before it is given up on.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>retryDelayMillis</td>
+ *         <td>long</td>
+ *         <td>With the Retry error policy, the wait before the first retry.  Each retry waits
+ *             twice as long as the one before, up to maxRetryDelayMillis.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>maxRetryDelayMillis</td>
+ *         <td>long</td>
+ *         <td>The longest wait between retries.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>maxConcurrency</td>
+ *         <td>int</td>
+ *         <td>The most deliveries to the Subscription that can be in flight at once.  The
+ *             default, 1, delivers Events one at a time, in order.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>maxInFlightEvents</td>
+ *         <td>int</td>
+ *         <td>The credit window: the most Events handed out for delivery to the Subscription
+ *             that have not been acknowledged or given up on yet.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>maxInFlightBytes</td>
+ *         <td>long</td>
+ *         <td>The most bytes of content in the credit window, or 0 for no limit.  An Event
+ *             larger than the limit is handed out when nothing else is in flight.</td>
+ *     </tr>
  * </table>
  */
-public class Subscription extends MirandaObject {
+public class Subscription extends MirandaObject implements PrimaryKey<String> {
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+    public static final long DEFAULT_MAX_RETRY_DELAY_MILLIS = 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_IN_FLIGHT_EVENTS = 1000;
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 16 * 1024 * 1024;
+
     public enum ErrorPolicies {
         Drop,
         Retry,
@@ -116,12 +177,23 @@ public class Subscription extends MirandaObject {
     private String dataUrl;
     private String livelinessUrl;
     private ErrorPolicies errorPolicy;
+    private int batchMaxEvents = 1;
+    private long batchMaxBytes;
+    private long batchLingerMillis;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    private long maxRetryDelayMillis = DEFAULT_MAX_RETRY_DELAY_MILLIS;
+    private int maxConcurrency = 1;
+    private int maxInFlightEvents = DEFAULT_MAX_IN_FLIGHT_EVENTS;
+    private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
 
     public String getTopic() {
         return topic;
     }
 
     public void setTopic(String topic) {
+        checkMutable();
+
         this.topic = topic;
     }
 
@@ -144,11 +216,30 @@ public class Subscription extends MirandaObject {
         this.errorPolicy = errorPolicy;
     }
 
+    public Subscription copy () {
+        Subscription subscription = new Subscription(getName(), getOwner(), getTopic(), getDataUrl(),
+                getLivelinessUrl(), getErrorPolicy());
+        subscription.setBatchMaxEvents(getBatchMaxEvents());
+        subscription.setBatchMaxBytes(getBatchMaxBytes());
+        subscription.setBatchLingerMillis(getBatchLingerMillis());
+        subscription.setMaxAttempts(getMaxAttempts());
+        subscription.setRetryDelayMillis(getRetryDelayMillis());
+        subscription.setMaxRetryDelayMillis(getMaxRetryDelayMillis());
+        subscription.setMaxConcurrency(getMaxConcurrency());
+        subscription.setMaxInFlightEvents(getMaxInFlightEvents());
+        subscription.setMaxInFlightBytes(getMaxInFlightBytes());
+        subscription.copyChangeStampFrom(this);
+
+        return subscription;
+    }
+
     public ErrorPolicies getErrorPolicy() {
         return errorPolicy;
     }
 
     public void setErrorPolicy(ErrorPolicies errorPolicy) {
+        checkMutable();
+
         this.errorPolicy = errorPolicy;
     }
 
@@ -157,6 +248,8 @@ public class Subscription extends MirandaObject {
     }
 
     public void setName (String name) {
+        checkMutable();
+
         this.name = name;
     }
 
@@ -165,6 +258,8 @@ public class Subscription extends MirandaObject {
     }
 
     public void setOwner(String owner) {
+        checkMutable();
+
         this.owner = owner;
     }
 
@@ -173,6 +268,8 @@ public class Subscription extends MirandaObject {
     }
 
     public void setLivelinessUrl(String livelinessUrl) {
+        checkMutable();
+
         this.livelinessUrl = livelinessUrl;
     }
 
@@ -182,14 +279,138 @@ public class Subscription extends MirandaObject {
     }
 
     public void setDataUrl(String dataUrl) {
+        checkMutable();
+
         this.dataUrl = dataUrl;
     }
 
+    public int getBatchMaxEvents() {
+        return Math.max(1, batchMaxEvents);
+    }
+
+    public void setBatchMaxEvents(int batchMaxEvents) {
+        checkMutable();
+
+        if (batchMaxEvents < 1)
+            throw new IllegalArgumentException("batchMaxEvents must be at least 1");
+
+        this.batchMaxEvents = batchMaxEvents;
+    }
+
+    public long getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    public void setBatchMaxBytes(long batchMaxBytes) {
+        checkMutable();
+
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public long getBatchLingerMillis() {
+        return batchLingerMillis;
+    }
+
+    public void setBatchLingerMillis(long batchLingerMillis) {
+        checkMutable();
+
+        this.batchLingerMillis = batchLingerMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        checkMutable();
+
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    public void setRetryDelayMillis(long retryDelayMillis) {
+        checkMutable();
+
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    public long getMaxRetryDelayMillis() {
+        return maxRetryDelayMillis;
+    }
+
+    public void setMaxRetryDelayMillis(long maxRetryDelayMillis) {
+        checkMutable();
+
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+    }
+
+    public int getMaxConcurrency() {
+        return Math.max(1, maxConcurrency);
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        checkMutable();
+
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxInFlightEvents() {
+        return Math.max(1, maxInFlightEvents);
+    }
+
+    public void setMaxInFlightEvents(int maxInFlightEvents) {
+        checkMutable();
+
+        if (maxInFlightEvents < 1)
+            throw new IllegalArgumentException("maxInFlightEvents must be at least 1");
+
+        this.maxInFlightEvents = maxInFlightEvents;
+    }
+
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        checkMutable();
+
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Are Events delivered to this Subscription in batches?
+     */
+    public boolean isBatched () {
+        return getBatchMaxEvents() > 1;
+    }
+
+    public String getPrimaryKey () {
+        return getName();
+    }
+
     public void updateFrom (Subscription other) {
         setOwner(other.getOwner());
         setDataUrl(other.getDataUrl());
         setLivelinessUrl(other.getLivelinessUrl());
         setErrorPolicy(other.getErrorPolicy());
+        setBatchMaxEvents(other.getBatchMaxEvents());
+        setBatchMaxBytes(other.getBatchMaxBytes());
+        setBatchLingerMillis(other.getBatchLingerMillis());
+        setMaxAttempts(other.getMaxAttempts());
+        setRetryDelayMillis(other.getRetryDelayMillis());
+        setMaxRetryDelayMillis(other.getMaxRetryDelayMillis());
+        setMaxConcurrency(other.getMaxConcurrency());
+        setMaxInFlightEvents(other.getMaxInFlightEvents());
+        setMaxInFlightBytes(other.getMaxInFlightBytes());
     }
 
     /**
@@ -237,6 +458,21 @@ public class Subscription extends MirandaObject {
         if (getErrorPolicy() != other.getErrorPolicy())
             return false;
 
+        if (getBatchMaxEvents() != other.getBatchMaxEvents() || getBatchMaxBytes() != other.getBatchMaxBytes()
+                || getBatchLingerMillis() != other.getBatchLingerMillis())
+            return false;
+
+        if (getMaxAttempts() != other.getMaxAttempts() || getRetryDelayMillis() != other.getRetryDelayMillis()
+                || getMaxRetryDelayMillis() != other.getMaxRetryDelayMillis())
+            return false;
+
+        if (getMaxConcurrency() != other.getMaxConcurrency())
+            return false;
+
+        if (getMaxInFlightEvents() != other.getMaxInFlightEvents()
+                || getMaxInFlightBytes() != other.getMaxInFlightBytes())
+            return false;
+
         return true;
     }
 
@@ -263,5 +499,32 @@ public class Subscription extends MirandaObject {
 
         if (getErrorPolicy() != other.getErrorPolicy())
             setErrorPolicy(other.getErrorPolicy());
+
+        if (getBatchMaxEvents() != other.getBatchMaxEvents())
+            setBatchMaxEvents(other.getBatchMaxEvents());
+
+        if (getBatchMaxBytes() != other.getBatchMaxBytes())
+            setBatchMaxBytes(other.getBatchMaxBytes());
+
+        if (getBatchLingerMillis() != other.getBatchLingerMillis())
+            setBatchLingerMillis(other.getBatchLingerMillis());
+
+        if (getMaxAttempts() != other.getMaxAttempts())
+            setMaxAttempts(other.getMaxAttempts());
+
+        if (getRetryDelayMillis() != other.getRetryDelayMillis())
+            setRetryDelayMillis(other.getRetryDelayMillis());
+
+        if (getMaxRetryDelayMillis() != other.getMaxRetryDelayMillis())
+            setMaxRetryDelayMillis(other.getMaxRetryDelayMillis());
+
+        if (getMaxConcurrency() != other.getMaxConcurrency())
+            setMaxConcurrency(other.getMaxConcurrency());
+
+        if (getMaxInFlightEvents() != other.getMaxInFlightEvents())
+            setMaxInFlightEvents(other.getMaxInFlightEvents());
+
+        if (getMaxInFlightBytes() != other.getMaxInFlightBytes())
+            setMaxInFlightBytes(other.getMaxInFlightBytes());
     }
 }
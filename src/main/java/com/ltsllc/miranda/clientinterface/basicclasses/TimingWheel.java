@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: a set of items, each with a deadline, that gives back the
+ * items whose deadlines have passed.
+ *
+ * <p>
+ *     Time is divided into ticks.  The wheel has {@link #LEVELS} levels of
+ *     {@link #SLOTS} slots each.  A slot on level 0 holds the items due in one tick, a slot on
+ *     level 1 the items due in {@link #SLOTS} ticks, and so on.  An item goes into the lowest
+ *     level whose range reaches its deadline.  As time passes and a higher level slot comes
+ *     up, its items are moved down to the levels below, so each item is moved at most once
+ *     per level.  Adding, cancelling and expiring an item all take constant time, and nothing
+ *     ever scans all the items.
+ * </p>
+ *
+ * <p>
+ *     Deadlines are rounded up to the next tick.  An item whose deadline is further away than
+ *     the top level reaches waits in the top level and is placed again each time its slot
+ *     comes up.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ *
+ * @param <T> The type of item.
+ */
+public class TimingWheel<T> {
+    public static final int SLOT_BITS = 6;
+    public static final int SLOTS = 1 << SLOT_BITS;
+    public static final int LEVELS = 4;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /**
+     * An item in the wheel.
+     */
+    public static class Timer<T> {
+        private T item;
+        private long deadline;
+        private long tick;
+        private Timer<T> previous;
+        private Timer<T> next;
+        private boolean linked;
+
+        private Timer () {
+            this.previous = this;
+            this.next = this;
+        }
+
+        private Timer (T item, long deadline, long tick) {
+            this.item = item;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Is the item still waiting?
+         */
+        public boolean isPending () {
+            return linked;
+        }
+
+        private void addBefore (Timer<T> timer) {
+            timer.next = this;
+            timer.previous = previous;
+            previous.next = timer;
+            previous = timer;
+            timer.linked = true;
+        }
+
+        private void unlink () {
+            previous.next = next;
+            next.previous = previous;
+            previous = null;
+            next = null;
+            linked = false;
+        }
+    }
+
+    private long tickMillis;
+    private long currentTick;
+    private Timer<T>[][] slots;
+    private Timer<T> overdue;
+    private int size;
+
+    /**
+     * Create a wheel.
+     *
+     * @param tickMillis The length of a tick.
+     * @param now The current time.
+     */
+    public TimingWheel (long tickMillis, long now) {
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("tickMillis must be at least 1");
+
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Timer<T>[][] slots = (Timer<T>[][]) new Timer[LEVELS][SLOTS];
+        this.slots = slots;
+
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots[level][slot] = new Timer<T>();
+            }
+        }
+
+        this.overdue = new Timer<T>();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public synchronized int size () {
+        return size;
+    }
+
+    /**
+     * Add an item.
+     *
+     * @param item The item.
+     * @param deadline The time after which the item should be given back.
+     * @return A timer that can be used to cancel the item.
+     */
+    public synchronized Timer<T> add (T item, long deadline) {
+        long tick = deadline / tickMillis + (deadline % tickMillis > 0 ? 1 : 0);
+        Timer<T> timer = new Timer<T>(item, deadline, tick);
+
+        place(timer);
+        size++;
+
+        return timer;
+    }
+
+    /**
+     * Remove an item before its deadline.
+     *
+     * @return true if the item was still waiting.
+     */
+    public synchronized boolean cancel (Timer<T> timer) {
+        if (!timer.linked)
+            return false;
+
+        timer.unlink();
+        size--;
+        return true;
+    }
+
+    /**
+     * Move the wheel forward to a time.
+     *
+     * @param now The current time.
+     * @return The items whose deadlines are at or before now, in no particular order.
+     */
+    public synchronized List<T> advance (long now) {
+        List<T> expired = new ArrayList<T>();
+        long target = now / tickMillis;
+
+        drain(overdue, expired);
+
+        if (0 == size) {
+            currentTick = Math.max(currentTick, target);
+            return expired;
+        }
+
+        while (currentTick < target) {
+            currentTick++;
+
+            if (0 == (currentTick & SLOT_MASK)) {
+                cascade();
+                drain(overdue, expired);
+            }
+
+            drain(slots[0][(int) (currentTick & SLOT_MASK)], expired);
+
+            if (0 == size) {
+                currentTick = target;
+                break;
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * Move the items in the higher level slots that have just come up to the lower levels.
+     */
+    private void cascade () {
+        for (int level = 1; level < LEVELS; level++) {
+            int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            Timer<T> head = slots[level][slot];
+
+            while (head.next != head) {
+                Timer<T> timer = head.next;
+                timer.unlink();
+                place(timer);
+            }
+
+            //
+            // the next level only comes up when this one wraps around
+            //
+            if (0 != slot)
+                break;
+        }
+    }
+
+    private void place (Timer<T> timer) {
+        long delta = timer.tick - currentTick;
+
+        if (delta <= 0) {
+            overdue.addBefore(timer);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < (1L << (SLOT_BITS * (level + 1)))) {
+                int slot = (int) ((timer.tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                slots[level][slot].addBefore(timer);
+                return;
+            }
+        }
+
+        //
+        // too far away for the wheel: wait in the last slot of the top level to come up
+        //
+        int top = LEVELS - 1;
+        int slot = (int) (((currentTick >>> (SLOT_BITS * top)) - 1) & SLOT_MASK);
+        slots[top][slot].addBefore(timer);
+    }
+
+    private void drain (Timer<T> head, List<T> expired) {
+        while (head.next != head) {
+            Timer<T> timer = head.next;
+            timer.unlink();
+            expired.add(timer.item);
+            size--;
+        }
+    }
+}
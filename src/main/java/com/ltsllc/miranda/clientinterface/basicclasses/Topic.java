@@ -20,9 +20,25 @@ import com.google.gson.Gson;
 import com.ltsllc.common.util.ImprovedRandom;
 
 /**
+ * A named stream of {@link Event}s.
+ *
+ * <p>
+ *     A Topic is split into one or more partitions.  Each Event goes to the partition chosen
+ *     by hashing its partition key (see {@link #partitionFor(Event)}), so Events with the same
+ *     key are always in the same partition and are delivered in order, while different
+ *     partitions are delivered in parallel.  A Topic with one partition is a single ordered
+ *     stream, which is how Topics behaved before partitions existed.
+ * </p>
+ *
+ * <p>
+ *     A Topic can limit how long its Events are kept (maxAge) and how many bytes of Events it
+ *     keeps (maxBytes).  A limit of 0 means there is no limit.  Events that still have pending
+ *     deliveries are kept past these limits until they are delivered.
+ * </p>
+ *
  * Created by Clark on 1/5/2017.
  */
-public class Topic extends MirandaObject {
+public class Topic extends MirandaObject implements PrimaryKey<String> {
     public enum RemotePolicies {
         Immediate,
         Acknowledged,
@@ -35,20 +51,112 @@ public class Topic extends MirandaObject {
     private String name;
     private String owner;
     private RemotePolicies remotePolicy;
+    private int partitions = 1;
+    private long maxAge;
+    private long maxBytes;
 
     public RemotePolicies getRemotePolicy() {
         return remotePolicy;
     }
 
     public void setRemotePolicy(RemotePolicies remotePolicy) {
+        checkMutable();
+
         this.remotePolicy = remotePolicy;
     }
 
+    /**
+     * The number of partitions.  This is always at least 1, even for a Topic read from JSON
+     * written before Topics had partitions.
+     */
+    public int getPartitions() {
+        return partitions < 1 ? 1 : partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        checkMutable();
+
+        if (partitions < 1)
+            throw new IllegalArgumentException("a topic must have at least 1 partition");
+
+        this.partitions = partitions;
+    }
+
+    /**
+     * The partition that an Event belongs in.
+     *
+     * <p>
+     *     This is the hash of the Event's partition key, or of its guid if it has no partition
+     *     key, so Events without keys are spread across the partitions with no ordering between
+     *     them.
+     * </p>
+     */
+    public int partitionFor (Event event) {
+        return partitionFor(event, getPartitions());
+    }
+
+    public int partitionFor (String key) {
+        return partitionFor(key, getPartitions());
+    }
+
+    /**
+     * The partition that an Event belongs in, given a number of partitions.
+     *
+     * @see #partitionFor(Event)
+     */
+    public static int partitionFor (Event event, int count) {
+        String key = event.getPartitionKey();
+        if (null == key)
+            key = event.getGuid();
+
+        return partitionFor(key, count);
+    }
+
+    public static int partitionFor (String key, int count) {
+        if (count <= 1 || null == key)
+            return 0;
+
+        int hash = key.hashCode();
+        hash = (hash ^ (hash >>> 16)) * 0x45d9f3b;
+        hash = hash ^ (hash >>> 16);
+
+        return (hash & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * How long, in milliseconds, Events are kept after they are created, or 0 to keep them
+     * regardless of age.
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    public void setMaxAge(long maxAge) {
+        checkMutable();
+
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * How many bytes of Events are kept before the oldest are removed, or 0 for no limit.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        checkMutable();
+
+        this.maxBytes = maxBytes;
+    }
+
     public String getOwner() {
         return owner;
     }
 
     public void setOwner(String owner) {
+        checkMutable();
+
         this.owner = owner;
     }
 
@@ -57,6 +165,8 @@ public class Topic extends MirandaObject {
     }
 
     public void setName(String name) {
+        checkMutable();
+
         this.name = name;
     }
 
@@ -70,9 +180,27 @@ public class Topic extends MirandaObject {
         this.owner = owner;
     }
 
+    public Topic copy () {
+        Topic topic = new Topic(getName(), getOwner());
+        topic.setRemotePolicy(getRemotePolicy());
+        topic.setPartitions(getPartitions());
+        topic.setMaxAge(getMaxAge());
+        topic.setMaxBytes(getMaxBytes());
+        topic.copyChangeStampFrom(this);
+
+        return topic;
+    }
+
+    public String getPrimaryKey () {
+        return getName();
+    }
+
     public void updateFrom (Topic other) {
         setOwner(other.getOwner());
         setRemotePolicy(other.getRemotePolicy());
+        setPartitions(other.getPartitions());
+        setMaxAge(other.getMaxAge());
+        setMaxBytes(other.getMaxBytes());
     }
 
     public boolean matches (Topic other) {
@@ -98,6 +226,12 @@ public class Topic extends MirandaObject {
         if (getRemotePolicy() != other.getRemotePolicy())
             return false;
 
+        if (getPartitions() != other.getPartitions())
+            return false;
+
+        if (getMaxAge() != other.getMaxAge() || getMaxBytes() != other.getMaxBytes())
+            return false;
+
         return true;
     }
 
@@ -115,6 +249,15 @@ public class Topic extends MirandaObject {
 
         if (getRemotePolicy() != other.getRemotePolicy())
             setRemotePolicy(other.getRemotePolicy());
+
+        if (getPartitions() != other.getPartitions())
+            setPartitions(other.getPartitions());
+
+        if (getMaxAge() != other.getMaxAge())
+            setMaxAge(other.getMaxAge());
+
+        if (getMaxBytes() != other.getMaxBytes())
+            setMaxBytes(other.getMaxBytes());
     }
 
     public String toJson() {
@@ -94,7 +94,7 @@ import java.io.ObjectInputStream;
  *     </tr>
  * </table>
  */
-public class User extends MirandaObject {
+public class User extends MirandaObject implements PrimaryKey<String> {
     public enum UserTypes {
         Publisher,
         Subscriber,
@@ -117,6 +117,8 @@ public class User extends MirandaObject {
     }
 
     public void setPublicKeyPem(String publicKeyPem) {
+        checkMutable();
+
         this.publicKeyPem = publicKeyPem;
 
         if (this.publicKeyPem != null)
@@ -128,10 +130,14 @@ public class User extends MirandaObject {
     }
 
     public void setCategory(UserTypes category) {
+        checkMutable();
+
         this.category = category;
     }
 
     public void setCategory (String categoryString) {
+        checkMutable();
+
         UserTypes category = UserTypes.valueOf(categoryString);
         this.category = category;
     }
@@ -144,6 +150,8 @@ public class User extends MirandaObject {
     }
 
     public void setPublicKey(PublicKey publicKey) {
+        checkMutable();
+
         this.publicKey = publicKey;
 
         if (this.publicKey != null)
@@ -155,6 +163,8 @@ public class User extends MirandaObject {
     }
 
     public void setName (String name) {
+        checkMutable();
+
         this.name = name;
     }
 
@@ -163,6 +173,8 @@ public class User extends MirandaObject {
     }
 
     public void setDescription(String description) {
+        checkMutable();
+
         this.description = description;
     }
 
@@ -214,6 +226,22 @@ public class User extends MirandaObject {
     public User () {
     }
 
+    /**
+     * Create an unfrozen copy of this User.
+     *
+     * <p>
+     *     The public key is shared rather than copied, since it is never modified.
+     * </p>
+     */
+    public User copy () {
+        User user = new User(getName(), getCategory(), getDescription());
+        user.publicKeyPem = publicKeyPem;
+        user.publicKey = publicKey;
+        user.copyChangeStampFrom(this);
+
+        return user;
+    }
+
     public boolean equals (Object o) {
         if (!super.equals(o))
             return false;
@@ -291,6 +319,10 @@ public class User extends MirandaObject {
         setDescription(other.getDescription());
     }
     */
+    public String getPrimaryKey () {
+        return getName();
+    }
+
     public boolean matches (User other) {
         if (!super.matches(other))
             return false;
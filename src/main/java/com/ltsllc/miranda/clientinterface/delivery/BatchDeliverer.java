@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Delivery;
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deliver the {@link Event}s for a {@link Subscription} in batches.
+ *
+ * <p>
+ *     Events wait until there are {@link Subscription#getBatchMaxEvents()} of them, or
+ *     {@link Subscription#getBatchMaxBytes()} bytes of content, or the oldest has waited
+ *     {@link Subscription#getBatchLingerMillis()}, and are then POSTed to the dataUrl together as
+ *     a JSON array.  A 2xx response acknowledges the whole batch, and the listener gets one
+ *     {@link Delivery} per Event, made with {@link Delivery#forBatch(List, long, Subscription)}.
+ *     Any other response, or an exception, fails the whole batch.
+ * </p>
+ *
+ * <p>
+ *     Only one batch is in flight at a time, so batches arrive in order, and the Events that
+ *     arrive while a batch is in flight make up the next one.  Under load, batches therefore
+ *     fill up on their own even with no linger time.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class BatchDeliverer {
+    public static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    /**
+     * Told how each batch went.
+     */
+    public interface Listener {
+        /**
+         * @param deliveries One Delivery for each Event in the batch, in order.
+         */
+        public void delivered (List<Delivery> deliveries);
+
+        /**
+         * @param events The Events in the batch.
+         * @param status The HTTP status of the response, or -1 if there was no response.
+         * @param exception What went wrong, or null if the response had a failing status.
+         */
+        public void failed (List<Event> events, int status, IOException exception);
+    }
+
+    private Subscription subscription;
+    private ScheduledExecutorService executor;
+    private DeliveryTransport transport;
+    private Listener listener;
+
+    private ArrayDeque<Event> pending = new ArrayDeque<Event>();
+    private long pendingBytes;
+    private long oldestAddedAt;
+    private boolean inFlight;
+    private boolean lingerScheduled;
+
+    /**
+     * @param subscription The Subscription, whose batch settings are read for each batch.
+     * @param executor Where batches are sent and linger times are waited out.
+     * @param transport How batches are sent.
+     * @param listener Told how each batch went.
+     */
+    public BatchDeliverer (Subscription subscription, ScheduledExecutorService executor, DeliveryTransport transport,
+                           Listener listener) {
+        this.subscription = subscription;
+        this.executor = executor;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    public Subscription getSubscription() {
+        return subscription;
+    }
+
+    public synchronized int getPending () {
+        return pending.size();
+    }
+
+    /**
+     * Queue an Event for delivery.
+     *
+     * @throws RejectedExecutionException If the executor would not take the batch or the linger
+     *                                    timer.  The Event stays queued, and is sent by the next
+     *                                    call that gets through.
+     */
+    public void add (Event event) {
+        synchronized (this) {
+            if (pending.isEmpty())
+                oldestAddedAt = System.currentTimeMillis();
+
+            pending.add(event);
+            pendingBytes += weigh(event);
+        }
+
+        trySend();
+    }
+
+    /**
+     * Send whatever is waiting now, without waiting for the linger time.
+     */
+    public void flush () {
+        trySend(true);
+    }
+
+    private void trySend () {
+        trySend(false);
+    }
+
+    private void trySend (boolean force) {
+        final List<Event> batch;
+
+        synchronized (this) {
+            if (inFlight || pending.isEmpty())
+                return;
+
+            long linger = subscription.getBatchLingerMillis();
+            long waited = System.currentTimeMillis() - oldestAddedAt;
+
+            if (!force && !isFull() && waited < linger) {
+                if (!lingerScheduled) {
+                    lingerScheduled = true;
+
+                    try {
+                        executor.schedule(new Runnable() {
+                            public void run() {
+                                synchronized (BatchDeliverer.this) {
+                                    lingerScheduled = false;
+                                }
+
+                                trySend();
+                            }
+                        }, linger - waited, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        lingerScheduled = false;
+                        throw e;
+                    }
+                }
+
+                return;
+            }
+
+            batch = takeBatch();
+            inFlight = true;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        send(batch);
+                    } finally {
+                        synchronized (BatchDeliverer.this) {
+                            inFlight = false;
+                        }
+
+                        trySend();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //
+            // put the batch back so the next attempt sends it, still ahead of everything else
+            //
+            synchronized (this) {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    pending.addFirst(batch.get(i));
+                    pendingBytes += weigh(batch.get(i));
+                }
+
+                inFlight = false;
+            }
+
+            throw e;
+        }
+    }
+
+    private boolean isFull () {
+        long maxBytes = subscription.getBatchMaxBytes();
+        return pending.size() >= subscription.getBatchMaxEvents() || (maxBytes > 0 && pendingBytes >= maxBytes);
+    }
+
+    private List<Event> takeBatch () {
+        int maxEvents = subscription.getBatchMaxEvents();
+        long maxBytes = subscription.getBatchMaxBytes();
+        List<Event> batch = new ArrayList<Event>(Math.min(maxEvents, pending.size()));
+        long bytes = 0;
+
+        while (!pending.isEmpty() && batch.size() < maxEvents) {
+            long weight = weigh(pending.peek());
+
+            if (maxBytes > 0 && !batch.isEmpty() && bytes + weight > maxBytes)
+                break;
+
+            batch.add(pending.poll());
+            bytes += weight;
+        }
+
+        pendingBytes -= bytes;
+        return batch;
+    }
+
+    private void send (List<Event> batch) {
+        int status = -1;
+
+        try {
+            status = transport.post(subscription.getDataUrl(), CONTENT_TYPE, encode(batch));
+        } catch (IOException e) {
+            listener.failed(batch, status, e);
+            return;
+        } catch (RuntimeException e) {
+            //
+            // a batch that could not be encoded or sent still has to be reported, or its Events
+            // would never be retried
+            //
+            listener.failed(batch, status, new IOException(e));
+            return;
+        }
+
+        if (status >= 200 && status < 300)
+            listener.delivered(Delivery.forBatch(batch, System.currentTimeMillis(), subscription));
+        else
+            listener.failed(batch, status, null);
+    }
+
+    /**
+     * The body of a batch: the JSON forms of the Events, as an array.
+     */
+    public static byte[] encode (List<Event> batch) {
+        StringBuilder json = new StringBuilder();
+        json.append('[');
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0)
+                json.append(',');
+
+            json.append(batch.get(i).toJson());
+        }
+
+        json.append(']');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long weigh (Event event) {
+        return Math.max(0, event.getContentLength());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+/**
+ * A circuit breaker for the deliveries to one Subscription.
+ *
+ * <p>
+ *     While the breaker is closed, deliveries go ahead.  After {@link #getFailureThreshold()}
+ *     failures in a row it opens, and deliveries are refused, so that no thread waits on a
+ *     subscriber that is known to be down.  When the open time has passed, or when something
+ *     else, such as a liveliness probe, says the subscriber is back, the breaker is half open:
+ *     one trial delivery is allowed, and its result closes the breaker or opens it again.
+ *     Each time the breaker opens again without having closed, the open time doubles, up to
+ *     the maximum.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class CircuitBreaker {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 1000;
+    public static final long DEFAULT_MAX_OPEN_MILLIS = 60000;
+
+    public enum States {
+        Closed,
+        Open,
+        HalfOpen
+    }
+
+    /**
+     * Told when the breaker changes state.  It is called while the breaker is locked, so it
+     * should not block.
+     */
+    public interface Listener {
+        public void stateChanged (CircuitBreaker breaker, States oldState, States newState);
+    }
+
+    private int failureThreshold;
+    private long baseOpenMillis;
+    private long maxOpenMillis;
+    private Listener listener;
+
+    private States state = States.Closed;
+    private int failures;
+    private long openMillis;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker (int failureThreshold, long openMillis, long maxOpenMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseOpenMillis = Math.max(1, openMillis);
+        this.maxOpenMillis = Math.max(this.baseOpenMillis, maxOpenMillis);
+        this.openMillis = this.baseOpenMillis;
+    }
+
+    public CircuitBreaker () {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, DEFAULT_MAX_OPEN_MILLIS);
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized States getState () {
+        return state;
+    }
+
+    /**
+     * How long until the breaker may go half open.
+     *
+     * @return The time left, or 0 if the breaker is not open or its open time has passed.
+     */
+    public synchronized long getOpenRemaining (long now) {
+        if (state != States.Open)
+            return 0;
+
+        return Math.max(0, openedAt + openMillis - now);
+    }
+
+    /**
+     * May a delivery be made now?  In the half open state this claims the one trial delivery,
+     * so a caller that gets true must report the result.
+     */
+    public synchronized boolean allowRequest (long now) {
+        if (state == States.Open && now - openedAt >= openMillis)
+            changeState(States.HalfOpen);
+
+        switch (state) {
+            case Closed:
+                return true;
+
+            case HalfOpen:
+                if (trialInFlight)
+                    return false;
+
+                trialInFlight = true;
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess () {
+        failures = 0;
+        trialInFlight = false;
+
+        if (state != States.Closed) {
+            openMillis = baseOpenMillis;
+            changeState(States.Closed);
+        }
+    }
+
+    public synchronized void recordFailure (long now) {
+        failures++;
+        trialInFlight = false;
+
+        if (state == States.HalfOpen) {
+            openMillis = Math.min(maxOpenMillis, openMillis * 2);
+            open(now);
+        } else if (state == States.Closed && failures >= failureThreshold) {
+            open(now);
+        } else if (state == States.Open) {
+            openedAt = now;
+        }
+    }
+
+    /**
+     * Let a trial delivery through now, without waiting for the open time to pass.
+     */
+    public synchronized void halfOpen () {
+        if (state == States.Open)
+            changeState(States.HalfOpen);
+    }
+
+    private void open (long now) {
+        openedAt = now;
+        changeState(States.Open);
+    }
+
+    private void changeState (States newState) {
+        States oldState = state;
+        state = newState;
+
+        if (null != listener && oldState != newState)
+            listener.stateChanged(this, oldState, newState);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+
+/**
+ * Something that runs deliveries, no more than {@link Subscription#getMaxConcurrency()} at a
+ * time for each {@link Subscription}.
+ */
+public interface DeliveryExecutor {
+    /**
+     * Run a delivery when the Subscription has room for it.  Deliveries for a Subscription
+     * start in the order they were given.
+     */
+    public void execute (Subscription subscription, Runnable delivery);
+
+    /**
+     * The number of deliveries to a Subscription that are running.
+     */
+    public int getInFlight (String subscription);
+
+    /**
+     * The number of deliveries to a Subscription that are waiting for room.
+     */
+    public int getQueued (String subscription);
+
+    public void shutdown ();
+}
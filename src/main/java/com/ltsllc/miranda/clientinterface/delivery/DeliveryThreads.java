@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the threads that make deliveries come from.
+ *
+ * <p>
+ *     This is the version for Java 8, which uses a fixed pool of platform threads.  The jar
+ *     is a multi-release jar: on Java 21 and later, the JVM loads the version of this class in
+ *     META-INF/versions/21 instead, which starts a virtual thread per delivery, so that a
+ *     delivery blocked on a slow subscriber does not hold a platform thread.
+ * </p>
+ */
+public class DeliveryThreads {
+    /**
+     * Does {@link #newExecutor(int)} give virtual threads?
+     */
+    public static boolean isVirtual () {
+        return false;
+    }
+
+    /**
+     * Create the executor that deliveries run on.
+     *
+     * @param platformThreads The number of threads, when platform threads are used.
+     */
+    public static ExecutorService newExecutor (int platformThreads) {
+        final AtomicInteger count = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(Math.max(1, platformThreads), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "delivery-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import java.io.IOException;
+
+/**
+ * How deliveries reach a Subscription's dataUrl.
+ */
+public interface DeliveryTransport {
+    /**
+     * POST a body to a URL.
+     *
+     * @param url The URL.
+     * @param contentType The value of the Content-Type header.
+     * @param body The body.
+     * @return The HTTP status code of the response.
+     * @throws IOException If the request could not be made or the response could not be read.
+     */
+    public int post (String url, String contentType, byte[] body) throws IOException;
+
+    /**
+     * GET a URL, ignoring the body of the response.
+     *
+     * @param url The URL.
+     * @return The HTTP status code of the response.
+     * @throws IOException If the request could not be made or the response could not be read.
+     */
+    public int get (String url) throws IOException;
+}
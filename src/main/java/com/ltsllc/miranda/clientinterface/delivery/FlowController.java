@@ -0,0 +1,583 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.basicclasses.Topic;
+import com.ltsllc.miranda.clientinterface.results.Results;
+import com.ltsllc.miranda.clientinterface.storage.EventLog;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Credit based flow control between the {@link Event}s published to a {@link Topic} and
+ * their delivery to each {@link Subscription}.
+ *
+ * <p>
+ *     Each Subscription has a credit window of {@link Subscription#getMaxInFlightEvents()}
+ *     Events and {@link Subscription#getMaxInFlightBytes()} bytes of content.
+ *     {@link #poll(String)} hands out the next Event for a Subscription only while the window
+ *     has room, and {@link #release(String, Event)} gives the credit back when the delivery
+ *     has been acknowledged or given up on.  Events that arrive while the window is full wait
+ *     in a backlog.
+ * </p>
+ *
+ * <p>
+ *     Only a small part of a backlog is kept in memory: at most the memory limits given to the
+ *     controller.  Every Event offered to the controller is already in the {@link EventLog},
+ *     so when the in-memory part is full the controller spills the rest by remembering just
+ *     the range of log positions it covers, however many Events that is.  When the in-memory
+ *     part has been handed out, the next Events are read back from the log, in order.  A
+ *     subscriber that falls behind therefore costs a fixed amount of memory, whether it is
+ *     behind by a hundred Events or a hundred million.
+ * </p>
+ *
+ * <p>
+ *     Because a spilled range is read back whole, the Events of a Subscription's Topic must be
+ *     offered in the order of their log positions, and each one must be offered before the
+ *     next is appended: otherwise the range could hold an Event that is offered later, and
+ *     that Event would be delivered twice.  {@link #append(Event, Collection)} keeps to that
+ *     by offering while the log still holds its write lock; if the log syncs on append, the
+ *     sync comes after the lock is released, so publishers still share syncs.  A caller of
+ *     {@link #offer(String, Event, long)} has to keep to it itself.  An Event offered out of
+ *     order is refused.
+ * </p>
+ *
+ * <p>
+ *     When the backlog of a Subscription reaches the throttle limit, the Subscription, and
+ *     with it its Topic, is throttled until the backlog is down to half the limit.  Publishers
+ *     can check {@link #isThrottled(String)} and answer with {@link Results#Throttled}, and
+ *     the {@link Listener} is told about each change.  A throttle limit of 0 turns this off.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.  The calls for one Subscription are serialized, and
+ *     different Subscriptions do not wait for each other.  The log read that refills a backlog
+ *     is made without holding the Subscription's lock, so appends are not held up by it;
+ *     while one is going on, other polls of that Subscription find nothing.
+ * </p>
+ */
+public class FlowController {
+    public static final int DEFAULT_MEMORY_EVENTS = 1000;
+    public static final long DEFAULT_MEMORY_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_THROTTLE_EVENTS = 100000;
+
+    /**
+     * Told when a Subscription starts or stops being throttled.
+     */
+    public interface Listener {
+        public void throttled (Subscription subscription, boolean throttled);
+    }
+
+    /**
+     * A read of part of a spilled backlog, made without holding the lock of its Lane.
+     */
+    private class Refill {
+        private String topicName;
+        private long from;
+        private long to;
+        private long skip;
+
+        private List<Event> events = new ArrayList<Event>();
+        private long bytes;
+        private long last = -1;
+        private boolean stopped;
+
+        public void read () throws IOException {
+            log.scan(from, to, new EventLog.Visitor() {
+                public boolean visit(Event event, long position) {
+                    if (position <= skip || null == topicName || !topicName.equals(event.getTopicName()))
+                        return true;
+
+                    long length = lengthOf(event);
+                    if (!events.isEmpty() && (events.size() >= maxMemoryEvents || bytes + length > memoryLimit())) {
+                        stopped = true;
+                        return false;
+                    }
+
+                    events.add(event);
+                    last = position;
+                    bytes += length;
+
+                    return true;
+                }
+            });
+        }
+    }
+
+    private class Lane {
+        private Subscription subscription;
+
+        private ArrayDeque<Event> memory = new ArrayDeque<Event>();
+        private long memoryBytes;
+
+        private boolean spilling;
+        private long spillFrom;
+        private long skipThrough = -1;
+        private long spillTo;
+        private long spilledEvents;
+        private long spilledBytes;
+        private long lastPosition = -1;
+        private boolean refilling;
+
+        private int inFlight;
+        private long inFlightBytes;
+
+        private boolean throttled;
+
+        public Lane (Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public long getBacklog () {
+            return memory.size() + spilledEvents;
+        }
+
+        public void offer (Event event, long position) {
+            if (position <= lastPosition)
+                throw new IllegalArgumentException("Events must be offered in log order: position " + position
+                        + " came after " + lastPosition);
+
+            lastPosition = position;
+            long length = lengthOf(event);
+
+            if (!spilling && memory.size() < maxMemoryEvents && memoryBytes + length <= memoryLimit()) {
+                memory.add(event);
+                memoryBytes += length;
+                return;
+            }
+
+            if (!spilling) {
+                spilling = true;
+                spillFrom = position;
+                skipThrough = -1;
+            }
+
+            spillTo = position;
+            spilledEvents++;
+            spilledBytes += length;
+        }
+
+        public Event poll () {
+            Event event = memory.peek();
+            if (null == event || !hasCredit(lengthOf(event)))
+                return null;
+
+            memory.poll();
+            memoryBytes -= lengthOf(event);
+            inFlight++;
+            inFlightBytes += lengthOf(event);
+
+            return event;
+        }
+
+        public void release (Event event) {
+            inFlight = Math.max(0, inFlight - 1);
+            inFlightBytes = Math.max(0, inFlightBytes - lengthOf(event));
+        }
+
+        private boolean hasCredit (long length) {
+            if (inFlight >= subscription.getMaxInFlightEvents())
+                return false;
+
+            //
+            // an Event bigger than the whole window still has to go sometime
+            //
+            long maxBytes = subscription.getMaxInFlightBytes();
+            return maxBytes <= 0 || 0 == inFlight || inFlightBytes + length <= maxBytes;
+        }
+
+        /**
+         * Start reading the next part of the spilled backlog back into memory, if it is time to.
+         *
+         * @return The read to make, or null if there is nothing to read or another thread is
+         * reading.
+         */
+        public Refill startRefill () {
+            if (!memory.isEmpty() || !spilling || refilling)
+                return null;
+
+            Refill refill = new Refill();
+            refill.topicName = subscription.getTopic();
+            refill.from = spillFrom;
+            refill.to = spillTo;
+            refill.skip = skipThrough;
+            refilling = true;
+
+            return refill;
+        }
+
+        /**
+         * Take in what a refill read.  Offers made during the read only moved spillTo on, so
+         * the read Events still come before anything in memory or spilled after them.
+         *
+         * @param refill The refill, or null if it failed, in which case the next poll tries
+         *               again.
+         */
+        public void finishRefill (Refill refill) {
+            refilling = false;
+            if (null == refill)
+                return;
+
+            for (Event event : refill.events) {
+                long length = lengthOf(event);
+                memory.add(event);
+                memoryBytes += length;
+                spilledEvents = Math.max(0, spilledEvents - 1);
+                spilledBytes = Math.max(0, spilledBytes - length);
+            }
+
+            //
+            // Events that were removed from the log since they were spilled are never read
+            // back, so the counts can't say when the spilled range is done; the positions can
+            //
+            if (refill.stopped) {
+                spillFrom = refill.last;
+                skipThrough = refill.last;
+            } else if (spillTo == refill.to || 0 == spilledEvents) {
+                spilling = false;
+                spilledEvents = 0;
+                spilledBytes = 0;
+            } else {
+                spillFrom = refill.to;
+                skipThrough = refill.to;
+            }
+        }
+
+        /**
+         * Update throttled.
+         *
+         * @return true if it changed.
+         */
+        public boolean checkThrottle () {
+            if (throttleEvents <= 0)
+                return false;
+
+            long backlog = getBacklog();
+
+            if (!throttled && backlog >= throttleEvents) {
+                throttled = true;
+                adjustTopic(subscription.getTopic(), 1);
+                return true;
+            }
+
+            if (throttled && backlog <= throttleEvents / 2) {
+                throttled = false;
+                adjustTopic(subscription.getTopic(), -1);
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private EventLog log;
+    private int maxMemoryEvents;
+    private long maxMemoryBytes;
+    private long throttleEvents;
+    private volatile Listener listener;
+    private Map<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+    private Map<String, AtomicInteger> throttledTopics = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Create a controller.
+     *
+     * @param log The log that the Events offered to the controller have been written to.
+     * @param memoryEvents The most Events of a Subscription's backlog to keep in memory.
+     * @param memoryBytes The most bytes of content of a Subscription's backlog to keep in
+     *                    memory.
+     * @param throttleEvents The backlog at which a Subscription is throttled, or 0 for never.
+     */
+    public FlowController (EventLog log, int memoryEvents, long memoryBytes, long throttleEvents) {
+        this.log = log;
+        this.maxMemoryEvents = Math.max(1, memoryEvents);
+        this.maxMemoryBytes = memoryBytes;
+        this.throttleEvents = throttleEvents;
+    }
+
+    public FlowController (EventLog log) {
+        this(log, DEFAULT_MEMORY_EVENTS, DEFAULT_MEMORY_BYTES, DEFAULT_THROTTLE_EVENTS);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start controlling a Subscription, or pick up a change to its window.
+     */
+    public void add (Subscription subscription) {
+        Lane lane = lanes.get(subscription.getName());
+        if (null == lane) {
+            lanes.putIfAbsent(subscription.getName(), new Lane(subscription));
+            lane = lanes.get(subscription.getName());
+        }
+
+        synchronized (lane) {
+            lane.subscription = subscription;
+        }
+    }
+
+    /**
+     * Stop controlling a Subscription and drop its backlog.
+     */
+    public void remove (String subscription) {
+        Lane lane = lanes.remove(subscription);
+        if (null == lane)
+            return;
+
+        boolean changed;
+        synchronized (lane) {
+            changed = lane.throttled;
+            if (changed) {
+                lane.throttled = false;
+                adjustTopic(lane.subscription.getTopic(), -1);
+            }
+        }
+
+        if (changed)
+            notifyListener(lane.subscription, false);
+    }
+
+    /**
+     * Append an Event to the log and add it to the backlogs of the Subscriptions to its
+     * Topic.  Appends made through here are offered in log order, however many threads
+     * publish at once.
+     *
+     * @param event The Event.
+     * @param subscriptions The names of the Subscriptions.  Those that are not being
+     *                      controlled are skipped.
+     * @return The position of the Event in the log.
+     */
+    public long append (Event event, final Collection<String> subscriptions) throws IOException {
+        final List<Lane> throttled = new ArrayList<Lane>();
+
+        long position = log.append(event, new EventLog.Appended() {
+            public void appended(Event event, long position) {
+                for (String subscription : subscriptions) {
+                    Lane lane = lanes.get(subscription);
+                    if (null != lane && offer(lane, event, position))
+                        throttled.add(lane);
+                }
+            }
+        });
+
+        //
+        // the listener is told after the log has let go of its lock
+        //
+        for (Lane lane : throttled) {
+            notifyListener(lane.subscription, true);
+        }
+
+        return position;
+    }
+
+    /**
+     * Add an Event that has been written to the log to the backlog of a Subscription.
+     *
+     * @param subscription The name of the Subscription.
+     * @param event The Event.
+     * @param position The position of the Event in the log.
+     * @return false if the Subscription is not being controlled.
+     * @throws IllegalArgumentException If the position is not after that of the last Event
+     * offered to the Subscription.
+     */
+    public boolean offer (String subscription, Event event, long position) {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return false;
+
+        if (offer(lane, event, position))
+            notifyListener(lane.subscription, true);
+
+        return true;
+    }
+
+    /**
+     * @return true if the Lane became throttled.
+     */
+    private boolean offer (Lane lane, Event event, long position) {
+        synchronized (lane) {
+            lane.offer(event, position);
+            return lane.checkThrottle();
+        }
+    }
+
+    /**
+     * Take the next Event to deliver to a Subscription, if the credit window has room for it.
+     *
+     * @return The Event, or null if the backlog is empty or the window is full.
+     */
+    public Event poll (String subscription) throws IOException {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return null;
+
+        Refill refill;
+        synchronized (lane) {
+            refill = lane.startRefill();
+        }
+
+        if (null != refill) {
+            boolean read = false;
+            try {
+                refill.read();
+                read = true;
+            } finally {
+                synchronized (lane) {
+                    lane.finishRefill(read ? refill : null);
+                }
+            }
+        }
+
+        Event event;
+        boolean changed;
+        synchronized (lane) {
+            event = lane.poll();
+            changed = lane.checkThrottle();
+        }
+
+        if (changed)
+            notifyListener(lane.subscription, false);
+
+        return event;
+    }
+
+    /**
+     * Give back the credit for an Event handed out by {@link #poll(String)}, because it was
+     * delivered, dead lettered or dropped.
+     */
+    public void release (String subscription, Event event) {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return;
+
+        synchronized (lane) {
+            lane.release(event);
+        }
+    }
+
+    /**
+     * Is any Subscription to a Topic throttled?
+     */
+    public boolean isThrottled (String topicName) {
+        AtomicInteger count = null == topicName ? null : throttledTopics.get(topicName);
+        return null != count && count.get() > 0;
+    }
+
+    /**
+     * {@link Results#Throttled} if a publisher should hold off publishing to a Topic,
+     * otherwise {@link Results#Success}.
+     */
+    public Results checkPublish (String topicName) {
+        return isThrottled(topicName) ? Results.Throttled : Results.Success;
+    }
+
+    public int getInFlight (String subscription) {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return 0;
+
+        synchronized (lane) {
+            return lane.inFlight;
+        }
+    }
+
+    public long getInFlightBytes (String subscription) {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return 0;
+
+        synchronized (lane) {
+            return lane.inFlightBytes;
+        }
+    }
+
+    /**
+     * The number of Events waiting for a Subscription, in memory and spilled.
+     */
+    public long getBacklog (String subscription) {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return 0;
+
+        synchronized (lane) {
+            return lane.getBacklog();
+        }
+    }
+
+    /**
+     * The number of Events waiting for a Subscription that are only in the log.
+     */
+    public long getSpilled (String subscription) {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return 0;
+
+        synchronized (lane) {
+            return lane.spilledEvents;
+        }
+    }
+
+    /**
+     * The bytes of content of the backlog of a Subscription kept in memory.
+     */
+    public long getMemoryBytes (String subscription) {
+        Lane lane = lanes.get(subscription);
+        if (null == lane)
+            return 0;
+
+        synchronized (lane) {
+            return lane.memoryBytes;
+        }
+    }
+
+    private long memoryLimit () {
+        return maxMemoryBytes <= 0 ? Long.MAX_VALUE : maxMemoryBytes;
+    }
+
+    private static long lengthOf (Event event) {
+        return Math.max(0, event.getContentLength());
+    }
+
+    private void adjustTopic (String topicName, int delta) {
+        if (null == topicName)
+            return;
+
+        AtomicInteger count = throttledTopics.get(topicName);
+        if (null == count) {
+            throttledTopics.putIfAbsent(topicName, new AtomicInteger());
+            count = throttledTopics.get(topicName);
+        }
+
+        count.addAndGet(delta);
+    }
+
+    private void notifyListener (Subscription subscription, boolean throttled) {
+        Listener listener = this.listener;
+        if (null != listener)
+            listener.throttled(subscription, throttled);
+    }
+}
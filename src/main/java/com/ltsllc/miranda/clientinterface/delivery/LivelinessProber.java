@@ -0,0 +1,430 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep track of which Subscriptions are healthy, and park the deliveries to the ones that
+ * are not.
+ *
+ * <p>
+ *     Each Subscription has a {@link CircuitBreaker}.  Before a delivery is made, it is passed
+ *     to {@link #submit(Subscription, Event)}: if the breaker allows it, the caller goes ahead
+ *     and reports the result with {@link #delivered(String)} or {@link #failed(String, long)};
+ *     otherwise the Event is parked, and no thread waits on the subscriber's timeouts.  When
+ *     the breaker closes, the parked Events are given to the {@link Resumer}; when it is half
+ *     open, one parked Event is given back as the trial delivery.  An open breaker is woken
+ *     when its open time has passed even if nothing more is submitted, so the parked Events
+ *     of a Subscription without a livelinessUrl are not stranded.
+ * </p>
+ *
+ * <p>
+ *     Events are given back in the order they were submitted: while any Event is parked, or
+ *     parked Events are being given back, a new submission is parked behind them rather than
+ *     being delivered ahead of them.
+ * </p>
+ *
+ * <p>
+ *     A Subscription parks at most maxParked Events.  Once it has that many, a submission is
+ *     refused and the Event stays with the caller, which should keep it where it came from,
+ *     such as the {@link FlowController}, or send it to the dead letter store.  This keeps a
+ *     Subscription that is down for a long time from holding every Event published to it in
+ *     memory.
+ * </p>
+ *
+ * <p>
+ *     The prober also GETs each Subscription's livelinessUrl.  A Subscription that keeps
+ *     answering is probed less and less often, up to the maximum interval; a failure, or a
+ *     Subscription whose breaker is not closed, goes back to the minimum interval, so that a
+ *     subscriber that comes back is noticed quickly.  A failed probe counts as a failed
+ *     delivery, and a successful probe of a Subscription whose breaker is open lets a trial
+ *     delivery through at once.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class LivelinessProber {
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_MAX_INTERVAL_MILLIS = 30000;
+    public static final int DEFAULT_MAX_PARKED = 10000;
+
+    /**
+     * What {@link #submit(Subscription, Event)} decided.
+     */
+    public enum Admissions {
+        /**
+         * Deliver the Event now and report the result.
+         */
+        Deliver,
+
+        /**
+         * The Event was parked, and will be given to the {@link Resumer}.
+         */
+        Parked,
+
+        /**
+         * The Subscription already has as many Events parked as it may; the caller keeps the
+         * Event.
+         */
+        Refused
+    }
+
+    /**
+     * What parked Events are given back to when they can be delivered.
+     */
+    public interface Resumer {
+        /**
+         * @param subscription The Subscription.
+         * @param events The Events, in the order they were parked.  The caller must report the
+         *               result of delivering each one.  Submissions are parked until this
+         *               returns, so the Events should be queued for delivery, in order, before
+         *               it does.
+         */
+        public void resume (Subscription subscription, List<Event> events);
+    }
+
+    private class Target implements CircuitBreaker.Listener, Runnable {
+        private Subscription subscription;
+        private CircuitBreaker breaker;
+        private ArrayDeque<Event> parked = new ArrayDeque<Event>();
+        private long interval;
+        private ScheduledFuture<?> future;
+        private volatile ScheduledFuture<?> wakeFuture;
+        private boolean releasing;
+        private boolean removed;
+
+        private Runnable wakeTask = new Runnable() {
+            public void run() {
+                wake();
+            }
+        };
+
+        private Runnable releaseTask = new Runnable() {
+            public void run() {
+                release();
+            }
+        };
+
+        public Target (Subscription subscription, CircuitBreaker breaker) {
+            this.subscription = subscription;
+            this.breaker = breaker;
+            this.interval = minInterval;
+
+            breaker.setListener(this);
+        }
+
+        /**
+         * @return What to do with the Event, or null if this Target has been removed.
+         */
+        public synchronized Admissions submit (Event event, long now) {
+            if (removed)
+                return null;
+
+            if (parked.isEmpty() && !releasing && breaker.allowRequest(now))
+                return Admissions.Deliver;
+
+            if (parked.size() >= maxParked)
+                return Admissions.Refused;
+
+            parked.add(event);
+            return Admissions.Parked;
+        }
+
+        /**
+         * Called by the breaker while it is locked, so this does not take the Target's lock:
+         * the parked Events are given back on another thread.
+         */
+        public void stateChanged (CircuitBreaker breaker, CircuitBreaker.States oldState,
+                                  CircuitBreaker.States newState) {
+            if (newState == CircuitBreaker.States.Open)
+                scheduleWake(breaker.getOpenRemaining(System.currentTimeMillis()));
+            else
+                executor.execute(releaseTask);
+        }
+
+        private void scheduleWake (long delay) {
+            ScheduledFuture<?> previous = wakeFuture;
+            if (null != previous)
+                previous.cancel(false);
+
+            wakeFuture = executor.schedule(wakeTask, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Give back parked Events once the open time has passed.  A failure while the breaker
+         * is open pushes the open time back, so the wait may have to start again.
+         */
+        private void wake () {
+            long remaining;
+
+            synchronized (this) {
+                if (removed)
+                    return;
+
+                remaining = breaker.getOpenRemaining(System.currentTimeMillis());
+            }
+
+            if (remaining > 0)
+                scheduleWake(remaining);
+            else
+                release();
+        }
+
+        /**
+         * Give back what the breaker allows: everything if it is closed, otherwise one trial
+         * delivery.  Submissions are parked while this is going on, and anything parked in
+         * the meantime is given back before it finishes.
+         */
+        private void release () {
+            while (true) {
+                List<Event> events = new ArrayList<Event>();
+
+                synchronized (this) {
+                    if (removed || releasing || parked.isEmpty())
+                        return;
+
+                    if (breaker.getState() == CircuitBreaker.States.Closed) {
+                        events.addAll(parked);
+                        parked.clear();
+                    } else if (breaker.allowRequest(System.currentTimeMillis())) {
+                        events.add(parked.poll());
+                    } else {
+                        return;
+                    }
+
+                    releasing = true;
+                }
+
+                try {
+                    resumer.resume(subscription, events);
+                } finally {
+                    synchronized (this) {
+                        releasing = false;
+                    }
+                }
+            }
+        }
+
+        public void run () {
+            boolean healthy;
+
+            try {
+                int status = transport.get(subscription.getLivelinessUrl());
+                healthy = status >= 200 && status < 300;
+            } catch (IOException | RuntimeException e) {
+                healthy = false;
+            }
+
+            synchronized (this) {
+                if (removed)
+                    return;
+
+                if (healthy) {
+                    breaker.halfOpen();
+                    interval = breaker.getState() == CircuitBreaker.States.Closed
+                            ? Math.min(maxInterval, interval * 2)
+                            : minInterval;
+                } else {
+                    breaker.recordFailure(System.currentTimeMillis());
+                    interval = minInterval;
+                }
+
+                schedule();
+            }
+        }
+
+        private synchronized void schedule () {
+            if (!removed && null != subscription.getLivelinessUrl())
+                future = executor.schedule(this, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized List<Event> remove () {
+            removed = true;
+
+            if (null != future)
+                future.cancel(false);
+
+            ScheduledFuture<?> wake = wakeFuture;
+            if (null != wake)
+                wake.cancel(false);
+
+            List<Event> events = new ArrayList<Event>(parked);
+            parked.clear();
+            return events;
+        }
+    }
+
+    private ScheduledExecutorService executor;
+    private DeliveryTransport transport;
+    private Resumer resumer;
+    private long minInterval;
+    private long maxInterval;
+    private int maxParked;
+    private Map<String, Target> targets = new ConcurrentHashMap<String, Target>();
+
+    /**
+     * @param executor Where probes are made and parked Events are given back.  Probes block
+     *                 for up to the transport's timeouts, so this should not be the executor
+     *                 that makes deliveries.
+     * @param transport How probes are made.
+     * @param resumer What parked Events are given back to.
+     * @param minInterval The shortest time between probes of a Subscription.
+     * @param maxInterval The longest time between probes of a Subscription.
+     * @param maxParked The most Events a Subscription may have parked.
+     */
+    public LivelinessProber (ScheduledExecutorService executor, DeliveryTransport transport, Resumer resumer,
+                             long minInterval, long maxInterval, int maxParked) {
+        this.executor = executor;
+        this.transport = transport;
+        this.resumer = resumer;
+        this.minInterval = Math.max(1, minInterval);
+        this.maxInterval = Math.max(this.minInterval, maxInterval);
+        this.maxParked = Math.max(1, maxParked);
+    }
+
+    public LivelinessProber (ScheduledExecutorService executor, DeliveryTransport transport, Resumer resumer,
+                             long minInterval, long maxInterval) {
+        this(executor, transport, resumer, minInterval, maxInterval, DEFAULT_MAX_PARKED);
+    }
+
+    public LivelinessProber (ScheduledExecutorService executor, DeliveryTransport transport, Resumer resumer) {
+        this(executor, transport, resumer, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS);
+    }
+
+    public int getMaxParked() {
+        return maxParked;
+    }
+
+    /**
+     * Start watching a Subscription, with a breaker that has the default settings.
+     */
+    public void add (Subscription subscription) {
+        add(subscription, new CircuitBreaker());
+    }
+
+    /**
+     * Start watching a Subscription.  If it was already being watched, the Events parked for
+     * it are moved to the new breaker, ahead of anything submitted from now on.  They were
+     * already accepted, so they are all moved even if there are more than maxParked.
+     */
+    public void add (Subscription subscription, CircuitBreaker breaker) {
+        Target target = new Target(subscription, breaker);
+        boolean moved = false;
+
+        synchronized (target) {
+            Target previous = targets.put(subscription.getName(), target);
+
+            if (null != previous) {
+                target.parked.addAll(previous.remove());
+                moved = !target.parked.isEmpty();
+            }
+        }
+
+        if (moved)
+            executor.execute(target.wakeTask);
+
+        target.schedule();
+    }
+
+    /**
+     * Stop watching a Subscription.
+     *
+     * @return The Events that were parked for it.
+     */
+    public List<Event> remove (String subscription) {
+        Target target = targets.remove(subscription);
+        return null == target ? new ArrayList<Event>() : target.remove();
+    }
+
+    public CircuitBreaker getBreaker (String subscription) {
+        Target target = targets.get(subscription);
+        return null == target ? null : target.breaker;
+    }
+
+    public int getParked (String subscription) {
+        Target target = targets.get(subscription);
+        if (null == target)
+            return 0;
+
+        synchronized (target) {
+            return target.parked.size();
+        }
+    }
+
+    /**
+     * The current time between probes of a Subscription.
+     */
+    public long getInterval (String subscription) {
+        Target target = targets.get(subscription);
+        if (null == target)
+            return 0;
+
+        synchronized (target) {
+            return target.interval;
+        }
+    }
+
+    /**
+     * Ask whether an Event can be delivered to a Subscription now.  A Subscription that is not
+     * being watched is always healthy.
+     *
+     * @return {@link Admissions#Deliver} if the caller should deliver the Event now,
+     * {@link Admissions#Parked} if it was parked, or {@link Admissions#Refused} if the
+     * Subscription has too many Events parked and the caller has to keep the Event.
+     */
+    public Admissions submit (Subscription subscription, Event event) {
+        while (true) {
+            Target target = targets.get(subscription.getName());
+            if (null == target)
+                return Admissions.Deliver;
+
+            //
+            // a Target that was replaced while this was going on has handed its parked Events
+            // on, so try again with its replacement
+            //
+            Admissions result = target.submit(event, System.currentTimeMillis());
+            if (null != result)
+                return result;
+        }
+    }
+
+    public void delivered (String subscription) {
+        Target target = targets.get(subscription);
+        if (null != target)
+            target.breaker.recordSuccess();
+    }
+
+    public void failed (String subscription, long now) {
+        Target target = targets.get(subscription);
+        if (null != target)
+            target.breaker.recordFailure(now);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Topic;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hand the {@link Event}s of a partitioned {@link Topic} to a handler, in order within each
+ * partition and in parallel across partitions.
+ *
+ * <p>
+ *     Each partition has a queue.  When an Event is added to an idle partition, a task that
+ *     drains the partition's queue is given to the executor; at most one such task runs per
+ *     partition at a time, so the handler sees the Events of a partition one at a time, in
+ *     the order they were dispatched.  A task hands over at most {@link #DEFAULT_BATCH_SIZE}
+ *     Events before giving its thread back, so a busy partition does not starve the others
+ *     when there are fewer threads than partitions.
+ * </p>
+ */
+public class PartitionedDispatcher {
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /**
+     * What the Events are given to.
+     */
+    public interface Handler {
+        /**
+         * @param event The Event.
+         * @param partition The partition the Event is in.
+         */
+        public void handle (Event event, int partition);
+    }
+
+    private class Lane implements Runnable {
+        private int partition;
+        private Queue<Event> queue = new ConcurrentLinkedQueue<Event>();
+        private AtomicInteger size = new AtomicInteger();
+        private AtomicBoolean scheduled = new AtomicBoolean();
+
+        public Lane (int partition) {
+            this.partition = partition;
+        }
+
+        public void add (Event event) {
+            queue.add(event);
+            size.incrementAndGet();
+            schedule();
+        }
+
+        private void schedule () {
+            if (!scheduled.compareAndSet(false, true))
+                return;
+
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                //
+                // the Event stays queued, and the next add tries again
+                //
+                scheduled.set(false);
+                throw e;
+            }
+        }
+
+        public void run () {
+            try {
+                for (int i = 0; i < batchSize; i++) {
+                    Event event = queue.poll();
+                    if (null == event)
+                        break;
+
+                    size.decrementAndGet();
+
+                    try {
+                        handler.handle(event, partition);
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            } finally {
+                //
+                // an Error from the handler must not leave the partition marked as scheduled
+                // with nothing running it
+                //
+                scheduled.set(false);
+            }
+
+            //
+            // an Event added after the last poll but before scheduled was cleared would
+            // otherwise sit in the queue until the next add
+            //
+            if (!queue.isEmpty())
+                schedule();
+        }
+    }
+
+    private Topic topic;
+    private Executor executor;
+    private Handler handler;
+    private int batchSize;
+    private Lane[] lanes;
+    private AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Create a dispatcher for a Topic.  The number of partitions is read once, here.
+     *
+     * @param topic The Topic.
+     * @param executor What runs the partitions.  It should have as many threads as partitions
+     *                 are to be handled at once.
+     * @param handler What the Events are given to.
+     * @param batchSize The most Events a partition hands over before giving up its thread.
+     */
+    public PartitionedDispatcher (Topic topic, Executor executor, Handler handler, int batchSize) {
+        this.topic = topic;
+        this.executor = executor;
+        this.handler = handler;
+        this.batchSize = Math.max(1, batchSize);
+
+        this.lanes = new Lane[topic.getPartitions()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    public PartitionedDispatcher (Topic topic, Executor executor, Handler handler) {
+        this(topic, executor, handler, DEFAULT_BATCH_SIZE);
+    }
+
+    public Topic getTopic() {
+        return topic;
+    }
+
+    public int getPartitions () {
+        return lanes.length;
+    }
+
+    /**
+     * The number of Events waiting in a partition.
+     */
+    public int getQueued (int partition) {
+        return lanes[partition].size.get();
+    }
+
+    /**
+     * The number of times the handler threw an exception.  An Event whose handler fails is not
+     * retried by the dispatcher.
+     */
+    public int getFailures () {
+        return failures.get();
+    }
+
+    /**
+     * Queue an Event for its partition.
+     *
+     * @return The partition.
+     * @throws RejectedExecutionException If the executor would not take the partition's task.
+     *                                    The Event stays queued and is handed over after the
+     *                                    next successful dispatch to the partition.
+     */
+    public int dispatch (Event event) {
+        int partition = Topic.partitionFor(event, lanes.length);
+        lanes[partition].add(event);
+
+        return partition;
+    }
+}
@@ -0,0 +1,701 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DeliveryTransport} that keeps a pool of keep-alive HTTP/1.1 connections for each
+ * subscriber host.
+ *
+ * <p>
+ *     A request borrows an idle connection to its host if there is one, and opens one only if
+ *     there is not.  At most {@link #getMaxConnectionsPerHost()} requests to a host are in flight
+ *     at once; a request that would go over waits for a connection to come back, for up to the
+ *     connect timeout.  Connections that have been idle longer than the keep-alive time are
+ *     closed rather than reused, and {@link #warm(String, int)} opens connections ahead of time,
+ *     so that connection setup happens when a Subscription is added rather than when an Event
+ *     is delivered.
+ * </p>
+ *
+ * <p>
+ *     Idle connections are also closed by {@link #sweep()}, which every request calls at most
+ *     once per half keep-alive time, so a host that is no longer sent anything does not keep
+ *     its connections open.  The sweep also drops the pool of a host that has no connections
+ *     and has not been used for the keep-alive time, so the pools do not grow with every
+ *     host ever sent to.  A transport that may go quiet for a long time can call
+ *     {@link #sweep()} from a timer as well.
+ * </p>
+ *
+ * <p>
+ *     Parsed URLs are kept in a small LRU cache, since the same dataUrls are used over and over.
+ *     A request on a reused connection that finds the connection closed or reset before any of
+ *     the response arrives, which is what happens when the server closed the connection while
+ *     it was idle, is tried once more on a new connection.  A request that times out is not
+ *     tried again, since the server may have acted on it.
+ * </p>
+ *
+ * <p>
+ *     https connections check that the server's certificate is for the host in the URL, and
+ *     send the host name with server name indication.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class PooledHttpTransport implements DeliveryTransport {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    public static final int DEFAULT_TIMEOUT = 10000;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+    public static final int DEFAULT_URL_CACHE_SIZE = 1024;
+
+    /**
+     * The connection statistics for one host.
+     */
+    public static class HostMetrics {
+        private AtomicLong connectionsOpened = new AtomicLong();
+        private AtomicLong connectionsClosed = new AtomicLong();
+        private AtomicLong requests = new AtomicLong();
+        private AtomicLong reused = new AtomicLong();
+        private AtomicLong failures = new AtomicLong();
+        private AtomicLong waits = new AtomicLong();
+        private AtomicLong waitNanos = new AtomicLong();
+        private AtomicInteger open = new AtomicInteger();
+
+        public long getConnectionsOpened() {
+            return connectionsOpened.get();
+        }
+
+        public long getConnectionsClosed() {
+            return connectionsClosed.get();
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * The number of requests that were made on a connection that was already open.
+         */
+        public long getReused() {
+            return reused.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * The number of requests that had to wait because the host was at its connection limit.
+         */
+        public long getWaits() {
+            return waits.get();
+        }
+
+        public long getWaitNanos() {
+            return waitNanos.get();
+        }
+
+        /**
+         * The number of connections to the host that are open now, busy or idle.
+         */
+        public int getOpen() {
+            return open.get();
+        }
+    }
+
+    /**
+     * A parsed URL.
+     */
+    private static class Endpoint {
+        private String hostKey;
+        private String host;
+        private int port;
+        private boolean secure;
+        private String hostHeader;
+        private String path;
+    }
+
+    private static class Connection {
+        private Socket socket;
+        private InputStream inputStream;
+        private OutputStream outputStream;
+        private long lastUsed;
+        private boolean reused;
+
+        public void close () {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more can be done with it
+            }
+        }
+    }
+
+    private class Pool {
+        private Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+        private ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+        private HostMetrics metrics = new HostMetrics();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean removed;
+
+        /**
+         * Get a connection, reusing the most recently used idle one if it is fresh enough.
+         */
+        public Connection borrow (Endpoint endpoint, boolean fresh) throws IOException {
+            if (!fresh) {
+                Connection connection;
+                long now = System.currentTimeMillis();
+
+                while (null != (connection = idle.pollFirst())) {
+                    if (now - connection.lastUsed < keepAliveMillis && !connection.socket.isClosed()) {
+                        connection.reused = true;
+                        return connection;
+                    }
+
+                    discard(connection);
+                }
+            }
+
+            return open(endpoint);
+        }
+
+        public Connection open (Endpoint endpoint) throws IOException {
+            Socket socket = new Socket();
+
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(endpoint.host, endpoint.port), timeout);
+                socket.setSoTimeout(timeout);
+
+                if (endpoint.secure)
+                    socket = startTls(socket, endpoint);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+
+            Connection connection = new Connection();
+            connection.socket = socket;
+            connection.inputStream = new BufferedInputStream(socket.getInputStream());
+            connection.outputStream = new BufferedOutputStream(socket.getOutputStream());
+            connection.lastUsed = System.currentTimeMillis();
+
+            metrics.connectionsOpened.incrementAndGet();
+            metrics.open.incrementAndGet();
+            return connection;
+        }
+
+        public void giveBack (Connection connection) {
+            connection.lastUsed = System.currentTimeMillis();
+
+            if (closed || removed || metrics.open.get() > maxConnectionsPerHost) {
+                discard(connection);
+                return;
+            }
+
+            idle.addFirst(connection);
+
+            //
+            // the transport may have been closed, or the pool dropped, after the check above,
+            // and the idle connections closed without this one
+            //
+            if (closed || removed)
+                close();
+        }
+
+        /**
+         * Close the idle connections that are past the keep-alive time.  The least recently
+         * used connections are at the end, so this stops at the first one that is not.
+         */
+        public void closeExpired (long now) {
+            Connection connection;
+            while (null != (connection = idle.peekLast()) && now - connection.lastUsed >= keepAliveMillis) {
+                if (idle.removeLastOccurrence(connection))
+                    discard(connection);
+            }
+        }
+
+        /**
+         * Can the pool be dropped?  It has to have no connections, no requests in flight, and
+         * no use for the keep-alive time.
+         */
+        public boolean isUnused (long now) {
+            return 0 == metrics.getOpen()
+                    && permits.availablePermits() == maxConnectionsPerHost
+                    && now - lastUsed >= keepAliveMillis;
+        }
+
+        public void discard (Connection connection) {
+            connection.close();
+            metrics.connectionsClosed.incrementAndGet();
+            metrics.open.decrementAndGet();
+        }
+
+        public void acquire () throws IOException {
+            if (permits.tryAcquire())
+                return;
+
+            metrics.waits.incrementAndGet();
+            long start = System.nanoTime();
+
+            try {
+                if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                    throw new IOException("timed out waiting for a connection");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for a connection");
+            } finally {
+                metrics.waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        public void release () {
+            permits.release();
+        }
+
+        public void close () {
+            Connection connection;
+            while (null != (connection = idle.pollFirst())) {
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Thrown when a reused connection turns out to be closed before the response started.
+     */
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public StaleConnectionException (IOException cause) {
+            super(cause);
+        }
+    }
+
+    private int maxConnectionsPerHost;
+    private volatile boolean closed;
+    private int timeout;
+    private long keepAliveMillis;
+    private Map<String, Endpoint> urlCache;
+    private Map<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+    private AtomicLong nextSweep = new AtomicLong();
+
+    /**
+     * @param maxConnectionsPerHost The most connections to one host.
+     * @param timeout The connect and read timeout, and the longest a request waits for a
+     *                connection.
+     * @param keepAliveMillis How long an idle connection is kept.
+     */
+    public PooledHttpTransport (int maxConnectionsPerHost, int timeout, long keepAliveMillis) {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.timeout = timeout;
+        this.keepAliveMillis = keepAliveMillis;
+
+        this.urlCache = new LinkedHashMap<String, Endpoint>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Endpoint> eldest) {
+                return size() > DEFAULT_URL_CACHE_SIZE;
+            }
+        };
+    }
+
+    public PooledHttpTransport () {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_TIMEOUT, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * The hosts that have pools, as scheme://host:port.
+     */
+    public List<String> getHosts () {
+        List<String> hosts = new ArrayList<String>(pools.keySet());
+        Collections.sort(hosts);
+        return hosts;
+    }
+
+    /**
+     * The statistics for the host of a URL, or null if nothing has been sent there.
+     */
+    public HostMetrics getMetrics (String url) throws MalformedURLException {
+        Pool pool = pools.get(endpointFor(url).hostKey);
+        return null == pool ? null : pool.metrics;
+    }
+
+    /**
+     * Open connections to the host of a URL ahead of time, up to a number of idle connections.
+     */
+    public void warm (String url, int connections) throws IOException {
+        Endpoint endpoint = endpointFor(url);
+        Pool pool = poolFor(endpoint);
+
+        for (int i = Math.min(connections, maxConnectionsPerHost) - pool.metrics.getOpen(); i > 0; i--) {
+            pool.giveBack(pool.open(endpoint));
+        }
+    }
+
+    public int post (String url, String contentType, byte[] body) throws IOException {
+        return send("POST", url, contentType, body);
+    }
+
+    public int get (String url) throws IOException {
+        return send("GET", url, null, null);
+    }
+
+    /**
+     * Close every idle connection.  Connections in use are closed when they come back, and
+     * from now on a connection is closed when its request is finished rather than kept.
+     */
+    public void close () {
+        closed = true;
+
+        for (Pool pool : pools.values()) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Close the idle connections that are past the keep-alive time, and drop the pools of
+     * hosts that have not been used for that long.
+     *
+     * @return The number of pools that were dropped.
+     */
+    public int sweep () {
+        long now = System.currentTimeMillis();
+        nextSweep.set(now + Math.max(1, keepAliveMillis / 2));
+
+        int dropped = 0;
+        for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+            Pool pool = entry.getValue();
+            pool.closeExpired(now);
+
+            if (pool.isUnused(now) && pools.remove(entry.getKey(), pool)) {
+                pool.removed = true;
+                pool.close();
+                dropped++;
+            }
+        }
+
+        return dropped;
+    }
+
+    private void sweepIfDue () {
+        long due = nextSweep.get();
+        long now = System.currentTimeMillis();
+
+        if (now >= due && nextSweep.compareAndSet(due, now + Math.max(1, keepAliveMillis / 2)))
+            sweep();
+    }
+
+    private int send (String method, String url, String contentType, byte[] body) throws IOException {
+        sweepIfDue();
+
+        Endpoint endpoint = endpointFor(url);
+        Pool pool;
+
+        //
+        // a pool that was dropped while this was getting it is replaced
+        //
+        while (true) {
+            pool = poolFor(endpoint);
+            pool.lastUsed = System.currentTimeMillis();
+            pool.acquire();
+
+            if (!pool.removed)
+                break;
+
+            pool.release();
+        }
+
+        try {
+            pool.metrics.requests.incrementAndGet();
+
+            Connection connection = pool.borrow(endpoint, false);
+            try {
+                return exchange(pool, connection, endpoint, method, contentType, body);
+            } catch (StaleConnectionException e) {
+                connection = pool.borrow(endpoint, true);
+                return exchange(pool, connection, endpoint, method, contentType, body);
+            }
+        } catch (IOException e) {
+            pool.metrics.failures.incrementAndGet();
+            throw e;
+        } finally {
+            pool.release();
+        }
+    }
+
+    /**
+     * Make one request on a connection, and give the connection back or close it.
+     */
+    private int exchange (Pool pool, Connection connection, Endpoint endpoint, String method, String contentType,
+                          byte[] body) throws IOException {
+        if (connection.reused)
+            pool.metrics.reused.incrementAndGet();
+
+        boolean started = false;
+
+        try {
+            StringBuilder head = new StringBuilder();
+            head.append(method).append(' ').append(endpoint.path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(endpoint.hostHeader).append("\r\n");
+            head.append("Connection: keep-alive\r\n");
+
+            if (null != body) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+
+            head.append("\r\n");
+
+            connection.outputStream.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (null != body)
+                connection.outputStream.write(body);
+            connection.outputStream.flush();
+
+            int status;
+            boolean keepAlive;
+
+            do {
+                int first = connection.inputStream.read();
+                if (first < 0)
+                    throw new EOFException();
+
+                started = true;
+                String statusLine = (char) first + readLine(connection.inputStream);
+
+                String[] parts = statusLine.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+                    throw new IOException("bad status line: " + statusLine);
+
+                status = Integer.parseInt(parts[1]);
+                keepAlive = readResponse(connection.inputStream, method, status, parts[0].equals("HTTP/1.1"));
+            } while (status >= 100 && status < 200);
+
+            if (keepAlive)
+                pool.giveBack(connection);
+            else
+                pool.discard(connection);
+
+            return status;
+        } catch (IOException | RuntimeException e) {
+            pool.discard(connection);
+
+            //
+            // a timeout may mean the server is still working on the request, so only a
+            // connection that was closed or reset before the response started is stale
+            //
+            if (connection.reused && !started && (e instanceof EOFException || e instanceof SocketException))
+                throw new StaleConnectionException((IOException) e);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Read the headers and body of a response.
+     *
+     * @return true if the connection can be used again.
+     */
+    private static boolean readResponse (InputStream inputStream, String method, int status, boolean http11)
+            throws IOException {
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean keepAlive = http11;
+
+        String line;
+        while (!(line = readLine(inputStream)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0)
+                continue;
+
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase("Content-Length"))
+                contentLength = Long.parseLong(value);
+            else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                chunked = value.toLowerCase().contains("chunked");
+            else if (name.equalsIgnoreCase("Connection"))
+                keepAlive = value.equalsIgnoreCase("keep-alive") || (http11 && !value.equalsIgnoreCase("close"));
+        }
+
+        if (method.equals("HEAD") || (status >= 100 && status < 200) || status == 204 || status == 304)
+            return keepAlive;
+
+        if (chunked) {
+            while (true) {
+                String sizeLine = readLine(inputStream);
+                int semicolon = sizeLine.indexOf(';');
+                long size = Long.parseLong((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+
+                if (0 == size) {
+                    while (!readLine(inputStream).isEmpty()) {
+                    }
+
+                    return keepAlive;
+                }
+
+                skip(inputStream, size);
+                readLine(inputStream);
+            }
+        }
+
+        if (contentLength >= 0) {
+            skip(inputStream, contentLength);
+            return keepAlive;
+        }
+
+        //
+        // no length: the body runs to the end of the connection
+        //
+        while (inputStream.read() != -1) {
+        }
+
+        return false;
+    }
+
+    /**
+     * Start TLS on a connected socket, checking the server's certificate against the host.
+     */
+    private static Socket startTls (Socket socket, Endpoint endpoint) throws IOException {
+        SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, endpoint.host, endpoint.port, true);
+
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+
+        //
+        // server name indication is only for names: it is not sent for an address
+        //
+        if (!isAddress(endpoint.host)) {
+            List<SNIServerName> serverNames = new ArrayList<SNIServerName>();
+            serverNames.add(new SNIHostName(endpoint.host));
+            parameters.setServerNames(serverNames);
+        }
+
+        sslSocket.setSSLParameters(parameters);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    private static boolean isAddress (String host) {
+        return host.startsWith("[") || host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    private static void skip (InputStream inputStream, long count) throws IOException {
+        byte[] buffer = new byte[4096];
+
+        while (count > 0) {
+            int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read < 0)
+                throw new EOFException();
+
+            count -= read;
+        }
+    }
+
+    private static String readLine (InputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        while (true) {
+            int c = inputStream.read();
+            if (c < 0)
+                throw new EOFException();
+
+            if (c == '\n')
+                break;
+
+            if (c != '\r')
+                line.append((char) c);
+        }
+
+        return line.toString();
+    }
+
+    private Endpoint endpointFor (String url) throws MalformedURLException {
+        synchronized (urlCache) {
+            Endpoint endpoint = urlCache.get(url);
+            if (null != endpoint)
+                return endpoint;
+        }
+
+        URL parsed = new URL(url);
+        boolean secure = parsed.getProtocol().equalsIgnoreCase("https");
+        if (!secure && !parsed.getProtocol().equalsIgnoreCase("http"))
+            throw new MalformedURLException("not an http URL: " + url);
+
+        Endpoint endpoint = new Endpoint();
+        endpoint.secure = secure;
+        endpoint.host = parsed.getHost();
+        endpoint.port = -1 == parsed.getPort() ? parsed.getDefaultPort() : parsed.getPort();
+        endpoint.hostHeader = -1 == parsed.getPort() ? endpoint.host : endpoint.host + ":" + endpoint.port;
+        endpoint.hostKey = parsed.getProtocol().toLowerCase() + "://" + endpoint.host.toLowerCase() + ":" + endpoint.port;
+
+        String path = parsed.getFile();
+        endpoint.path = path.isEmpty() ? "/" : path;
+
+        synchronized (urlCache) {
+            urlCache.put(url, endpoint);
+        }
+
+        return endpoint;
+    }
+
+    private Pool poolFor (Endpoint endpoint) {
+        Pool pool = pools.get(endpoint.hostKey);
+        if (null == pool) {
+            pools.putIfAbsent(endpoint.hostKey, new Pool());
+            pool = pools.get(endpoint.hostKey);
+        }
+
+        return pool;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.basicclasses.TimingWheel;
+import com.ltsllc.miranda.clientinterface.storage.DeadLetterStore;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decide what happens to an {@link Event} whose delivery failed, according to the
+ * {@link Subscription}'s error policy, and retry it when its time comes.
+ *
+ * <p>
+ *     Retries wait in a {@link TimingWheel}, so scheduling a retry and firing it both take
+ *     constant time however many retries are waiting.  The wait before retry n is
+ *     retryDelayMillis * 2^(n-1), capped at maxRetryDelayMillis, of which a random half is
+ *     taken off, so that Events that failed together, because their subscriber went down, do
+ *     not all come back at the same moment.
+ * </p>
+ *
+ * <p>
+ *     When an Event has been tried maxAttempts times, or right away if the error policy is
+ *     DeadLetter, it goes to the {@link DeadLetterStore}.  With no store, or with the Drop
+ *     policy, it is dropped.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class RetryScheduler {
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    /**
+     * What retries are given to when they are due.
+     */
+    public interface Handler {
+        /**
+         * @param event The Event.
+         * @param subscription The Subscription.
+         * @param attempt Which attempt this is; the first retry is attempt 2.
+         */
+        public void retry (Event event, Subscription subscription, int attempt);
+    }
+
+    private static class Retry {
+        private Event event;
+        private Subscription subscription;
+        private int attempt;
+
+        public Retry (Event event, Subscription subscription, int attempt) {
+            this.event = event;
+            this.subscription = subscription;
+            this.attempt = attempt;
+        }
+    }
+
+    private TimingWheel<Retry> wheel;
+    private Handler handler;
+    private DeadLetterStore deadLetterStore;
+    private ScheduledFuture<?> future;
+
+    private AtomicLong scheduled = new AtomicLong();
+    private AtomicLong deadLettered = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param tickMillis How precisely retry times are honored.
+     * @param handler What retries are given to.
+     * @param deadLetterStore Where Events that are given up on go, or null to drop them.
+     * @param now The current time.
+     */
+    public RetryScheduler (long tickMillis, Handler handler, DeadLetterStore deadLetterStore, long now) {
+        this.wheel = new TimingWheel<Retry>(tickMillis, now);
+        this.handler = handler;
+        this.deadLetterStore = deadLetterStore;
+    }
+
+    public RetryScheduler (Handler handler, DeadLetterStore deadLetterStore) {
+        this(DEFAULT_TICK_MILLIS, handler, deadLetterStore, System.currentTimeMillis());
+    }
+
+    /**
+     * The number of retries waiting.
+     */
+    public int getPending () {
+        return wheel.size();
+    }
+
+    public long getScheduled () {
+        return scheduled.get();
+    }
+
+    public long getDeadLettered () {
+        return deadLettered.get();
+    }
+
+    public long getDropped () {
+        return dropped.get();
+    }
+
+    /**
+     * The number of times the handler threw an exception.  The attempt counts as failed, so
+     * the Event is retried again or dead lettered like any other failure.
+     */
+    public long getFailures () {
+        return failures.get();
+    }
+
+    /**
+     * Record that an attempt to deliver an Event failed.
+     *
+     * @param event The Event.
+     * @param subscription The Subscription it was being delivered to.
+     * @param attempt Which attempt failed; the first delivery is attempt 1.
+     * @param reason Why it failed, for the dead letter queue.
+     * @param now The current time.
+     * @return true if a retry was scheduled.
+     * @throws IOException If the Event could not be added to the dead letter queue.
+     */
+    public boolean failed (Event event, Subscription subscription, int attempt, String reason, long now)
+            throws IOException {
+        Subscription.ErrorPolicies policy = subscription.getErrorPolicy();
+
+        if (policy == Subscription.ErrorPolicies.Retry && attempt < subscription.getMaxAttempts()) {
+            long delay = delay(subscription, attempt);
+            long deadline = delay > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + delay;
+
+            wheel.add(new Retry(event, subscription, attempt + 1), deadline);
+            scheduled.incrementAndGet();
+            return true;
+        }
+
+        if (policy != Subscription.ErrorPolicies.Drop && null != deadLetterStore) {
+            deadLetterStore.add(subscription.getName(), event.getGuid(), now, attempt, reason);
+            deadLettered.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+
+        return false;
+    }
+
+    /**
+     * How long to wait after a failed attempt.
+     *
+     * @param subscription The Subscription, whose retry settings are used.
+     * @param attempt The attempt that failed.
+     */
+    public static long delay (Subscription subscription, int attempt) {
+        long maximum = Math.max(1, subscription.getMaxRetryDelayMillis());
+        long delay = Math.max(1, subscription.getRetryDelayMillis());
+
+        for (int i = 1; i < attempt && delay < maximum; i++) {
+            //
+            // cap before doubling, so a maximum near Long.MAX_VALUE cannot overflow
+            //
+            delay = delay > maximum / 2 ? maximum : delay * 2;
+        }
+
+        delay = Math.min(delay, maximum);
+
+        long half = delay / 2;
+        return delay - half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+    }
+
+    /**
+     * Give the handler every retry that is due.
+     *
+     * <p>
+     *     A retry whose handler throws an exception is treated as a failed attempt and goes back
+     *     through {@link #failed(Event, Subscription, int, String, long)}.  If it then cannot be
+     *     added to the dead letter queue, it is counted as dropped.
+     * </p>
+     *
+     * @param now The current time.
+     * @return The number of retries handed over.
+     */
+    public int advance (long now) {
+        List<Retry> due = wheel.advance(now);
+
+        for (Retry retry : due) {
+            try {
+                handler.retry(retry.event, retry.subscription, retry.attempt);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+
+                try {
+                    failed(retry.event, retry.subscription, retry.attempt, e.toString(), now);
+                } catch (IOException deadLetterException) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        return due.size();
+    }
+
+    /**
+     * Call {@link #advance(long)} once per tick on an executor.
+     */
+    public synchronized void start (ScheduledExecutorService executor) {
+        if (null != future)
+            return;
+
+        long tickMillis = wheel.getTickMillis();
+        future = executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                advance(System.currentTimeMillis());
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop () {
+        if (null != future) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link DeliveryExecutor} that runs deliveries on an {@link ExecutorService}, holding back
+ * the deliveries for a Subscription that already has its maximum in flight.
+ *
+ * <p>
+ *     Each Subscription has a queue and a count of running deliveries.  A delivery is only
+ *     handed to the executor when the count is below the Subscription's maxConcurrency, and a
+ *     delivery that finishes starts the next one in its queue.  Waiting deliveries are just
+ *     entries in a queue, not blocked threads, so a slow subscriber ties up at most
+ *     maxConcurrency threads; with virtual threads (see {@link DeliveryThreads}) not even those
+ *     are platform threads.
+ * </p>
+ *
+ * <p>
+ *     With a maxConcurrency of 1, the deliveries for a Subscription run one at a time, in the
+ *     order they were given to {@link #execute(Subscription, Runnable)}.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class SubscriptionBoundedExecutor implements DeliveryExecutor {
+    public static final int DEFAULT_PLATFORM_THREADS = 64;
+
+    private class Lane {
+        private String name;
+        private ConcurrentLinkedDeque<Runnable> queue = new ConcurrentLinkedDeque<Runnable>();
+        private AtomicInteger queued = new AtomicInteger();
+        private AtomicInteger running = new AtomicInteger();
+        private volatile int maxConcurrency = 1;
+
+        /**
+         * Set, while the Lane is locked, when the Subscription is removed.  The Lane stays in
+         * the map until its running deliveries finish, so that a Subscription added again in
+         * the meantime shares their count rather than getting a second Lane.
+         */
+        private volatile boolean removed;
+
+        public Lane (String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return false if this Lane was removed and has left the map, so another is needed.
+         */
+        public boolean add (Runnable delivery, int maxConcurrency) {
+            synchronized (this) {
+                if (removed && lanes.get(name) != this)
+                    return false;
+
+                removed = false;
+                this.maxConcurrency = maxConcurrency;
+
+                queue.add(delivery);
+                queued.incrementAndGet();
+            }
+
+            drain();
+            return true;
+        }
+
+        public synchronized void remove () {
+            removed = true;
+
+            while (null != queue.poll()) {
+                queued.decrementAndGet();
+            }
+
+            if (running.get() == 0)
+                lanes.remove(name, this);
+        }
+
+        private void finished () {
+            running.decrementAndGet();
+
+            synchronized (this) {
+                if (removed) {
+                    if (running.get() == 0)
+                        lanes.remove(name, this);
+
+                    return;
+                }
+            }
+
+            try {
+                drain();
+            } catch (RejectedExecutionException e) {
+                // the executor is shutting down; what is left stays queued
+            }
+        }
+
+        /**
+         * Start queued deliveries while there is room.  If the executor rejects one, it goes
+         * back to the front of the queue, its slot is given back and the exception is passed
+         * on.
+         */
+        private void drain () {
+            while (true) {
+                int count = running.get();
+                if (removed || count >= maxConcurrency || queue.isEmpty())
+                    return;
+
+                if (!running.compareAndSet(count, count + 1))
+                    continue;
+
+                final Runnable delivery = queue.poll();
+                if (null == delivery) {
+                    //
+                    // someone else took it; give the slot back and look again, in case another
+                    // delivery was added in the meantime
+                    //
+                    running.decrementAndGet();
+                    continue;
+                }
+
+                queued.decrementAndGet();
+
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                delivery.run();
+                            } catch (RuntimeException e) {
+                                failures.incrementAndGet();
+                            } finally {
+                                finished();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    queue.addFirst(delivery);
+                    queued.incrementAndGet();
+                    running.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private ExecutorService executor;
+    private Map<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+    private AtomicInteger failures = new AtomicInteger();
+
+    public SubscriptionBoundedExecutor (ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Create an executor on the delivery threads for the running JVM: virtual threads on Java
+     * 21 and later, otherwise a pool of platform threads.
+     *
+     * @param platformThreads The size of the pool, when there is one.
+     */
+    public static SubscriptionBoundedExecutor create (int platformThreads) {
+        return new SubscriptionBoundedExecutor(DeliveryThreads.newExecutor(platformThreads));
+    }
+
+    public static SubscriptionBoundedExecutor create () {
+        return create(DEFAULT_PLATFORM_THREADS);
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The number of deliveries that threw an exception.
+     */
+    public int getFailures () {
+        return failures.get();
+    }
+
+    /**
+     * @throws RejectedExecutionException If the executor would not take the delivery.  It
+     * stays queued, and is started when another delivery for the Subscription finishes or is
+     * added.
+     */
+    public void execute (Subscription subscription, Runnable delivery) {
+        String name = subscription.getName();
+
+        while (true) {
+            Lane lane = lanes.get(name);
+            if (null == lane) {
+                lanes.putIfAbsent(name, new Lane(name));
+                lane = lanes.get(name);
+            }
+
+            if (null != lane && lane.add(delivery, subscription.getMaxConcurrency()))
+                return;
+        }
+    }
+
+    public int getInFlight (String subscription) {
+        Lane lane = lanes.get(subscription);
+        return null == lane ? 0 : lane.running.get();
+    }
+
+    public int getQueued (String subscription) {
+        Lane lane = lanes.get(subscription);
+        return null == lane ? 0 : lane.queued.get();
+    }
+
+    /**
+     * Forget a Subscription.  Deliveries that are already running finish; queued ones are
+     * dropped.  Deliveries for the Subscription that are executed afterwards still count the
+     * ones that are running against its maxConcurrency.
+     */
+    public void remove (String subscription) {
+        Lane lane = lanes.get(subscription);
+        if (null != lane)
+            lane.remove();
+    }
+
+    public void shutdown () {
+        executor.shutdown();
+    }
+}
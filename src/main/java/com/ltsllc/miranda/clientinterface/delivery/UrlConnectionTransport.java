@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A {@link DeliveryTransport} that uses {@link HttpURLConnection}.
+ *
+ * <p>
+ *     The response body is always read to the end and closed, which lets the JDK keep the
+ *     connection alive and reuse it for the next request to the same host.
+ * </p>
+ */
+public class UrlConnectionTransport implements DeliveryTransport {
+    public static final int DEFAULT_TIMEOUT = 10000;
+
+    private int connectTimeout;
+    private int readTimeout;
+
+    public UrlConnectionTransport (int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public UrlConnectionTransport () {
+        this(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    public int post (String url, String contentType, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+
+        OutputStream outputStream = connection.getOutputStream();
+        try {
+            outputStream.write(body);
+        } finally {
+            outputStream.close();
+        }
+
+        int status = connection.getResponseCode();
+        InputStream inputStream = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        drain(inputStream);
+
+        return status;
+    }
+
+    public int get (String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+
+        int status = connection.getResponseCode();
+        drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+
+        return status;
+    }
+
+    public static void drain (InputStream inputStream) throws IOException {
+        if (null == inputStream)
+            return;
+
+        try {
+            byte[] buffer = new byte[4096];
+            while (inputStream.read(buffer) != -1) {
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.objects;
+
+/**
+ * One entry in a change feed.
+ *
+ * <h3>Properties</h3>
+ * <table border="1">
+ *     <th>
+ *         <td>Name</td>
+ *         <td>Type</td>
+ *         <td>Description</td>
+ *     </th>
+ *     <tr>
+ *         <td>sequence</td>
+ *         <td>long</td>
+ *         <td>The position of the record in the feed.  Sequence numbers start at 1 and increase
+ *         by 1 for each record.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>changeType</td>
+ *         <td>enum, ChangeTypes</td>
+ *         <td>Whether the object was created, updated or deleted.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>key</td>
+ *         <td>String</td>
+ *         <td>The primary key of the object that changed.</td>
+ *     </tr>
+ *     <tr>
+ *         <td>object</td>
+ *         <td>T</td>
+ *         <td>The object after the change.  This is null for deletes.</td>
+ *     </tr>
+ * </table>
+ */
+public class ChangeRecord<T> {
+    public enum ChangeTypes {
+        Create,
+        Update,
+        Delete
+    }
+
+    private long sequence;
+    private ChangeTypes changeType;
+    private String key;
+    private T object;
+
+    public ChangeRecord (long sequence, ChangeTypes changeType, String key, T object) {
+        this.sequence = sequence;
+        this.changeType = changeType;
+        this.key = key;
+        this.object = object;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public ChangeTypes getChangeType() {
+        return changeType;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public T getObject() {
+        return object;
+    }
+}
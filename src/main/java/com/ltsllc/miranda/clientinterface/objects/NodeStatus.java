@@ -34,6 +34,8 @@ public class NodeStatus extends NodeElement {
     }
 
     public void setNodeStatus(NodeStatuses nodeStatus) {
+        checkMutable();
+
         this.nodeStatus = nodeStatus;
     }
 
@@ -42,4 +44,12 @@ public class NodeStatus extends NodeElement {
 
         setNodeStatus(nodeStatus);
     }
+
+    public NodeStatus copy () {
+        NodeStatus nodeStatus = new NodeStatus(getDns(), getPort(), getDescription(), getNodeStatus());
+        nodeStatus.setLastConnected(getLastConnected());
+        nodeStatus.copyChangeStampFrom(this);
+
+        return nodeStatus;
+    }
 }
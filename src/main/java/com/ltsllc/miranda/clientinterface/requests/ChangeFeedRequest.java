@@ -0,0 +1,69 @@
+package com.ltsllc.miranda.clientinterface.requests;
+
+/**
+ * Ask for the changes to one type of object after a sequence number.
+ *
+ * <p>
+ *     A client starts with an epoch and an afterSequence of 0 and, for each result, passes
+ *     the result's epoch and lastSequence in its next request.  If waitMillis is greater than 0 and
+ *     there are no new changes, the server holds the request for up to that long instead
+ *     of answering right away.
+ * </p>
+ */
+public class ChangeFeedRequest extends Request {
+    public enum ObjectTypes {
+        Topic,
+        Subscription,
+        User
+    }
+
+    private ObjectTypes objectType;
+    private long epoch;
+    private long afterSequence;
+    private int maxRecords;
+    private long waitMillis;
+
+    public ChangeFeedRequest(String sessionId, ObjectTypes objectType, long afterSequence, int maxRecords) {
+        super(sessionId);
+
+        this.objectType = objectType;
+        this.afterSequence = afterSequence;
+        this.maxRecords = maxRecords;
+    }
+
+    public ObjectTypes getObjectType() {
+        return objectType;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getAfterSequence() {
+        return afterSequence;
+    }
+
+    public void setAfterSequence(long afterSequence) {
+        this.afterSequence = afterSequence;
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public void setMaxRecords(int maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    public void setWaitMillis(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+}
@@ -0,0 +1,50 @@
+package com.ltsllc.miranda.clientinterface.requests;
+
+/**
+ * Ask for the Topics, Subscriptions, Users and NodeElements that have changed since a watermark.
+ *
+ * <p>
+ *     The watermark is a number the node gives to each change as it applies it (see
+ *     {@link com.ltsllc.miranda.clientinterface.basicclasses.ChangeSequence}), not a change
+ *     stamp, so objects merged from other nodes are not missed.  A client starts with an epoch
+ *     and a watermark of 0, which returns everything, and then passes the epoch and watermark
+ *     from each result in its next request.  Deleted objects are reported by key.
+ * </p>
+ */
+public class ChangesSinceRequest extends Request {
+    private long epoch;
+    private long watermark;
+    private int maxResults;
+
+    public ChangesSinceRequest(String sessionId, long epoch, long watermark, int maxResults) {
+        super(sessionId);
+
+        this.epoch = epoch;
+        this.watermark = watermark;
+        this.maxResults = maxResults;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public void setWatermark(long watermark) {
+        this.watermark = watermark;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+}
@@ -0,0 +1,71 @@
+package com.ltsllc.miranda.clientinterface.requests;
+
+/**
+ * Ask for the Events published to a Topic between two times.
+ *
+ * <p>
+ *     The times are compared with {@link com.ltsllc.miranda.clientinterface.basicclasses.Event#getTimeOfCreation()},
+ *     and both ends of the range are included.  Events come back in the order they were
+ *     stored, at most limit at a time.  To get the next page, pass the cursor from the
+ *     previous result; a null cursor starts at the beginning of the range.  A cursor that
+ *     did not come from a result, or whose Events have since been deleted, gets
+ *     {@link com.ltsllc.miranda.clientinterface.results.Results#InvalidCursor}.
+ * </p>
+ */
+public class EventRangeRequest extends Request {
+    public static final int DEFAULT_LIMIT = 100;
+
+    private String topicName;
+    private long from;
+    private long to;
+    private int limit = DEFAULT_LIMIT;
+    private String cursor;
+
+    public EventRangeRequest(String sessionId, String topicName, long from, long to) {
+        super(sessionId);
+
+        this.topicName = topicName;
+        this.from = from;
+        this.to = to;
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public void setTopicName(String topicName) {
+        this.topicName = topicName;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public void setFrom(long from) {
+        this.from = from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public void setTo(long to) {
+        this.to = to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+}
@@ -1,10 +1,28 @@
 package com.ltsllc.miranda.clientinterface.requests;
 
 /**
+ * Search for the Events whose guids match a regular expression.
+ *
+ * <p>
+ *     The whole guid must match the expression.  Results come back in guid order, at most
+ *     maxResults at a time.  To get the next page, pass the cursor from the previous result;
+ *     a null cursor starts at the beginning.
+ * </p>
+ *
+ * <p>
+ *     An expression that starts with literal characters, like "abc.*" or "^abc[0-9]+", is
+ *     answered from the sorted guid index by looking only at the guids with that prefix, so it
+ *     is much cheaper than one that does not.
+ * </p>
+ *
  * Created by clarkhobbie on 6/22/17.
  */
 public class EventSearchRequest extends Request {
+    public static final int DEFAULT_MAX_RESULTS = 100;
+
     private String guidRegularExpression;
+    private int maxResults = DEFAULT_MAX_RESULTS;
+    private String cursor;
 
     public String getGuidRegularExpression() {
         return guidRegularExpression;
@@ -14,6 +32,22 @@ public class EventSearchRequest extends Request {
         this.guidRegularExpression = guidRegularExpression;
     }
 
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
     public EventSearchRequest(String sessionIdString) {
         super(sessionIdString);
     }
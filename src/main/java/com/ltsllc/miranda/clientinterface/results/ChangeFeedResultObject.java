@@ -0,0 +1,53 @@
+package com.ltsllc.miranda.clientinterface.results;
+
+import com.ltsllc.miranda.clientinterface.objects.ChangeRecord;
+
+import java.util.List;
+
+/**
+ * The answer to a {@link com.ltsllc.miranda.clientinterface.requests.ChangeFeedRequest}.
+ *
+ * <p>
+ *     If truncated is true, then some of the changes the client asked for are no longer
+ *     in the feed, or the feed was started again since the client's last request.  The
+ *     client should re-list the objects and then continue from epoch and lastSequence.
+ * </p>
+ */
+public class ChangeFeedResultObject<T> extends ResultObject {
+    private List<ChangeRecord<T>> records;
+    private long epoch;
+    private long lastSequence;
+    private boolean truncated;
+
+    public List<ChangeRecord<T>> getRecords() {
+        return records;
+    }
+
+    public void setRecords(List<ChangeRecord<T>> records) {
+        this.records = records;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+}
@@ -0,0 +1,136 @@
+package com.ltsllc.miranda.clientinterface.results;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.NodeElement;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.basicclasses.Topic;
+import com.ltsllc.miranda.clientinterface.basicclasses.User;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The answer to a {@link com.ltsllc.miranda.clientinterface.requests.ChangesSinceRequest}.
+ *
+ * <p>
+ *     The changed objects are as they are now; the deleted lists hold the primary keys of
+ *     objects that were removed.  The epoch and watermark are the values to use in the next
+ *     request.  If more is true, then the results were cut short by the request's maxResults,
+ *     and the client should ask again right away.
+ * </p>
+ *
+ * <p>
+ *     If reset is true, the client's watermark was not from this node's current index, for
+ *     example because the node was started again.  The results start from the beginning,
+ *     and the client should drop what it has and take them as a fresh listing.
+ * </p>
+ */
+public class ChangesSinceResultObject extends ResultObject {
+    private List<Topic> topics = new ArrayList<Topic>();
+    private List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private List<User> users = new ArrayList<User>();
+    private List<NodeElement> nodes = new ArrayList<NodeElement>();
+    private List<String> deletedTopics = new ArrayList<String>();
+    private List<String> deletedSubscriptions = new ArrayList<String>();
+    private List<String> deletedUsers = new ArrayList<String>();
+    private List<String> deletedNodes = new ArrayList<String>();
+    private long epoch;
+    private long watermark;
+    private boolean more;
+    private boolean reset;
+
+    public List<Topic> getTopics() {
+        return topics;
+    }
+
+    public void setTopics(List<Topic> topics) {
+        this.topics = topics;
+    }
+
+    public List<Subscription> getSubscriptions() {
+        return subscriptions;
+    }
+
+    public void setSubscriptions(List<Subscription> subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<User> users) {
+        this.users = users;
+    }
+
+    public List<NodeElement> getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(List<NodeElement> nodes) {
+        this.nodes = nodes;
+    }
+
+    public List<String> getDeletedTopics() {
+        return deletedTopics;
+    }
+
+    public void setDeletedTopics(List<String> deletedTopics) {
+        this.deletedTopics = deletedTopics;
+    }
+
+    public List<String> getDeletedSubscriptions() {
+        return deletedSubscriptions;
+    }
+
+    public void setDeletedSubscriptions(List<String> deletedSubscriptions) {
+        this.deletedSubscriptions = deletedSubscriptions;
+    }
+
+    public List<String> getDeletedUsers() {
+        return deletedUsers;
+    }
+
+    public void setDeletedUsers(List<String> deletedUsers) {
+        this.deletedUsers = deletedUsers;
+    }
+
+    public List<String> getDeletedNodes() {
+        return deletedNodes;
+    }
+
+    public void setDeletedNodes(List<String> deletedNodes) {
+        this.deletedNodes = deletedNodes;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public void setWatermark(long watermark) {
+        this.watermark = watermark;
+    }
+
+    public boolean isMore() {
+        return more;
+    }
+
+    public void setMore(boolean more) {
+        this.more = more;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public void setReset(boolean reset) {
+        this.reset = reset;
+    }
+}
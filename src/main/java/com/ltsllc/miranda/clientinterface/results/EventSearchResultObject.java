@@ -0,0 +1,45 @@
+package com.ltsllc.miranda.clientinterface.results;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The answer to a {@link com.ltsllc.miranda.clientinterface.requests.EventSearchRequest}.
+ *
+ * <p>
+ *     If more is true, there may be more matches, and the cursor is the value to use in the
+ *     request for the next page.  A page can have fewer than maxResults Events, or even none,
+ *     when the search stopped because it had looked at as many guids as one request is allowed.
+ * </p>
+ */
+public class EventSearchResultObject extends ResultObject {
+    private List<Event> events = new ArrayList<Event>();
+    private String cursor;
+    private boolean more;
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<Event> events) {
+        this.events = events;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public boolean isMore() {
+        return more;
+    }
+
+    public void setMore(boolean more) {
+        this.more = more;
+    }
+}
@@ -45,6 +45,8 @@ public enum Results {
     MissingSessionId,
     MissingTopic,
     InvalidSessionId,
-    InvalidSession
+    InvalidSession,
+    Throttled,
+    InvalidCursor
 }
 
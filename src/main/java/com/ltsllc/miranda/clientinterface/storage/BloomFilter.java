@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A set of strings that can answer "definitely not present" without storing the strings.
+ *
+ * <p>
+ *     {@link #mightContain(String)} never returns false for a key that was added, and returns
+ *     true for a key that was not added with about the false positive rate the filter was
+ *     created with, as long as no more than the expected number of keys are added.
+ * </p>
+ *
+ * <p>
+ *     This class is not thread safe.
+ * </p>
+ */
+public class BloomFilter {
+    private long[] bits;
+    private int numberOfBits;
+    private int numberOfHashes;
+    private int count;
+
+    /**
+     * Create an empty filter.
+     *
+     * @param expectedKeys How many keys will be added.
+     * @param falsePositiveRate The rate of false positives once that many keys have been added.
+     */
+    public BloomFilter (int expectedKeys, double falsePositiveRate) {
+        int keys = Math.max(1, expectedKeys);
+        double size = -keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+
+        this.numberOfBits = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, Math.ceil(size)));
+        this.numberOfHashes = (int) Math.max(1, Math.round(((double) numberOfBits) / keys * Math.log(2)));
+        this.bits = new long[(numberOfBits + 63) / 64];
+    }
+
+    private BloomFilter (long[] bits, int numberOfBits, int numberOfHashes, int count) {
+        this.bits = bits;
+        this.numberOfBits = numberOfBits;
+        this.numberOfHashes = numberOfHashes;
+        this.count = count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    public void add (String key) {
+        long hash = hash(key);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+
+        for (int i = 0; i < numberOfHashes; i++) {
+            int bit = ((first + i * second) & Integer.MAX_VALUE) % numberOfBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+
+        count++;
+    }
+
+    public boolean mightContain (String key) {
+        long hash = hash(key);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+
+        for (int i = 0; i < numberOfHashes; i++) {
+            int bit = ((first + i * second) & Integer.MAX_VALUE) % numberOfBits;
+            if (0 == (bits[bit >>> 6] & (1L << bit)))
+                return false;
+        }
+
+        return true;
+    }
+
+    public void clear () {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = 0;
+        }
+
+        count = 0;
+    }
+
+    public void writeTo (DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(numberOfBits);
+        dataOutput.writeInt(numberOfHashes);
+        dataOutput.writeInt(count);
+
+        for (long word : bits) {
+            dataOutput.writeLong(word);
+        }
+    }
+
+    public static BloomFilter readFrom (DataInput dataInput) throws IOException {
+        int numberOfBits = dataInput.readInt();
+        int numberOfHashes = dataInput.readInt();
+        int count = dataInput.readInt();
+
+        long[] bits = new long[(numberOfBits + 63) / 64];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = dataInput.readLong();
+        }
+
+        return new BloomFilter(bits, numberOfBits, numberOfHashes, count);
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the key, mixed so that both halves can be used as hashes.
+     */
+    private static long hash (String key) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
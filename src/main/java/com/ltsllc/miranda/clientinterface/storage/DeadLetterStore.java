@@ -0,0 +1,822 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.DeadLetterQueue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent dead letter queue, with one partition per Subscription.
+ *
+ * <p>
+ *     This replaces the in-memory {@link DeadLetterQueue} for Subscriptions whose dead letters
+ *     can run into the millions.  Each partition is a directory of append-only segment files.
+ *     Every dead letter gets a sequence number, one more than the last in its partition, and
+ *     the partition keeps only a little in memory: for each segment, its first sequence number
+ *     and the file position of every {@link #INDEX_INTERVAL}th record.  Reading a page starts
+ *     from the nearest indexed record, so paging through a queue of any size reads about one
+ *     page from disk per call.
+ * </p>
+ *
+ * <p>
+ *     Dead letters are removed from the front, by {@link #truncate(String, long)} or by a
+ *     replay, which records the new head of the partition in a small head file.  A segment
+ *     whose dead letters have all been removed is deleted.
+ * </p>
+ *
+ * <p>
+ *     A record is: the length of the body, a CRC32 of the body, and the body.  When a partition
+ *     is opened, reading its last segment stops at the first record whose CRC does not match,
+ *     and the segment is cut off there.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class DeadLetterStore implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int INDEX_INTERVAL = 256;
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int TICKS_PER_SECOND = 10;
+
+    public static final String SEGMENT_SUFFIX = ".dlq";
+    public static final String HEAD_FILE = "head";
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d+)\\.dlq");
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * A dead letter: an Event that could not be delivered to a Subscription.
+     */
+    public static class DeadLetter {
+        private long sequence;
+        private String guid;
+        private long time;
+        private int attempts;
+        private String reason;
+
+        public DeadLetter (long sequence, String guid, long time, int attempts, String reason) {
+            this.sequence = sequence;
+            this.guid = guid;
+            this.time = time;
+            this.attempts = attempts;
+            this.reason = reason;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * The guid of the Event.
+         */
+        public String getGuid() {
+            return guid;
+        }
+
+        /**
+         * When the Event was put in the queue.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * How many times delivery was tried.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Why the last delivery failed, or null.
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /**
+     * A page of dead letters.
+     */
+    public static class Page {
+        private List<DeadLetter> deadLetters;
+        private String cursor;
+        private boolean more;
+
+        public Page (List<DeadLetter> deadLetters, String cursor, boolean more) {
+            this.deadLetters = deadLetters;
+            this.cursor = cursor;
+            this.more = more;
+        }
+
+        public List<DeadLetter> getDeadLetters() {
+            return deadLetters;
+        }
+
+        /**
+         * What to pass to {@link DeadLetterStore#read(String, String, int)} for the next page.
+         */
+        public String getCursor() {
+            return cursor;
+        }
+
+        public boolean isMore() {
+            return more;
+        }
+    }
+
+    /**
+     * What a replay gives the dead letters to.
+     */
+    public interface ReplayHandler {
+        /**
+         * Put a dead letter back in line for delivery.
+         *
+         * @return true if the dead letter was taken, false to stop the replay and leave it in
+         * the queue.
+         */
+        public boolean replay (String subscription, DeadLetter deadLetter);
+    }
+
+    /**
+     * A replay that is running.
+     */
+    public class Replay {
+        private String subscription;
+        private ReplayHandler handler;
+        private int perSecond;
+        private AtomicLong replayed = new AtomicLong();
+        private AtomicLong skipped = new AtomicLong();
+        private volatile boolean done;
+        private volatile Exception exception;
+        private volatile ScheduledFuture<?> future;
+
+        /**
+         * Tenths of a dead letter that may be replayed but have not been yet.  Carrying this
+         * from tick to tick makes a rate that is not a multiple of ten come out right.
+         */
+        private long credit;
+
+        private Replay (String subscription, ReplayHandler handler, int perSecond) {
+            this.subscription = subscription;
+            this.handler = handler;
+            this.perSecond = perSecond;
+        }
+
+        public long getReplayed () {
+            return replayed.get();
+        }
+
+        /**
+         * The number of damaged records that were passed over.
+         */
+        public long getSkipped () {
+            return skipped.get();
+        }
+
+        /**
+         * Has the replay finished, because the queue is empty, the handler stopped it, it was
+         * cancelled, or it failed?
+         */
+        public boolean isDone () {
+            return done;
+        }
+
+        /**
+         * What stopped the replay, if it failed: an IOException from the store, or a
+         * RuntimeException from the handler.
+         */
+        public Exception getException() {
+            return exception;
+        }
+
+        public void cancel () {
+            done = true;
+
+            if (null != future)
+                future.cancel(false);
+        }
+
+        /**
+         * Replay the dead letters that the rate allows this tick.
+         *
+         * <p>
+         *     Nothing may escape from here: an exception would stop the executor from running
+         *     the replay again without anything marking it as done.
+         * </p>
+         */
+        private void tick () {
+            if (done)
+                return;
+
+            credit += perSecond;
+            int count = (int) Math.min(credit / TICKS_PER_SECOND, MAX_PAGE_SIZE);
+            credit -= count * TICKS_PER_SECOND;
+
+            if (0 == count)
+                return;
+
+            try {
+                Partition partition = partitions.get(subscription);
+                Page page = null == partition ? null : partition.read(-1, count);
+
+                if (null == page || 0 == partition.size()) {
+                    cancel();
+                    return;
+                }
+
+                if (page.getDeadLetters().isEmpty()) {
+                    //
+                    // only damaged records were left to read; pass over them
+                    //
+                    long head = partition.getHead();
+                    long through = page.isMore() ? Long.parseLong(page.getCursor()) : head + partition.size() - 1;
+                    skipped.addAndGet(through - head + 1);
+                    partition.truncate(through);
+                    return;
+                }
+
+                long through = -1;
+                boolean stopped = false;
+                RuntimeException failure = null;
+
+                try {
+                    for (DeadLetter deadLetter : page.getDeadLetters()) {
+                        if (!handler.replay(subscription, deadLetter)) {
+                            stopped = true;
+                            break;
+                        }
+
+                        through = deadLetter.getSequence();
+                        replayed.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+
+                //
+                // whatever the handler took before it stopped or failed is gone from the queue
+                //
+                if (through >= 0)
+                    partition.truncate(through);
+
+                if (null != failure) {
+                    exception = failure;
+                    cancel();
+                } else if (stopped) {
+                    cancel();
+                }
+            } catch (IOException | RuntimeException e) {
+                exception = e;
+                cancel();
+            }
+        }
+    }
+
+    private static class Segment {
+        private long id;
+        private File file;
+        private long firstSequence;
+        private long count;
+        private long size;
+        private long[] index = new long[4];
+
+        public Segment (long id, File file, long firstSequence) {
+            this.id = id;
+            this.file = file;
+            this.firstSequence = firstSequence;
+        }
+
+        public void added (long position, long length) {
+            if (0 == count % INDEX_INTERVAL) {
+                int slot = (int) (count / INDEX_INTERVAL);
+                if (slot == index.length)
+                    index = Arrays.copyOf(index, index.length * 2);
+
+                index[slot] = position;
+            }
+
+            count++;
+            size = position + length;
+        }
+
+        public long lastSequence () {
+            return firstSequence + count - 1;
+        }
+    }
+
+    private class Partition {
+        private String subscription;
+        private File directory;
+        private TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+        private Segment current;
+        private FileChannel channel;
+        private long nextSequence;
+        private long head;
+
+        /**
+         * The length of the record most recently read by {@link #readRecord(DataInputStream)}.
+         */
+        private long recordLength;
+
+        public Partition (String subscription, File directory) {
+            this.subscription = subscription;
+            this.directory = directory;
+        }
+
+        public synchronized long size () {
+            return nextSequence - head;
+        }
+
+        public synchronized long getHead () {
+            return head;
+        }
+
+        public synchronized long add (String guid, long time, int attempts, String reason) throws IOException {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+            dataOutputStream.writeLong(nextSequence);
+            dataOutputStream.writeLong(time);
+            dataOutputStream.writeInt(attempts);
+            dataOutputStream.writeUTF(guid);
+            dataOutputStream.writeBoolean(null != reason);
+            if (null != reason)
+                dataOutputStream.writeUTF(reason);
+            dataOutputStream.flush();
+
+            byte[] body = byteArrayOutputStream.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+            record.putInt(body.length);
+            record.putInt((int) crc.getValue());
+            record.put(body);
+            record.flip();
+
+            if (null == current || (current.count > 0 && current.size + record.remaining() > segmentSize))
+                roll();
+
+            long position = current.size;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+
+            current.added(current.size, HEADER_SIZE + body.length);
+            return nextSequence++;
+        }
+
+        /**
+         * Read up to limit dead letters after a sequence number, or from the head if after is
+         * before it.
+         */
+        public synchronized Page read (long after, int limit) throws IOException {
+            long from = Math.max(after + 1, head);
+            List<DeadLetter> deadLetters = new ArrayList<DeadLetter>();
+
+            Map.Entry<Long, Segment> entry = segments.floorEntry(from);
+            if (null == entry)
+                entry = segments.ceilingEntry(from);
+
+            long damagedThrough = -1;
+
+            while (null != entry && deadLetters.size() < limit) {
+                Segment segment = entry.getValue();
+                if (segment.count > 0 && from <= segment.lastSequence()
+                        && !readSegment(segment, Math.max(from, segment.firstSequence), limit, deadLetters)) {
+                    damagedThrough = segment.lastSequence();
+                }
+
+                entry = segments.higherEntry(entry.getKey());
+            }
+
+            //
+            // the cursor has to get past a damaged record even when nothing after it could be
+            // read, or the next page would be this one again
+            //
+            long last = deadLetters.isEmpty() ? from - 1 : deadLetters.get(deadLetters.size() - 1).getSequence();
+            last = Math.max(last, damagedThrough);
+            boolean more = last + 1 < nextSequence;
+
+            return new Page(deadLetters, more ? Long.toString(last) : null, more);
+        }
+
+        /**
+         * @return false if the segment has a damaged record where the rest of it was expected.
+         */
+        private boolean readSegment (Segment segment, long from, int limit, List<DeadLetter> deadLetters)
+                throws IOException {
+            long record = from - segment.firstSequence;
+            int slot = (int) (record / INDEX_INTERVAL);
+            long skip = record - ((long) slot) * INDEX_INTERVAL;
+
+            FileInputStream fileInputStream = new FileInputStream(segment.file);
+            try {
+                fileInputStream.getChannel().position(segment.index[slot]);
+                DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+                long remaining = segment.count - ((long) slot) * INDEX_INTERVAL;
+
+                while (remaining > 0 && deadLetters.size() < limit) {
+                    DeadLetter deadLetter = readRecord(dataInputStream);
+                    remaining--;
+
+                    if (null == deadLetter)
+                        return false;
+
+                    if (skip > 0)
+                        skip--;
+                    else
+                        deadLetters.add(deadLetter);
+                }
+            } finally {
+                fileInputStream.close();
+            }
+
+            return true;
+        }
+
+        /**
+         * Remove the dead letters up to and including a sequence number.
+         */
+        public synchronized void truncate (long through) throws IOException {
+            long newHead = Math.min(through + 1, nextSequence);
+            if (newHead <= head)
+                return;
+
+            head = newHead;
+            writeHead();
+
+            while (!segments.isEmpty()) {
+                Segment segment = segments.firstEntry().getValue();
+                if (segment == current || segment.lastSequence() >= head)
+                    break;
+
+                segments.remove(segments.firstKey());
+                if (!segment.file.delete())
+                    throw new IOException("could not delete " + segment.file);
+            }
+        }
+
+        public synchronized void close () throws IOException {
+            if (null != channel) {
+                channel.force(false);
+                channel.close();
+                channel = null;
+            }
+        }
+
+        private void roll () throws IOException {
+            if (null != channel) {
+                channel.force(false);
+                channel.close();
+            }
+
+            long id = null == current ? 0 : current.id + 1;
+            File file = new File(directory, String.format("%010d", id) + SEGMENT_SUFFIX);
+            current = new Segment(id, file, nextSequence);
+            segments.put(current.firstSequence, current);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        private void writeHead () throws IOException {
+            File temp = new File(directory, HEAD_FILE + ".tmp");
+            RandomAccessFile file = new RandomAccessFile(temp, "rw");
+            try {
+                file.setLength(0);
+                file.writeLong(head);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+
+            File headFile = new File(directory, HEAD_FILE);
+            if (!temp.renameTo(headFile)) {
+                if (!headFile.delete() || !temp.renameTo(headFile))
+                    throw new IOException("could not rename " + temp);
+            }
+        }
+
+        private void open () throws IOException {
+            File headFile = new File(directory, HEAD_FILE);
+            if (headFile.isFile()) {
+                DataInputStream dataInputStream = new DataInputStream(new FileInputStream(headFile));
+                try {
+                    head = dataInputStream.readLong();
+                } finally {
+                    dataInputStream.close();
+                }
+            }
+
+            TreeMap<Long, File> found = new TreeMap<Long, File>();
+            File[] files = directory.listFiles();
+            for (File file : null == files ? new File[0] : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches())
+                    found.put(Long.parseLong(matcher.group(1)), file);
+            }
+
+            nextSequence = head;
+
+            for (Map.Entry<Long, File> entry : found.entrySet()) {
+                Segment segment = recover(entry.getKey(), entry.getValue(), entry.getKey().equals(found.lastKey()));
+
+                if (segment.count > 0 && segment.lastSequence() < head && !entry.getKey().equals(found.lastKey())) {
+                    segment.file.delete();
+                    continue;
+                }
+
+                segments.put(segment.firstSequence, segment);
+                nextSequence = Math.max(nextSequence, segment.firstSequence + segment.count);
+                current = segment;
+            }
+
+            if (null != current)
+                channel = new RandomAccessFile(current.file, "rw").getChannel();
+        }
+
+        /**
+         * Read a segment to build its index.  The last segment is cut off after its last
+         * good record.
+         */
+        private Segment recover (long id, File file, boolean last) throws IOException {
+            Segment segment = null;
+            long position = 0;
+
+            FileInputStream fileInputStream = new FileInputStream(file);
+            try {
+                DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+
+                while (true) {
+                    DeadLetter deadLetter = readRecord(dataInputStream);
+                    if (null == deadLetter)
+                        break;
+
+                    if (null == segment)
+                        segment = new Segment(id, file, deadLetter.getSequence());
+
+                    long length = recordLength;
+                    segment.added(position, length);
+                    position += length;
+                }
+            } finally {
+                fileInputStream.close();
+            }
+
+            if (null == segment)
+                segment = new Segment(id, file, nextSequence);
+
+            if (last && file.length() > position) {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                try {
+                    randomAccessFile.setLength(position);
+                } finally {
+                    randomAccessFile.close();
+                }
+            }
+
+            segment.size = position;
+            return segment;
+        }
+
+        /**
+         * @return The dead letter, or null at the end of the segment or at a damaged record.
+         */
+        private DeadLetter readRecord (DataInputStream dataInputStream) throws IOException {
+            try {
+                int length = dataInputStream.readInt();
+                int checksum = dataInputStream.readInt();
+                if (length <= 0)
+                    return null;
+
+                byte[] body = new byte[length];
+                dataInputStream.readFully(body);
+
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum)
+                    return null;
+
+                recordLength = HEADER_SIZE + length;
+
+                DataInputStream bodyStream = new DataInputStream(new ByteArrayInputStream(body));
+                long sequence = bodyStream.readLong();
+                long time = bodyStream.readLong();
+                int attempts = bodyStream.readInt();
+                String guid = bodyStream.readUTF();
+                String reason = bodyStream.readBoolean() ? bodyStream.readUTF() : null;
+
+                return new DeadLetter(sequence, guid, time, attempts, reason);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+    }
+
+    private File directory;
+    private long segmentSize;
+    private Map<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+
+    /**
+     * Open a store, creating the directory if it does not exist.
+     *
+     * @param directory Where the partitions are.
+     * @param segmentSize How big a segment file gets before a new one is started.
+     */
+    public DeadLetterStore (File directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("could not create " + directory);
+
+        File[] files = directory.listFiles();
+        for (File file : null == files ? new File[0] : files) {
+            if (file.isDirectory()) {
+                Partition partition = new Partition(decode(file.getName()), file);
+                partition.open();
+                partitions.put(partition.subscription, partition);
+            }
+        }
+    }
+
+    public DeadLetterStore (File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * The Subscriptions that have partitions.
+     */
+    public List<String> getSubscriptions () {
+        List<String> subscriptions = new ArrayList<String>(partitions.keySet());
+        Collections.sort(subscriptions);
+        return subscriptions;
+    }
+
+    /**
+     * The number of dead letters for a Subscription.
+     */
+    public long size (String subscription) {
+        Partition partition = partitions.get(subscription);
+        return null == partition ? 0 : partition.size();
+    }
+
+    /**
+     * Add a dead letter to the end of a Subscription's partition.
+     *
+     * @return The sequence number of the dead letter.
+     */
+    public long add (String subscription, String guid, long time, int attempts, String reason) throws IOException {
+        return getOrCreate(subscription).add(guid, time, attempts, reason);
+    }
+
+    /**
+     * Read a page of a Subscription's dead letters, oldest first.
+     *
+     * @param subscription The Subscription.
+     * @param cursor The cursor from the previous page, or null to start at the oldest.
+     * @param limit The most dead letters to return.
+     */
+    public Page read (String subscription, String cursor, int limit) throws IOException {
+        long after = -1;
+        if (null != cursor) {
+            try {
+                after = Long.parseLong(cursor);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid cursor: " + cursor);
+            }
+        }
+
+        Partition partition = partitions.get(subscription);
+        if (null == partition)
+            return new Page(Collections.<DeadLetter>emptyList(), null, false);
+
+        return partition.read(after, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+    }
+
+    /**
+     * Remove a Subscription's dead letters up to and including a sequence number.
+     */
+    public void truncate (String subscription, long through) throws IOException {
+        Partition partition = partitions.get(subscription);
+        if (null != partition)
+            partition.truncate(through);
+    }
+
+    /**
+     * Give a Subscription's dead letters back for delivery, oldest first, at a limited rate.
+     * Each dead letter the handler takes is removed from the queue.  If the handler throws an
+     * exception, the replay stops and {@link Replay#getException()} has it; the dead letter it
+     * was given stays in the queue.
+     *
+     * @param subscription The Subscription.
+     * @param handler What to give the dead letters to.
+     * @param perSecond The most dead letters to give back per second.
+     * @param executor Where to run the replay.
+     * @return The running replay.
+     */
+    public Replay replay (String subscription, ReplayHandler handler, int perSecond, ScheduledExecutorService executor) {
+        //
+        // ten ticks a second keeps the rate smooth without waking up for every dead letter;
+        // a rate below ten a second replays one on some ticks and none on others
+        //
+        final Replay replay = new Replay(subscription, handler, Math.max(1, perSecond));
+        long period = 1000 / TICKS_PER_SECOND;
+
+        replay.future = executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                replay.tick();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        return replay;
+    }
+
+    public void close () throws IOException {
+        for (Partition partition : partitions.values()) {
+            partition.close();
+        }
+    }
+
+    private Partition getOrCreate (String subscription) throws IOException {
+        Partition partition = partitions.get(subscription);
+        if (null != partition)
+            return partition;
+
+        synchronized (partitions) {
+            partition = partitions.get(subscription);
+            if (null == partition) {
+                File partitionDirectory = new File(directory, encode(subscription));
+                if (!partitionDirectory.isDirectory() && !partitionDirectory.mkdirs())
+                    throw new IOException("could not create " + partitionDirectory);
+
+                partition = new Partition(subscription, partitionDirectory);
+                partition.open();
+                partitions.put(subscription, partition);
+            }
+        }
+
+        return partition;
+    }
+
+    private static String encode (String subscription) {
+        try {
+            return URLEncoder.encode(subscription, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode (String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.objects.CreateEventResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reject {@link Event}s whose idempotency keys have already been seen.
+ *
+ * <p>
+ *     A key is remembered for at least one window and at most two.  The detector keeps a
+ *     scalable Bloom filter for the current window and one for the previous window; when a
+ *     window ends, the previous filter is dropped and the current one takes its place.  A
+ *     scalable filter is a list of {@link BloomFilter}s: when the newest is full, another one
+ *     twice the size, with half the false positive rate, is added, so the filter never has to
+ *     know in advance how many keys a window will see.
+ * </p>
+ *
+ * <p>
+ *     The filters only say whether a key might have been seen.  The exact answer, and the guid
+ *     of the original Event, come from a {@link KeyStore}.  A new key, which is the common
+ *     case, is written to the store without being looked up; only the keys that the filters
+ *     think they have seen, retries and the occasional false positive, are looked up.
+ * </p>
+ *
+ * <p>
+ *     Keys are scoped by Topic, so two Topics can use the same key.  Events without an
+ *     idempotency key are always accepted.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class DuplicateDetector {
+    public static final long DEFAULT_WINDOW_MILLIS = 10 * 60 * 1000;
+    public static final int DEFAULT_INITIAL_CAPACITY = 10000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+    /**
+     * Where the detector keeps the keys it has seen.
+     */
+    public interface KeyStore {
+        /**
+         * @return The guid recorded for a key, or null if there is none.
+         */
+        public String get (String key);
+
+        public void put (String key, String guid, long time);
+
+        /**
+         * Forget the keys recorded before a time.
+         */
+        public void removeOlderThan (long time);
+    }
+
+    /**
+     * A {@link KeyStore} that keeps the keys in memory.
+     */
+    public static class MemoryKeyStore implements KeyStore {
+        private static class Record {
+            private String guid;
+            private long time;
+
+            public Record (String guid, long time) {
+                this.guid = guid;
+                this.time = time;
+            }
+        }
+
+        private Map<String, Record> records = new LinkedHashMap<String, Record>();
+
+        public synchronized String get (String key) {
+            Record record = records.get(key);
+            return null == record ? null : record.guid;
+        }
+
+        public synchronized void put (String key, String guid, long time) {
+            records.remove(key);
+            records.put(key, new Record(guid, time));
+        }
+
+        /**
+         * Keys are kept in the order they were put, so this stops at the first key that is new
+         * enough.
+         */
+        public synchronized void removeOlderThan (long time) {
+            Iterator<Record> iterator = records.values().iterator();
+            while (iterator.hasNext() && iterator.next().time < time) {
+                iterator.remove();
+            }
+        }
+
+        public synchronized int size () {
+            return records.size();
+        }
+    }
+
+    private static class ScalableBloomFilter {
+        private int initialCapacity;
+        private double falsePositiveRate;
+        private List<BloomFilter> filters = new ArrayList<BloomFilter>();
+        private int capacity;
+
+        public ScalableBloomFilter (int initialCapacity, double falsePositiveRate) {
+            this.initialCapacity = initialCapacity;
+            this.falsePositiveRate = falsePositiveRate;
+        }
+
+        public boolean mightContain (String key) {
+            for (int i = filters.size() - 1; i >= 0; i--) {
+                if (filters.get(i).mightContain(key))
+                    return true;
+            }
+
+            return false;
+        }
+
+        public void add (String key) {
+            if (filters.isEmpty() || filters.get(filters.size() - 1).getCount() >= capacity) {
+                //
+                // the rates go r/2, r/4, r/8 ... so the rate of the whole list stays under r
+                //
+                capacity = filters.isEmpty() ? initialCapacity : capacity * 2;
+                double rate = falsePositiveRate / 2 / (1L << Math.min(filters.size(), 30));
+                filters.add(new BloomFilter(capacity, rate));
+            }
+
+            filters.get(filters.size() - 1).add(key);
+        }
+    }
+
+    private long windowMillis;
+    private int initialCapacity;
+    private double falsePositiveRate;
+    private KeyStore keyStore;
+
+    private long windowStart;
+    private ScalableBloomFilter current;
+    private ScalableBloomFilter previous;
+
+    private long filtered;
+    private long lookups;
+    private long duplicates;
+
+    /**
+     * Create a detector.
+     *
+     * @param windowMillis How long a key is remembered, at least.
+     * @param initialCapacity How many keys the first filter of a window is sized for.
+     * @param falsePositiveRate The rate at which new keys are looked up in the store anyway.
+     * @param keyStore The exact record of keys.
+     * @param now The current time.
+     */
+    public DuplicateDetector (long windowMillis, int initialCapacity, double falsePositiveRate, KeyStore keyStore,
+                              long now) {
+        this.windowMillis = Math.max(1, windowMillis);
+        this.initialCapacity = Math.max(1, initialCapacity);
+        this.falsePositiveRate = falsePositiveRate;
+        this.keyStore = keyStore;
+
+        this.windowStart = now;
+        this.current = newFilter();
+        this.previous = newFilter();
+    }
+
+    public DuplicateDetector () {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_INITIAL_CAPACITY, DEFAULT_FALSE_POSITIVE_RATE, new MemoryKeyStore(),
+                System.currentTimeMillis());
+    }
+
+    public KeyStore getKeyStore() {
+        return keyStore;
+    }
+
+    /**
+     * The number of new keys that were recorded without a lookup.
+     */
+    public synchronized long getFiltered() {
+        return filtered;
+    }
+
+    /**
+     * The number of keys that were looked up in the store.
+     */
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Decide whether to accept an Event, and remember its key if it is accepted.
+     *
+     * @param event The Event.
+     * @param now The current time.
+     * @return A result of {@link Results#Success} with the guid of the Event, or
+     * {@link Results#Duplicate} with the guid of the Event that was accepted with the same key.
+     */
+    public synchronized CreateEventResultObject admit (Event event, long now) {
+        CreateEventResultObject result = new CreateEventResultObject();
+        result.setResult(Results.Success);
+        result.setGuid(event.getGuid());
+
+        if (null == event.getIdempotencyKey())
+            return result;
+
+        rotate(now);
+
+        String key = event.getTopicName() + '\u0000' + event.getIdempotencyKey();
+
+        if (current.mightContain(key) || previous.mightContain(key)) {
+            lookups++;
+
+            String guid = keyStore.get(key);
+            if (null != guid) {
+                duplicates++;
+                result.setResult(Results.Duplicate);
+                result.setGuid(guid);
+                return result;
+            }
+        } else {
+            filtered++;
+        }
+
+        current.add(key);
+        keyStore.put(key, event.getGuid(), now);
+
+        return result;
+    }
+
+    private void rotate (long now) {
+        if (now < windowStart + windowMillis)
+            return;
+
+        if (now < windowStart + 2 * windowMillis) {
+            previous = current;
+            windowStart += windowMillis;
+        } else {
+            previous = newFilter();
+            windowStart = now;
+        }
+
+        current = newFilter();
+
+        //
+        // the store only has to remember what the filters do
+        //
+        keyStore.removeOlderThan(windowStart - windowMillis);
+    }
+
+    private ScalableBloomFilter newFilter () {
+        return new ScalableBloomFilter(initialCapacity, falsePositiveRate);
+    }
+}
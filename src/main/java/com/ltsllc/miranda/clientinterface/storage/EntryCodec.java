@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.DirectoryEntry;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A way to write a {@link DirectoryEntry} in a binary form and read it back.
+ *
+ * @param <E> The type of entry.
+ */
+public interface EntryCodec<E extends DirectoryEntry> {
+    public void write (DataOutput dataOutput, E entry) throws IOException;
+
+    public E read (DataInput dataInput) throws IOException;
+}
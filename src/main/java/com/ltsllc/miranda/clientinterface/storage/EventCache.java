@@ -0,0 +1,717 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of {@link Event}s that stays within a byte budget.
+ *
+ * <p>
+ *     The cache uses a W-TinyLFU policy.  New Events go into a small LRU window.  When the
+ *     window is full, its least recently used Event competes with the least recently used
+ *     Event of the main area, and whichever has been used more often, according to a
+ *     {@link FrequencySketch}, stays.  The main area is split into a probation segment and a
+ *     protected segment; an Event that is read while on probation is promoted.  This keeps
+ *     Events that are read repeatedly, like Events being retried, in memory during bursts of
+ *     new Events that are read once.
+ * </p>
+ *
+ * <p>
+ *     An Event for which {@link Event#canBeEvicted()} is false is never evicted.  Such an
+ *     Event is taken out of the segments and pinned, so finding a victim never has to walk
+ *     past it; when its last pending delivery is removed, a delivery completion listener puts
+ *     it back on probation.  Pinned Events count against the main area, and if every Event in
+ *     the cache is pinned, the cache goes over its budget rather than evict one of them.
+ * </p>
+ *
+ * <p>
+ *     If the cache has a spill directory, evicted Events are written there, and a miss in
+ *     memory is answered from the directory before it is reported as a miss.  Victims are
+ *     chosen while holding the cache's lock, but they are written after it is released.
+ *     Until an Event has been written it stays in a map of pending spills, which
+ *     {@link #get(String)} checks before going to the directory.  The files for a guid are
+ *     only touched while holding one of a small set of spill locks, chosen by guid, so an
+ *     Event that is put, removed or read back while it is being written never sees a stale
+ *     file.
+ * </p>
+ */
+public class EventCache {
+    /**
+     * A rough count of the bytes an Event uses apart from its content.
+     */
+    public static final long ENTRY_OVERHEAD = 128;
+
+    public static final double WINDOW_FRACTION = 0.01;
+    public static final double PROTECTED_FRACTION = 0.8;
+
+    public static final String SPILL_SUFFIX = ".event";
+
+    private static final Pattern SAFE_GUID = Pattern.compile("[A-Za-z0-9_\\-]+");
+    private static final int SPILL_LOCKS = 64;
+
+    private enum Segments {
+        Window,
+        Probation,
+        Protected,
+        Pinned
+    }
+
+    private static class Node {
+        private Event event;
+        private long weight;
+        private Segments segment;
+        private Runnable completionListener;
+
+        public Node (Event event, long weight) {
+            this.event = event;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A snapshot of the cache's counters.
+     */
+    public static class Statistics {
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long spills;
+        private long spillHits;
+        private long spillFailures;
+        private long bytes;
+        private int entries;
+        private int pinned;
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getSpills() {
+            return spills;
+        }
+
+        public long getSpillHits() {
+            return spillHits;
+        }
+
+        public long getSpillFailures() {
+            return spillFailures;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * The number of Events that are in memory because they have pending deliveries.
+         */
+        public int getPinned() {
+            return pinned;
+        }
+
+        public double getHitRate () {
+            long total = hits + misses;
+            return 0 == total ? 0.0 : ((double) hits) / total;
+        }
+    }
+
+    private long maxBytes;
+    private long windowMax;
+    private long mainMax;
+    private long protectedMax;
+
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long pinnedBytes;
+
+    private Map<String, Node> nodes = new HashMap<String, Node>();
+    private LinkedHashMap<String, Node> window = new LinkedHashMap<String, Node>();
+    private LinkedHashMap<String, Node> probation = new LinkedHashMap<String, Node>();
+    private LinkedHashMap<String, Node> protectedSegment = new LinkedHashMap<String, Node>();
+    private Map<String, Node> pinned = new HashMap<String, Node>();
+
+    private Map<String, Event> pendingSpills = new HashMap<String, Event>();
+    private List<Event> evicted = new ArrayList<Event>();
+    private Object[] spillLocks = new Object[SPILL_LOCKS];
+
+    private FrequencySketch frequencySketch;
+    private File spillDirectory;
+
+    private Statistics statistics = new Statistics();
+
+    /**
+     * Create a cache.
+     *
+     * @param maxBytes The byte budget.
+     * @param spillDirectory Where to write evicted Events.  If this is null, evicted Events
+     *                       are discarded.
+     */
+    public EventCache (long maxBytes, File spillDirectory) {
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, (long) (maxBytes * WINDOW_FRACTION));
+        this.mainMax = maxBytes - windowMax;
+        this.protectedMax = (long) (mainMax * PROTECTED_FRACTION);
+
+        long expectedEntries = maxBytes / (ENTRY_OVERHEAD + 1024);
+        this.frequencySketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, Math.max(16, expectedEntries)));
+
+        this.spillDirectory = spillDirectory;
+
+        for (int i = 0; i < spillLocks.length; i++) {
+            spillLocks[i] = new Object();
+        }
+    }
+
+    public EventCache (long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * The heap bytes an Event uses.  Content that has been moved into a {@link PayloadArena}
+     * does not count against the budget.
+     */
+    public static long weigh (Event event) {
+        if (event.isContentOffHeap())
+            return ENTRY_OVERHEAD;
+
+        return ENTRY_OVERHEAD + Math.max(0, event.getContentLength());
+    }
+
+    public synchronized int size () {
+        return nodes.size();
+    }
+
+    public synchronized long getBytes () {
+        return windowBytes + probationBytes + protectedBytes + pinnedBytes;
+    }
+
+    public synchronized Statistics getStatistics () {
+        Statistics snapshot = new Statistics();
+        snapshot.hits = statistics.hits;
+        snapshot.misses = statistics.misses;
+        snapshot.evictions = statistics.evictions;
+        snapshot.spills = statistics.spills;
+        snapshot.spillHits = statistics.spillHits;
+        snapshot.spillFailures = statistics.spillFailures;
+        snapshot.bytes = getBytes();
+        snapshot.entries = nodes.size();
+        snapshot.pinned = pinned.size();
+
+        return snapshot;
+    }
+
+    /**
+     * Is an Event in memory?
+     */
+    public synchronized boolean contains (String guid) {
+        return nodes.containsKey(guid);
+    }
+
+    /**
+     * Add an Event to the cache, replacing any Event with the same guid.  Any spill file for
+     * the guid is deleted, so a later miss cannot bring back the Event that was replaced.
+     */
+    public void put (Event event) {
+        String guid = event.getGuid();
+        List<Event> victims;
+
+        synchronized (spillLock(guid)) {
+            synchronized (this) {
+                Node existing = nodes.get(guid);
+                if (null != existing)
+                    unlink(existing);
+
+                pendingSpills.remove(guid);
+                frequencySketch.increment(guid);
+                admit(event);
+                victims = takeEvicted();
+            }
+
+            deleteSpill(guid);
+        }
+
+        spill(victims);
+    }
+
+    /**
+     * Get an Event.
+     *
+     * @param guid The guid of the Event.
+     * @return The Event, or null if it is neither in memory nor in the spill directory.
+     */
+    public Event get (String guid) {
+        Event event;
+        List<Event> victims;
+
+        synchronized (this) {
+            frequencySketch.increment(guid);
+            event = findInMemory(guid);
+            victims = takeEvicted();
+        }
+
+        if (null == event) {
+            synchronized (spillLock(guid)) {
+                Event spilled = readSpill(guid);
+
+                synchronized (this) {
+                    event = findInMemory(guid);
+
+                    if (null == event && null != spilled) {
+                        statistics.spillHits++;
+                        admit(spilled);
+                        event = spilled;
+                    } else if (null == event) {
+                        statistics.misses++;
+                    }
+
+                    victims = takeEvicted();
+                }
+            }
+        }
+
+        spill(victims);
+        return event;
+    }
+
+    /**
+     * Remove an Event from memory and from the spill directory.
+     *
+     * @return The Event that was in memory, or null if it was not in memory.
+     */
+    public Event remove (String guid) {
+        Event event = null;
+
+        synchronized (spillLock(guid)) {
+            synchronized (this) {
+                Node node = nodes.remove(guid);
+                if (null != node) {
+                    unlink(node);
+                    event = node.event;
+                }
+
+                Event pending = pendingSpills.remove(guid);
+                if (null == event)
+                    event = pending;
+            }
+
+            deleteSpill(guid);
+        }
+
+        return event;
+    }
+
+    /**
+     * Look for an Event in memory, including Events that are waiting to be spilled.  An Event
+     * waiting to be spilled is put back into the cache.
+     */
+    private Event findInMemory (String guid) {
+        Node node = nodes.get(guid);
+        if (null != node) {
+            statistics.hits++;
+            touch(node);
+            return node.event;
+        }
+
+        Event event = pendingSpills.remove(guid);
+        if (null != event) {
+            statistics.hits++;
+            admit(event);
+        }
+
+        return event;
+    }
+
+    /**
+     * Add a new node for an Event that is not in the cache.
+     */
+    private void admit (Event event) {
+        Node node = new Node(event, weigh(event));
+        nodes.put(event.getGuid(), node);
+
+        if (!pin(node))
+            link(node, Segments.Window);
+
+        evictFromWindow();
+    }
+
+    private void touch (Node node) {
+        switch (node.segment) {
+            case Window:
+            case Protected:
+                Segments segment = node.segment;
+                unlink(node);
+                link(node, segment);
+                break;
+
+            case Probation:
+                unlink(node);
+                link(node, Segments.Protected);
+                demoteFromProtected();
+                break;
+
+            case Pinned:
+                break;
+        }
+    }
+
+    private void link (Node node, Segments segment) {
+        node.segment = segment;
+        String guid = node.event.getGuid();
+
+        switch (segment) {
+            case Window:
+                window.put(guid, node);
+                windowBytes += node.weight;
+                break;
+
+            case Probation:
+                probation.put(guid, node);
+                probationBytes += node.weight;
+                break;
+
+            case Protected:
+                protectedSegment.put(guid, node);
+                protectedBytes += node.weight;
+                break;
+
+            case Pinned:
+                pinned.put(guid, node);
+                pinnedBytes += node.weight;
+                break;
+        }
+    }
+
+    /**
+     * Take a node out of its segment.  The node remembers which segment it was in.  A node
+     * that leaves the pinned set stops listening for the completion of its deliveries.
+     */
+    private void unlink (Node node) {
+        String guid = node.event.getGuid();
+
+        switch (node.segment) {
+            case Window:
+                window.remove(guid);
+                windowBytes -= node.weight;
+                break;
+
+            case Probation:
+                probation.remove(guid);
+                probationBytes -= node.weight;
+                break;
+
+            case Protected:
+                protectedSegment.remove(guid);
+                protectedBytes -= node.weight;
+                break;
+
+            case Pinned:
+                pinned.remove(guid);
+                pinnedBytes -= node.weight;
+                node.event.removeDeliveryCompletionListener(node.completionListener);
+                node.completionListener = null;
+                break;
+        }
+    }
+
+    /**
+     * Pin a node that is not in a segment if its Event has pending deliveries.
+     *
+     * <p>
+     *     The listener is added before pending deliveries are checked a second time, so a
+     *     delivery that completes in between is not missed: either the check sees it, or the
+     *     listener is called and unpins the node once this thread releases the lock.
+     * </p>
+     *
+     * @return true if the node was pinned.
+     */
+    private boolean pin (final Node node) {
+        if (node.event.canBeEvicted())
+            return false;
+
+        Runnable listener = new Runnable() {
+            public void run() {
+                unpin(node);
+            }
+        };
+
+        node.event.addDeliveryCompletionListener(listener);
+
+        if (node.event.canBeEvicted()) {
+            node.event.removeDeliveryCompletionListener(listener);
+            return false;
+        }
+
+        node.completionListener = listener;
+        link(node, Segments.Pinned);
+        return true;
+    }
+
+    /**
+     * Put a pinned node back on probation once its Event has no pending deliveries.
+     */
+    private void unpin (Node node) {
+        List<Event> victims;
+
+        synchronized (this) {
+            if (Segments.Pinned != node.segment || nodes.get(node.event.getGuid()) != node)
+                return;
+
+            unlink(node);
+            link(node, Segments.Probation);
+            evictFromMain();
+            victims = takeEvicted();
+        }
+
+        spill(victims);
+    }
+
+    private void demoteFromProtected () {
+        Iterator<Node> iterator = protectedSegment.values().iterator();
+
+        while (protectedBytes > protectedMax && iterator.hasNext()) {
+            Node node = iterator.next();
+            iterator.remove();
+            protectedBytes -= node.weight;
+            link(node, Segments.Probation);
+        }
+    }
+
+    /**
+     * The least recently used node of a segment that can be evicted.  Nodes at the head of the
+     * segment with pending deliveries are pinned on the way, so each one is passed over once.
+     */
+    private Node findVictim (LinkedHashMap<String, Node> segment) {
+        while (!segment.isEmpty()) {
+            Node node = segment.values().iterator().next();
+            if (node.event.canBeEvicted())
+                return node;
+
+            Segments from = node.segment;
+            unlink(node);
+            if (!pin(node))
+                link(node, from);
+        }
+
+        return null;
+    }
+
+    private long getMainBytes () {
+        return probationBytes + protectedBytes + pinnedBytes;
+    }
+
+    private void evictFromWindow () {
+        while (windowBytes > windowMax) {
+            Node candidate = findVictim(window);
+            if (null == candidate)
+                return;
+
+            unlink(candidate);
+
+            if (getMainBytes() + candidate.weight <= mainMax) {
+                link(candidate, Segments.Probation);
+                continue;
+            }
+
+            Node victim = findVictim(probation);
+            if (null == victim)
+                victim = findVictim(protectedSegment);
+
+            String candidateGuid = candidate.event.getGuid();
+
+            if (null == victim
+                    || frequencySketch.frequency(candidateGuid) <= frequencySketch.frequency(victim.event.getGuid())) {
+                evict(candidate);
+            } else {
+                unlink(victim);
+                evict(victim);
+                link(candidate, Segments.Probation);
+                evictFromMain();
+            }
+        }
+    }
+
+    private void evictFromMain () {
+        while (getMainBytes() > mainMax) {
+            Node victim = findVictim(probation);
+            if (null == victim)
+                victim = findVictim(protectedSegment);
+
+            if (null == victim)
+                return;
+
+            unlink(victim);
+            evict(victim);
+        }
+    }
+
+    /**
+     * Drop a node that has already been unlinked.  If there is a spill directory, its Event
+     * waits in the pending spills until the caller writes it with {@link #spill(List)}.
+     */
+    private void evict (Node node) {
+        String guid = node.event.getGuid();
+
+        nodes.remove(guid);
+        statistics.evictions++;
+
+        if (null != spillFile(guid)) {
+            pendingSpills.put(guid, node.event);
+            evicted.add(node.event);
+        }
+    }
+
+    /**
+     * The Events evicted since the last call.  Call this before releasing the cache's lock.
+     */
+    private List<Event> takeEvicted () {
+        if (evicted.isEmpty())
+            return Collections.emptyList();
+
+        List<Event> list = evicted;
+        evicted = new ArrayList<Event>();
+        return list;
+    }
+
+    /**
+     * Write evicted Events.  Call this without holding the cache's lock or a spill lock.
+     */
+    private void spill (List<Event> events) {
+        for (Event event : events) {
+            writeSpill(event);
+        }
+    }
+
+    private Object spillLock (String guid) {
+        int hash = null == guid ? 0 : guid.hashCode();
+        return spillLocks[(hash ^ (hash >>> 16)) & (SPILL_LOCKS - 1)];
+    }
+
+    private File spillFile (String guid) {
+        if (null == spillDirectory || null == guid || !SAFE_GUID.matcher(guid).matches())
+            return null;
+
+        return new File(spillDirectory, guid + SPILL_SUFFIX);
+    }
+
+    private void deleteSpill (String guid) {
+        File file = spillFile(guid);
+        if (null != file)
+            file.delete();
+    }
+
+    /**
+     * Write an Event that is waiting to be spilled.  The Event is written to a temporary file
+     * that then replaces any older file for the guid.  If the Event was put back, replaced or
+     * removed before this thread got the spill lock, nothing is written.
+     */
+    private void writeSpill (Event event) {
+        String guid = event.getGuid();
+        File file = spillFile(guid);
+
+        synchronized (spillLock(guid)) {
+            synchronized (this) {
+                if (pendingSpills.get(guid) != event)
+                    return;
+            }
+
+            boolean written = writeFile(file, event);
+
+            synchronized (this) {
+                if (pendingSpills.get(guid) == event)
+                    pendingSpills.remove(guid);
+
+                if (written)
+                    statistics.spills++;
+                else
+                    statistics.spillFailures++;
+            }
+        }
+    }
+
+    private boolean writeFile (File file, Event event) {
+        File temporary = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream dataOutputStream =
+                     new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            EventSerializer.write(dataOutputStream, event);
+        } catch (IOException e) {
+            temporary.delete();
+            return false;
+        }
+
+        if (!temporary.renameTo(file)) {
+            if (!file.delete() || !temporary.renameTo(file)) {
+                temporary.delete();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Event readSpill (String guid) {
+        File file = spillFile(guid);
+        if (null == file || !file.exists())
+            return null;
+
+        try (DataInputStream dataInputStream =
+                     new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return EventSerializer.read(dataInputStream);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.TimingWheel;
+import com.ltsllc.miranda.clientinterface.basicclasses.Topic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remove {@link Event}s when the retention limits of their {@link Topic}s say they should go.
+ *
+ * <p>
+ *     Events with an expiration time wait in a {@link TimingWheel}, so finding the Events that
+ *     have expired takes time in proportion to the number that have, not to the number being
+ *     kept.  For Topics with a maxBytes limit, the expirer also keeps the Events of the Topic in
+ *     the order they were scheduled, and removes the oldest when the Topic goes over.
+ * </p>
+ *
+ * <p>
+ *     An Event that still has pending deliveries is never removed, whatever the limits say.
+ *     Such an Event is pinned: it leaves the wheel and the Topic's order, keeps counting
+ *     against the Topic's bytes, and waits for a delivery completion listener rather than
+ *     being checked again and again.  When its last pending delivery is removed, the next
+ *     call to {@link #expire(long)} removes it if it has expired, or else puts it ahead of the
+ *     Topic's other Events, since it is older than they are.  A Topic over its byte limit
+ *     passes over pinned Events and removes the next oldest instead, so it can stay over its
+ *     limit only when every Event it has is pinned.  {@link #getPinned()} is how many Events
+ *     are pinned.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class EventExpirer {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+
+    /**
+     * Told about each Event that the expirer removes.
+     */
+    public interface Listener {
+        public void expired (Event event);
+    }
+
+    private static class Entry {
+        private Event event;
+        private TopicState topicState;
+        private long weight;
+        private TimingWheel.Timer<Entry> timer;
+        private boolean counted;
+        private boolean removed;
+        private boolean expired;
+        private boolean released;
+        private Runnable completionListener;
+
+        public Entry (Event event, TopicState topicState, long weight) {
+            this.event = event;
+            this.topicState = topicState;
+            this.weight = weight;
+        }
+
+        public boolean isPinned () {
+            return null != completionListener;
+        }
+    }
+
+    private static class TopicState {
+        private Topic topic;
+
+        /**
+         * The entries counted against maxBytes, oldest first, by guid.  An entry leaves as soon
+         * as it is forgotten or pinned, so removed entries do not pile up behind an older one.
+         */
+        private LinkedHashMap<String, Entry> arrivals = new LinkedHashMap<String, Entry>();
+
+        /**
+         * Entries that were pinned and are counted against maxBytes again.  They are older than
+         * the arrivals, so they go first.
+         */
+        private LinkedHashMap<String, Entry> unpinned = new LinkedHashMap<String, Entry>();
+        private long bytes;
+
+        public TopicState (Topic topic) {
+            this.topic = topic;
+        }
+    }
+
+    private TimingWheel<Entry> wheel;
+    private Listener listener;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    private Map<String, TopicState> topics = new HashMap<String, TopicState>();
+    private List<Entry> releasedEntries = new ArrayList<Entry>();
+    private int pinned;
+    private ScheduledFuture<?> future;
+
+    /**
+     * Create an expirer.
+     *
+     * @param tickMillis How precisely expiration times are honored.
+     * @param now The current time.
+     */
+    public EventExpirer (long tickMillis, long now) {
+        this.wheel = new TimingWheel<Entry>(tickMillis, now);
+    }
+
+    public EventExpirer () {
+        this(DEFAULT_TICK_MILLIS, System.currentTimeMillis());
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The number of Events being kept track of.
+     */
+    public synchronized int size () {
+        return entries.size();
+    }
+
+    /**
+     * The number of Events that are being kept past their limits because they have pending
+     * deliveries.
+     */
+    public synchronized int getPinned () {
+        return pinned;
+    }
+
+    /**
+     * The bytes of content kept for a Topic.
+     */
+    public synchronized long getBytes (String topicName) {
+        TopicState topicState = topics.get(topicName);
+        return null == topicState ? 0 : topicState.bytes;
+    }
+
+    /**
+     * Start keeping track of an Event.
+     *
+     * <p>
+     *     If the Event does not have an expiration time, it is given one from the maxAge of the
+     *     Topic.  An Event that is already being kept track of is replaced.
+     * </p>
+     *
+     * @param event The Event.
+     * @param topic The Topic the Event belongs to.
+     */
+    public synchronized void schedule (Event event, Topic topic) {
+        remove(event.getGuid());
+
+        event.applyRetention(topic);
+
+        TopicState topicState = topics.get(topic.getName());
+        if (null == topicState) {
+            topicState = new TopicState(topic);
+            topics.put(topic.getName(), topicState);
+        } else {
+            topicState.topic = topic;
+        }
+
+        Entry entry = new Entry(event, topicState, Math.max(0, event.getContentLength()));
+        entries.put(event.getGuid(), entry);
+
+        if (event.getExpiresAt() > 0)
+            entry.timer = wheel.add(entry, event.getExpiresAt());
+
+        if (topic.getMaxBytes() > 0) {
+            topicState.arrivals.put(event.getGuid(), entry);
+            topicState.bytes += entry.weight;
+            entry.counted = true;
+        }
+    }
+
+    /**
+     * Stop keeping track of an Event, for example because it was deleted.
+     *
+     * @return true if the Event was being kept track of.
+     */
+    public synchronized boolean remove (String guid) {
+        Entry entry = entries.remove(guid);
+        if (null == entry)
+            return false;
+
+        forget(entry);
+        return true;
+    }
+
+    /**
+     * Remove the Events that have expired or that put their Topics over their byte limits.
+     *
+     * @param now The current time.
+     * @return The Events that were removed.
+     */
+    public List<Event> expire (long now) {
+        List<Event> removed = new ArrayList<Event>();
+        Listener listener;
+
+        synchronized (this) {
+            unpinReleased(removed);
+
+            for (Entry entry : wheel.advance(now)) {
+                if (entry.removed)
+                    continue;
+
+                entry.timer = null;
+                entry.expired = true;
+
+                if (entry.event.canBeEvicted())
+                    expire(entry, removed);
+                else
+                    pin(entry);
+            }
+
+            for (TopicState topicState : topics.values()) {
+                enforceMaxBytes(topicState, removed);
+            }
+
+            listener = this.listener;
+        }
+
+        if (null != listener) {
+            for (Event event : removed) {
+                listener.expired(event);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Call {@link #expire(long)} once per tick on an executor.
+     */
+    public synchronized void start (ScheduledExecutorService executor) {
+        if (null != future)
+            return;
+
+        long tickMillis = wheel.getTickMillis();
+        future = executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                expire(System.currentTimeMillis());
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop () {
+        if (null != future) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    private void enforceMaxBytes (TopicState topicState, List<Event> removed) {
+        long maxBytes = topicState.topic.getMaxBytes();
+
+        while (maxBytes > 0 && topicState.bytes > maxBytes) {
+            LinkedHashMap<String, Entry> oldest = topicState.unpinned.isEmpty()
+                    ? topicState.arrivals
+                    : topicState.unpinned;
+
+            Iterator<Entry> iterator = oldest.values().iterator();
+            if (!iterator.hasNext())
+                return;
+
+            Entry entry = iterator.next();
+
+            if (entry.event.canBeEvicted())
+                expire(entry, removed);
+            else
+                pin(entry);
+        }
+    }
+
+    private void expire (Entry entry, List<Event> removed) {
+        entries.remove(entry.event.getGuid());
+        forget(entry);
+        removed.add(entry.event);
+    }
+
+    /**
+     * Take an entry whose Event has pending deliveries out of the Topic's order until its
+     * deliveries are complete.  The entry still counts against the Topic's bytes, and if it has
+     * not expired yet, its timer still runs.
+     *
+     * <p>
+     *     The listener is added before pending deliveries are checked a second time, so a
+     *     delivery that completes in between is not missed.
+     * </p>
+     */
+    private void pin (final Entry entry) {
+        if (entry.isPinned())
+            return;
+
+        if (entry.counted) {
+            entry.topicState.arrivals.remove(entry.event.getGuid());
+            entry.topicState.unpinned.remove(entry.event.getGuid());
+        }
+
+        entry.completionListener = new Runnable() {
+            public void run() {
+                release(entry);
+            }
+        };
+
+        pinned++;
+        entry.event.addDeliveryCompletionListener(entry.completionListener);
+
+        if (entry.event.canBeEvicted())
+            release(entry);
+    }
+
+    /**
+     * Called when the deliveries of a pinned Event are complete.  The entry is dealt with by
+     * the next call to {@link #expire(long)}, so the delivering thread does not do it.
+     */
+    private synchronized void release (Entry entry) {
+        if (entry.removed || !entry.isPinned() || entry.released)
+            return;
+
+        entry.released = true;
+        releasedEntries.add(entry);
+    }
+
+    private void unpinReleased (List<Event> removed) {
+        if (releasedEntries.isEmpty())
+            return;
+
+        List<Entry> released = releasedEntries;
+        releasedEntries = new ArrayList<Entry>();
+
+        for (Entry entry : released) {
+            entry.released = false;
+            if (entry.removed)
+                continue;
+
+            unpin(entry);
+
+            if (!entry.event.canBeEvicted())
+                pin(entry);
+            else if (entry.expired)
+                expire(entry, removed);
+            else if (entry.counted)
+                entry.topicState.unpinned.put(entry.event.getGuid(), entry);
+        }
+    }
+
+    private void unpin (Entry entry) {
+        if (!entry.isPinned())
+            return;
+
+        entry.event.removeDeliveryCompletionListener(entry.completionListener);
+        entry.completionListener = null;
+        pinned--;
+    }
+
+    private void forget (Entry entry) {
+        if (entry.removed)
+            return;
+
+        entry.removed = true;
+
+        if (null != entry.timer)
+            wheel.cancel(entry.timer);
+
+        unpin(entry);
+
+        if (entry.counted) {
+            entry.topicState.arrivals.remove(entry.event.getGuid());
+            entry.topicState.unpinned.remove(entry.event.getGuid());
+            entry.topicState.bytes -= entry.weight;
+            entry.counted = false;
+        }
+    }
+}
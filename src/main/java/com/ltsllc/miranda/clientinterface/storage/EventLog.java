@@ -0,0 +1,614 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.DirectoryEntry;
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An append only log of {@link Event}s, stored in memory mapped segment files.
+ *
+ * <p>
+ *     Every write is an append to the end of the current segment, so writing an Event costs
+ *     a copy into memory instead of creating a file.  When a record does not fit in the
+ *     current segment, a new segment is started.  The log keeps an index from each Event's
+ *     key (see {@link DirectoryEntry#getKey()}) to the segment and offset of its latest
+ *     record, packed into a single long and kept in a {@link PositionIndex}, so the index does
+ *     not box a Long for every Event.
+ * </p>
+ *
+ * <p>
+ *     A record is: the length of the body, a CRC32 of the type and body, a type byte, and the
+ *     body.  The body of an Event record is the form written by {@link EventSerializer}; the
+ *     body of a delete record is the key.  A length of zero marks the end of a segment.  When
+ *     the log is opened, the segments are read from the beginning to rebuild the index, and
+ *     reading a segment stops at the first record whose CRC does not match, which is where a
+ *     write was cut off by a crash.
+ * </p>
+ *
+ * <p>
+ *     If the log syncs on append, {@link #append(Event)} does not return until the record is
+ *     on disk.  The syncs are group committed: while one thread forces the segment to disk the
+ *     others wait, and a single force usually covers all of them.  Otherwise the caller
+ *     decides when to call {@link #sync()}.
+ * </p>
+ *
+ * <p>
+ *     A caller that has to do something in log order with each Event it appends, such as
+ *     queueing it, can pass an {@link Appended} to {@link #append(Event, Appended)}.  It is
+ *     called while the log holds its write lock, before the sync, so it needs no lock of its
+ *     own that would be held across the sync.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class EventLog {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public static final String SEGMENT_SUFFIX = ".log";
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d+)\\.log");
+
+    private static final int HEADER_SIZE = 9;
+
+    private static final byte TYPE_EVENT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    /**
+     * Something that is shown every Event in the log, in order.
+     */
+    public interface Visitor {
+        /**
+         * @param event The Event.
+         * @param position The position of the Event's record.  See {@link EventLog#segmentOf(long)}.
+         * @return true to keep going, false to stop.
+         */
+        boolean visit (Event event, long position) throws IOException;
+    }
+
+    /**
+     * Told the position of an appended Event while the log still holds its write lock, so the
+     * calls come in log order.  It should be quick, and it must not call the log.
+     */
+    public interface Appended {
+        void appended (Event event, long position);
+    }
+
+    private static class Segment {
+        private int id;
+        private File file;
+        private MappedByteBuffer buffer;
+        private int size;
+        private volatile int end;
+
+        /**
+         * When the segment was last appended to.  Writes through the mapping do not reliably
+         * change the modification time of the file, so this is kept here instead.
+         */
+        private volatile long lastAppend;
+
+        public Segment (int id, File file, MappedByteBuffer buffer, int size) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.size = size;
+        }
+    }
+
+    private File directory;
+    private int segmentSize;
+    private boolean syncOnAppend;
+
+    private NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    private PositionIndex index = new PositionIndex();
+    private Segment current;
+
+    private volatile long writtenPosition;
+    private long durablePosition;
+    private final Object syncLock = new Object();
+
+    /**
+     * Open a log, creating it if the directory is empty.
+     *
+     * @param directory The directory that holds the segment files.
+     * @param segmentSize The size of a segment file.  A record that is bigger than this gets a
+     *                    segment of its own.
+     * @param syncOnAppend true if {@link #append(Event)} should wait for the record to be on disk.
+     * @throws IOException If a segment could not be read.
+     */
+    public EventLog (File directory, int segmentSize, boolean syncOnAppend) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncOnAppend = syncOnAppend;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("could not create " + directory);
+
+        open();
+    }
+
+    public EventLog (File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentCount () {
+        return segments.size();
+    }
+
+    public int size () {
+        return index.size();
+    }
+
+    public boolean contains (String key) {
+        return index.contains(key);
+    }
+
+    /**
+     * The position of the start of the oldest segment.  Every record before it has been
+     * deleted.
+     */
+    public long getFirstPosition () {
+        return positionOf(segments.firstKey(), 0);
+    }
+
+    public static int segmentOf (long position) {
+        return (int) (position >>> 32);
+    }
+
+    public static int offsetOf (long position) {
+        return (int) position;
+    }
+
+    private static long positionOf (int segment, int offset) {
+        return (((long) segment) << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Add an Event to the end of the log.
+     *
+     * @return The position of the Event's record.
+     */
+    public long append (Event event) throws IOException {
+        return append(event, null);
+    }
+
+    /**
+     * Add an Event to the end of the log, and tell something its position before the log
+     * lets the next record be written.  If the log syncs on append, the sync happens after
+     * that.
+     *
+     * @param appended What to tell, or null.
+     * @return The position of the Event's record.
+     */
+    public long append (Event event, Appended appended) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+        EventSerializer.write(dataOutputStream, event);
+        dataOutputStream.flush();
+
+        long position = write(TYPE_EVENT, byteArrayOutputStream.toByteArray(), event.getKey(), event, appended);
+
+        if (syncOnAppend)
+            sync(position);
+
+        return position;
+    }
+
+    /**
+     * Remove an Event from the log.  The space is only reclaimed when the segments that hold
+     * the Event's records are deleted by {@link #deleteSegments(long, long)}.
+     *
+     * @return true if the log had the Event.
+     */
+    public boolean remove (String key) throws IOException {
+        if (!index.contains(key))
+            return false;
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+        dataOutputStream.writeUTF(key);
+        dataOutputStream.flush();
+
+        long position = write(TYPE_DELETE, byteArrayOutputStream.toByteArray(), key, null, null);
+
+        if (syncOnAppend)
+            sync(position);
+
+        return true;
+    }
+
+    /**
+     * Get the latest version of an Event.
+     *
+     * @return The Event, or null if the log does not have it.
+     */
+    public Event get (String key) throws IOException {
+        long position = index.get(key);
+        if (PositionIndex.NONE == position)
+            return null;
+
+        Segment segment = segments.get(segmentOf(position));
+        if (null == segment)
+            return null;
+
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offsetOf(position));
+
+        return readEvent(view);
+    }
+
+    /**
+     * Is there a record at a position?
+     *
+     * <p>
+     *     This is true if the position is in a segment that has not been deleted and a complete
+     *     record with a good CRC starts there, which makes the position a safe place to start a
+     *     {@link #scan(long, long, Visitor)}.  A position that came from outside the node, such
+     *     as a cursor, should be checked with this first.
+     * </p>
+     */
+    public boolean isRecord (long position) {
+        Segment segment = segments.get(segmentOf(position));
+        if (null == segment)
+            return false;
+
+        return null != readBody(segment.buffer.duplicate(), offsetOf(position), segment.end);
+    }
+
+    /**
+     * Make sure everything that has been appended is on disk.
+     */
+    public void sync () throws IOException {
+        sync(writtenPosition);
+    }
+
+    /**
+     * Wait until the log is on disk up to a position.  Threads that call this at the same time
+     * share a single force of the segment.
+     */
+    private void sync (long position) throws IOException {
+        synchronized (syncLock) {
+            if (durablePosition >= position)
+                return;
+
+            long target = writtenPosition;
+            Segment segment = segments.get(segmentOf(target));
+            if (null != segment)
+                segment.buffer.force();
+
+            durablePosition = target;
+        }
+    }
+
+    /**
+     * Go through every Event record in the log, oldest first.  Records for Events that were
+     * later updated or removed are included.
+     */
+    public void replay (Visitor visitor) throws IOException {
+        scan(0, Long.MAX_VALUE, false, visitor);
+    }
+
+    /**
+     * Go through the Event records between two positions, in order, reading the segments
+     * sequentially.  Only the latest record of each Event that has not been removed is visited.
+     *
+     * @param from The position to start at.
+     * @param to The position of the last record that may be visited.
+     * @param visitor What to show the Events to.
+     */
+    public void scan (long from, long to, Visitor visitor) throws IOException {
+        scan(from, to, true, visitor);
+    }
+
+    private void scan (long from, long to, boolean currentOnly, Visitor visitor) throws IOException {
+        for (Segment segment : segments.subMap(segmentOf(from), true, segmentOf(to), true).values()) {
+            ByteBuffer view = segment.buffer.duplicate();
+            int offset = segment.id == segmentOf(from) ? offsetOf(from) : 0;
+            int last = segment.id == segmentOf(to) ? offsetOf(to) : Integer.MAX_VALUE;
+            int end = segment.end;
+
+            while (offset < end && offset <= last) {
+                view.position(offset);
+                int length = view.getInt(offset);
+                byte type = view.get(offset + 8);
+                long position = positionOf(segment.id, offset);
+
+                if (TYPE_EVENT == type) {
+                    Event event = readEvent(view);
+                    if (!currentOnly || index.get(event.getKey()) == position) {
+                        if (!visitor.visit(event, position))
+                            return;
+                    }
+                }
+
+                offset += HEADER_SIZE + length;
+            }
+        }
+    }
+
+    /**
+     * Delete old segments.  The current segment is never deleted.
+     *
+     * <p>
+     *     The age of a segment is the time of its last append.  For a segment written before the
+     *     log was opened, that is taken to be the later of the file's modification time and
+     *     the latest time of creation of the Events in it.
+     * </p>
+     *
+     * <p>
+     *     As with the limits of a {@link com.ltsllc.miranda.clientinterface.basicclasses.Topic},
+     *     a limit of 0 or less means there is no limit.
+     * </p>
+     *
+     * @param maxBytes Delete the oldest segments until the log is no bigger than this.
+     * @param maxAgeMillis Delete segments that were last written longer ago than this.
+     * @return The number of segments that were deleted.
+     */
+    public synchronized int deleteSegments (long maxBytes, long maxAgeMillis) throws IOException {
+        if (maxBytes <= 0 && maxAgeMillis <= 0)
+            return 0;
+
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        List<Segment> deleted = new ArrayList<Segment>();
+
+        for (Segment segment : segments.values()) {
+            if (segment == current)
+                break;
+
+            boolean tooBig = maxBytes > 0 && total > maxBytes;
+            boolean tooOld = maxAgeMillis > 0 && segment.lastAppend < oldest;
+
+            if (!tooBig && !tooOld)
+                break;
+
+            total -= segment.size;
+            deleted.add(segment);
+        }
+
+        if (deleted.isEmpty())
+            return 0;
+
+        //
+        // segments are deleted oldest first, so everything before the first segment that is
+        // left goes, and one pass over the index finds it
+        //
+        for (Segment segment : deleted) {
+            segments.remove(segment.id);
+        }
+
+        index.removeBefore(positionOf(segments.firstKey(), 0));
+
+        for (Segment segment : deleted) {
+            if (!segment.file.delete())
+                throw new IOException("could not delete " + segment.file);
+        }
+
+        return deleted.size();
+    }
+
+    /**
+     * Sync the log and stop using it.
+     */
+    public synchronized void close () throws IOException {
+        sync();
+        segments.clear();
+        index.clear();
+        current = null;
+    }
+
+    private synchronized long write (byte type, byte[] body, String key, Event event, Appended appended)
+            throws IOException {
+        if (null == current)
+            throw new IllegalStateException("log is closed");
+
+        int recordSize = HEADER_SIZE + body.length;
+
+        if (current.end + recordSize + 4 > current.size)
+            roll(recordSize + 4);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(type);
+        crc32.update(body);
+
+        int offset = current.end;
+        ByteBuffer view = current.buffer.duplicate();
+        view.position(offset);
+        view.putInt(body.length);
+        view.putInt((int) crc32.getValue());
+        view.put(type);
+        view.put(body);
+        view.putInt(0);
+
+        current.end = offset + recordSize;
+        current.lastAppend = System.currentTimeMillis();
+
+        long position = positionOf(current.id, offset);
+        if (TYPE_EVENT == type)
+            index.put(key, position);
+        else
+            index.remove(key);
+
+        writtenPosition = position;
+
+        if (null != appended)
+            appended.appended(event, position);
+
+        return position;
+    }
+
+    /**
+     * Start a new segment.  The old segment is forced to disk first, so a sync only ever needs
+     * to force the current segment.
+     */
+    private void roll (int minimumSize) throws IOException {
+        synchronized (syncLock) {
+            current.buffer.force();
+            durablePosition = writtenPosition;
+        }
+
+        current = createSegment(current.id + 1, Math.max(segmentSize, minimumSize));
+    }
+
+    private Segment createSegment (int id, int size) throws IOException {
+        File file = new File(directory, String.format("%010d", id) + SEGMENT_SUFFIX);
+        Segment segment = mapSegment(id, file, size);
+        segments.put(id, segment);
+
+        return segment;
+    }
+
+    private Segment mapSegment (int id, File file, int size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() < size)
+                randomAccessFile.setLength(size);
+
+            int mappedSize = (int) randomAccessFile.length();
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+
+            Segment segment = new Segment(id, file, buffer, mappedSize);
+            segment.lastAppend = file.lastModified();
+
+            return segment;
+        }
+    }
+
+    private void open () throws IOException {
+        File[] files = directory.listFiles();
+
+        if (null != files) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    int id = Integer.parseInt(matcher.group(1));
+                    segments.put(id, mapSegment(id, file, 0));
+                }
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            recover(segment);
+        }
+
+        if (segments.isEmpty())
+            current = createSegment(1, segmentSize);
+        else
+            current = segments.lastEntry().getValue();
+
+        writtenPosition = positionOf(current.id, current.end);
+        durablePosition = writtenPosition;
+    }
+
+    /**
+     * Find the end of a segment and add its records to the index.
+     */
+    private void recover (Segment segment) throws IOException {
+        ByteBuffer view = segment.buffer.duplicate();
+        int offset = 0;
+
+        while (true) {
+            byte[] body = readBody(view, offset, segment.size);
+            if (null == body)
+                break;
+
+            int length = body.length;
+            byte type = view.get(offset + 8);
+
+            DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(body));
+            if (TYPE_EVENT == type) {
+                Event event = EventSerializer.read(dataInputStream);
+                index.put(event.getKey(), positionOf(segment.id, offset));
+                segment.lastAppend = Math.max(segment.lastAppend, event.getTimeOfCreation());
+            } else if (TYPE_DELETE == type) {
+                index.remove(dataInputStream.readUTF());
+            }
+
+            offset += HEADER_SIZE + length;
+        }
+
+        segment.end = offset;
+    }
+
+    /**
+     * Read the body of the record at an offset, checking its length and CRC.
+     *
+     * @param limit Where the record must end by.
+     * @return The body, or null if there is no complete, undamaged record at the offset.
+     */
+    private static byte[] readBody (ByteBuffer view, int offset, int limit) {
+        if (offset < 0 || offset + HEADER_SIZE > limit)
+            return null;
+
+        int length = view.getInt(offset);
+        if (length <= 0 || length > limit - offset - HEADER_SIZE)
+            return null;
+
+        int crc = view.getInt(offset + 4);
+        byte type = view.get(offset + 8);
+        byte[] body = new byte[length];
+        view.position(offset + HEADER_SIZE);
+        view.get(body);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(type);
+        crc32.update(body);
+
+        return (int) crc32.getValue() == crc ? body : null;
+    }
+
+    /**
+     * Read the Event record at the position of a buffer.
+     */
+    private static Event readEvent (ByteBuffer view) throws IOException {
+        int length = view.getInt();
+        view.getInt();
+        view.get();
+
+        byte[] body = new byte[length];
+        view.get(body);
+
+        return EventSerializer.read(new DataInputStream(new ByteArrayInputStream(body)));
+    }
+}
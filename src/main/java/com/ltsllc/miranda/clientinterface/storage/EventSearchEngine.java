@@ -0,0 +1,377 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.KeyedStore;
+import com.ltsllc.miranda.clientinterface.requests.EventSearchRequest;
+import com.ltsllc.miranda.clientinterface.results.EventSearchResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Answer {@link EventSearchRequest}s against a {@link KeyedStore} of Events.
+ *
+ * <p>
+ *     The store keeps its guids in a sorted set, which is the index the engine searches.  If
+ *     the expression starts with literal characters, only the guids with that prefix are
+ *     looked at, and if the rest of the expression is ".*", they are not even matched.  Other
+ *     expressions are matched against every guid, in chunks that run in parallel on the
+ *     engine's executor.
+ * </p>
+ *
+ * <p>
+ *     A search stops when it has a page of results or when it has looked at the maximum number
+ *     of guids for one request, whichever comes first, and returns a cursor for the next page.
+ *     This keeps one search from tying up the node, however expensive its expression is.
+ * </p>
+ *
+ * <p>
+ *     Compiled expressions are kept in a small LRU cache, since operators tend to repeat the
+ *     same search while paging through results.
+ * </p>
+ */
+public class EventSearchEngine {
+    public static final int DEFAULT_MAX_SCANNED = 100000;
+    public static final int DEFAULT_CACHE_SIZE = 256;
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int CHUNK_SIZE = 1024;
+
+    private static final String META_CHARACTERS = ".[]{}()*+?^$|\\";
+
+    /**
+     * A compiled expression and what the engine learned about it.
+     */
+    public static class CompiledSearch {
+        private Pattern pattern;
+        private String prefix;
+        private boolean prefixOnly;
+
+        public CompiledSearch (Pattern pattern, String prefix, boolean prefixOnly) {
+            this.pattern = pattern;
+            this.prefix = prefix;
+            this.prefixOnly = prefixOnly;
+        }
+
+        public Pattern getPattern() {
+            return pattern;
+        }
+
+        /**
+         * The literal characters that every match starts with.  This may be empty.
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * Does every guid that starts with the prefix match?
+         */
+        public boolean isPrefixOnly() {
+            return prefixOnly;
+        }
+
+        public boolean matches (String guid) {
+            return prefixOnly || pattern.matcher(guid).matches();
+        }
+    }
+
+    private KeyedStore<String, Event> store;
+    private ExecutorService executor;
+    private int parallelism;
+    private int maxScanned;
+    private Map<String, CompiledSearch> cache;
+
+    /**
+     * Create an engine.
+     *
+     * @param store The Events to search.
+     * @param executor Where to run the chunks of a full scan, or null to run them on the
+     *                 calling thread.
+     * @param parallelism How many chunks to run at once.
+     * @param maxScanned The most guids one request may look at.
+     */
+    public EventSearchEngine (KeyedStore<String, Event> store, ExecutorService executor, int parallelism,
+                              int maxScanned) {
+        this.store = store;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.maxScanned = maxScanned;
+
+        this.cache = new LinkedHashMap<String, CompiledSearch>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledSearch> eldest) {
+                return size() > DEFAULT_CACHE_SIZE;
+            }
+        };
+    }
+
+    public EventSearchEngine (KeyedStore<String, Event> store) {
+        this(store, null, 1, DEFAULT_MAX_SCANNED);
+    }
+
+    /**
+     * Compile an expression, or get it from the cache.
+     *
+     * @throws PatternSyntaxException If the expression is not valid.
+     */
+    public CompiledSearch compile (String regularExpression) {
+        synchronized (cache) {
+            CompiledSearch compiledSearch = cache.get(regularExpression);
+            if (null != compiledSearch)
+                return compiledSearch;
+        }
+
+        Pattern pattern = Pattern.compile(regularExpression);
+
+        StringBuilder prefix = new StringBuilder();
+        int rest = literalPrefix(regularExpression, prefix);
+        String remainder = regularExpression.substring(rest);
+        boolean prefixOnly = remainder.equals(".*") || remainder.equals(".*$");
+
+        CompiledSearch compiledSearch = new CompiledSearch(pattern, prefix.toString(), prefixOnly);
+
+        synchronized (cache) {
+            cache.put(regularExpression, compiledSearch);
+        }
+
+        return compiledSearch;
+    }
+
+    public EventSearchResultObject search (EventSearchRequest request) {
+        EventSearchResultObject result = new EventSearchResultObject();
+
+        if (null == request.getGuidRegularExpression()) {
+            result.setResult(Results.InvalidRequest);
+            result.setAdditionalInfo("missing guidRegularExpression");
+            return result;
+        }
+
+        CompiledSearch compiledSearch;
+        try {
+            compiledSearch = compile(request.getGuidRegularExpression());
+        } catch (PatternSyntaxException e) {
+            result.setResult(Results.InvalidRequest);
+            result.setAdditionalInfo(e.getMessage());
+            return result;
+        }
+
+        int limit = Math.max(1, Math.min(request.getMaxResults(), MAX_PAGE_SIZE));
+        Iterator<String> iterator = candidates(compiledSearch.getPrefix(), request.getCursor()).iterator();
+        boolean useExecutor = null != executor && !compiledSearch.isPrefixOnly();
+
+        List<Event> events = new ArrayList<Event>();
+        String lastScanned = null;
+        int scanned = 0;
+
+        try {
+            while (iterator.hasNext() && events.size() < limit && scanned < maxScanned) {
+                List<List<String>> chunks = new ArrayList<List<String>>();
+
+                for (int i = 0; i < (useExecutor ? parallelism : 1) && iterator.hasNext() && scanned < maxScanned; i++) {
+                    List<String> chunk = new ArrayList<String>();
+
+                    while (iterator.hasNext() && chunk.size() < CHUNK_SIZE && scanned < maxScanned) {
+                        chunk.add(iterator.next());
+                        scanned++;
+                    }
+
+                    chunks.add(chunk);
+                }
+
+                List<List<Event>> matches = match(compiledSearch, chunks, useExecutor);
+
+                for (int i = 0; i < chunks.size() && events.size() < limit; i++) {
+                    for (Event event : matches.get(i)) {
+                        if (events.size() >= limit)
+                            break;
+
+                        events.add(event);
+                    }
+
+                    List<String> chunk = chunks.get(i);
+                    lastScanned = chunk.get(chunk.size() - 1);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.setResult(Results.Exception);
+            result.setException(e);
+            return result;
+        } catch (ExecutionException e) {
+            result.setResult(Results.Exception);
+            result.setException(e.getCause());
+            return result;
+        }
+
+        if (events.size() >= limit) {
+            result.setMore(true);
+            result.setCursor(events.get(events.size() - 1).getGuid());
+        } else if (iterator.hasNext()) {
+            result.setMore(true);
+            result.setCursor(lastScanned);
+        }
+
+        result.setEvents(events);
+        result.setResult(Results.Success);
+
+        return result;
+    }
+
+    /**
+     * The guids that could match: those after the cursor that start with the prefix.
+     */
+    private NavigableSet<String> candidates (String prefix, String cursor) {
+        NavigableSet<String> keys = store.keys();
+
+        String lower = prefix;
+        boolean lowerInclusive = true;
+        if (null != cursor && cursor.compareTo(prefix) >= 0) {
+            lower = cursor;
+            lowerInclusive = false;
+        }
+
+        if (prefix.isEmpty())
+            return keys.tailSet(lower, lowerInclusive);
+
+        String upper = prefix + Character.MAX_VALUE;
+        if (lower.compareTo(upper) > 0)
+            lower = upper;
+
+        return keys.subSet(lower, lowerInclusive, upper, true);
+    }
+
+    private List<List<Event>> match (final CompiledSearch compiledSearch, List<List<String>> chunks,
+                                     boolean useExecutor)
+            throws InterruptedException, ExecutionException {
+        List<List<Event>> matches = new ArrayList<List<Event>>(chunks.size());
+
+        if (!useExecutor || chunks.size() == 1) {
+            for (List<String> chunk : chunks) {
+                matches.add(match(compiledSearch, chunk));
+            }
+
+            return matches;
+        }
+
+        List<Callable<List<Event>>> callables = new ArrayList<Callable<List<Event>>>(chunks.size());
+        for (final List<String> chunk : chunks) {
+            callables.add(new Callable<List<Event>>() {
+                public List<Event> call() {
+                    return match(compiledSearch, chunk);
+                }
+            });
+        }
+
+        for (Future<List<Event>> future : executor.invokeAll(callables)) {
+            matches.add(future.get());
+        }
+
+        return matches;
+    }
+
+    private List<Event> match (CompiledSearch compiledSearch, List<String> chunk) {
+        List<Event> events = new ArrayList<Event>();
+
+        for (String guid : chunk) {
+            if (compiledSearch.matches(guid)) {
+                Event event = store.get(guid);
+                if (null != event)
+                    events.add(event);
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * Find the literal characters at the start of an expression.
+     *
+     * <p>
+     *     A character followed by *, ? or { is not part of the prefix, since it may not appear
+     *     in a match.  An expression with | anywhere has no prefix, since the prefix would only
+     *     apply to one alternative.
+     * </p>
+     *
+     * @param regularExpression The expression.
+     * @param prefix Where to put the literal characters.
+     * @return The index of the first character of the expression after the prefix.
+     */
+    public static int literalPrefix (String regularExpression, StringBuilder prefix) {
+        if (hasAlternation(regularExpression))
+            return 0;
+
+        int index = regularExpression.startsWith("^") ? 1 : 0;
+
+        while (index < regularExpression.length()) {
+            char c = regularExpression.charAt(index);
+            char literal;
+            int next;
+
+            if (c == '\\') {
+                if (index + 1 >= regularExpression.length() || Character.isLetterOrDigit(regularExpression.charAt(index + 1)))
+                    break;
+
+                literal = regularExpression.charAt(index + 1);
+                next = index + 2;
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = index + 1;
+            }
+
+            char following = next < regularExpression.length() ? regularExpression.charAt(next) : 0;
+            if (following == '*' || following == '?' || following == '{')
+                break;
+
+            prefix.append(literal);
+            index = next;
+
+            if (following == '+')
+                break;
+        }
+
+        return index;
+    }
+
+    private static boolean hasAlternation (String regularExpression) {
+        for (int i = 0; i < regularExpression.length(); i++) {
+            char c = regularExpression.charAt(i);
+
+            if (c == '\\')
+                i++;
+            else if (c == '|')
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compact binary form for {@link Event}s.
+ *
+ * <p>
+ *     JSON stores an Event's content as an array of numbers, which is several times the size of
+ *     the content.  This form stores the content as raw bytes, and is what the storage classes
+ *     use when they write Events to disk.
+ * </p>
+ *
+ * <p>
+ *     The form is: a version byte, the guid, user name and topic name as nullable strings, the
+ *     time of creation, the method's ordinal, the partition key as a nullable string, the
+ *     expiration time, the idempotency key as a nullable string, the sequence, and the content
+ *     as a length followed by the bytes.  A length of -1 means the content is null.  Earlier
+ *     versions of the form are still read: version 1 had no partition key, version 2 had no
+ *     expiration time, version 3 had no idempotency key and version 4 had no sequence.
+ * </p>
+ */
+public class EventSerializer {
+    public static final int VERSION = 5;
+
+    /**
+     * This form as an {@link EntryCodec}, for the storage classes that work with any kind of entry.
+     */
+    public static final EntryCodec<Event> CODEC = new EntryCodec<Event>() {
+        public void write (DataOutput dataOutput, Event event) throws IOException {
+            EventSerializer.write(dataOutput, event);
+        }
+
+        public Event read (DataInput dataInput) throws IOException {
+            return EventSerializer.read(dataInput);
+        }
+    };
+
+    public static void write (DataOutput dataOutput, Event event) throws IOException {
+        dataOutput.writeByte(VERSION);
+        writeString(dataOutput, event.getGuid());
+        writeString(dataOutput, event.getUserName());
+        writeString(dataOutput, event.getTopicName());
+        dataOutput.writeLong(event.getTimeOfCreation());
+
+        Event.Methods method = event.getMethod();
+        dataOutput.writeByte(null == method ? -1 : method.ordinal());
+        writeString(dataOutput, event.getPartitionKey());
+        dataOutput.writeLong(event.getExpiresAt());
+        writeString(dataOutput, event.getIdempotencyKey());
+        dataOutput.writeLong(event.getSequence());
+
+        byte[] content = event.getContent();
+        if (null == content) {
+            dataOutput.writeInt(-1);
+        } else {
+            dataOutput.writeInt(content.length);
+            dataOutput.write(content);
+        }
+    }
+
+    public static Event read (DataInput dataInput) throws IOException {
+        int version = dataInput.readByte();
+        if (version < 1 || version > VERSION)
+            throw new IOException("unknown event format: " + version);
+
+        String guid = readString(dataInput);
+        String userName = readString(dataInput);
+        String topicName = readString(dataInput);
+        long timeOfCreation = dataInput.readLong();
+
+        int ordinal = dataInput.readByte();
+        Event.Methods method = ordinal < 0 ? null : Event.Methods.values()[ordinal];
+        String partitionKey = version >= 2 ? readString(dataInput) : null;
+        long expiresAt = version >= 3 ? dataInput.readLong() : 0;
+        String idempotencyKey = version >= 4 ? readString(dataInput) : null;
+        long sequence = version >= 5 ? dataInput.readLong() : 0;
+
+        int length = dataInput.readInt();
+        byte[] content = null;
+        if (length >= 0) {
+            content = new byte[length];
+            dataInput.readFully(content);
+        }
+
+        Event event = new Event(userName, guid, topicName, timeOfCreation, method, content);
+        event.setPartitionKey(partitionKey);
+        event.setExpiresAt(expiresAt);
+        event.setIdempotencyKey(idempotencyKey);
+        event.setSequence(sequence);
+
+        return event;
+    }
+
+    public static void writeString (DataOutput dataOutput, String string) throws IOException {
+        dataOutput.writeBoolean(null != string);
+
+        if (null != string)
+            dataOutput.writeUTF(string);
+    }
+
+    public static String readString (DataInput dataInput) throws IOException {
+        if (dataInput.readBoolean())
+            return dataInput.readUTF();
+        else
+            return null;
+    }
+}
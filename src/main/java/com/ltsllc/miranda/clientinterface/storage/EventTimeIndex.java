@@ -0,0 +1,328 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.requests.EventRangeRequest;
+import com.ltsllc.miranda.clientinterface.results.EventRangeResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A sparse index, by Topic and time, of the Events in an {@link EventLog}.
+ *
+ * <p>
+ *     For each Topic, the index groups the Topic's Events into blocks of about
+ *     {@link #DEFAULT_BLOCK_SIZE} Events.  A block records the positions of its first and last
+ *     Events in the log and the earliest and latest times of creation in it, and nothing about
+ *     the individual Events.  A range query skips the blocks whose times do not overlap the
+ *     range and reads the others sequentially from the log, so the cost of replaying an hour
+ *     of a Topic is reading that hour, not the whole log.
+ * </p>
+ *
+ * <p>
+ *     Since a block only has the positions of its first and last Events, reading it also
+ *     reads the records of other Topics that were written in between; those are skipped.
+ *     Events do not have to be added in time order: a late Event only widens the time span of
+ *     its block.
+ * </p>
+ *
+ * <p>
+ *     Old segments of the log should be deleted through {@link #deleteSegments(long, long)},
+ *     which also drops the blocks that were in them; otherwise call {@link #prune(long)}
+ *     after deleting them.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class EventTimeIndex {
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+    public static final int MAX_LIMIT = 1000;
+
+    private static class Block {
+        private long first;
+        private long last;
+        private long minTime;
+        private long maxTime;
+        private int count;
+
+        public Block (long position, long time) {
+            this.first = position;
+            this.last = position;
+            this.minTime = time;
+            this.maxTime = time;
+        }
+
+        public Block (Block other) {
+            this.first = other.first;
+            this.last = other.last;
+            this.minTime = other.minTime;
+            this.maxTime = other.maxTime;
+            this.count = other.count;
+        }
+
+        public void add (long position, long time) {
+            first = Math.min(first, position);
+            last = Math.max(last, position);
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            count++;
+        }
+
+        public boolean overlaps (long from, long to) {
+            return minTime <= to && maxTime >= from;
+        }
+    }
+
+    private static final Comparator<Block> BY_POSITION = new Comparator<Block>() {
+        public int compare(Block block1, Block block2) {
+            return Long.compare(block1.first, block2.first);
+        }
+    };
+
+    private EventLog log;
+    private int blockSize;
+    private Map<String, List<Block>> topics = new ConcurrentHashMap<String, List<Block>>();
+
+    /**
+     * Create an index of a log, reading the log to build it.
+     */
+    public EventTimeIndex (EventLog log, int blockSize) throws IOException {
+        this.log = log;
+        this.blockSize = blockSize;
+
+        log.scan(0, Long.MAX_VALUE, new EventLog.Visitor() {
+            public boolean visit(Event event, long position) {
+                index(event, position);
+                return true;
+            }
+        });
+    }
+
+    public EventTimeIndex (EventLog log) throws IOException {
+        this(log, DEFAULT_BLOCK_SIZE);
+    }
+
+    public EventLog getLog() {
+        return log;
+    }
+
+    /**
+     * Add an Event to the log and to the index.
+     *
+     * @return The position of the Event in the log.
+     */
+    public long append (Event event) throws IOException {
+        long position = log.append(event);
+        index(event, position);
+
+        return position;
+    }
+
+    /**
+     * Add an Event that is already in the log to the index.
+     */
+    public void index (Event event, long position) {
+        String topicName = event.getTopicName();
+        if (null == topicName)
+            return;
+
+        while (true) {
+            List<Block> blocks = topics.get(topicName);
+            if (null == blocks) {
+                topics.putIfAbsent(topicName, new ArrayList<Block>());
+                blocks = topics.get(topicName);
+            }
+
+            synchronized (blocks) {
+                //
+                // prune may have dropped the list while this thread was waiting for it
+                //
+                if (topics.get(topicName) != blocks)
+                    continue;
+
+                Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+
+                if (null == block || block.count >= blockSize) {
+                    block = new Block(position, event.getTimeOfCreation());
+                    blocks.add(block);
+                }
+
+                block.add(position, event.getTimeOfCreation());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delete old segments of the log and drop the blocks that were in them.
+     *
+     * @see EventLog#deleteSegments(long, long)
+     */
+    public int deleteSegments (long maxBytes, long maxAgeMillis) throws IOException {
+        int deleted = log.deleteSegments(maxBytes, maxAgeMillis);
+        if (deleted > 0)
+            prune(log.getFirstPosition());
+
+        return deleted;
+    }
+
+    /**
+     * Drop the blocks for records that are no longer in the log.  A block that is partly
+     * before the position is kept, starting at the position.  A Topic left with no blocks is
+     * dropped.
+     *
+     * @param firstLivePosition The position of the oldest record still in the log.
+     * @return The number of blocks that were dropped.
+     */
+    public int prune (long firstLivePosition) {
+        int dropped = 0;
+
+        for (Map.Entry<String, List<Block>> entry : topics.entrySet()) {
+            List<Block> blocks = entry.getValue();
+
+            synchronized (blocks) {
+                Iterator<Block> iterator = blocks.iterator();
+                while (iterator.hasNext()) {
+                    Block block = iterator.next();
+
+                    if (block.last < firstLivePosition) {
+                        iterator.remove();
+                        dropped++;
+                    } else if (block.first < firstLivePosition) {
+                        block.first = firstLivePosition;
+                    }
+                }
+
+                if (blocks.isEmpty())
+                    topics.remove(entry.getKey(), blocks);
+            }
+        }
+
+        return dropped;
+    }
+
+    /**
+     * The number of blocks for a Topic.
+     */
+    public int getBlockCount (String topicName) {
+        List<Block> blocks = topics.get(topicName);
+        if (null == blocks)
+            return 0;
+
+        synchronized (blocks) {
+            return blocks.size();
+        }
+    }
+
+    public EventRangeResultObject query (EventRangeRequest request) throws IOException {
+        EventRangeResultObject result = new EventRangeResultObject();
+
+        long after = -1;
+        if (null != request.getCursor()) {
+            try {
+                after = Long.parseLong(request.getCursor());
+            } catch (NumberFormatException e) {
+                after = -1;
+            }
+
+            //
+            // the cursor is used as the place to start reading the log, so it has to be the
+            // position of a record that is still there
+            //
+            if (after < 0 || !log.isRecord(after)) {
+                result.setResult(Results.InvalidCursor);
+                result.setAdditionalInfo("invalid cursor: " + request.getCursor());
+                return result;
+            }
+        }
+
+        final String topicName = request.getTopicName();
+        final long from = request.getFrom();
+        final long to = request.getTo();
+        final int limit = Math.max(1, Math.min(request.getLimit(), MAX_LIMIT));
+        final List<Event> events = new ArrayList<Event>();
+        final long[] lastReturned = { after };
+
+        for (Block block : snapshot(topicName)) {
+            if (!block.overlaps(from, to) || block.last <= after)
+                continue;
+
+            //
+            // after is always the position of a record, so it is a safe place to start reading
+            // when it is in this block
+            //
+            final long skipThrough = after;
+            log.scan(Math.max(block.first, after), block.last, new EventLog.Visitor() {
+                public boolean visit(Event event, long position) {
+                    if (position > skipThrough && topicName.equals(event.getTopicName())
+                            && event.getTimeOfCreation() >= from && event.getTimeOfCreation() <= to) {
+                        events.add(event);
+                        lastReturned[0] = position;
+                    }
+
+                    return events.size() < limit;
+                }
+            });
+
+            if (events.size() >= limit) {
+                result.setMore(true);
+                result.setCursor(Long.toString(lastReturned[0]));
+                break;
+            }
+
+            //
+            // blocks can overlap when Events are indexed out of order; don't read anything twice
+            //
+            after = Math.max(after, block.last);
+        }
+
+        result.setEvents(events);
+        result.setResult(Results.Success);
+
+        return result;
+    }
+
+    /**
+     * Copies of a Topic's blocks, in log order.
+     */
+    private List<Block> snapshot (String topicName) {
+        List<Block> blocks = null == topicName ? null : topics.get(topicName);
+        if (null == blocks)
+            return Collections.emptyList();
+
+        List<Block> copies = new ArrayList<Block>();
+        synchronized (blocks) {
+            for (Block block : blocks) {
+                copies.add(new Block(block));
+            }
+        }
+
+        Collections.sort(copies, BY_POSITION);
+        return copies;
+    }
+}
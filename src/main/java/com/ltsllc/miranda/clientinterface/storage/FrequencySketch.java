@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+/**
+ * An approximate count of how often keys have been seen recently.
+ *
+ * <p>
+ *     This is a count-min sketch with four rows of small counters.  A count never goes above
+ *     {@link #MAX_COUNT}, and after a number of increments equal to ten times the width of the
+ *     sketch, all the counts are halved so that old popularity fades.
+ * </p>
+ *
+ * <p>
+ *     This class is not thread safe.
+ * </p>
+ */
+public class FrequencySketch {
+    public static final int DEPTH = 4;
+    public static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = { 0x97cb3127, 0x0fdd4a5b, 0x7f4a7c15, 0x5bd1e995 };
+
+    private byte[][] counters;
+    private int mask;
+    private int additions;
+    private int sampleSize;
+
+    /**
+     * Create a sketch.
+     *
+     * @param expectedKeys About how many different keys are expected.  The width of the sketch
+     *                     is this value rounded up to a power of 2.
+     */
+    public FrequencySketch (int expectedKeys) {
+        int width = 16;
+        while (width < expectedKeys && width < (1 << 24))
+            width = width << 1;
+
+        this.counters = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    public void increment (Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (counters[i][index] < MAX_COUNT) {
+                counters[i][index]++;
+                added = true;
+            }
+        }
+
+        if (added) {
+            additions++;
+            if (additions >= sampleSize)
+                age();
+        }
+    }
+
+    public int frequency (Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Halve every count.
+     */
+    public void age () {
+        for (int i = 0; i < DEPTH; i++) {
+            for (int j = 0; j < counters[i].length; j++) {
+                counters[i][j] = (byte) (counters[i][j] >> 1);
+            }
+        }
+
+        additions = additions / 2;
+    }
+
+    private int indexOf (int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[row];
+        h = h ^ (h >>> 16);
+        return h & mask;
+    }
+
+    private static int spread (int hash) {
+        hash = hash ^ (hash >>> 17);
+        hash = hash * 0xed5ad4bb;
+        return hash ^ (hash >>> 11);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap storage for {@link com.ltsllc.miranda.clientinterface.basicclasses.Event} payloads.
+ *
+ * <p>
+ *     The arena hands out space from large slabs, either direct buffers or, if the arena has a
+ *     directory, files mapped into memory.  Payloads are copied into the current slab one after
+ *     the other; when it is full, a new slab becomes current.  Each slab counts the payloads
+ *     that still use it, and when a slab that is no longer current has none left it is reused
+ *     for later payloads, up to a limit on the number of free slabs that are kept.  A payload
+ *     that is larger than a slab gets a slab of its own, which is dropped when the payload is
+ *     released.
+ * </p>
+ *
+ * <p>
+ *     Keeping payloads here instead of in byte arrays on the heap means a large backlog of
+ *     Events does not fill the old generation, so it does not lengthen garbage collection
+ *     pauses.  Java 8 has no way to unmap a buffer, so the memory of a slab that is dropped is
+ *     only given back when the slab is garbage collected; that is why free slabs are reused.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ */
+public class PayloadArena {
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FREE_SLABS = 4;
+
+    public static final String SLAB_PREFIX = "slab";
+    public static final String SLAB_SUFFIX = ".arena";
+
+    static class Slab {
+        private PayloadArena arena;
+        private ByteBuffer buffer;
+        private File file;
+        private boolean pooled;
+        private int used;
+        private AtomicInteger users = new AtomicInteger();
+
+        public Slab (PayloadArena arena, ByteBuffer buffer, File file, boolean pooled) {
+            this.arena = arena;
+            this.buffer = buffer;
+            this.file = file;
+            this.pooled = pooled;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Give up a payload's use of the slab.
+         */
+        public void release (int length) {
+            arena.bytesAllocated.addAndGet(-length);
+            release();
+        }
+
+        public void release () {
+            if (users.decrementAndGet() == 0)
+                arena.recycle(this);
+        }
+    }
+
+    private int slabSize;
+    private int maxFreeSlabs;
+    private File directory;
+
+    private Slab current;
+    private Deque<Slab> freeSlabs = new ArrayDeque<Slab>();
+    private boolean closed;
+
+    private AtomicLong slabsCreated = new AtomicLong();
+    private AtomicLong bytesAllocated = new AtomicLong();
+
+    /**
+     * Create an arena.
+     *
+     * @param slabSize The size, in bytes, of each slab.
+     * @param maxFreeSlabs The most empty slabs to keep for reuse.
+     * @param directory Where to create the files for mapped slabs, or null to use direct buffers.
+     */
+    public PayloadArena (int slabSize, int maxFreeSlabs, File directory) {
+        if (slabSize < 1)
+            throw new IllegalArgumentException("slabSize must be at least 1");
+
+        this.slabSize = slabSize;
+        this.maxFreeSlabs = maxFreeSlabs;
+        this.directory = directory;
+    }
+
+    public PayloadArena () {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_MAX_FREE_SLABS, null);
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getSlabsCreated () {
+        return slabsCreated.get();
+    }
+
+    public synchronized int getFreeSlabCount () {
+        return freeSlabs.size();
+    }
+
+    /**
+     * The total size of the payloads that have been allocated and not yet released.
+     */
+    public long getBytesAllocated () {
+        return bytesAllocated.get();
+    }
+
+    /**
+     * Copy a payload into the arena.
+     *
+     * @param content The payload.
+     * @return A handle with a reference count of 1 that belongs to the caller.
+     * @throws IOException If the arena uses mapped slabs and a new slab could not be created.
+     */
+    public PayloadHandle allocate (byte[] content) throws IOException {
+        return allocate(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer into the arena.  The position of the buffer is not changed.
+     *
+     * @see #allocate(byte[])
+     */
+    public synchronized PayloadHandle allocate (ByteBuffer content) throws IOException {
+        if (closed)
+            throw new IllegalStateException("arena is closed");
+
+        int length = content.remaining();
+        Slab slab;
+        int offset;
+
+        if (length > slabSize) {
+            slab = createSlab(length, false);
+            offset = 0;
+        } else {
+            if (null == current || current.used + length > slabSize) {
+                if (null != current)
+                    current.release();
+
+                current = takeSlab();
+            }
+
+            slab = current;
+            offset = slab.used;
+        }
+
+        ByteBuffer target = slab.buffer.duplicate();
+        target.position(offset);
+        target.put(content.duplicate());
+
+        slab.used = offset + length;
+        slab.users.incrementAndGet();
+        bytesAllocated.addAndGet(length);
+
+        return new PayloadHandle(slab, offset, length);
+    }
+
+    /**
+     * Stop allocating and drop the free slabs.  Payloads that have already been allocated can
+     * still be read until they are released.
+     */
+    public synchronized void close () {
+        closed = true;
+
+        if (null != current) {
+            Slab slab = current;
+            current = null;
+            slab.release();
+        }
+
+        for (Slab slab : freeSlabs) {
+            drop(slab);
+        }
+
+        freeSlabs.clear();
+    }
+
+    /**
+     * Called when no payload, and not the arena itself, is using a slab anymore.
+     */
+    private synchronized void recycle (Slab slab) {
+        if (slab.pooled && !closed && freeSlabs.size() < maxFreeSlabs) {
+            slab.used = 0;
+            freeSlabs.push(slab);
+        } else {
+            drop(slab);
+        }
+    }
+
+    /**
+     * Get a slab to make current.  The arena holds a reference to the current slab so that it
+     * is not recycled while payloads are still being added to it.
+     */
+    private Slab takeSlab () throws IOException {
+        Slab slab = freeSlabs.poll();
+        if (null == slab)
+            slab = createSlab(slabSize, true);
+
+        slab.users.set(1);
+        return slab;
+    }
+
+    private Slab createSlab (int size, boolean pooled) throws IOException {
+        Slab slab;
+
+        if (null == directory) {
+            slab = new Slab(this, ByteBuffer.allocateDirect(size), null, pooled);
+        } else {
+            File file = File.createTempFile(SLAB_PREFIX, SLAB_SUFFIX, directory);
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(size);
+                ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                slab = new Slab(this, buffer, file, pooled);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+        }
+
+        slabsCreated.incrementAndGet();
+        return slab;
+    }
+
+    private void drop (Slab slab) {
+        if (null != slab.file)
+            slab.file.delete();
+    }
+}
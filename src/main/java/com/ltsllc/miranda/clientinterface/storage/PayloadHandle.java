@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted piece of a {@link PayloadArena}.
+ *
+ * <p>
+ *     A handle starts with a count of 1, which belongs to whoever allocated it.  Anyone else
+ *     who wants to keep the handle calls {@link #retain()}, and everyone calls
+ *     {@link #release()} when they are done.  When the count reaches zero, the space goes back
+ *     to the arena and the handle can no longer be read.
+ * </p>
+ */
+public class PayloadHandle {
+    private PayloadArena.Slab slab;
+    private int offset;
+    private int length;
+    private AtomicInteger references = new AtomicInteger(1);
+
+    PayloadHandle (PayloadArena.Slab slab, int offset, int length) {
+        this.slab = slab;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getReferenceCount () {
+        return references.get();
+    }
+
+    public boolean isReleased () {
+        return references.get() <= 0;
+    }
+
+    public PayloadHandle retain () {
+        if (!tryRetain())
+            throw new IllegalStateException("payload has been released");
+
+        return this;
+    }
+
+    /**
+     * Take a reference, unless the handle has already been released.
+     *
+     * <p>
+     *     This is for readers that found the handle in a shared field and may be racing with
+     *     whoever releases it: once the count has reached zero, the space may already belong to
+     *     another payload, so the handle must not be read.
+     * </p>
+     *
+     * @return true if a reference was taken, and must be given up with {@link #release()}.
+     */
+    public boolean tryRetain () {
+        while (true) {
+            int current = references.get();
+            if (current <= 0)
+                return false;
+
+            if (references.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Give up a reference.
+     *
+     * @return true if this was the last reference and the space went back to the arena.
+     */
+    public boolean release () {
+        int remaining = references.decrementAndGet();
+
+        if (remaining < 0)
+            throw new IllegalStateException("payload has already been released");
+
+        if (0 == remaining) {
+            slab.release(length);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * A read only view of the payload.  The view shares memory with the arena, so it must not
+     * be used after the handle is released.
+     */
+    public ByteBuffer asReadOnlyBuffer () {
+        checkLive();
+
+        ByteBuffer view = slab.getBuffer().duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copy the payload onto the heap.
+     */
+    public byte[] toBytes () {
+        byte[] bytes = new byte[length];
+        asReadOnlyBuffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write the payload to a channel without copying it onto the heap.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeTo (WritableByteChannel channel) throws IOException {
+        ByteBuffer view = asReadOnlyBuffer();
+        int written = 0;
+
+        while (view.hasRemaining()) {
+            written += channel.write(view);
+        }
+
+        return written;
+    }
+
+    private void checkLive () {
+        if (isReleased())
+            throw new IllegalStateException("payload has been released");
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+/**
+ * A map from keys to log positions that keeps the positions as primitive longs.
+ *
+ * <p>
+ *     The table uses open addressing with linear probing, and removal shifts the entries
+ *     that follow back into place, so there are no tombstones.  An entry costs a slot in
+ *     two arrays rather than a map entry and a boxed Long.  The table is kept at most half
+ *     full.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe; every method holds the index's lock, which is never held
+ *     for longer than a lookup or a resize.
+ * </p>
+ */
+class PositionIndex {
+    /**
+     * What {@link #get(String)} returns for a key that is not in the index.  Positions are
+     * never negative.
+     */
+    public static final long NONE = -1;
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private String[] keys;
+    private long[] positions;
+    private int size;
+
+    public PositionIndex () {
+        clear();
+    }
+
+    public synchronized int size () {
+        return size;
+    }
+
+    public synchronized boolean contains (String key) {
+        return keys[find(key)] != null;
+    }
+
+    /**
+     * @return The position of the key, or {@link #NONE}.
+     */
+    public synchronized long get (String key) {
+        int slot = find(key);
+        return null == keys[slot] ? NONE : positions[slot];
+    }
+
+    public synchronized void put (String key, long position) {
+        int slot = find(key);
+        if (null == keys[slot]) {
+            if (2 * (size + 1) > keys.length) {
+                resize(2 * keys.length);
+                slot = find(key);
+            }
+
+            keys[slot] = key;
+            size++;
+        }
+
+        positions[slot] = position;
+    }
+
+    public synchronized boolean remove (String key) {
+        int slot = find(key);
+        if (null == keys[slot])
+            return false;
+
+        removeAt(slot);
+        return true;
+    }
+
+    /**
+     * Remove every key whose position is before a position.
+     *
+     * @return The number of keys that were removed.
+     */
+    public synchronized int removeBefore (long position) {
+        String[] oldKeys = keys;
+        long[] oldPositions = positions;
+        int before = size;
+
+        keys = new String[oldKeys.length];
+        positions = new long[oldKeys.length];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (null != oldKeys[i] && oldPositions[i] >= position)
+                insert(oldKeys[i], oldPositions[i]);
+        }
+
+        return before - size;
+    }
+
+    public synchronized void clear () {
+        keys = new String[MINIMUM_CAPACITY];
+        positions = new long[MINIMUM_CAPACITY];
+        size = 0;
+    }
+
+    private int slotOf (String key) {
+        int hash = key.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (keys.length - 1);
+    }
+
+    /**
+     * The slot that holds a key, or the empty slot where it would go.
+     */
+    private int find (String key) {
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+
+        while (null != keys[slot] && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void insert (String key, long position) {
+        int slot = find(key);
+        keys[slot] = key;
+        positions[slot] = position;
+        size++;
+    }
+
+    /**
+     * Empty a slot, moving back any entry after it that can no longer be found past the gap.
+     */
+    private void removeAt (int gap) {
+        int mask = keys.length - 1;
+        int slot = gap;
+
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (null == keys[slot])
+                break;
+
+            int home = slotOf(keys[slot]);
+            boolean reachable = gap <= slot ? (gap < home && home <= slot) : (gap < home || home <= slot);
+
+            if (!reachable) {
+                keys[gap] = keys[slot];
+                positions[gap] = positions[slot];
+                gap = slot;
+            }
+        }
+
+        keys[gap] = null;
+        size--;
+    }
+
+    private void resize (int capacity) {
+        String[] oldKeys = keys;
+        long[] oldPositions = positions;
+
+        keys = new String[capacity];
+        positions = new long[capacity];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (null != oldKeys[i])
+                insert(oldKeys[i], oldPositions[i]);
+        }
+    }
+}
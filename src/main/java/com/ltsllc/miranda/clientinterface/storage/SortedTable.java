@@ -0,0 +1,456 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.DirectoryEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable file of {@link DirectoryEntry}s sorted by key.
+ *
+ * <p>
+ *     The file is a series of records, grouped into blocks of about {@link #DEFAULT_BLOCK_SIZE}
+ *     bytes, followed by a sparse index that has the first key and offset of every block, a
+ *     {@link BloomFilter} of all the keys, and a footer.  Opening a table reads the index and
+ *     the filter into memory.  A lookup for a key that is not in the table is almost always
+ *     answered by the filter without reading the file; otherwise it reads the one block that
+ *     could hold the key.
+ * </p>
+ *
+ * <p>
+ *     A record is the key, a flag, and the entry written by an {@link EntryCodec}.  A record
+ *     whose flag is 0 is a tombstone: it says the key was deleted, which hides older versions
+ *     of the entry in older tables (see {@link SortedTableSet}).
+ * </p>
+ *
+ * <p>
+ *     Tables are created with a {@link Writer}.  Lookups are thread safe.
+ * </p>
+ *
+ * @param <E> The type of entry.
+ */
+public class SortedTable<E extends DirectoryEntry> implements Closeable {
+    public static final int MAGIC = 0x4d535354;
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final int FOOTER_SIZE = 24;
+
+    /**
+     * A key and its entry, or a key and a tombstone.
+     */
+    public static class Record<E> {
+        private String key;
+        private E entry;
+
+        public Record (String key, E entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * The entry, or null if this record is a tombstone.
+         */
+        public E getEntry() {
+            return entry;
+        }
+
+        public boolean isTombstone () {
+            return null == entry;
+        }
+    }
+
+    /**
+     * Write a new table.
+     *
+     * <p>
+     *     The records must be added in ascending key order.  The table is written to a
+     *     temporary file that is renamed when the writer finishes, so a table file either is
+     *     complete or does not exist.
+     * </p>
+     */
+    public static class Writer<E extends DirectoryEntry> {
+        private File file;
+        private File temporary;
+        private EntryCodec<E> codec;
+        private int blockSize;
+
+        private FileOutputStream fileOutputStream;
+        private DataOutputStream dataOutputStream;
+        private ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+        private BloomFilter bloomFilter;
+        private List<String> blockKeys = new ArrayList<String>();
+        private List<Long> blockOffsets = new ArrayList<Long>();
+
+        private long offset;
+        private long blockStart = -1;
+        private int count;
+        private String lastKey;
+
+        /**
+         * @param file The table file to create.
+         * @param codec How to write the entries.
+         * @param expectedKeys About how many records will be added, which sets the size of the
+         *                     Bloom filter.
+         * @param blockSize The size of a block.
+         */
+        public Writer (File file, EntryCodec<E> codec, int expectedKeys, int blockSize) throws IOException {
+            this.file = file;
+            this.temporary = new File(file.getPath() + ".tmp");
+            this.codec = codec;
+            this.blockSize = blockSize;
+            this.bloomFilter = new BloomFilter(expectedKeys, DEFAULT_FALSE_POSITIVE_RATE);
+            this.fileOutputStream = new FileOutputStream(temporary);
+            this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+        }
+
+        public Writer (File file, EntryCodec<E> codec, int expectedKeys) throws IOException {
+            this(file, codec, expectedKeys, DEFAULT_BLOCK_SIZE);
+        }
+
+        /**
+         * Add a record.
+         *
+         * @param key The key.  It must be greater than the key of the last record.
+         * @param entry The entry, or null for a tombstone.
+         */
+        public void add (String key, E entry) throws IOException {
+            if (null != lastKey && key.compareTo(lastKey) <= 0)
+                throw new IllegalArgumentException("keys must be added in ascending order: " + key);
+
+            if (blockStart == -1 || offset - blockStart >= blockSize) {
+                blockStart = offset;
+                blockKeys.add(key);
+                blockOffsets.add(offset);
+            }
+
+            recordBuffer.reset();
+            DataOutputStream record = new DataOutputStream(recordBuffer);
+            record.writeUTF(key);
+            record.writeBoolean(null != entry);
+            if (null != entry)
+                codec.write(record, entry);
+
+            record.flush();
+            recordBuffer.writeTo(dataOutputStream);
+            offset += recordBuffer.size();
+
+            bloomFilter.add(key);
+            lastKey = key;
+            count++;
+        }
+
+        /**
+         * Write the index, filter and footer, and open the table.
+         */
+        public SortedTable<E> finish () throws IOException {
+            long indexOffset = offset;
+
+            ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBuffer);
+            index.writeInt(blockKeys.size());
+            for (int i = 0; i < blockKeys.size(); i++) {
+                index.writeUTF(blockKeys.get(i));
+                index.writeLong(blockOffsets.get(i));
+            }
+            index.flush();
+            indexBuffer.writeTo(dataOutputStream);
+
+            long bloomOffset = indexOffset + indexBuffer.size();
+            bloomFilter.writeTo(dataOutputStream);
+
+            dataOutputStream.writeLong(indexOffset);
+            dataOutputStream.writeLong(bloomOffset);
+            dataOutputStream.writeInt(count);
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.flush();
+            fileOutputStream.getFD().sync();
+            dataOutputStream.close();
+
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("could not rename " + temporary + " to " + file);
+            }
+
+            return open(file, codec);
+        }
+
+        /**
+         * Give up on the table.
+         */
+        public void abort () {
+            try {
+                dataOutputStream.close();
+            } catch (IOException e) {
+                // the file is being deleted anyways
+            }
+
+            temporary.delete();
+        }
+    }
+
+    private File file;
+    private EntryCodec<E> codec;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    private String[] blockKeys;
+    private long[] blockOffsets;
+    private long dataEnd;
+    private int count;
+    private BloomFilter bloomFilter;
+
+    private AtomicLong filteredLookups = new AtomicLong();
+    private AtomicLong blockReads = new AtomicLong();
+
+    private SortedTable (File file, EntryCodec<E> codec) {
+        this.file = file;
+        this.codec = codec;
+    }
+
+    /**
+     * Open an existing table.
+     *
+     * @throws IOException If the file could not be read or is not a complete table.
+     */
+    public static <E extends DirectoryEntry> SortedTable<E> open (File file, EntryCodec<E> codec) throws IOException {
+        SortedTable<E> table = new SortedTable<E>(file, codec);
+
+        try {
+            table.load();
+        } catch (IOException e) {
+            table.close();
+            throw e;
+        }
+
+        return table;
+    }
+
+    private void load () throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+
+        long length = channel.size();
+        if (length < FOOTER_SIZE)
+            throw new IOException(file + " is not a table");
+
+        DataInputStream footer = new DataInputStream(new ByteArrayInputStream(read(length - FOOTER_SIZE, FOOTER_SIZE)));
+        long indexOffset = footer.readLong();
+        long bloomOffset = footer.readLong();
+        count = footer.readInt();
+
+        if (footer.readInt() != MAGIC || indexOffset > bloomOffset || bloomOffset > length - FOOTER_SIZE)
+            throw new IOException(file + " is not a table");
+
+        dataEnd = indexOffset;
+
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+                read(indexOffset, (int) (bloomOffset - indexOffset))));
+        int blocks = index.readInt();
+        blockKeys = new String[blocks];
+        blockOffsets = new long[blocks];
+        for (int i = 0; i < blocks; i++) {
+            blockKeys[i] = index.readUTF();
+            blockOffsets[i] = index.readLong();
+        }
+
+        bloomFilter = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(
+                read(bloomOffset, (int) (length - FOOTER_SIZE - bloomOffset)))));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The number of records, including tombstones.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The number of lookups that the Bloom filter answered without reading the file.
+     */
+    public long getFilteredLookups () {
+        return filteredLookups.get();
+    }
+
+    public long getBlockReads () {
+        return blockReads.get();
+    }
+
+    public boolean mightContain (String key) {
+        return bloomFilter.mightContain(key);
+    }
+
+    /**
+     * Get the entry for a key.
+     *
+     * @return The entry, or null if the table has no entry for the key or has a tombstone for it.
+     */
+    public E get (String key) throws IOException {
+        Record<E> record = find(key);
+        return null == record ? null : record.getEntry();
+    }
+
+    /**
+     * Find the record for a key.
+     *
+     * @return The record, which may be a tombstone, or null if the table has no record for the key.
+     */
+    public Record<E> find (String key) throws IOException {
+        if (!bloomFilter.mightContain(key)) {
+            filteredLookups.incrementAndGet();
+            return null;
+        }
+
+        int block = findBlock(key);
+        if (block < 0)
+            return null;
+
+        DataInputStream dataInputStream = readBlock(block);
+
+        while (dataInputStream.available() > 0) {
+            Record<E> record = readRecord(dataInputStream);
+            int comparison = record.getKey().compareTo(key);
+
+            if (0 == comparison)
+                return record;
+            else if (comparison > 0)
+                return null;
+        }
+
+        return null;
+    }
+
+    /**
+     * Go through every record in the table, in key order.
+     *
+     * <p>
+     *     The iterator reads one block at a time through the table's own channel, so it holds
+     *     nothing open and can be dropped part way through.  It stops working when the table
+     *     is closed.
+     * </p>
+     */
+    public Iterator<Record<E>> iterator () {
+        return new Iterator<Record<E>>() {
+            private int nextBlock;
+            private DataInputStream block;
+
+            public boolean hasNext() {
+                try {
+                    while (null == block || block.available() <= 0) {
+                        if (nextBlock >= blockOffsets.length)
+                            return false;
+
+                        block = readBlock(nextBlock++);
+                    }
+
+                    return true;
+                } catch (IOException e) {
+                    throw new IllegalStateException("error reading " + file, e);
+                }
+            }
+
+            public Record<E> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                try {
+                    return readRecord(block);
+                } catch (IOException e) {
+                    throw new IllegalStateException("error reading " + file, e);
+                }
+            }
+        };
+    }
+
+    public void close () throws IOException {
+        if (null != randomAccessFile)
+            randomAccessFile.close();
+    }
+
+    /**
+     * The block that would hold a key: the last block whose first key is not greater than the key.
+     */
+    private int findBlock (String key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blockKeys[middle].compareTo(key) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return found;
+    }
+
+    private DataInputStream readBlock (int block) throws IOException {
+        long start = blockOffsets[block];
+        long end = block + 1 < blockOffsets.length ? blockOffsets[block + 1] : dataEnd;
+
+        blockReads.incrementAndGet();
+        return new DataInputStream(new ByteArrayInputStream(read(start, (int) (end - start))));
+    }
+
+    private Record<E> readRecord (DataInputStream dataInputStream) throws IOException {
+        String key = dataInputStream.readUTF();
+        E entry = dataInputStream.readBoolean() ? codec.read(dataInputStream) : null;
+
+        return new Record<E>(key, entry);
+    }
+
+    private byte[] read (long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("unexpected end of " + file);
+        }
+
+        return buffer.array();
+    }
+}
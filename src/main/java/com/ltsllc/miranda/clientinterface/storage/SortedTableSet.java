@@ -0,0 +1,418 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.DirectoryEntry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A directory of {@link SortedTable}s that together hold a collection of {@link DirectoryEntry}s.
+ *
+ * <p>
+ *     Each call to {@link #write(Collection, Collection)} creates a new table.  A lookup checks
+ *     the tables from newest to oldest and stops at the first one that has a record for the key,
+ *     so a newer entry or tombstone hides older ones.  Because every table has a Bloom filter, a
+ *     lookup for a key that is in none of them usually reads nothing from disk.
+ * </p>
+ *
+ * <p>
+ *     When the number of tables reaches the compaction threshold, all the tables are merged
+ *     into one, keeping only the newest record for each key and dropping tombstones.  If the
+ *     set has an executor, the merge runs there, and lookups continue against the old tables
+ *     until it is done.
+ * </p>
+ *
+ * <p>
+ *     Tables are named table-&lt;generation&gt;.sst, and a higher generation is newer.  A merged
+ *     table takes the generation of the newest table it replaces.  It is first written as
+ *     table-&lt;generation&gt;.compacted; when that file exists, every table it replaces is
+ *     deleted and it is renamed.  If the process stops part way through, opening the set
+ *     finishes the job.
+ * </p>
+ *
+ * <p>
+ *     This class is thread safe.
+ * </p>
+ *
+ * @param <E> The type of entry.
+ */
+public class SortedTableSet<E extends DirectoryEntry> implements Closeable {
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 8;
+
+    public static final String TABLE_SUFFIX = ".sst";
+    public static final String COMPACTED_SUFFIX = ".compacted";
+
+    private static final Pattern TABLE_NAME = Pattern.compile("table-(\\d+)\\.sst");
+    private static final Pattern COMPACTED_NAME = Pattern.compile("table-(\\d+)\\.compacted");
+
+    private static class Source<E> implements Comparable<Source<E>> {
+        private int age;
+        private Iterator<SortedTable.Record<E>> iterator;
+        private SortedTable.Record<E> record;
+
+        public Source (int age, Iterator<SortedTable.Record<E>> iterator) {
+            this.age = age;
+            this.iterator = iterator;
+        }
+
+        public boolean advance () {
+            record = iterator.hasNext() ? iterator.next() : null;
+            return null != record;
+        }
+
+        public int compareTo (Source<E> other) {
+            int result = record.getKey().compareTo(other.record.getKey());
+            return 0 != result ? result : Integer.compare(age, other.age);
+        }
+    }
+
+    private File directory;
+    private EntryCodec<E> codec;
+    private ExecutorService executor;
+    private int compactionThreshold;
+
+    /**
+     * The tables, newest first.  The list is replaced rather than changed.
+     */
+    private volatile List<SortedTable<E>> tables = Collections.emptyList();
+    private long lastGeneration;
+    private AtomicBoolean compacting = new AtomicBoolean();
+    private AtomicInteger compactionFailures = new AtomicInteger();
+    private volatile Exception lastCompactionFailure;
+    private final Object compactionLock = new Object();
+
+    /**
+     * Open a set of tables, creating the directory if it does not exist.
+     *
+     * @param directory Where the tables are.
+     * @param codec How to read and write entries.
+     * @param executor Where to run compactions, or null to run them on the thread that writes
+     *                 the table that reaches the threshold.
+     * @param compactionThreshold How many tables there can be before they are compacted.
+     */
+    public SortedTableSet (File directory, EntryCodec<E> codec, ExecutorService executor, int compactionThreshold)
+            throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        this.executor = executor;
+        this.compactionThreshold = Math.max(2, compactionThreshold);
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("could not create " + directory);
+
+        open();
+    }
+
+    public SortedTableSet (File directory, EntryCodec<E> codec) throws IOException {
+        this(directory, codec, null, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public int getTableCount () {
+        return tables.size();
+    }
+
+    public List<SortedTable<E>> getTables () {
+        return tables;
+    }
+
+    /**
+     * The number of compactions started by {@link #scheduleCompaction()} that failed.
+     */
+    public int getCompactionFailures () {
+        return compactionFailures.get();
+    }
+
+    /**
+     * Why the last failed compaction failed, or null if none has.
+     */
+    public Exception getLastCompactionFailure () {
+        return lastCompactionFailure;
+    }
+
+    /**
+     * Get the newest entry for a key.
+     *
+     * @return The entry, or null if there is none or it was deleted.
+     */
+    public E get (String key) throws IOException {
+        while (true) {
+            List<SortedTable<E>> current = tables;
+
+            try {
+                for (SortedTable<E> table : current) {
+                    SortedTable.Record<E> record = table.find(key);
+                    if (null != record)
+                        return record.getEntry();
+                }
+
+                return null;
+            } catch (ClosedChannelException e) {
+                //
+                // if a compaction replaced the table while it was being read, try the new tables
+                //
+                if (current == tables)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Add a table of entries and deletes.
+     *
+     * @param entries The entries to add or replace.
+     * @param deletedKeys The keys to delete.  A key that is also in entries is deleted.
+     */
+    public void write (Collection<E> entries, Collection<String> deletedKeys) throws IOException {
+        TreeMap<String, E> sorted = new TreeMap<String, E>();
+
+        for (E entry : entries) {
+            sorted.put(entry.getKey(), entry);
+        }
+
+        for (String key : deletedKeys) {
+            sorted.put(key, null);
+        }
+
+        if (sorted.isEmpty())
+            return;
+
+        synchronized (this) {
+            long generation = ++lastGeneration;
+            SortedTable.Writer<E> writer = new SortedTable.Writer<E>(tableFile(generation), codec, sorted.size());
+
+            try {
+                for (Map.Entry<String, E> entry : sorted.entrySet()) {
+                    writer.add(entry.getKey(), entry.getValue());
+                }
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+
+            List<SortedTable<E>> newTables = new ArrayList<SortedTable<E>>(tables.size() + 1);
+            newTables.add(writer.finish());
+            newTables.addAll(tables);
+            tables = Collections.unmodifiableList(newTables);
+        }
+
+        if (tables.size() >= compactionThreshold)
+            scheduleCompaction();
+    }
+
+    /**
+     * Start a compaction unless one is already running.
+     *
+     * <p>
+     *     A compaction that fails leaves the tables it was merging in place and is counted in
+     *     {@link #getCompactionFailures()}; the next write that reaches the threshold tries again.
+     *     So is a compaction the executor will not take.
+     * </p>
+     */
+    public void scheduleCompaction () {
+        if (!compacting.compareAndSet(false, true))
+            return;
+
+        Runnable runnable = new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    lastCompactionFailure = e;
+                    compactionFailures.incrementAndGet();
+                } finally {
+                    compacting.set(false);
+                }
+            }
+        };
+
+        if (null == executor) {
+            runnable.run();
+            return;
+        }
+
+        try {
+            executor.submit(runnable);
+        } catch (RejectedExecutionException e) {
+            lastCompactionFailure = e;
+            compactionFailures.incrementAndGet();
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Merge all the current tables into one.
+     */
+    public void compact () throws IOException {
+        synchronized (compactionLock) {
+            List<SortedTable<E>> inputs = tables;
+            if (inputs.size() < 2)
+                return;
+
+            long generation = generationOf(inputs.get(0).getFile());
+            int expectedKeys = 0;
+
+            for (SortedTable<E> table : inputs) {
+                expectedKeys += table.getCount();
+            }
+
+            File compacted = new File(directory, "table-" + generation + COMPACTED_SUFFIX);
+            SortedTable.Writer<E> writer = new SortedTable.Writer<E>(compacted, codec, expectedKeys);
+            SortedTable<E> merged;
+
+            try {
+                PriorityQueue<Source<E>> queue = new PriorityQueue<Source<E>>();
+                for (int i = 0; i < inputs.size(); i++) {
+                    Source<E> source = new Source<E>(i, inputs.get(i).iterator());
+                    if (source.advance())
+                        queue.add(source);
+                }
+
+                String lastKey = null;
+
+                while (!queue.isEmpty()) {
+                    Source<E> source = queue.poll();
+                    SortedTable.Record<E> record = source.record;
+
+                    //
+                    // the first record for a key comes from the newest table; skip the rest
+                    //
+                    if (!record.getKey().equals(lastKey) && !record.isTombstone())
+                        writer.add(record.getKey(), record.getEntry());
+
+                    lastKey = record.getKey();
+
+                    if (source.advance())
+                        queue.add(source);
+                }
+
+                merged = writer.finish();
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+
+                //
+                // the table iterators report read errors as IllegalStateExceptions
+                //
+                if (e instanceof IllegalStateException && e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+
+                throw e;
+            }
+
+            synchronized (this) {
+                List<SortedTable<E>> newTables = new ArrayList<SortedTable<E>>();
+                for (SortedTable<E> table : tables) {
+                    if (!inputs.contains(table))
+                        newTables.add(table);
+                }
+
+                merged.close();
+                finishCompaction(compacted, generation);
+                newTables.add(SortedTable.open(tableFile(generation), codec));
+                tables = Collections.unmodifiableList(newTables);
+            }
+
+            for (SortedTable<E> table : inputs) {
+                table.close();
+            }
+        }
+    }
+
+    public synchronized void close () throws IOException {
+        for (SortedTable<E> table : tables) {
+            table.close();
+        }
+
+        tables = Collections.emptyList();
+    }
+
+    private File tableFile (long generation) {
+        return new File(directory, "table-" + generation + TABLE_SUFFIX);
+    }
+
+    private static long generationOf (File file) {
+        Matcher matcher = TABLE_NAME.matcher(file.getName());
+        if (!matcher.matches())
+            throw new IllegalArgumentException(file + " is not a table");
+
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Delete the tables that a compacted table replaces and give it its final name.
+     */
+    private void finishCompaction (File compacted, long generation) throws IOException {
+        File[] files = directory.listFiles();
+
+        if (null != files) {
+            for (File file : files) {
+                Matcher matcher = TABLE_NAME.matcher(file.getName());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) <= generation && !file.delete())
+                    throw new IOException("could not delete " + file);
+            }
+        }
+
+        if (!compacted.renameTo(tableFile(generation)))
+            throw new IOException("could not rename " + compacted);
+    }
+
+    private void open () throws IOException {
+        File[] files = directory.listFiles();
+        if (null == files)
+            return;
+
+        for (File file : files) {
+            Matcher matcher = COMPACTED_NAME.matcher(file.getName());
+            if (matcher.matches())
+                finishCompaction(file, Long.parseLong(matcher.group(1)));
+            else if (file.getName().endsWith(".tmp"))
+                file.delete();
+        }
+
+        TreeMap<Long, File> found = new TreeMap<Long, File>(Collections.<Long>reverseOrder());
+        for (File file : directory.listFiles()) {
+            Matcher matcher = TABLE_NAME.matcher(file.getName());
+            if (matcher.matches())
+                found.put(Long.parseLong(matcher.group(1)), file);
+        }
+
+        List<SortedTable<E>> opened = new ArrayList<SortedTable<E>>();
+        for (File file : found.values()) {
+            opened.add(SortedTable.open(file, codec));
+        }
+
+        tables = Collections.unmodifiableList(opened);
+        lastGeneration = found.isEmpty() ? 0 : found.firstKey();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Where the threads that make deliveries come from.
+ *
+ * <p>
+ *     This is the version for Java 21 and later, which goes in META-INF/versions/21 of the
+ *     multi-release jar.  Every delivery gets a virtual thread of its own, so a delivery blocked
+ *     on a slow subscriber only costs its stack, and the number of deliveries in flight is
+ *     limited by {@link com.ltsllc.miranda.clientinterface.basicclasses.Subscription#getMaxConcurrency()}
+ *     rather than by a pool size.
+ * </p>
+ */
+public class DeliveryThreads {
+    public static boolean isVirtual () {
+        return true;
+    }
+
+    /**
+     * Create the executor that deliveries run on.
+     *
+     * @param platformThreads Ignored: virtual threads are not pooled.
+     */
+    public static ExecutorService newExecutor (int platformThreads) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("delivery-", 0).factory());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class TestVersionBuilder extends TestCase {
+    private File file;
+
+    public File getFile() {
+        return file;
+    }
+
+    public void reset () {
+        super.reset();
+
+        file = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            file = File.createTempFile("version", ".dat");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () {
+        if (null != getFile())
+            getFile().delete();
+    }
+
+    public void appendToFile (String content) throws IOException {
+        FileOutputStream fileOutputStream = new FileOutputStream(getFile(), true);
+        try {
+            fileOutputStream.write(content.getBytes());
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    @Test
+    public void testIncremental () throws Exception {
+        VersionBuilder versionBuilder = new VersionBuilder();
+        versionBuilder.append("one record, ");
+        versionBuilder.append("another record");
+
+        Version version = new VersionBuilder().append("one record, another record").build();
+
+        assert (versionBuilder.build().equals(version));
+        assert (versionBuilder.getLength() == "one record, another record".length());
+    }
+
+    @Test
+    public void testResume () throws Exception {
+        VersionBuilder versionBuilder = new VersionBuilder();
+        versionBuilder.append("first");
+        VersionBuilder.DigestState state = versionBuilder.saveState();
+
+        versionBuilder.append("second");
+
+        VersionBuilder resumed = new VersionBuilder(state);
+        resumed.append("second");
+
+        assert (resumed.build().equals(versionBuilder.build()));
+    }
+
+    @Test
+    public void testFile () throws Exception {
+        appendToFile("some content");
+
+        Version version = new VersionBuilder().append("some content").build();
+
+        assert (Version.createFromFile(getFile()).equals(version));
+    }
+
+    @Test
+    public void testCache () throws Exception {
+        VersionCache versionCache = new VersionCache(true);
+
+        appendToFile("some content");
+        Version first = versionCache.getVersion(getFile());
+
+        assert (first.equals(versionCache.getVersion(getFile())));
+
+        appendToFile(" and some more");
+        getFile().setLastModified(getFile().lastModified() + 1000);
+
+        Version second = versionCache.getVersion(getFile());
+
+        assert (!second.equals(first));
+        assert (second.equals(Version.createFromFile(getFile())));
+        assert (versionCache.size() == 1);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.objects.ChangeRecord;
+import com.ltsllc.miranda.clientinterface.results.ChangeFeedResultObject;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestChangeFeed extends TestCase {
+    public static final int CAPACITY = 10;
+
+    private KeyedStore<String, Topic> keyedStore;
+    private ChangeFeed<Topic> changeFeed;
+    private HybridLogicalClock clock;
+
+    public ChangeFeed<Topic> getChangeFeed() {
+        return changeFeed;
+    }
+
+    public void reset () {
+        super.reset();
+
+        keyedStore = null;
+        changeFeed = null;
+        clock = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        keyedStore = new KeyedStore<String, Topic>();
+        changeFeed = new ChangeFeed<Topic>(CAPACITY, 1);
+        keyedStore.addListener(changeFeed);
+        clock = new HybridLogicalClock(1);
+    }
+
+    public Topic createTopic (String name, String owner) {
+        Topic topic = new Topic(name, owner);
+        topic.markChanged(clock);
+        return topic;
+    }
+
+    @Test
+    public void testReadAfter () throws MergeException {
+        keyedStore.merge(createTopic("cats", "joe"));
+        keyedStore.merge(createTopic("dogs", "joe"));
+        keyedStore.merge(createTopic("cats", "sam"));
+        keyedStore.remove("dogs");
+
+        ChangeFeedResultObject<Topic> result = getChangeFeed().read(0, 0, 100);
+
+        assert (!result.isTruncated());
+        assert (result.getEpoch() == 1);
+        assert (result.getRecords().size() == 4);
+        assert (result.getRecords().get(2).getChangeType() == ChangeRecord.ChangeTypes.Update);
+        assert (result.getRecords().get(2).getObject().getOwner().equals("sam"));
+        assert (result.getRecords().get(2).getObject().isFrozen());
+        assert (result.getRecords().get(3).getChangeType() == ChangeRecord.ChangeTypes.Delete);
+
+        result = getChangeFeed().read(1, 2, 100);
+        assert (result.getRecords().size() == 2);
+        assert (result.getLastSequence() == 4);
+    }
+
+    @Test
+    public void testTruncatedWhenOverwritten () {
+        for (int i = 0; i < 3 * CAPACITY; i++) {
+            keyedStore.put(createTopic("topic " + i, "joe"));
+        }
+
+        ChangeFeedResultObject<Topic> result = getChangeFeed().read(1, 1, 100);
+
+        assert (result.isTruncated());
+        assert (result.getRecords().size() == CAPACITY);
+        assert (result.getRecords().get(0).getSequence() == getChangeFeed().getFirstSequence());
+    }
+
+    /**
+     * A consumer of a feed that was created again, for example after a restart, starts over
+     * instead of waiting for the sequence numbers to catch up.
+     */
+    @Test
+    public void testNewEpoch () {
+        keyedStore.put(createTopic("cats", "joe"));
+        keyedStore.put(createTopic("dogs", "joe"));
+
+        ChangeFeed<Topic> restarted = new ChangeFeed<Topic>(CAPACITY, 2);
+        restarted.append(ChangeRecord.ChangeTypes.Create, "gerbils", createTopic("gerbils", "joe"));
+
+        ChangeFeedResultObject<Topic> result = restarted.read(1, 2, 100);
+
+        assert (result.isTruncated());
+        assert (result.getEpoch() == 2);
+        assert (result.getRecords().size() == 1);
+
+        //
+        // a sequence number the feed has not reached is treated the same way
+        //
+        result = getChangeFeed().read(1, 50, 100);
+        assert (result.isTruncated());
+        assert (result.getRecords().size() == 2);
+    }
+
+    @Test
+    public void testOutOfDateUpdateIgnored () {
+        Topic older = createTopic("cats", "joe");
+        Topic newer = createTopic("cats", "sam");
+
+        getChangeFeed().append(ChangeRecord.ChangeTypes.Create, "cats", older);
+        getChangeFeed().append(ChangeRecord.ChangeTypes.Update, "cats", newer);
+
+        assert (null == getChangeFeed().append(ChangeRecord.ChangeTypes.Update, "cats", older));
+        assert (getChangeFeed().getLastSequence() == 2);
+    }
+
+    @Test
+    public void testUnstampedPutRecorded () throws MergeException {
+        Topic topic = createTopic("cats", "joe");
+        keyedStore.put(topic);
+
+        //
+        // a modified copy that keeps the change stamp of the original is still a change
+        //
+        Topic modified = (Topic) topic.copy();
+        modified.setMaxAge(60000);
+        keyedStore.put(modified);
+
+        //
+        // putting back the same state is not
+        //
+        keyedStore.put((Topic) modified.copy());
+
+        ChangeFeedResultObject<Topic> result = getChangeFeed().read(0, 0, 100);
+
+        assert (result.getRecords().size() == 2);
+        assert (result.getRecords().get(1).getChangeType() == ChangeRecord.ChangeTypes.Update);
+        assert (result.getRecords().get(1).getObject().getMaxAge() == 60000);
+    }
+
+    @Test
+    public void testConcurrentMerges () throws InterruptedException, MergeException {
+        keyedStore.put(createTopic("cats", "owner 0"));
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 1000; j++) {
+                            Topic update;
+                            synchronized (clock) {
+                                update = createTopic("cats", "owner " + j);
+                            }
+
+                            keyedStore.merge(update);
+                        }
+                    } catch (MergeException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //
+        // every record that made it into the feed is newer than the one before it
+        //
+        ChangeFeed<Topic> feed = getChangeFeed();
+        Map<String, Long> last = new HashMap<String, Long>();
+        ChangeFeedResultObject<Topic> result = feed.read(1, feed.getFirstSequence() - 1, CAPACITY);
+
+        for (ChangeRecord<Topic> changeRecord : result.getRecords()) {
+            long stamp = changeRecord.getObject().getChangeStamp();
+            Long previous = last.put(changeRecord.getKey(), stamp);
+            assert (null == previous || stamp > previous);
+        }
+
+        assert (result.getRecords().get(result.getRecords().size() - 1).getObject().getChangeStamp()
+                == keyedStore.get("cats").getChangeStamp());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+public class TestChangeIndex extends TestCase {
+    private KeyedStore<String, Topic> keyedStore;
+    private ChangeIndex<String, Topic> changeIndex;
+    private HybridLogicalClock clock;
+
+    public ChangeIndex<String, Topic> getChangeIndex() {
+        return changeIndex;
+    }
+
+    public void reset () {
+        super.reset();
+
+        keyedStore = null;
+        changeIndex = null;
+        clock = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        keyedStore = new KeyedStore<String, Topic>();
+        changeIndex = new ChangeIndex<String, Topic>(keyedStore);
+        clock = new HybridLogicalClock(1);
+    }
+
+    public Topic createTopic (String name, String owner) {
+        Topic topic = new Topic(name, owner);
+        topic.markChanged(clock);
+        return topic;
+    }
+
+    @Test
+    public void testChangedSince () throws MergeException {
+        keyedStore.merge(createTopic("cats", "joe"));
+        long watermark = getChangeIndex().getLastSequence();
+
+        keyedStore.merge(createTopic("dogs", "joe"));
+        keyedStore.merge(createTopic("cats", "sam"));
+
+        List<ChangeIndex.Change<String, Topic>> changed = getChangeIndex().changedSince(watermark, 100);
+
+        assert (changed.size() == 2);
+        assert (changed.get(0).getValue().getName().equals("dogs"));
+        assert (changed.get(1).getValue().getOwner().equals("sam"));
+        assert (getChangeIndex().size() == 2);
+
+        changed = getChangeIndex().changedSince(0, 1);
+        assert (changed.size() == 1);
+        assert (changed.get(0).getValue().getName().equals("dogs"));
+    }
+
+    /**
+     * An object merged from another node keeps that node's change stamp, which can be older
+     * than a watermark the client already has; the local number still puts it after.
+     */
+    @Test
+    public void testOlderStampFromPeer () throws MergeException {
+        Topic fromPeer = new Topic("dogs", "joe");
+        fromPeer.markChanged(new HybridLogicalClock(2));
+
+        keyedStore.merge(createTopic("cats", "joe"));
+        long watermark = getChangeIndex().getLastSequence();
+
+        //
+        // the peer's stamp is older than that of cats
+        //
+        fromPeer.setChangeStamp(keyedStore.get("cats").getChangeStamp() - 1);
+        keyedStore.merge(fromPeer);
+
+        List<ChangeIndex.Change<String, Topic>> changed = getChangeIndex().changedSince(watermark, 100);
+        assert (changed.size() == 1);
+        assert (changed.get(0).getKey().equals("dogs"));
+    }
+
+    /**
+     * A notification for an older change that arrives after the notification for a newer one
+     * leaves the object as it is in the store.
+     */
+    @Test
+    public void testLateNotification () throws MergeException {
+        Topic older = createTopic("cats", "joe");
+        keyedStore.merge(older);
+        Topic olderCopy = older.copy();
+
+        keyedStore.merge(createTopic("cats", "sam"));
+
+        getChangeIndex().updated(olderCopy, olderCopy);
+
+        List<ChangeIndex.Change<String, Topic>> changed = getChangeIndex().changedSince(0, 100);
+        assert (changed.size() == 1);
+        assert (changed.get(0).getValue().getOwner().equals("sam"));
+    }
+
+    /**
+     * A merge that carries an older stamp does not change the store, and does not change the
+     * index either.
+     */
+    @Test
+    public void testMergeOlderStamp () throws MergeException {
+        Topic older = createTopic("cats", "joe");
+        Topic newer = createTopic("cats", "sam");
+
+        keyedStore.merge(newer);
+        long watermark = getChangeIndex().getLastSequence();
+
+        keyedStore.merge(older);
+
+        assert (getChangeIndex().getLastSequence() == watermark);
+        assert (getChangeIndex().changedSince(0, 100).size() == 1);
+        assert (getChangeIndex().changedSince(watermark, 100).isEmpty());
+    }
+
+    @Test
+    public void testRemoved () throws MergeException {
+        keyedStore.merge(createTopic("cats", "joe"));
+        Topic dogs = createTopic("dogs", "joe");
+        keyedStore.merge(dogs);
+        long watermark = getChangeIndex().getLastSequence();
+
+        keyedStore.remove("dogs");
+
+        //
+        // a late notification for the removed object does not bring it back
+        //
+        getChangeIndex().updated(dogs, dogs);
+
+        List<ChangeIndex.Change<String, Topic>> changed = getChangeIndex().changedSince(watermark, 100);
+        assert (changed.size() == 1);
+        assert (changed.get(0).isDeleted());
+        assert (changed.get(0).getKey().equals("dogs"));
+        assert (getChangeIndex().size() == 2);
+
+        //
+        // adding it again replaces the tombstone
+        //
+        keyedStore.merge(createTopic("dogs", "sam"));
+        changed = getChangeIndex().changedSince(0, 100);
+        assert (changed.size() == 2);
+        assert (!changed.get(1).isDeleted());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.requests.ChangesSinceRequest;
+import com.ltsllc.miranda.clientinterface.results.ChangesSinceResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestChangeTracker extends TestCase {
+    public static final long EPOCH = 7;
+
+    private KeyedStore<String, Topic> topics;
+    private KeyedStore<String, Subscription> subscriptions;
+    private KeyedStore<String, User> users;
+    private KeyedStore<String, NodeElement> nodes;
+    private ChangeTracker changeTracker;
+    private HybridLogicalClock clock;
+
+    public void reset () {
+        super.reset();
+
+        topics = null;
+        subscriptions = null;
+        users = null;
+        nodes = null;
+        changeTracker = null;
+        clock = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        topics = new KeyedStore<String, Topic>();
+        subscriptions = new KeyedStore<String, Subscription>();
+        users = new KeyedStore<String, User>();
+        nodes = new KeyedStore<String, NodeElement>();
+        clock = new HybridLogicalClock(1);
+
+        changeTracker = new ChangeTracker(new ChangeSequence(EPOCH), topics, subscriptions, users, nodes);
+    }
+
+    public <T extends MirandaObject> T stamp (T object) {
+        object.markChanged(clock);
+        return object;
+    }
+
+    public ChangesSinceResultObject query (long epoch, long watermark, int maxResults) {
+        return changeTracker.query(new ChangesSinceRequest("a session", epoch, watermark, maxResults));
+    }
+
+    @Test
+    public void testMergedInOrder () throws MergeException {
+        topics.merge(stamp(new Topic("cats", "joe")));
+        users.merge(stamp(new User("joe", "a user")));
+        subscriptions.merge(stamp(new Subscription("cat food", "joe", "cats", "http://localhost/data", null,
+                Subscription.ErrorPolicies.Drop)));
+        nodes.merge(stamp(new NodeElement("localhost", 6789, "a node")));
+
+        ChangesSinceResultObject result = query(0, 0, 2);
+
+        assert (result.getResult() == Results.Success);
+        assert (result.getEpoch() == EPOCH);
+        assert (result.isMore());
+        assert (result.getTopics().size() == 1);
+        assert (result.getUsers().size() == 1);
+        assert (result.getSubscriptions().isEmpty());
+
+        result = query(result.getEpoch(), result.getWatermark(), 2);
+
+        assert (!result.isMore());
+        assert (result.getSubscriptions().size() == 1);
+        assert (result.getNodes().size() == 1);
+        assert (result.getTopics().isEmpty());
+
+        //
+        // nothing new: the watermark stays where it is
+        //
+        long watermark = result.getWatermark();
+        result = query(EPOCH, watermark, 2);
+        assert (result.getWatermark() == watermark);
+        assert (!result.isMore());
+        assert (result.getNodes().isEmpty());
+    }
+
+    @Test
+    public void testDeletes () throws MergeException {
+        topics.merge(stamp(new Topic("cats", "joe")));
+        users.merge(stamp(new User("joe", "a user")));
+        long watermark = query(0, 0, 100).getWatermark();
+
+        topics.remove("cats");
+
+        ChangesSinceResultObject result = query(EPOCH, watermark, 100);
+
+        assert (result.getTopics().isEmpty());
+        assert (result.getDeletedTopics().size() == 1);
+        assert (result.getDeletedTopics().get(0).equals("cats"));
+        assert (result.getDeletedUsers().isEmpty());
+    }
+
+    @Test
+    public void testOtherEpoch () throws MergeException {
+        topics.merge(stamp(new Topic("cats", "joe")));
+        topics.merge(stamp(new Topic("dogs", "joe")));
+
+        ChangesSinceResultObject result = query(EPOCH + 1, 1, 100);
+
+        assert (result.isReset());
+        assert (result.getTopics().size() == 2);
+
+        result = query(EPOCH, 1, 100);
+        assert (!result.isReset());
+        assert (result.getTopics().size() == 1);
+    }
+}
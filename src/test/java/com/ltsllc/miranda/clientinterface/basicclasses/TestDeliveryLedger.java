@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class TestDeliveryLedger extends TestCase {
+    private DeliveryLedger ledger;
+
+    public void reset () {
+        super.reset();
+
+        ledger = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        ledger = new DeliveryLedger("a subscription");
+    }
+
+    public static byte[] write (DeliveryLedger ledger) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+        ledger.writeTo(dataOutputStream);
+        dataOutputStream.flush();
+
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    public static DeliveryLedger read (byte[] bytes) throws IOException {
+        return DeliveryLedger.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void testWatermark () {
+        for (int i = 0; i < 10; i++) {
+            assert (ledger.next() == i);
+        }
+
+        assert (ledger.acknowledge(0, 100));
+        assert (ledger.getWatermark() == 1);
+
+        assert (ledger.acknowledge(3, 100));
+        assert (ledger.acknowledge(2, 100));
+        assert (!ledger.acknowledge(2, 100));
+        assert (ledger.getWatermark() == 1);
+        assert (ledger.getOutOfOrder() == 2);
+        assert (ledger.isDelivered(2) && ledger.isDelivered(3) && !ledger.isDelivered(1));
+
+        //
+        // filling the gap moves the watermark past everything acknowledged after it
+        //
+        assert (ledger.acknowledge(1, 100));
+        assert (ledger.getWatermark() == 4);
+        assert (ledger.getOutOfOrder() == 0);
+        assert (!ledger.acknowledge(1, 100));
+
+        ledger.acknowledge(4, 9, 100);
+        assert (ledger.getWatermark() == 10);
+    }
+
+    @Test
+    public void testChunkDropped () {
+        long start = DeliveryLedger.CHUNK_SIZE - 10;
+        ledger.acknowledge(0, start - 1, 100);
+
+        //
+        // acknowledgements on both sides of a chunk boundary, out of order
+        //
+        ledger.acknowledge(start + 5, 200);
+        ledger.acknowledge(start + 20, 300);
+        assert (ledger.getChunkCount() == 2);
+
+        ledger.acknowledge(start, start + 19, 400);
+        assert (ledger.getWatermark() == start + 21);
+        assert (ledger.getChunkCount() == 1);
+
+        ledger.acknowledge(start + 21, 2L * DeliveryLedger.CHUNK_SIZE + 5, 500);
+        assert (ledger.getChunkCount() == 0);
+        assert (ledger.getOutOfOrder() == 0);
+    }
+
+    @Test
+    public void testArrayToBitmap () throws IOException {
+        int count = DeliveryLedger.MAX_ARRAY_SIZE + 100;
+
+        //
+        // every other offset, so none of them moves the watermark
+        //
+        for (int i = 0; i < count; i++) {
+            long offset = 2L * i + 1;
+            assert (ledger.acknowledge(offset, 100));
+        }
+
+        assert (ledger.getOutOfOrder() == count);
+        assert (ledger.getChunkCount() == 1);
+
+        for (int i = 0; i < 2 * count; i++) {
+            assert (ledger.isDelivered(i) == (i % 2 == 1));
+        }
+
+        //
+        // a chunk that switched to a bitmap is written as 8KB of bits
+        //
+        byte[] bytes = write(ledger);
+        assert (bytes.length > DeliveryLedger.CHUNK_SIZE / 8);
+
+        DeliveryLedger copy = read(bytes);
+        for (int i = 0; i < 2 * count; i++) {
+            assert (copy.isDelivered(i) == (i % 2 == 1));
+        }
+
+        for (int i = 0; i < 2 * count; i += 2) {
+            copy.acknowledge(i, 100);
+        }
+
+        assert (copy.getWatermark() == 2 * count);
+        assert (copy.getChunkCount() == 1);
+    }
+
+    @Test
+    public void testRoundTrip () throws IOException {
+        for (int i = 0; i < 100; i++) {
+            ledger.next();
+        }
+
+        ledger.acknowledge(0, 49, 100);
+        ledger.acknowledge(60, 200);
+        ledger.acknowledge(70, 300);
+
+        DeliveryLedger copy = read(write(ledger));
+
+        assert (copy.getSubscription().equals("a subscription"));
+        assert (copy.getWatermark() == 50);
+        assert (copy.getOutOfOrder() == 2);
+        assert (copy.next() == 100);
+
+        for (int i = 0; i < 100; i++) {
+            assert (copy.isDelivered(i) == ledger.isDelivered(i));
+        }
+
+        Delivery delivery = copy.getDelivery(70, "event 70");
+        assert (delivery.getDelivered() == 300);
+        assert (delivery.getGuid().equals("a subscription@70"));
+        assert (null == delivery.getBatchId());
+        assert (null == copy.getDelivery(71, "event 71"));
+    }
+
+    public static Event createEvent (long sequence) {
+        Event event = new Event("a user", "event " + sequence, "a topic", 0, Event.Methods.POST, new byte[1]);
+        event.setSequence(sequence);
+
+        return event;
+    }
+
+    @Test
+    public void testByEvent () {
+        Event first = createEvent(1);
+        Event second = createEvent(2);
+        Event unnumbered = createEvent(0);
+
+        assert (DeliveryLedger.offsetOf(first) == 0);
+        assert (DeliveryLedger.offsetOf(unnumbered) == -1);
+
+        assert (ledger.acknowledge(second, 100));
+        assert (ledger.isDelivered(second));
+        assert (!ledger.isDelivered(first));
+        assert (!ledger.isDelivered(unnumbered));
+        assert (!ledger.acknowledge(unnumbered, 100));
+
+        Delivery delivery = ledger.getDelivery(second);
+        assert (delivery.getAttemptId().equals(second.getGuid()));
+        assert (null == ledger.getDelivery(first));
+
+        assert (ledger.acknowledge(first, 200));
+        assert (ledger.getWatermark() == 2);
+        assert (ledger.getOutOfOrder() == 0);
+    }
+
+    /**
+     * A Subscription created after its Topic had Events does not wait for the Events before it.
+     */
+    @Test
+    public void testFirstOffset () {
+        DeliveryLedger late = new DeliveryLedger("a subscription", 10);
+
+        assert (late.isDelivered(createEvent(5)));
+        assert (!late.isDelivered(createEvent(11)));
+        assert (late.acknowledge(createEvent(11), 100));
+        assert (late.getWatermark() == 11);
+        assert (late.next() == 11);
+    }
+}
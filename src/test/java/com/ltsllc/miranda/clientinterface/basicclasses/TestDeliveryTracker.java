@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestDeliveryTracker extends TestCase {
+    private DeliveryTracker deliveryTracker;
+    private AtomicInteger completions;
+
+    public DeliveryTracker getDeliveryTracker() {
+        return deliveryTracker;
+    }
+
+    public void reset () {
+        super.reset();
+
+        deliveryTracker = null;
+        completions = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        deliveryTracker = new DeliveryTracker();
+        completions = new AtomicInteger();
+        deliveryTracker.addCompletionListener(new Runnable() {
+            public void run() {
+                completions.incrementAndGet();
+            }
+        });
+    }
+
+    @Test
+    public void testAddAndRemove () {
+        getDeliveryTracker().add("cats");
+        getDeliveryTracker().addAll(Arrays.asList("dogs", "gerbils"));
+
+        assert (getDeliveryTracker().getPending() == 3);
+        assert (getDeliveryTracker().isPending("dogs"));
+
+        assert (getDeliveryTracker().remove("dogs"));
+        assert (!getDeliveryTracker().remove("dogs"));
+        assert (getDeliveryTracker().removeAll(Arrays.asList("cats", "gerbils", "hamsters")) == 2);
+
+        assert (getDeliveryTracker().isComplete());
+        assert (completions.get() == 1);
+    }
+
+    @Test
+    public void testCompletionListeners () {
+        final AtomicInteger others = new AtomicInteger();
+        Runnable other = new Runnable() {
+            public void run() {
+                others.incrementAndGet();
+            }
+        };
+
+        getDeliveryTracker().addCompletionListener(other);
+        getDeliveryTracker().add("cats");
+        getDeliveryTracker().remove("cats");
+
+        assert (completions.get() == 1);
+        assert (others.get() == 1);
+
+        assert (getDeliveryTracker().removeCompletionListener(other));
+        assert (!getDeliveryTracker().removeCompletionListener(other));
+        getDeliveryTracker().add("dogs");
+        getDeliveryTracker().remove("dogs");
+
+        assert (completions.get() == 2);
+        assert (others.get() == 1);
+    }
+
+    /**
+     * A deliverer added twice is pending until it is removed twice, like the list Events used
+     * to keep.
+     */
+    @Test
+    public void testDuplicatesCounted () {
+        getDeliveryTracker().add("cats");
+        getDeliveryTracker().add("cats");
+
+        assert (getDeliveryTracker().getPending() == 2);
+
+        getDeliveryTracker().remove("cats");
+        assert (getDeliveryTracker().isPending("cats"));
+        assert (!getDeliveryTracker().isComplete());
+
+        getDeliveryTracker().remove("cats");
+        assert (!getDeliveryTracker().isPending("cats"));
+        assert (getDeliveryTracker().isComplete());
+    }
+
+    @Test
+    public void testRemoveNullNeverNegative () {
+        assert (!getDeliveryTracker().remove(null));
+        assert (getDeliveryTracker().getPending() == 0);
+
+        getDeliveryTracker().add("cats");
+        assert (!getDeliveryTracker().remove(null));
+        assert (getDeliveryTracker().getPending() == 1);
+
+        getDeliveryTracker().add(null);
+        assert (getDeliveryTracker().remove(null));
+        assert (!getDeliveryTracker().remove(null));
+        assert (getDeliveryTracker().getPending() == 1);
+        assert (completions.get() == 0);
+    }
+
+    /**
+     * While deliveries are being added and removed on other threads, an Event with a delivery
+     * that is always pending must never look complete.
+     */
+    @Test
+    public void testNeverCompleteWhileAdding () throws InterruptedException {
+        final Event event = new Event(Event.Methods.POST, new byte[0]);
+        event.addAwaitingDelivery("always");
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final String deliverer = "deliverer " + i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        event.addAwaitingDelivery(deliverer);
+                        event.removeAwaitingDelivery(deliverer);
+                    }
+                }
+            });
+
+            threads[i].start();
+        }
+
+        for (int i = 0; i < 100000; i++) {
+            assert (!event.canBeEvicted());
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assert (event.getAwaitingDeliveryCount() == 1);
+        event.removeAwaitingDelivery("always");
+        assert (event.canBeEvicted());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Test;
+
+public class TestHybridLogicalClock extends TestCase {
+    public static class FixedClock extends HybridLogicalClock {
+        private long now;
+
+        public FixedClock (int node, long now) {
+            super(node);
+            this.now = now;
+        }
+
+        public void setNow(long now) {
+            this.now = now;
+        }
+
+        public long currentTimeMillis () {
+            return now;
+        }
+    }
+
+    @Test
+    public void testPack () {
+        long stamp = HybridLogicalClock.pack(1500000000000L, 17, 42);
+
+        assert (HybridLogicalClock.physicalTime(stamp) == 1500000000000L);
+        assert (HybridLogicalClock.counter(stamp) == 17);
+        assert (HybridLogicalClock.node(stamp) == 42);
+        assert (stamp > 0);
+    }
+
+    @Test
+    public void testTick () {
+        FixedClock clock = new FixedClock(1, 1000);
+
+        long first = clock.tick();
+        long second = clock.tick();
+
+        assert (second > first);
+        assert (HybridLogicalClock.physicalTime(second) == 1000);
+        assert (HybridLogicalClock.counter(second) == 1);
+
+        clock.setNow(500);
+        assert (clock.tick() > second);
+    }
+
+    @Test
+    public void testUpdate () {
+        FixedClock clock = new FixedClock(1, 1000);
+        FixedClock remoteClock = new FixedClock(2, 5000);
+
+        long remote = remoteClock.tick();
+        long local = clock.update(remote);
+
+        assert (local > remote);
+        assert (clock.tick() > local);
+    }
+
+    @Test
+    public void testMergeSameMillisecond () throws MergeException {
+        FixedClock clock1 = new FixedClock(1, 1000);
+        FixedClock clock2 = new FixedClock(2, 1000);
+
+        Topic topic1 = new Topic("whatever", "joe");
+        topic1.markChanged(clock1);
+
+        Topic topic2 = new Topic("whatever", "sam");
+        topic2.markChanged(clock2);
+
+        Topic copy1 = new Topic("whatever", "joe");
+        copy1.setChangeStamp(topic1.getChangeStamp());
+
+        topic1.merge(topic2);
+        topic2.merge(copy1);
+
+        assert (topic1.getOwner().equals("sam"));
+        assert (topic2.getOwner().equals("sam"));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TestKeyedStore extends TestCase {
+    private KeyedStore<String, Topic> keyedStore;
+    private HybridLogicalClock clock;
+
+    public KeyedStore<String, Topic> getKeyedStore() {
+        return keyedStore;
+    }
+
+    public void reset () {
+        super.reset();
+
+        keyedStore = null;
+        clock = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        keyedStore = new KeyedStore<String, Topic>();
+        clock = new HybridLogicalClock(1);
+    }
+
+    @Test
+    public void testHashCode () {
+        Set<NodeElement> set = new HashSet<NodeElement>();
+        set.add(new NodeElement("foo.com", 6789, "a node"));
+
+        assert (set.contains(new NodeElement("foo.com", 6789, "a node")));
+        assert (!set.contains(new NodeElement("foo.com", 6790, "a node")));
+    }
+
+    @Test
+    public void testGetAndPut () {
+        getKeyedStore().put(new Topic("cats", "joe"));
+        getKeyedStore().put(new Topic("dogs", "sam"));
+
+        assert (getKeyedStore().get("cats").getOwner().equals("joe"));
+        assert (getKeyedStore().find(new Topic("dogs")).getOwner().equals("sam"));
+        assert (null == getKeyedStore().get("gerbils"));
+    }
+
+    @Test
+    public void testMerge () throws MergeException {
+        Topic topic = new Topic("cats", "joe");
+        topic.markChanged(clock);
+        getKeyedStore().put(topic);
+
+        Topic update = new Topic("cats", "sam");
+        update.markChanged(clock);
+
+        Topic merged = getKeyedStore().merge(update);
+
+        assert (merged == topic);
+        assert (getKeyedStore().get("cats").getOwner().equals("sam"));
+    }
+
+    @Test
+    public void testMergeFrozen () throws MergeException {
+        Topic topic = new Topic("cats", "joe");
+        topic.markChanged(clock);
+        topic.freeze();
+        getKeyedStore().put(topic);
+
+        Topic update = new Topic("cats", "sam");
+        update.markChanged(clock);
+
+        getKeyedStore().merge(update);
+
+        assert (topic.getOwner().equals("joe"));
+        assert (getKeyedStore().get("cats").getOwner().equals("sam"));
+        assert (getKeyedStore().get("cats").isFrozen());
+    }
+
+    @Test
+    public void testOrder () {
+        getKeyedStore().put(new Topic("dogs", "joe"));
+        getKeyedStore().put(new Topic("cats", "joe"));
+        getKeyedStore().put(new Topic("gerbils", "joe"));
+        getKeyedStore().remove("dogs");
+
+        List<Topic> topics = getKeyedStore().values();
+
+        assert (topics.size() == 2);
+        assert (topics.get(0).getName().equals("cats"));
+        assert (topics.get(1).getName().equals("gerbils"));
+    }
+
+    @Test
+    public void testListener () {
+        final int[] counts = new int[3];
+
+        getKeyedStore().addListener(new KeyedStore.Listener<Topic>() {
+            public void added(Topic value) {
+                counts[0]++;
+            }
+
+            public void updated(Topic oldValue, Topic newValue) {
+                counts[1]++;
+            }
+
+            public void removed(Topic value) {
+                counts[2]++;
+            }
+        });
+
+        getKeyedStore().put(new Topic("cats", "joe"));
+        getKeyedStore().put(new Topic("cats", "sam"));
+        getKeyedStore().remove("cats");
+
+        assert (counts[0] == 1 && counts[1] == 1 && counts[2] == 1);
+    }
+}
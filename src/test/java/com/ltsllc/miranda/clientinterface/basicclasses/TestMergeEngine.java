@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestMergeEngine extends TestCase {
+    public static final int TOPICS = 1000;
+
+    private KeyedStore<String, Topic> keyedStore;
+    private ExecutorService executorService;
+    private MergeEngine<String, Topic> mergeEngine;
+    private HybridLogicalClock clock;
+
+    public MergeEngine<String, Topic> getMergeEngine() {
+        return mergeEngine;
+    }
+
+    public void reset () {
+        super.reset();
+
+        keyedStore = null;
+        executorService = null;
+        mergeEngine = null;
+        clock = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        keyedStore = new KeyedStore<String, Topic>();
+        executorService = Executors.newFixedThreadPool(4);
+        mergeEngine = new MergeEngine<String, Topic>(keyedStore, 8, executorService);
+        clock = new HybridLogicalClock(1);
+    }
+
+    @After
+    public void cleanup () {
+        executorService.shutdownNow();
+    }
+
+    public Topic createTopic (String name, String owner) {
+        Topic topic = new Topic(name, owner);
+        topic.markChanged(clock);
+        return topic;
+    }
+
+    @Test
+    public void testNewerWins () {
+        Topic older = createTopic("cats", "joe");
+        Topic newer = createTopic("cats", "sam");
+
+        MergeEngine.Result<Topic> result = getMergeEngine().merge(older);
+        assert (result.getAdded() == 1);
+
+        result = getMergeEngine().merge(newer);
+        assert (result.getUpdated() == 1);
+        assert (keyedStore.get("cats").getOwner().equals("sam"));
+
+        result = getMergeEngine().merge(older);
+        assert (result.getUnchanged() == 1);
+        assert (keyedStore.get("cats").getOwner().equals("sam"));
+    }
+
+    @Test
+    public void testConflict () {
+        Topic local = createTopic("cats", "joe");
+        getMergeEngine().merge(local);
+
+        Topic remote = new Topic("cats", "sam");
+        remote.setChangeStamp(local.getChangeStamp());
+
+        MergeEngine.Result<Topic> result = getMergeEngine().merge(remote);
+
+        assert (result.hasConflicts());
+        assert (result.getConflicts().get(0).getRemote() == remote);
+        assert (result.getConflicts().get(0).getMergeException() != null);
+        assert (keyedStore.get("cats").getOwner().equals("joe"));
+    }
+
+    @Test
+    public void testMergeAll () throws InterruptedException {
+        List<Topic> updates = new ArrayList<Topic>();
+        for (int i = 0; i < TOPICS; i++) {
+            updates.add(createTopic("topic " + i, "joe"));
+        }
+
+        //
+        // a second, newer, update for every other topic, in the same batch; within a stripe
+        // updates are merged in order, so the newer one has to win
+        //
+        for (int i = 0; i < TOPICS; i += 2) {
+            updates.add(createTopic("topic " + i, "sam"));
+        }
+
+        Topic conflicting = new Topic("topic 1", "someone else");
+        conflicting.setChangeStamp(updates.get(1).getChangeStamp());
+        updates.add(conflicting);
+
+        MergeEngine.Result<Topic> result = getMergeEngine().mergeAll(updates);
+
+        assert (result.getAdded() == TOPICS);
+        assert (result.getUpdated() == TOPICS / 2);
+        assert (result.getConflicts().size() == 1);
+        assert (keyedStore.size() == TOPICS);
+
+        for (int i = 0; i < TOPICS; i++) {
+            String owner = keyedStore.get("topic " + i).getOwner();
+            assert (owner.equals(i % 2 == 0 ? "sam" : "joe"));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestMirandaObject extends TestCase {
+    private List<MirandaObject> objects;
+
+    public List<MirandaObject> getObjects() {
+        return objects;
+    }
+
+    public void reset () {
+        super.reset();
+
+        objects = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        objects = new ArrayList<MirandaObject>();
+        objects.add(new Topic("a topic", "an owner"));
+        objects.add(new Subscription());
+        objects.add(new User("a user", User.UserTypes.Publisher, "a description"));
+        objects.add(new NodeElement("foo.com", 6789, "a node"));
+    }
+
+    /**
+     * The fields that make up the state of an object: everything but statics and transients.
+     */
+    public static List<Field> stateOf (Class<?> clazz) {
+        List<Field> fields = new ArrayList<Field>();
+
+        for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic())
+                    continue;
+
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * A value for a field that differs from anything a constructor would set.
+     */
+    public static Object sampleValue (Field field) {
+        Class<?> type = field.getType();
+
+        if (type == String.class)
+            return "sample " + field.getName();
+        else if (type == int.class)
+            return 7 + field.getName().length();
+        else if (type == long.class)
+            return 123456789L + field.getName().length();
+        else if (type == boolean.class)
+            return true;
+        else if (type.isEnum()) {
+            Object[] constants = type.getEnumConstants();
+            return constants[constants.length - 1];
+        }
+
+        return null;
+    }
+
+    public static Object sampleArgument (Class<?> type) {
+        if (type == int.class)
+            return 1;
+        else if (type == long.class)
+            return 1L;
+        else if (type == boolean.class)
+            return true;
+        else if (type == String.class)
+            return "something";
+        else if (type.isEnum())
+            return type.getEnumConstants()[0];
+
+        return null;
+    }
+
+    @Test
+    public void testCopyCopiesEveryField () throws IllegalAccessException {
+        for (MirandaObject object : getObjects()) {
+            List<Field> fields = stateOf(object.getClass());
+
+            for (Field field : fields) {
+                Object value = sampleValue(field);
+                if (null != value)
+                    field.set(object, value);
+            }
+
+            object.freeze();
+            MirandaObject copy = object.copy();
+
+            assert (copy.getClass() == object.getClass());
+            assert (!copy.isFrozen());
+
+            for (Field field : fields) {
+                Object expected = field.get(object);
+                Object actual = field.get(copy);
+
+                if (null == expected ? null != actual : !expected.equals(actual))
+                    throw new AssertionError(object.getClass().getSimpleName() + "." + field.getName()
+                            + " was not copied");
+            }
+
+            assert (copy.equals(object));
+        }
+    }
+
+    @Test
+    public void testFrozenSettersThrow () throws IllegalAccessException {
+        for (MirandaObject object : getObjects()) {
+            object.freeze();
+
+            int setters = 0;
+            for (Method method : object.getClass().getMethods()) {
+                if (!method.getName().startsWith("set") || Modifier.isStatic(method.getModifiers())
+                        || method.getParameterTypes().length != 1)
+                    continue;
+
+                try {
+                    method.invoke(object, sampleArgument(method.getParameterTypes()[0]));
+                    throw new AssertionError(object.getClass().getSimpleName() + "." + method.getName()
+                            + " changed a frozen object");
+                } catch (InvocationTargetException e) {
+                    assert (e.getCause() instanceof IllegalStateException);
+                }
+
+                setters++;
+            }
+
+            assert (setters > 0);
+        }
+    }
+
+    @Test
+    public void testCopyOfFrozenCanChange () {
+        Topic topic = new Topic("a topic", "an owner");
+        topic.freeze();
+
+        Topic copy = topic.copy();
+        copy.setOwner("someone else");
+
+        assert (topic.getOwner().equals("an owner"));
+        assert (copy.getOwner().equals("someone else"));
+    }
+
+    @Test
+    public void testFrozenMergeThrows () throws MergeException {
+        HybridLogicalClock clock = new HybridLogicalClock(1);
+
+        Topic topic = new Topic("a topic", "an owner");
+        topic.markChanged(clock);
+        topic.freeze();
+
+        Topic newer = new Topic("a topic", "someone else");
+        newer.markChanged(clock);
+
+        try {
+            topic.merge(newer);
+            throw new AssertionError("merged into a frozen object");
+        } catch (IllegalStateException e) {
+            assert (topic.getOwner().equals("an owner"));
+        }
+    }
+}
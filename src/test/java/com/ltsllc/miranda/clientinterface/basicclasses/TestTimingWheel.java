@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.basicclasses;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class TestTimingWheel extends TestCase {
+    /**
+     * The number of ticks that each level of the wheel reaches.
+     */
+    public static long range (int level) {
+        return 1L << (TimingWheel.SLOT_BITS * (level + 1));
+    }
+
+    /**
+     * Add an item for each deadline, then check that each comes back at its deadline and not
+     * a tick before.
+     */
+    public void checkDeadlines (long start, List<Long> deadlines) {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1, start);
+
+        for (long deadline : deadlines) {
+            wheel.add(deadline, deadline);
+        }
+
+        Collections.sort(deadlines);
+
+        for (long deadline : deadlines) {
+            List<Long> early = wheel.advance(deadline - 1);
+            assert (!early.contains(deadline));
+
+            List<Long> expired = wheel.advance(deadline);
+            assert (expired.size() == 1 && expired.get(0) == deadline);
+        }
+
+        assert (wheel.size() == 0);
+    }
+
+    @Test
+    public void testLevelBoundaries () {
+        List<Long> deadlines = new ArrayList<Long>();
+
+        for (int level = 0; level < TimingWheel.LEVELS; level++) {
+            long range = range(level);
+
+            deadlines.add(range - 1);
+            deadlines.add(range);
+            deadlines.add(range + 1);
+        }
+
+        checkDeadlines(0, deadlines);
+    }
+
+    @Test
+    public void testUnalignedStart () {
+        long start = 1000003;
+        List<Long> deadlines = new ArrayList<Long>();
+
+        //
+        // deadlines either side of where each level wraps around, measured from an unaligned start
+        //
+        for (int level = 0; level < TimingWheel.LEVELS; level++) {
+            long wrap = (start / range(level) + 1) * range(level);
+
+            deadlines.add(wrap - 1);
+            deadlines.add(wrap);
+            deadlines.add(wrap + 1);
+            deadlines.add(start + range(level) - 1);
+        }
+
+        checkDeadlines(start, new ArrayList<Long>(new HashSet<Long>(deadlines)));
+    }
+
+    @Test
+    public void testBeyondTopLevel () {
+        long far = range(TimingWheel.LEVELS - 1) * 3 + 17;
+
+        List<Long> deadlines = new ArrayList<Long>();
+        deadlines.add(far);
+        deadlines.add(far + 1);
+
+        checkDeadlines(5, deadlines);
+    }
+
+    @Test
+    public void testOverdue () {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 1000);
+
+        wheel.add("past", 500);
+        wheel.add("now", 1000);
+        wheel.add("later", 1011);
+
+        List<String> expired = wheel.advance(1000);
+        assert (expired.size() == 2 && expired.contains("past") && expired.contains("now"));
+
+        //
+        // deadlines are rounded up to the next tick
+        //
+        assert (wheel.advance(1019).isEmpty());
+        assert (wheel.advance(1020).contains("later"));
+    }
+
+    @Test
+    public void testCancel () {
+        TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+
+        TimingWheel.Timer<String> kept = wheel.add("kept", 5000);
+        TimingWheel.Timer<String> cancelled = wheel.add("cancelled", 5000);
+
+        assert (wheel.size() == 2);
+        assert (wheel.cancel(cancelled));
+        assert (!wheel.cancel(cancelled));
+        assert (!cancelled.isPending());
+        assert (wheel.size() == 1);
+
+        List<String> expired = wheel.advance(5000);
+        assert (expired.size() == 1 && expired.get(0).equals("kept"));
+        assert (!kept.isPending());
+        assert (!wheel.cancel(kept));
+    }
+
+    @Test
+    public void testRandom () {
+        Random random = new Random(41);
+        long tickMillis = 10;
+        long now = random.nextInt(1000000);
+        TimingWheel<Long> wheel = new TimingWheel<Long>(tickMillis, now);
+        Set<Long> pending = new HashSet<Long>();
+
+        for (int i = 0; i < 10000; i++) {
+            long deadline = now + random.nextInt(1 << 22);
+            if (pending.add(deadline))
+                wheel.add(deadline, deadline);
+        }
+
+        while (!pending.isEmpty()) {
+            now += random.nextInt(20000);
+
+            for (long deadline : wheel.advance(now)) {
+                long tick = (deadline + tickMillis - 1) / tickMillis;
+                assert (tick <= now / tickMillis);
+                assert (pending.remove(deadline));
+            }
+
+            for (long deadline : pending) {
+                assert ((deadline + tickMillis - 1) / tickMillis > now / tickMillis);
+            }
+        }
+
+        assert (wheel.size() == 0);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Delivery;
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestBatchDeliverer extends TestCase {
+    public static final long TIMEOUT = 5000;
+    public static final long LONG_LINGER = 60000;
+
+    /**
+     * An executor that can be told to turn work away.
+     */
+    public static class RejectingExecutor extends ScheduledThreadPoolExecutor {
+        private AtomicBoolean rejecting = new AtomicBoolean();
+
+        public RejectingExecutor (int threads) {
+            super(threads);
+        }
+
+        public void setRejecting (boolean rejecting) {
+            this.rejecting.set(rejecting);
+        }
+
+        public void execute (Runnable command) {
+            if (rejecting.get())
+                throw new RejectedExecutionException("rejecting");
+
+            super.execute(command);
+        }
+
+        public ScheduledFuture<?> schedule (Runnable command, long delay, TimeUnit unit) {
+            if (rejecting.get())
+                throw new RejectedExecutionException("rejecting");
+
+            return super.schedule(command, delay, unit);
+        }
+    }
+
+    private RejectingExecutor executor;
+    private Subscription subscription;
+    private List<List<Delivery>> batches;
+    private AtomicInteger posts;
+    private AtomicInteger concurrentPosts;
+    private AtomicBoolean overlapped;
+    private CountDownLatch release;
+    private BatchDeliverer deliverer;
+    private int guids;
+
+    public void reset () {
+        super.reset();
+
+        executor = null;
+        subscription = null;
+        batches = null;
+        posts = null;
+        concurrentPosts = null;
+        overlapped = null;
+        release = null;
+        deliverer = null;
+        guids = 0;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        executor = new RejectingExecutor(4);
+        subscription = new Subscription("subscription", "owner", "topic", "http://localhost/data", null,
+                Subscription.ErrorPolicies.Retry);
+        batches = Collections.synchronizedList(new ArrayList<List<Delivery>>());
+        posts = new AtomicInteger();
+        concurrentPosts = new AtomicInteger();
+        overlapped = new AtomicBoolean();
+        release = new CountDownLatch(0);
+
+        DeliveryTransport transport = new DeliveryTransport() {
+            public int post(String url, String contentType, byte[] body) throws IOException {
+                if (concurrentPosts.incrementAndGet() > 1)
+                    overlapped.set(true);
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                posts.incrementAndGet();
+                concurrentPosts.decrementAndGet();
+                return 200;
+            }
+
+            public int get(String url) {
+                return 200;
+            }
+        };
+
+        BatchDeliverer.Listener listener = new BatchDeliverer.Listener() {
+            public void delivered(List<Delivery> deliveries) {
+                batches.add(deliveries);
+            }
+
+            public void failed(List<Event> events, int status, IOException exception) {
+            }
+        };
+
+        deliverer = new BatchDeliverer(subscription, executor, transport, listener);
+    }
+
+    @After
+    public void cleanup () {
+        executor.shutdownNow();
+    }
+
+    public Event createEvent (int size) {
+        return new Event("a user", "event " + guids++, "topic", 0, Event.Methods.POST, new byte[size]);
+    }
+
+    public void waitForBatches (int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (batches.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assert (batches.size() >= count);
+    }
+
+    @Test
+    public void testSizeTrigger () throws InterruptedException {
+        subscription.setBatchMaxEvents(5);
+        subscription.setBatchLingerMillis(LONG_LINGER);
+
+        for (int i = 0; i < 8; i++) {
+            deliverer.add(createEvent(10));
+        }
+
+        waitForBatches(1);
+        assert (batches.get(0).size() == 5);
+        assert (deliverer.getPending() == 3);
+
+        deliverer.flush();
+        waitForBatches(2);
+        assert (batches.get(1).size() == 3);
+    }
+
+    @Test
+    public void testBytesTrigger () throws InterruptedException {
+        subscription.setBatchMaxEvents(100);
+        subscription.setBatchMaxBytes(250);
+        subscription.setBatchLingerMillis(LONG_LINGER);
+
+        for (int i = 0; i < 3; i++) {
+            deliverer.add(createEvent(100));
+        }
+
+        //
+        // the third Event puts the batch over the byte limit, so it waits for the next one
+        //
+        waitForBatches(1);
+        assert (batches.get(0).size() == 2);
+
+        Thread.sleep(50);
+        assert (deliverer.getPending() == 1);
+        assert (batches.size() == 1);
+    }
+
+    @Test
+    public void testLingerTrigger () throws InterruptedException {
+        subscription.setBatchMaxEvents(100);
+        subscription.setBatchLingerMillis(200);
+
+        long start = System.currentTimeMillis();
+        deliverer.add(createEvent(10));
+        deliverer.add(createEvent(10));
+
+        assert (batches.isEmpty());
+
+        waitForBatches(1);
+        assert (System.currentTimeMillis() - start >= 200);
+        assert (batches.get(0).size() == 2);
+    }
+
+    @Test
+    public void testOneInFlight () throws InterruptedException {
+        subscription.setBatchMaxEvents(10);
+        subscription.setBatchLingerMillis(0);
+        release = new CountDownLatch(1);
+
+        for (int i = 0; i < 200; i++) {
+            deliverer.add(createEvent(10));
+        }
+
+        Thread.sleep(50);
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (deliverer.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        int total = 0;
+        while (total < 200 && System.currentTimeMillis() < deadline) {
+            total = 0;
+            synchronized (batches) {
+                for (List<Delivery> batch : batches) {
+                    total += batch.size();
+                }
+            }
+        }
+
+        assert (!overlapped.get());
+        assert (total == 200);
+
+        int next = 0;
+        synchronized (batches) {
+            for (List<Delivery> batch : batches) {
+                assert (batch.size() <= 10);
+
+                for (Delivery delivery : batch) {
+                    assert (delivery.getAttemptId().equals("event " + next++));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testForBatch () throws InterruptedException {
+        subscription.setBatchMaxEvents(3);
+
+        for (int i = 0; i < 3; i++) {
+            deliverer.add(createEvent(10));
+        }
+
+        waitForBatches(1);
+        List<Delivery> deliveries = batches.get(0);
+        String batchId = deliveries.get(0).getBatchId();
+        assert (null != batchId);
+
+        for (int i = 0; i < deliveries.size(); i++) {
+            Delivery delivery = deliveries.get(i);
+            assert (delivery.getBatchId().equals(batchId));
+            assert (delivery.getGuid().equals(batchId + ":" + i));
+            assert (delivery.getAttemptId().equals("event " + i));
+            assert (delivery.getSubscription().equals("subscription"));
+        }
+
+        Delivery single = new Delivery(createEvent(10), 0, subscription);
+        assert (null == single.getBatchId());
+    }
+
+    @Test
+    public void testRejected () throws InterruptedException {
+        subscription.setBatchMaxEvents(2);
+        subscription.setBatchLingerMillis(LONG_LINGER);
+        executor.setRejecting(true);
+
+        try {
+            deliverer.add(createEvent(10));
+            assert (false);
+        } catch (RejectedExecutionException e) {
+            // the linger timer was turned away
+        }
+
+        try {
+            deliverer.add(createEvent(10));
+            assert (false);
+        } catch (RejectedExecutionException e) {
+            // the batch was turned away
+        }
+
+        assert (deliverer.getPending() == 2);
+
+        executor.setRejecting(false);
+        deliverer.add(createEvent(10));
+
+        waitForBatches(1);
+        assert (batches.get(0).size() == 2);
+        assert (batches.get(0).get(0).getAttemptId().equals("event 0"));
+        assert (batches.get(0).get(1).getAttemptId().equals("event 1"));
+        assert (deliverer.getPending() == 1);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.results.Results;
+import com.ltsllc.miranda.clientinterface.storage.EventLog;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TestFlowController extends TestCase {
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    public static final int MEMORY_EVENTS = 4;
+    public static final long THROTTLE_EVENTS = 20;
+
+    private File directory;
+    private EventLog eventLog;
+    private FlowController flowController;
+    private Subscription subscription;
+    private List<Boolean> changes;
+    private int count;
+
+    public void reset () {
+        super.reset();
+
+        directory = null;
+        eventLog = null;
+        flowController = null;
+        subscription = null;
+        changes = null;
+        count = 0;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            directory = Files.createTempDirectory("flow").toFile();
+            eventLog = new EventLog(directory, SEGMENT_SIZE, false);
+            flowController = new FlowController(eventLog, MEMORY_EVENTS, 0, THROTTLE_EVENTS);
+
+            changes = new ArrayList<Boolean>();
+            flowController.setListener(new FlowController.Listener() {
+                public void throttled(Subscription subscription, boolean throttled) {
+                    changes.add(throttled);
+                }
+            });
+
+            subscription = new Subscription("subscription", "owner", "topic", "http://localhost/data", null,
+                    Subscription.ErrorPolicies.Retry);
+            flowController.add(subscription);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () throws IOException {
+        eventLog.close();
+
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+
+    /**
+     * Publish Events to the Topic, with an Event for another Topic, which the Subscription
+     * does not get, between each of them.
+     */
+    public List<Event> publish (int number) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+
+        for (int i = 0; i < number; i++) {
+            Event event = new Event("a user", "event " + count, "topic", count, Event.Methods.POST, new byte[10]);
+            count++;
+
+            flowController.append(event, Collections.singletonList("subscription"));
+            eventLog.append(new Event("a user", "other " + count, "other", count, Event.Methods.POST, new byte[10]));
+            events.add(event);
+        }
+
+        return events;
+    }
+
+    public List<Event> pollAll () throws IOException {
+        List<Event> events = new ArrayList<Event>();
+
+        Event event;
+        while (null != (event = flowController.poll("subscription"))) {
+            events.add(event);
+            flowController.release("subscription", event);
+        }
+
+        return events;
+    }
+
+    public void assertOrder (List<Event> expected, List<Event> actual) {
+        assert (expected.size() == actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            assert (expected.get(i).getKey().equals(actual.get(i).getKey()));
+        }
+    }
+
+    @Test
+    public void testSpillAndRefill () throws IOException {
+        List<Event> expected = publish(15);
+
+        assert (flowController.getBacklog("subscription") == 15);
+        assert (flowController.getSpilled("subscription") == 15 - MEMORY_EVENTS);
+
+        assertOrder(expected, pollAll());
+        assert (flowController.getBacklog("subscription") == 0);
+        assert (flowController.getSpilled("subscription") == 0);
+    }
+
+    @Test
+    public void testPublishWhileRefilling () throws IOException {
+        List<Event> expected = publish(12);
+        List<Event> actual = new ArrayList<Event>();
+
+        //
+        // take some of the backlog, so that part of it has been read back from the log, then
+        // add more to the spilled range
+        //
+        for (int i = 0; i < 6; i++) {
+            Event event = flowController.poll("subscription");
+            flowController.release("subscription", event);
+            actual.add(event);
+        }
+
+        expected.addAll(publish(12));
+        actual.addAll(pollAll());
+
+        assertOrder(expected, actual);
+        assert (null == flowController.poll("subscription"));
+    }
+
+    @Test
+    public void testConcurrentAppends () throws Exception {
+        eventLog.close();
+        eventLog = new EventLog(directory, SEGMENT_SIZE, true);
+        flowController = new FlowController(eventLog, MEMORY_EVENTS, 0, 0);
+        flowController.add(subscription);
+
+        Thread[] threads = new Thread[4];
+        final IOException[] failure = new IOException[1];
+
+        for (int i = 0; i < threads.length; i++) {
+            final String publisher = "publisher " + i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 25; j++) {
+                            Event event = new Event("a user", publisher + " event " + j, "topic", j,
+                                    Event.Methods.POST, new byte[10]);
+                            flowController.append(event, Collections.singletonList("subscription"));
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assert (null == failure[0]);
+
+        //
+        // however the publishers interleaved, the Subscription gets the Events in log order
+        //
+        final List<Event> expected = new ArrayList<Event>();
+        eventLog.scan(0, Long.MAX_VALUE, new EventLog.Visitor() {
+            public boolean visit(Event event, long position) {
+                expected.add(event);
+                return true;
+            }
+        });
+
+        assert (expected.size() == 100);
+        assertOrder(expected, pollAll());
+    }
+
+    @Test
+    public void testRemovedWhileSpilled () throws IOException {
+        List<Event> expected = publish(10);
+
+        Event removed = expected.remove(7);
+        assert (eventLog.remove(removed.getKey()));
+
+        assertOrder(expected, pollAll());
+        assert (flowController.getBacklog("subscription") == 0);
+    }
+
+    @Test
+    public void testOutOfOrder () throws IOException {
+        Event first = new Event("a user", "first", "topic", 0, Event.Methods.POST, new byte[10]);
+        Event second = new Event("a user", "second", "topic", 1, Event.Methods.POST, new byte[10]);
+
+        long firstPosition = eventLog.append(first);
+        long secondPosition = eventLog.append(second);
+
+        assert (flowController.offer("subscription", second, secondPosition));
+
+        boolean refused = false;
+        try {
+            flowController.offer("subscription", first, firstPosition);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+
+        assert (refused);
+        assert (flowController.getBacklog("subscription") == 1);
+    }
+
+    @Test
+    public void testThrottleHysteresis () throws IOException {
+        publish((int) THROTTLE_EVENTS - 1);
+        assert (!flowController.isThrottled("topic"));
+
+        publish(1);
+        assert (flowController.isThrottled("topic"));
+        assert (flowController.checkPublish("topic") == Results.Throttled);
+        assert (flowController.checkPublish("other") == Results.Success);
+
+        //
+        // the throttle stays on until the backlog is down to half the limit
+        //
+        for (int i = 0; i < THROTTLE_EVENTS / 2 - 1; i++) {
+            flowController.release("subscription", flowController.poll("subscription"));
+        }
+
+        assert (flowController.isThrottled("topic"));
+
+        flowController.release("subscription", flowController.poll("subscription"));
+        assert (!flowController.isThrottled("topic"));
+        assert (flowController.getBacklog("subscription") == THROTTLE_EVENTS / 2);
+
+        assert (changes.size() == 2);
+        assert (changes.get(0));
+        assert (!changes.get(1));
+    }
+}
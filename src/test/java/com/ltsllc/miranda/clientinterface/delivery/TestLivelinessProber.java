@@ -0,0 +1,347 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestLivelinessProber extends TestCase {
+    public static final long MIN_INTERVAL = 20;
+    public static final long MAX_INTERVAL = 160;
+    public static final long TIMEOUT = 5000;
+
+    private HttpServer server;
+    private AtomicBoolean healthy;
+    private AtomicInteger probes;
+    private ScheduledExecutorService executor;
+    private List<Event> resumed;
+    private Subscription subscription;
+    private CircuitBreaker breaker;
+    private LivelinessProber prober;
+
+    public void reset () {
+        super.reset();
+
+        server = null;
+        healthy = null;
+        probes = null;
+        executor = null;
+        resumed = null;
+        subscription = null;
+        breaker = null;
+        prober = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            healthy = new AtomicBoolean(true);
+            probes = new AtomicInteger();
+
+            //
+            // a stand-in subscriber whose liveliness endpoint answers 200 or 503 depending on
+            // healthy, so a test can make it flap
+            //
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/alive", new HttpHandler() {
+                public void handle(HttpExchange httpExchange) throws IOException {
+                    probes.incrementAndGet();
+                    httpExchange.sendResponseHeaders(healthy.get() ? 200 : 503, -1);
+                    httpExchange.close();
+                }
+            });
+            server.start();
+
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            subscription = new Subscription("subscription", "owner", "topic", base + "/data",
+                    base + "/alive", Subscription.ErrorPolicies.Retry);
+
+            executor = Executors.newScheduledThreadPool(2);
+            resumed = Collections.synchronizedList(new ArrayList<Event>());
+
+            prober = new LivelinessProber(executor, new UrlConnectionTransport(1000, 1000),
+                    new LivelinessProber.Resumer() {
+                        public void resume(Subscription subscription, List<Event> events) {
+                            resumed.addAll(events);
+                        }
+                    }, MIN_INTERVAL, MAX_INTERVAL);
+
+            breaker = new CircuitBreaker(3, 60000, 60000);
+            prober.add(subscription, breaker);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () {
+        executor.shutdownNow();
+        server.stop(0);
+    }
+
+    public boolean waitFor (CircuitBreaker.States state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (breaker.getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        return breaker.getState() == state;
+    }
+
+    public Event createEvent () {
+        return new Event(Event.Methods.POST, new byte[10]);
+    }
+
+    public boolean waitForResumed (int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (resumed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        return resumed.size() >= count;
+    }
+
+    @Test
+    public void testIntervalBacksOff () throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (prober.getInterval("subscription") < MAX_INTERVAL && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assert (prober.getInterval("subscription") == MAX_INTERVAL);
+        assert (breaker.getState() == CircuitBreaker.States.Closed);
+    }
+
+    @Test
+    public void testParkWhileDown () throws InterruptedException {
+        healthy.set(false);
+
+        assert (waitFor(CircuitBreaker.States.Open));
+        assert (prober.getInterval("subscription") == MIN_INTERVAL);
+
+        Event first = createEvent();
+        Event second = createEvent();
+
+        assert (prober.submit(subscription, first) == LivelinessProber.Admissions.Parked);
+        assert (prober.submit(subscription, second) == LivelinessProber.Admissions.Parked);
+        assert (prober.getParked("subscription") == 2);
+        assert (resumed.isEmpty());
+
+        //
+        // the probe lets one parked Event through as a trial; its success releases the rest
+        //
+        healthy.set(true);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (resumed.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assert (resumed.size() == 1);
+        assert (resumed.get(0) == first);
+        assert (breaker.getState() == CircuitBreaker.States.HalfOpen);
+
+        prober.delivered("subscription");
+
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (resumed.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assert (resumed.size() == 2);
+        assert (resumed.get(1) == second);
+        assert (breaker.getState() == CircuitBreaker.States.Closed);
+        assert (prober.submit(subscription, createEvent()) == LivelinessProber.Admissions.Deliver);
+    }
+
+    @Test
+    public void testFlapping () throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            healthy.set(false);
+            assert (waitFor(CircuitBreaker.States.Open));
+
+            healthy.set(true);
+            assert (waitFor(CircuitBreaker.States.HalfOpen));
+
+            //
+            // the trial delivery fails, so the breaker opens again until the next good probe
+            //
+            assert (prober.submit(subscription, createEvent()) == LivelinessProber.Admissions.Deliver);
+            prober.failed("subscription", System.currentTimeMillis());
+            assert (breaker.getState() != CircuitBreaker.States.Closed);
+
+            assert (waitFor(CircuitBreaker.States.HalfOpen));
+            assert (prober.submit(subscription, createEvent()) == LivelinessProber.Admissions.Deliver);
+            prober.delivered("subscription");
+            assert (breaker.getState() == CircuitBreaker.States.Closed);
+        }
+
+        assert (probes.get() > 0);
+    }
+
+    @Test
+    public void testWakeWithoutProbe () throws InterruptedException {
+        //
+        // nothing probes this Subscription and nothing more is submitted, so only the breaker's
+        // open time can let the parked Event through
+        //
+        Subscription quiet = new Subscription("quiet", "owner", "topic", "http://127.0.0.1:1/data",
+                null, Subscription.ErrorPolicies.Retry);
+        CircuitBreaker quietBreaker = new CircuitBreaker(1, 50, 50);
+        prober.add(quiet, quietBreaker);
+
+        assert (prober.submit(quiet, createEvent()) == LivelinessProber.Admissions.Deliver);
+        prober.failed("quiet", System.currentTimeMillis());
+        assert (quietBreaker.getState() == CircuitBreaker.States.Open);
+
+        Event parked = createEvent();
+        assert (prober.submit(quiet, parked) == LivelinessProber.Admissions.Parked);
+
+        assert (waitForResumed(1));
+        assert (resumed.get(0) == parked);
+        assert (quietBreaker.getState() == CircuitBreaker.States.HalfOpen);
+
+        prober.delivered("quiet");
+        assert (quietBreaker.getState() == CircuitBreaker.States.Closed);
+        assert (prober.submit(quiet, createEvent()) == LivelinessProber.Admissions.Deliver);
+    }
+
+    @Test
+    public void testReplaceKeepsParked () throws InterruptedException {
+        healthy.set(false);
+        assert (waitFor(CircuitBreaker.States.Open));
+
+        Event first = createEvent();
+        Event second = createEvent();
+        assert (prober.submit(subscription, first) == LivelinessProber.Admissions.Parked);
+        assert (prober.submit(subscription, second) == LivelinessProber.Admissions.Parked);
+
+        //
+        // the new breaker is closed, so the Events parked under the old one are given back
+        //
+        breaker = new CircuitBreaker(3, 60000, 60000);
+        healthy.set(true);
+        prober.add(subscription, breaker);
+
+        assert (waitForResumed(2));
+        assert (resumed.get(0) == first);
+        assert (resumed.get(1) == second);
+        assert (prober.getParked("subscription") == 0);
+    }
+
+    @Test
+    public void testNoOvertaking () throws InterruptedException {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+
+        LivelinessProber blocking = new LivelinessProber(executor, new UrlConnectionTransport(1000, 1000),
+                new LivelinessProber.Resumer() {
+                    public void resume(Subscription subscription, List<Event> events) {
+                        entered.countDown();
+
+                        try {
+                            proceed.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+
+                        resumed.addAll(events);
+                    }
+                }, MIN_INTERVAL, MAX_INTERVAL);
+
+        Subscription quiet = new Subscription("quiet", "owner", "topic", "http://127.0.0.1:1/data",
+                null, Subscription.ErrorPolicies.Retry);
+        CircuitBreaker quietBreaker = new CircuitBreaker(1, 60000, 60000);
+        blocking.add(quiet, quietBreaker);
+
+        assert (blocking.submit(quiet, createEvent()) == LivelinessProber.Admissions.Deliver);
+        blocking.failed("quiet", System.currentTimeMillis());
+
+        Event first = createEvent();
+        Event second = createEvent();
+        assert (blocking.submit(quiet, first) == LivelinessProber.Admissions.Parked);
+        assert (blocking.submit(quiet, second) == LivelinessProber.Admissions.Parked);
+
+        //
+        // closing the breaker gives the parked Events back; until the Resumer has them, a new
+        // submission has to wait behind them
+        //
+        quietBreaker.recordSuccess();
+        assert (entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        Event third = createEvent();
+        assert (blocking.submit(quiet, third) == LivelinessProber.Admissions.Parked);
+
+        proceed.countDown();
+
+        assert (waitForResumed(3));
+        assert (resumed.get(0) == first);
+        assert (resumed.get(1) == second);
+        assert (resumed.get(2) == third);
+        assert (blocking.getParked("quiet") == 0);
+    }
+
+    @Test
+    public void testParkedBounded () {
+        LivelinessProber bounded = new LivelinessProber(executor, new UrlConnectionTransport(1000, 1000),
+                new LivelinessProber.Resumer() {
+                    public void resume(Subscription subscription, List<Event> events) {
+                        resumed.addAll(events);
+                    }
+                }, MIN_INTERVAL, MAX_INTERVAL, 2);
+
+        Subscription quiet = new Subscription("quiet", "owner", "topic", "http://127.0.0.1:1/data",
+                null, Subscription.ErrorPolicies.Retry);
+        CircuitBreaker quietBreaker = new CircuitBreaker(1, 60000, 60000);
+        bounded.add(quiet, quietBreaker);
+
+        assert (bounded.submit(quiet, createEvent()) == LivelinessProber.Admissions.Deliver);
+        bounded.failed("quiet", System.currentTimeMillis());
+
+        assert (bounded.submit(quiet, createEvent()) == LivelinessProber.Admissions.Parked);
+        assert (bounded.submit(quiet, createEvent()) == LivelinessProber.Admissions.Parked);
+        assert (bounded.submit(quiet, createEvent()) == LivelinessProber.Admissions.Refused);
+        assert (bounded.getParked("quiet") == 2);
+        assert (bounded.remove("quiet").size() == 2);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Topic;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class TestPartitionedDispatcher extends TestCase {
+    public static final int PARTITIONS = 8;
+    public static final int KEYS = 50;
+    public static final int EVENTS = 10000;
+
+    private Topic topic;
+    private ExecutorService executor;
+
+    public void reset () {
+        super.reset();
+
+        topic = null;
+        executor = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        topic = new Topic("a topic", "an owner");
+        topic.setPartitions(PARTITIONS);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanup () {
+        executor.shutdownNow();
+    }
+
+    public static Event createEvent (String key, int sequence) {
+        Event event = new Event("a user", key + " " + sequence, "a topic", sequence, Event.Methods.POST, new byte[0]);
+        event.setPartitionKey(key);
+
+        return event;
+    }
+
+    @Test
+    public void testPartitionFor () {
+        int[] counts = new int[PARTITIONS];
+
+        for (int i = 0; i < 8000; i++) {
+            String key = "key " + i;
+            int partition = Topic.partitionFor(key, PARTITIONS);
+
+            assert (partition >= 0 && partition < PARTITIONS);
+            assert (partition == Topic.partitionFor(key, PARTITIONS));
+            assert (partition == topic.partitionFor(key));
+            counts[partition]++;
+        }
+
+        for (int count : counts) {
+            assert (count > 800 && count < 1200);
+        }
+
+        assert (Topic.partitionFor("anything", 1) == 0);
+        assert (Topic.partitionFor((String) null, PARTITIONS) == 0);
+
+        //
+        // an Event without a partition key goes by its guid
+        //
+        Event event = new Event("a user", "a guid", "a topic", 0, Event.Methods.POST, new byte[0]);
+        assert (topic.partitionFor(event) == Topic.partitionFor("a guid", PARTITIONS));
+
+        event.setPartitionKey("a key");
+        assert (topic.partitionFor(event) == Topic.partitionFor("a key", PARTITIONS));
+    }
+
+    @Test
+    public void testOrderWithinKey () throws InterruptedException {
+        final Map<String, Integer> lastSequence = new ConcurrentHashMap<String, Integer>();
+        final AtomicIntegerArray running = new AtomicIntegerArray(PARTITIONS);
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final AtomicBoolean outOfOrder = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(EVENTS);
+
+        PartitionedDispatcher dispatcher = new PartitionedDispatcher(topic, executor, new PartitionedDispatcher.Handler() {
+            public void handle(Event event, int partition) {
+                if (running.incrementAndGet(partition) != 1)
+                    overlapped.set(true);
+
+                String key = event.getPartitionKey();
+                int sequence = (int) event.getTimeOfCreation();
+                Integer last = lastSequence.put(key, sequence);
+                if (null != last && last >= sequence)
+                    outOfOrder.set(true);
+
+                if (partition != Topic.partitionFor(key, PARTITIONS))
+                    outOfOrder.set(true);
+
+                running.decrementAndGet(partition);
+                done.countDown();
+            }
+        }, 16);
+
+        for (int i = 0; i < EVENTS; i++) {
+            dispatcher.dispatch(createEvent("key " + (i % KEYS), i));
+        }
+
+        assert (done.await(10, TimeUnit.SECONDS));
+        assert (!overlapped.get());
+        assert (!outOfOrder.get());
+        assert (lastSequence.size() == KEYS);
+        assert (dispatcher.getFailures() == 0);
+    }
+
+    @Test
+    public void testHandlerFailure () throws InterruptedException {
+        final AtomicInteger handled = new AtomicInteger();
+
+        Executor direct = new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        PartitionedDispatcher dispatcher = new PartitionedDispatcher(topic, direct, new PartitionedDispatcher.Handler() {
+            public void handle(Event event, int partition) {
+                if (event.getTimeOfCreation() == 0)
+                    throw new IllegalStateException("a runtime exception");
+                else if (event.getTimeOfCreation() == 1)
+                    throw new LinkageError("an error");
+
+                handled.incrementAndGet();
+            }
+        });
+
+        dispatcher.dispatch(createEvent("a key", 0));
+        assert (dispatcher.getFailures() == 1);
+
+        try {
+            dispatcher.dispatch(createEvent("a key", 1));
+            assert (false);
+        } catch (LinkageError e) {
+            assert (e.getMessage().equals("an error"));
+        }
+
+        //
+        // the partition is not stuck after the Error
+        //
+        dispatcher.dispatch(createEvent("a key", 2));
+        assert (handled.get() == 1);
+    }
+
+    @Test
+    public void testRejected () {
+        final AtomicBoolean reject = new AtomicBoolean(true);
+        final AtomicInteger handled = new AtomicInteger();
+
+        Executor executor = new Executor() {
+            public void execute(Runnable command) {
+                if (reject.get())
+                    throw new RejectedExecutionException("rejected");
+
+                command.run();
+            }
+        };
+
+        PartitionedDispatcher dispatcher = new PartitionedDispatcher(topic, executor, new PartitionedDispatcher.Handler() {
+            public void handle(Event event, int partition) {
+                handled.incrementAndGet();
+            }
+        });
+
+        try {
+            dispatcher.dispatch(createEvent("a key", 0));
+            assert (false);
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        int partition = Topic.partitionFor("a key", PARTITIONS);
+        assert (dispatcher.getQueued(partition) == 1);
+
+        reject.set(false);
+        dispatcher.dispatch(createEvent("a key", 1));
+
+        assert (handled.get() == 2);
+        assert (dispatcher.getQueued(partition) == 0);
+    }
+}
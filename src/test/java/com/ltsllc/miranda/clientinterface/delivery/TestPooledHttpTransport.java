@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestPooledHttpTransport extends TestCase {
+    public static final int MAX_CONNECTIONS = 2;
+    public static final int SHORT_TIMEOUT = 300;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private AtomicInteger received;
+    private AtomicInteger slow;
+    private CountDownLatch blocked;
+    private CountDownLatch unblock;
+    private String baseUrl;
+    private PooledHttpTransport transport;
+
+    public void reset () {
+        super.reset();
+
+        server = null;
+        serverExecutor = null;
+        received = null;
+        slow = null;
+        blocked = null;
+        unblock = null;
+        baseUrl = null;
+        transport = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            received = new AtomicInteger();
+            slow = new AtomicInteger();
+            blocked = new CountDownLatch(1);
+            unblock = new CountDownLatch(1);
+            serverExecutor = Executors.newFixedThreadPool(8);
+
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(serverExecutor);
+
+            server.createContext("/data", new HttpHandler() {
+                public void handle(HttpExchange httpExchange) throws IOException {
+                    InputStream inputStream = httpExchange.getRequestBody();
+                    while (inputStream.read() != -1) {
+                    }
+
+                    received.incrementAndGet();
+                    httpExchange.sendResponseHeaders(200, -1);
+                    httpExchange.close();
+                }
+            });
+
+            //
+            // a response length of 0 makes the server use chunked encoding
+            //
+            server.createContext("/chunked", new HttpHandler() {
+                public void handle(HttpExchange httpExchange) throws IOException {
+                    httpExchange.sendResponseHeaders(503, 0);
+                    OutputStream outputStream = httpExchange.getResponseBody();
+                    outputStream.write("try again later".getBytes("UTF-8"));
+                    outputStream.close();
+                }
+            });
+
+            //
+            // every request after the first takes longer than SHORT_TIMEOUT to answer
+            //
+            server.createContext("/slow", new HttpHandler() {
+                public void handle(HttpExchange httpExchange) throws IOException {
+                    InputStream inputStream = httpExchange.getRequestBody();
+                    while (inputStream.read() != -1) {
+                    }
+
+                    if (slow.incrementAndGet() > 1) {
+                        try {
+                            Thread.sleep(3 * SHORT_TIMEOUT);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    httpExchange.sendResponseHeaders(200, -1);
+                    httpExchange.close();
+                }
+            });
+
+            server.createContext("/block", new HttpHandler() {
+                public void handle(HttpExchange httpExchange) throws IOException {
+                    blocked.countDown();
+
+                    try {
+                        unblock.await(5000, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    httpExchange.sendResponseHeaders(200, -1);
+                    httpExchange.close();
+                }
+            });
+
+            server.start();
+
+            baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+            transport = new PooledHttpTransport(MAX_CONNECTIONS, 5000, 30000);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () {
+        transport.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testKeepAlive () throws IOException {
+        for (int i = 0; i < 100; i++) {
+            assert (200 == transport.post(baseUrl + "/data", "text/plain", new byte[100]));
+        }
+
+        PooledHttpTransport.HostMetrics metrics = transport.getMetrics(baseUrl + "/data");
+
+        assert (received.get() == 100);
+        assert (metrics.getRequests() == 100);
+        assert (metrics.getConnectionsOpened() == 1);
+        assert (metrics.getReused() == 99);
+        assert (metrics.getOpen() == 1);
+    }
+
+    @Test
+    public void testChunkedResponse () throws IOException {
+        for (int i = 0; i < 5; i++) {
+            assert (503 == transport.get(baseUrl + "/chunked"));
+        }
+
+        assert (transport.getMetrics(baseUrl + "/chunked").getConnectionsOpened() == 1);
+    }
+
+    @Test
+    public void testConnectionLimit () throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(10);
+        List<Callable<Integer>> callables = new ArrayList<Callable<Integer>>();
+
+        for (int i = 0; i < 200; i++) {
+            callables.add(new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return transport.post(baseUrl + "/data", "text/plain", new byte[10]);
+                }
+            });
+        }
+
+        try {
+            for (Future<Integer> future : clients.invokeAll(callables)) {
+                assert (200 == future.get());
+            }
+        } finally {
+            clients.shutdown();
+        }
+
+        PooledHttpTransport.HostMetrics metrics = transport.getMetrics(baseUrl + "/data");
+
+        assert (received.get() == 200);
+        assert (metrics.getConnectionsOpened() <= MAX_CONNECTIONS);
+        assert (metrics.getOpen() <= MAX_CONNECTIONS);
+        assert (metrics.getWaits() > 0);
+    }
+
+    @Test
+    public void testWarm () throws IOException {
+        transport.warm(baseUrl + "/data", MAX_CONNECTIONS);
+
+        PooledHttpTransport.HostMetrics metrics = transport.getMetrics(baseUrl + "/data");
+        assert (metrics.getConnectionsOpened() == MAX_CONNECTIONS);
+
+        transport.post(baseUrl + "/data", "text/plain", new byte[10]);
+
+        assert (metrics.getConnectionsOpened() == MAX_CONNECTIONS);
+        assert (metrics.getReused() == 1);
+        assert (transport.getHosts().size() == 1);
+    }
+
+    @Test
+    public void testTimeoutNotRetried () throws IOException {
+        PooledHttpTransport impatient = new PooledHttpTransport(MAX_CONNECTIONS, SHORT_TIMEOUT, 30000);
+
+        try {
+            assert (200 == impatient.post(baseUrl + "/slow", "text/plain", new byte[10]));
+
+            //
+            // the second request goes out on the reused connection and times out; the server
+            // may still act on it, so it must not be sent again
+            //
+            boolean failed = false;
+            try {
+                impatient.post(baseUrl + "/slow", "text/plain", new byte[10]);
+            } catch (IOException e) {
+                failed = true;
+            }
+
+            assert (failed);
+            assert (slow.get() == 2);
+            assert (impatient.getMetrics(baseUrl + "/slow").getConnectionsOpened() == 1);
+        } finally {
+            impatient.close();
+        }
+    }
+
+    @Test
+    public void testStaleConnectionRetried () throws Exception {
+        //
+        // a server that answers one request per connection and then closes it without saying
+        // so, as a server that times out idle connections does
+        //
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final AtomicInteger answered = new AtomicInteger();
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+
+                        int length = 0;
+                        String line;
+                        while (null != (line = reader.readLine()) && !line.isEmpty()) {
+                            if (line.toLowerCase().startsWith("content-length:"))
+                                length = Integer.parseInt(line.substring(15).trim());
+                        }
+
+                        for (int i = 0; i < length; i++) {
+                            reader.read();
+                        }
+
+                        answered.incrementAndGet();
+                        socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+                        socket.getOutputStream().flush();
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // the server socket was closed
+                }
+            }
+        });
+        thread.start();
+
+        try {
+            String url = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/data";
+
+            assert (200 == transport.post(url, "text/plain", new byte[10]));
+            Thread.sleep(50);
+            assert (200 == transport.post(url, "text/plain", new byte[10]));
+
+            PooledHttpTransport.HostMetrics metrics = transport.getMetrics(url);
+            assert (answered.get() == 2);
+            assert (metrics.getConnectionsOpened() == 2);
+            assert (metrics.getFailures() == 0);
+        } finally {
+            serverSocket.close();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testCloseWhileInUse () throws Exception {
+        ExecutorService client = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<Integer> future = client.submit(new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return transport.get(baseUrl + "/block");
+                }
+            });
+
+            assert (blocked.await(5000, TimeUnit.MILLISECONDS));
+
+            transport.close();
+            unblock.countDown();
+
+            assert (200 == future.get());
+
+            //
+            // the connection came back after the transport was closed, so it was not kept
+            //
+            PooledHttpTransport.HostMetrics metrics = transport.getMetrics(baseUrl + "/block");
+            assert (metrics.getOpen() == 0);
+            assert (metrics.getConnectionsClosed() == 1);
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testSweep () throws Exception {
+        PooledHttpTransport brief = new PooledHttpTransport(MAX_CONNECTIONS, 5000, 50);
+
+        try {
+            assert (200 == brief.post(baseUrl + "/data", "text/plain", new byte[10]));
+
+            PooledHttpTransport.HostMetrics metrics = brief.getMetrics(baseUrl + "/data");
+            assert (metrics.getOpen() == 1);
+
+            //
+            // nothing more is sent to the host, so only the sweep closes the connection
+            //
+            assert (brief.sweep() == 0);
+            Thread.sleep(100);
+
+            assert (brief.sweep() == 1);
+            assert (metrics.getOpen() == 0);
+            assert (metrics.getConnectionsClosed() == 1);
+            assert (brief.getHosts().isEmpty());
+
+            assert (200 == brief.post(baseUrl + "/data", "text/plain", new byte[10]));
+            assert (brief.getHosts().size() == 1);
+        } finally {
+            brief.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.storage.DeadLetterStore;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestRetryScheduler extends TestCase {
+    public static final long RETRY_DELAY = 100;
+    public static final long MAX_RETRY_DELAY = 1000;
+
+    private File directory;
+    private DeadLetterStore deadLetterStore;
+    private Subscription subscription;
+    private List<Integer> attempts;
+    private int failOnAttempt;
+    private RetryScheduler retryScheduler;
+
+    public void reset () {
+        super.reset();
+
+        directory = null;
+        deadLetterStore = null;
+        subscription = null;
+        attempts = null;
+        failOnAttempt = 0;
+        retryScheduler = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            directory = Files.createTempDirectory("retry").toFile();
+            deadLetterStore = new DeadLetterStore(directory, 4096);
+
+            subscription = new Subscription("subscription", "owner", "topic", "http://localhost/data", null,
+                    Subscription.ErrorPolicies.Retry);
+            subscription.setMaxAttempts(3);
+            subscription.setRetryDelayMillis(RETRY_DELAY);
+            subscription.setMaxRetryDelayMillis(MAX_RETRY_DELAY);
+
+            attempts = new ArrayList<Integer>();
+            retryScheduler = new RetryScheduler(1, new RetryScheduler.Handler() {
+                public void retry(Event event, Subscription subscription, int attempt) {
+                    attempts.add(attempt);
+
+                    if (attempt >= failOnAttempt && failOnAttempt > 0)
+                        throw new IllegalStateException("delivery failed");
+                }
+            }, deadLetterStore, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () throws IOException {
+        deadLetterStore.close();
+        delete(directory);
+    }
+
+    public static void delete (File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    public static Event createEvent () {
+        return new Event("a user", "an event", "topic", 0, Event.Methods.POST, new byte[0]);
+    }
+
+    @Test
+    public void testBackoffBounds () {
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long base = Math.min(RETRY_DELAY << (attempt - 1), MAX_RETRY_DELAY);
+            long smallest = Long.MAX_VALUE;
+            long largest = 0;
+
+            for (int i = 0; i < 2000; i++) {
+                long delay = RetryScheduler.delay(subscription, attempt);
+                assert (delay >= base - base / 2 && delay <= base);
+
+                smallest = Math.min(smallest, delay);
+                largest = Math.max(largest, delay);
+            }
+
+            //
+            // the jitter covers the whole lower half of the range
+            //
+            assert (smallest < base - base / 2 + base / 10);
+            assert (largest > base - base / 10);
+        }
+    }
+
+    @Test
+    public void testNoOverflow () {
+        subscription.setRetryDelayMillis(Long.MAX_VALUE / 3);
+        subscription.setMaxRetryDelayMillis(Long.MAX_VALUE);
+
+        for (int attempt = 1; attempt < 100; attempt++) {
+            long delay = RetryScheduler.delay(subscription, attempt);
+            assert (delay >= Long.MAX_VALUE / 6);
+        }
+    }
+
+    @Test
+    public void testMaxAttempts () throws IOException {
+        Event event = createEvent();
+
+        assert (retryScheduler.failed(event, subscription, 1, "failed", 0));
+        assert (retryScheduler.getPending() == 1);
+        assert (0 == retryScheduler.advance(RETRY_DELAY / 2 - 1));
+        assert (1 == retryScheduler.advance(RETRY_DELAY));
+        assert (attempts.get(0) == 2);
+
+        assert (retryScheduler.failed(event, subscription, 2, "failed", RETRY_DELAY));
+        assert (!retryScheduler.failed(event, subscription, 3, "the last reason", 1000));
+
+        assert (retryScheduler.getScheduled() == 2);
+        assert (retryScheduler.getDeadLettered() == 1);
+
+        DeadLetterStore.DeadLetter deadLetter = deadLetterStore.read("subscription", null, 10).getDeadLetters().get(0);
+        assert (deadLetter.getGuid().equals("an event"));
+        assert (deadLetter.getAttempts() == 3);
+        assert (deadLetter.getReason().equals("the last reason"));
+    }
+
+    @Test
+    public void testPolicies () throws IOException {
+        Subscription deadLetter = new Subscription("dead letter", "owner", "topic", "http://localhost/data", null,
+                Subscription.ErrorPolicies.DeadLetter);
+        assert (!retryScheduler.failed(createEvent(), deadLetter, 1, null, 0));
+        assert (deadLetterStore.size("dead letter") == 1);
+
+        Subscription drop = new Subscription("drop", "owner", "topic", "http://localhost/data", null,
+                Subscription.ErrorPolicies.Drop);
+        assert (!retryScheduler.failed(createEvent(), drop, 1, null, 0));
+        assert (deadLetterStore.size("drop") == 0);
+        assert (retryScheduler.getDropped() == 1);
+    }
+
+    @Test
+    public void testHandlerFailure () throws IOException {
+        failOnAttempt = 2;
+
+        retryScheduler.failed(createEvent(), subscription, 1, "failed", 0);
+
+        //
+        // the failed retry is rescheduled as attempt 3, and when that fails too it is dead lettered
+        //
+        retryScheduler.advance(RETRY_DELAY);
+        assert (retryScheduler.getFailures() == 1);
+        assert (retryScheduler.getPending() == 1);
+
+        retryScheduler.advance(RETRY_DELAY + 2 * RETRY_DELAY);
+        assert (attempts.size() == 2 && attempts.get(1) == 3);
+        assert (retryScheduler.getFailures() == 2);
+        assert (retryScheduler.getPending() == 0);
+        assert (retryScheduler.getDeadLettered() == 1);
+
+        DeadLetterStore.DeadLetter deadLetter = deadLetterStore.read("subscription", null, 10).getDeadLetters().get(0);
+        assert (deadLetter.getAttempts() == 3);
+        assert (deadLetter.getReason().contains("delivery failed"));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.delivery;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Subscription;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSubscriptionBoundedExecutor extends TestCase {
+    public static final long TIMEOUT = 5000;
+
+    private ExecutorService threads;
+    private SubscriptionBoundedExecutor executor;
+    private Subscription subscription;
+    private AtomicInteger concurrent;
+    private AtomicInteger maxConcurrent;
+
+    public void reset () {
+        super.reset();
+
+        threads = null;
+        executor = null;
+        subscription = null;
+        concurrent = null;
+        maxConcurrent = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        threads = Executors.newFixedThreadPool(16);
+        executor = new SubscriptionBoundedExecutor(threads);
+        subscription = new Subscription("subscription", "owner", "topic", "http://localhost/data", null,
+                Subscription.ErrorPolicies.Retry);
+        concurrent = new AtomicInteger();
+        maxConcurrent = new AtomicInteger();
+    }
+
+    @After
+    public void cleanup () {
+        threads.shutdownNow();
+    }
+
+    /**
+     * A delivery that keeps track of how many are running at once, and waits for a latch.
+     */
+    public Runnable createDelivery (final CountDownLatch done, final CountDownLatch proceed) {
+        return new Runnable() {
+            public void run() {
+                int now = concurrent.incrementAndGet();
+
+                int max;
+                while (now > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, now)) {
+                }
+
+                try {
+                    if (null == proceed)
+                        Thread.sleep(2);
+                    else
+                        proceed.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrent.decrementAndGet();
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testConcurrencyBound () throws InterruptedException {
+        subscription.setMaxConcurrency(3);
+        CountDownLatch done = new CountDownLatch(60);
+
+        for (int i = 0; i < 60; i++) {
+            executor.execute(subscription, createDelivery(done, null));
+        }
+
+        assert (done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assert (maxConcurrent.get() <= 3);
+        assert (maxConcurrent.get() > 1);
+        assert (executor.getQueued("subscription") == 0);
+        assert (executor.getFailures() == 0);
+    }
+
+    @Test
+    public void testOrder () throws InterruptedException {
+        subscription.setMaxConcurrency(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(200);
+
+        for (int i = 0; i < 200; i++) {
+            final int index = i;
+
+            executor.execute(subscription, new Runnable() {
+                public void run() {
+                    order.add(index);
+                    done.countDown();
+                }
+            });
+        }
+
+        assert (done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < 200; i++) {
+            assert (order.get(i) == i);
+        }
+    }
+
+    @Test
+    public void testRemove () throws InterruptedException {
+        subscription.setMaxConcurrency(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch dropped = new CountDownLatch(5);
+
+        executor.execute(subscription, createDelivery(first, proceed));
+        for (int i = 0; i < 5; i++) {
+            executor.execute(subscription, createDelivery(dropped, null));
+        }
+
+        executor.remove("subscription");
+        assert (executor.getQueued("subscription") == 0);
+
+        //
+        // the running delivery still counts, so one executed now has to wait for it
+        //
+        CountDownLatch later = new CountDownLatch(1);
+        executor.execute(subscription, createDelivery(later, null));
+
+        assert (executor.getInFlight("subscription") == 1);
+        assert (executor.getQueued("subscription") == 1);
+
+        proceed.countDown();
+
+        assert (first.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assert (later.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assert (maxConcurrent.get() == 1);
+        assert (dropped.getCount() == 5);
+    }
+
+    @Test
+    public void testRejected () throws InterruptedException {
+        threads.shutdown();
+
+        boolean rejected = false;
+        try {
+            executor.execute(subscription, createDelivery(new CountDownLatch(1), null));
+        } catch (RejectedExecutionException e) {
+            rejected = true;
+        }
+
+        assert (rejected);
+        assert (executor.getInFlight("subscription") == 0);
+        assert (executor.getQueued("subscription") == 1);
+    }
+}
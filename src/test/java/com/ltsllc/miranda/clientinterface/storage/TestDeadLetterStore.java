@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class TestDeadLetterStore extends TestCase {
+    public static final long SEGMENT_SIZE = 4096;
+    public static final long TIMEOUT = 5000;
+    public static final String SUBSCRIPTION = "a subscription/with odd characters";
+
+    private File directory;
+    private DeadLetterStore store;
+    private ScheduledExecutorService executor;
+
+    public void reset () {
+        super.reset();
+
+        directory = null;
+        store = null;
+        executor = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            directory = Files.createTempDirectory("dlq").toFile();
+            store = new DeadLetterStore(directory, SEGMENT_SIZE);
+            executor = Executors.newScheduledThreadPool(1);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () throws IOException {
+        executor.shutdownNow();
+        store.close();
+        delete(directory);
+    }
+
+    public static void delete (File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    public void addDeadLetters (int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            store.add(SUBSCRIPTION, "event " + i, i, 3, "reason " + i);
+        }
+    }
+
+    public File partitionDirectory () {
+        return directory.listFiles()[0];
+    }
+
+    public List<File> segmentFiles () {
+        List<File> files = new ArrayList<File>();
+        for (File file : partitionDirectory().listFiles()) {
+            if (file.getName().endsWith(DeadLetterStore.SEGMENT_SUFFIX))
+                files.add(file);
+        }
+
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Read every page, checking that each cursor moves forward.
+     */
+    public List<String> readAll (int pageSize) throws IOException {
+        List<String> guids = new ArrayList<String>();
+        String cursor = null;
+
+        while (true) {
+            DeadLetterStore.Page page = store.read(SUBSCRIPTION, cursor, pageSize);
+            assert (page.getDeadLetters().size() <= pageSize);
+
+            for (DeadLetterStore.DeadLetter deadLetter : page.getDeadLetters()) {
+                guids.add(deadLetter.getGuid());
+            }
+
+            if (!page.isMore())
+                return guids;
+
+            assert (!page.getCursor().equals(cursor));
+            cursor = page.getCursor();
+        }
+    }
+
+    public void waitUntilDone (DeadLetterStore.Replay replay) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!replay.isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assert (replay.isDone());
+    }
+
+    @Test
+    public void testPaging () throws IOException {
+        addDeadLetters(2000);
+
+        assert (segmentFiles().size() > 1);
+        assert (store.size(SUBSCRIPTION) == 2000);
+        assert (store.getSubscriptions().equals(Collections.singletonList(SUBSCRIPTION)));
+
+        List<String> guids = readAll(77);
+        assert (guids.size() == 2000);
+        for (int i = 0; i < guids.size(); i++) {
+            assert (guids.get(i).equals("event " + i));
+        }
+
+        DeadLetterStore.DeadLetter deadLetter = store.read(SUBSCRIPTION, "299", 1).getDeadLetters().get(0);
+        assert (deadLetter.getSequence() == 300);
+        assert (deadLetter.getTime() == 300);
+        assert (deadLetter.getAttempts() == 3);
+        assert (deadLetter.getReason().equals("reason 300"));
+    }
+
+    @Test
+    public void testTruncate () throws IOException {
+        addDeadLetters(2000);
+        int segments = segmentFiles().size();
+
+        store.truncate(SUBSCRIPTION, 999);
+        assert (store.size(SUBSCRIPTION) == 1000);
+        assert (segmentFiles().size() < segments);
+
+        DeadLetterStore.Page page = store.read(SUBSCRIPTION, null, 10);
+        assert (page.getDeadLetters().get(0).getSequence() == 1000);
+
+        //
+        // the head survives a reopen
+        //
+        store.close();
+        store = new DeadLetterStore(directory, SEGMENT_SIZE);
+        assert (store.size(SUBSCRIPTION) == 1000);
+        assert (store.read(SUBSCRIPTION, null, 1).getDeadLetters().get(0).getGuid().equals("event 1000"));
+    }
+
+    @Test
+    public void testTornTail () throws IOException {
+        addDeadLetters(100);
+        store.close();
+
+        File last = segmentFiles().get(segmentFiles().size() - 1);
+        long length = last.length();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(last, "rw");
+        try {
+            randomAccessFile.seek(length);
+            randomAccessFile.writeInt(40);
+            randomAccessFile.writeInt(12345);
+            randomAccessFile.write(new byte[10]);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        store = new DeadLetterStore(directory, SEGMENT_SIZE);
+        assert (store.size(SUBSCRIPTION) == 100);
+        assert (last.length() == length);
+
+        assert (store.add(SUBSCRIPTION, "event 100", 100, 1, null) == 100);
+        List<String> guids = readAll(30);
+        assert (guids.size() == 101);
+        assert (guids.get(100).equals("event 100"));
+    }
+
+    @Test
+    public void testDamagedRecord () throws IOException {
+        addDeadLetters(100);
+
+        //
+        // damage a record in the middle of the last segment after it was opened
+        //
+        File last = segmentFiles().get(segmentFiles().size() - 1);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(last, "rw");
+        try {
+            randomAccessFile.seek(last.length() / 2);
+            randomAccessFile.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        } finally {
+            randomAccessFile.close();
+        }
+
+        List<String> guids = readAll(10);
+        assert (guids.size() < 100);
+        assert (guids.get(0).equals("event 0"));
+    }
+
+    @Test
+    public void testReplay () throws InterruptedException, IOException {
+        addDeadLetters(30);
+
+        final List<String> replayed = Collections.synchronizedList(new ArrayList<String>());
+        DeadLetterStore.Replay replay = store.replay(SUBSCRIPTION, new DeadLetterStore.ReplayHandler() {
+            public boolean replay(String subscription, DeadLetterStore.DeadLetter deadLetter) {
+                replayed.add(deadLetter.getGuid());
+                return true;
+            }
+        }, 15, executor);
+
+        //
+        // 15 a second is a dead letter and a half a tick, which has to come out as 15, not 10
+        //
+        Thread.sleep(1050);
+        assert (replayed.size() >= 12 && replayed.size() <= 18);
+
+        waitUntilDone(replay);
+        assert (null == replay.getException());
+        assert (replay.getReplayed() == 30);
+        assert (store.size(SUBSCRIPTION) == 0);
+
+        for (int i = 0; i < 30; i++) {
+            assert (replayed.get(i).equals("event " + i));
+        }
+    }
+
+    @Test
+    public void testReplayHandlerFails () throws InterruptedException, IOException {
+        addDeadLetters(30);
+
+        DeadLetterStore.Replay replay = store.replay(SUBSCRIPTION, new DeadLetterStore.ReplayHandler() {
+            public boolean replay(String subscription, DeadLetterStore.DeadLetter deadLetter) {
+                if (deadLetter.getSequence() == 5)
+                    throw new IllegalStateException("handler failed");
+
+                return true;
+            }
+        }, 1000, executor);
+
+        waitUntilDone(replay);
+        assert (replay.getException() instanceof IllegalStateException);
+        assert (replay.getReplayed() == 5);
+        assert (store.size(SUBSCRIPTION) == 25);
+        assert (store.read(SUBSCRIPTION, null, 1).getDeadLetters().get(0).getSequence() == 5);
+    }
+
+    @Test
+    public void testReplayPastDamage () throws InterruptedException, IOException {
+        addDeadLetters(100);
+
+        File last = segmentFiles().get(segmentFiles().size() - 1);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(last, "rw");
+        try {
+            randomAccessFile.seek(last.length() - 20);
+            randomAccessFile.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        } finally {
+            randomAccessFile.close();
+        }
+
+        DeadLetterStore.Replay replay = store.replay(SUBSCRIPTION, new DeadLetterStore.ReplayHandler() {
+            public boolean replay(String subscription, DeadLetterStore.DeadLetter deadLetter) {
+                return true;
+            }
+        }, 1000, executor);
+
+        waitUntilDone(replay);
+        assert (null == replay.getException());
+        assert (replay.getReplayed() == 99);
+        assert (replay.getSkipped() == 1);
+        assert (store.size(SUBSCRIPTION) == 0);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.objects.CreateEventResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDuplicateDetector extends TestCase {
+    public static final long WINDOW = 1000;
+
+    private DuplicateDetector.MemoryKeyStore keyStore;
+    private DuplicateDetector detector;
+    private int guids;
+
+    public void reset () {
+        super.reset();
+
+        keyStore = null;
+        detector = null;
+        guids = 0;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        keyStore = new DuplicateDetector.MemoryKeyStore();
+        detector = new DuplicateDetector(WINDOW, 100, DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE, keyStore, 0);
+    }
+
+    public Event createEvent (String topicName, String idempotencyKey) {
+        Event event = new Event("a user", "guid " + guids++, topicName, 0, Event.Methods.POST, new byte[0]);
+        event.setIdempotencyKey(idempotencyKey);
+
+        return event;
+    }
+
+    @Test
+    public void testDuplicateInWindow () {
+        Event original = createEvent("a topic", "a key");
+        CreateEventResultObject result = detector.admit(original, 0);
+        assert (result.getResult() == Results.Success);
+        assert (result.getGuid().equals(original.getGuid()));
+
+        result = detector.admit(createEvent("a topic", "a key"), WINDOW - 1);
+        assert (result.getResult() == Results.Duplicate);
+        assert (result.getGuid().equals(original.getGuid()));
+        assert (detector.getDuplicates() == 1);
+
+        //
+        // Events without keys are never duplicates
+        //
+        assert (detector.admit(createEvent("a topic", null), 1).getResult() == Results.Success);
+        assert (detector.admit(createEvent("a topic", null), 1).getResult() == Results.Success);
+    }
+
+    @Test
+    public void testExpiry () {
+        Event original = createEvent("a topic", "a key");
+        detector.admit(original, 0);
+
+        //
+        // a key is remembered through the next window
+        //
+        CreateEventResultObject result = detector.admit(createEvent("a topic", "a key"), 2 * WINDOW - 1);
+        assert (result.getResult() == Results.Duplicate);
+
+        result = detector.admit(createEvent("a topic", "a key"), 2 * WINDOW);
+        assert (result.getResult() == Results.Success);
+        assert (keyStore.size() == 1);
+
+        //
+        // skipping whole windows forgets everything
+        //
+        result = detector.admit(createEvent("a topic", "a key"), 10 * WINDOW);
+        assert (result.getResult() == Results.Success);
+        assert (keyStore.size() == 1);
+    }
+
+    @Test
+    public void testTopicScope () {
+        Event first = createEvent("first topic", "a key");
+        Event second = createEvent("second topic", "a key");
+
+        assert (detector.admit(first, 0).getResult() == Results.Success);
+        assert (detector.admit(second, 0).getResult() == Results.Success);
+
+        CreateEventResultObject result = detector.admit(createEvent("second topic", "a key"), 0);
+        assert (result.getResult() == Results.Duplicate);
+        assert (result.getGuid().equals(second.getGuid()));
+    }
+
+    @Test
+    public void testFilterGrowth () {
+        int count = 20000;
+
+        for (int i = 0; i < count; i++) {
+            assert (detector.admit(createEvent("a topic", "key " + i), 0).getResult() == Results.Success);
+        }
+
+        //
+        // the first filter is sized for 100 keys; without growing, nearly every key after the
+        // first few hundred would be looked up
+        //
+        assert (detector.getFiltered() + detector.getLookups() == count);
+        assert (detector.getLookups() < count * DuplicateDetector.DEFAULT_FALSE_POSITIVE_RATE * 5);
+        assert (detector.getDuplicates() == 0);
+
+        for (int i = 0; i < count; i += 100) {
+            assert (detector.admit(createEvent("a topic", "key " + i), 1).getResult() == Results.Duplicate);
+        }
+    }
+}
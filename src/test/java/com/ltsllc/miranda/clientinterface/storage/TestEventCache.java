@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestEventCache extends TestCase {
+    public static final int CONTENT_SIZE = 100;
+    public static final int CAPACITY = 100;
+
+    private File spillDirectory;
+    private EventCache eventCache;
+
+    public EventCache getEventCache() {
+        return eventCache;
+    }
+
+    public void reset () {
+        super.reset();
+
+        spillDirectory = null;
+        eventCache = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            spillDirectory = Files.createTempDirectory("spill").toFile();
+            eventCache = new EventCache(CAPACITY * (EventCache.ENTRY_OVERHEAD + CONTENT_SIZE), spillDirectory);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () {
+        File[] files = spillDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        spillDirectory.delete();
+    }
+
+    public Event createEvent () {
+        return new Event(Event.Methods.POST, new byte[CONTENT_SIZE]);
+    }
+
+    @Test
+    public void testBudget () {
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            getEventCache().put(createEvent());
+        }
+
+        assert (getEventCache().getBytes() <= getEventCache().getMaxBytes());
+        assert (getEventCache().getStatistics().getEvictions() > 0);
+    }
+
+    @Test
+    public void testPendingNotEvicted () {
+        Event pending = createEvent();
+        pending.addAwaitingDelivery("a subscription");
+        getEventCache().put(pending);
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            getEventCache().put(createEvent());
+        }
+
+        assert (getEventCache().contains(pending.getGuid()));
+    }
+
+    @Test
+    public void testFrequentlyReadKept () {
+        List<Event> hot = new ArrayList<Event>();
+        for (int i = 0; i < CAPACITY / 10; i++) {
+            Event event = createEvent();
+            hot.add(event);
+            getEventCache().put(event);
+        }
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            if (i % 20 == 0) {
+                for (Event event : hot) {
+                    getEventCache().get(event.getGuid());
+                }
+            }
+
+            getEventCache().put(createEvent());
+        }
+
+        for (Event event : hot) {
+            assert (getEventCache().contains(event.getGuid()));
+        }
+
+        assert (getEventCache().getStatistics().getSpillHits() == 0);
+    }
+
+    @Test
+    public void testSpill () {
+        Event first = createEvent();
+        getEventCache().put(first);
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            getEventCache().put(createEvent());
+        }
+
+        assert (!getEventCache().contains(first.getGuid()));
+
+        Event reloaded = getEventCache().get(first.getGuid());
+
+        assert (null != reloaded);
+        assert (byteArraysAreEqual(reloaded.getContent(), first.getContent()));
+        assert (getEventCache().getStatistics().getSpillHits() == 1);
+    }
+
+    @Test
+    public void testPinnedRejoins () {
+        Event pending = createEvent();
+        pending.addAwaitingDelivery("a subscription");
+        getEventCache().put(pending);
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            getEventCache().put(createEvent());
+        }
+
+        assert (getEventCache().getStatistics().getPinned() == 1);
+
+        pending.removeAwaitingDelivery("a subscription");
+
+        assert (getEventCache().getStatistics().getPinned() == 0);
+        assert (getEventCache().getBytes() <= getEventCache().getMaxBytes());
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            getEventCache().put(createEvent());
+        }
+
+        assert (!getEventCache().contains(pending.getGuid()));
+    }
+
+    /**
+     * A burst of Events with pending deliveries is pinned rather than walked past on every put.
+     */
+    @Test
+    public void testPendingBurst () {
+        for (int i = 0; i < 2 * CAPACITY; i++) {
+            Event event = createEvent();
+            event.addAwaitingDelivery("a subscription");
+            getEventCache().put(event);
+        }
+
+        assert (getEventCache().getStatistics().getPinned() == 2 * CAPACITY);
+        assert (getEventCache().getStatistics().getEvictions() == 0);
+    }
+
+    @Test
+    public void testPutReplacesSpill () {
+        Event first = new Event("whatever", "12345", "a topic", 0, Event.Methods.POST, new byte[CONTENT_SIZE]);
+        getEventCache().put(first);
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            getEventCache().put(createEvent());
+        }
+
+        File spillFile = new File(spillDirectory, first.getGuid() + EventCache.SPILL_SUFFIX);
+        assert (spillFile.exists());
+
+        byte[] content = new byte[CONTENT_SIZE];
+        content[0] = 1;
+        Event second = new Event("whatever", "12345", "a topic", 0, Event.Methods.POST, content);
+        getEventCache().put(second);
+
+        assert (!spillFile.exists());
+
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            getEventCache().put(createEvent());
+        }
+
+        assert (spillFile.exists());
+        assert (getEventCache().getStatistics().getSpills() == getEventCache().getStatistics().getEvictions());
+
+        Event reloaded = getEventCache().get(second.getGuid());
+        assert (byteArraysAreEqual(reloaded.getContent(), content));
+    }
+}
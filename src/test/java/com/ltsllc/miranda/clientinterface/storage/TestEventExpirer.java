@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.Topic;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestEventExpirer extends TestCase {
+    public static final long TICK_MILLIS = 10;
+    public static final int CONTENT_SIZE = 100;
+
+    private EventExpirer expirer;
+    private List<Event> notified;
+
+    public void reset () {
+        super.reset();
+
+        expirer = null;
+        notified = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        expirer = new EventExpirer(TICK_MILLIS, 0);
+        notified = new ArrayList<Event>();
+        expirer.setListener(new EventExpirer.Listener() {
+            public void expired(Event event) {
+                notified.add(event);
+            }
+        });
+    }
+
+    public static Event createEvent (int number, long timeOfCreation) {
+        return new Event("a user", "event " + number, "a topic", timeOfCreation, Event.Methods.POST,
+                new byte[CONTENT_SIZE]);
+    }
+
+    @Test
+    public void testMaxAge () {
+        Topic topic = new Topic("a topic", "an owner");
+        topic.setMaxAge(1000);
+
+        Event first = createEvent(1, 0);
+        Event second = createEvent(2, 500);
+        expirer.schedule(first, topic);
+        expirer.schedule(second, topic);
+
+        assert (expirer.expire(999).isEmpty());
+
+        List<Event> removed = expirer.expire(1000);
+        assert (removed.size() == 1 && removed.get(0) == first);
+        assert (notified.size() == 1 && notified.get(0) == first);
+
+        removed = expirer.expire(1500);
+        assert (removed.size() == 1 && removed.get(0) == second);
+        assert (expirer.size() == 0);
+    }
+
+    @Test
+    public void testMaxAgePinned () {
+        Topic topic = new Topic("a topic", "an owner");
+        topic.setMaxAge(1000);
+
+        Event event = createEvent(1, 0);
+        event.addAwaitingDelivery("a subscription");
+        expirer.schedule(event, topic);
+
+        //
+        // an Event with a pending delivery outlives its maxAge, and goes once the delivery is done
+        //
+        assert (expirer.expire(1000).isEmpty());
+        assert (expirer.size() == 1);
+        assert (expirer.getPinned() == 1);
+
+        assert (expirer.expire(100000).isEmpty());
+
+        event.removeAwaitingDelivery("a subscription");
+
+        List<Event> removed = expirer.expire(100000 + TICK_MILLIS);
+        assert (removed.size() == 1 && removed.get(0) == event);
+        assert (expirer.size() == 0);
+        assert (expirer.getPinned() == 0);
+    }
+
+    @Test
+    public void testMaxBytes () {
+        Topic topic = new Topic("a topic", "an owner");
+        topic.setMaxBytes(10 * CONTENT_SIZE);
+
+        for (int i = 0; i < 15; i++) {
+            expirer.schedule(createEvent(i, i), topic);
+        }
+
+        assert (expirer.getBytes("a topic") == 15 * CONTENT_SIZE);
+
+        List<Event> removed = expirer.expire(0);
+        assert (removed.size() == 5);
+        for (int i = 0; i < 5; i++) {
+            assert (removed.get(i).getGuid().equals("event " + i));
+        }
+
+        assert (expirer.getBytes("a topic") == 10 * CONTENT_SIZE);
+        assert (expirer.size() == 10);
+    }
+
+    @Test
+    public void testMaxBytesPinned () {
+        Topic topic = new Topic("a topic", "an owner");
+        topic.setMaxBytes(10 * CONTENT_SIZE);
+
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 12; i++) {
+            Event event = createEvent(i, i);
+            events.add(event);
+            expirer.schedule(event, topic);
+        }
+
+        //
+        // the oldest Event is pinned, so the ones after it go instead
+        //
+        events.get(0).addAwaitingDelivery("a subscription");
+        List<Event> removed = expirer.expire(0);
+        assert (removed.size() == 2);
+        assert (removed.get(0) == events.get(1) && removed.get(1) == events.get(2));
+        assert (expirer.getBytes("a topic") == 10 * CONTENT_SIZE);
+        assert (expirer.getPinned() == 1);
+
+        //
+        // once it is released it is the oldest again, and goes first
+        //
+        events.get(0).removeAwaitingDelivery("a subscription");
+        topic.setMaxBytes(9 * CONTENT_SIZE);
+        removed = expirer.expire(0);
+        assert (removed.size() == 1 && removed.get(0) == events.get(0));
+        assert (expirer.getPinned() == 0);
+    }
+
+    @Test
+    public void testRemoveInMiddle () {
+        Topic topic = new Topic("a topic", "an owner");
+        topic.setMaxBytes(1000 * CONTENT_SIZE);
+
+        for (int i = 0; i < 1000; i++) {
+            expirer.schedule(createEvent(i, i), topic);
+        }
+
+        for (int i = 1; i < 1000; i += 2) {
+            assert (expirer.remove("event " + i));
+        }
+
+        assert (expirer.size() == 500);
+        assert (expirer.getBytes("a topic") == 500 * CONTENT_SIZE);
+
+        //
+        // rescheduling an Event moves it to the back
+        //
+        expirer.schedule(createEvent(0, 0), topic);
+        topic.setMaxBytes(498 * CONTENT_SIZE);
+
+        List<Event> removed = expirer.expire(0);
+        assert (removed.size() == 2);
+        assert (removed.get(0).getGuid().equals("event 2"));
+        assert (removed.get(1).getGuid().equals("event 4"));
+        assert (expirer.getBytes("a topic") == 498 * CONTENT_SIZE);
+    }
+}
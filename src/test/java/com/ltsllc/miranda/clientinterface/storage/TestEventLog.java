@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestEventLog extends TestCase {
+    public static final int SEGMENT_SIZE = 4096;
+    public static final int CONTENT_SIZE = 200;
+
+    private File directory;
+    private EventLog eventLog;
+
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
+    public void reset () {
+        super.reset();
+
+        directory = null;
+        eventLog = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            directory = Files.createTempDirectory("log").toFile();
+            eventLog = new EventLog(directory, SEGMENT_SIZE, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () throws IOException {
+        eventLog.close();
+
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+
+    public Event createEvent (int number) {
+        return new Event("a user", "event " + number, "a topic", number, Event.Methods.POST, new byte[CONTENT_SIZE]);
+    }
+
+    public void reopen () throws IOException {
+        eventLog.close();
+        eventLog = new EventLog(directory, SEGMENT_SIZE, false);
+    }
+
+    @Test
+    public void testRoll () throws IOException {
+        for (int i = 0; i < 100; i++) {
+            getEventLog().append(createEvent(i));
+        }
+
+        assert (getEventLog().getSegmentCount() > 1);
+
+        reopen();
+
+        assert (getEventLog().size() == 100);
+        for (int i = 0; i < 100; i++) {
+            assert (getEventLog().get("event " + i).getTimeOfCreation() == i);
+        }
+
+        final List<Long> positions = new ArrayList<Long>();
+        getEventLog().scan(0, Long.MAX_VALUE, new EventLog.Visitor() {
+            public boolean visit(Event event, long position) {
+                positions.add(position);
+                return true;
+            }
+        });
+
+        List<Long> sorted = new ArrayList<Long>(positions);
+        Collections.sort(sorted);
+        assert (positions.size() == 100);
+        assert (positions.equals(sorted));
+    }
+
+    @Test
+    public void testRemove () throws IOException {
+        getEventLog().append(createEvent(1));
+        getEventLog().append(createEvent(2));
+        assert (getEventLog().remove("event 1"));
+        assert (!getEventLog().remove("event 1"));
+
+        reopen();
+
+        assert (null == getEventLog().get("event 1"));
+        assert (null != getEventLog().get("event 2"));
+    }
+
+    /**
+     * A record cut off by a crash is dropped when the log is opened, and the next record is
+     * written where it was.
+     */
+    @Test
+    public void testTornTail () throws IOException {
+        getEventLog().append(createEvent(1));
+        getEventLog().append(createEvent(2));
+        long torn = getEventLog().append(createEvent(3));
+        eventLog.close();
+
+        File segment = new File(directory, String.format("%010d", EventLog.segmentOf(torn)) + EventLog.SEGMENT_SUFFIX);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(segment, "rw")) {
+            long offset = EventLog.offsetOf(torn) + 20;
+            randomAccessFile.seek(offset);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(value ^ 0xFF);
+        }
+
+        eventLog = new EventLog(directory, SEGMENT_SIZE, false);
+
+        assert (getEventLog().size() == 2);
+        assert (null != getEventLog().get("event 2"));
+        assert (null == getEventLog().get("event 3"));
+
+        assert (getEventLog().append(createEvent(4)) == torn);
+        reopen();
+        assert (getEventLog().get("event 4").getTimeOfCreation() == 4);
+    }
+
+    /**
+     * Appends that sync on many threads at once all end up in the log.
+     */
+    @Test
+    public void testGroupCommit () throws Exception {
+        eventLog.close();
+        eventLog = new EventLog(directory, SEGMENT_SIZE, true);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            getEventLog().append(createEvent(thread * 1000 + j));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assert (null == failure.get());
+
+        reopen();
+        assert (getEventLog().size() == 800);
+    }
+
+    @Test
+    public void testRetentionByBytes () throws IOException {
+        for (int i = 0; i < 100; i++) {
+            getEventLog().append(createEvent(i));
+        }
+
+        int before = getEventLog().getSegmentCount();
+        int deleted = getEventLog().deleteSegments(2 * SEGMENT_SIZE, Long.MAX_VALUE);
+
+        assert (deleted == before - 2);
+        assert (getEventLog().getSegmentCount() == 2);
+        assert (!getEventLog().contains("event 0"));
+        assert (getEventLog().contains("event 99"));
+        assert (getEventLog().size() < 100);
+    }
+
+    @Test
+    public void testRetentionByAge () throws Exception {
+        for (int i = 0; i < 100; i++) {
+            getEventLog().append(createEvent(i));
+        }
+
+        assert (getEventLog().deleteSegments(Long.MAX_VALUE, 60 * 60 * 1000) == 0);
+
+        Thread.sleep(50);
+        getEventLog().append(createEvent(100));
+
+        int before = getEventLog().getSegmentCount();
+        assert (getEventLog().deleteSegments(Long.MAX_VALUE, 25) == before - 1);
+        assert (getEventLog().getSegmentCount() == 1);
+        assert (getEventLog().contains("event 100"));
+    }
+
+    /**
+     * A limit of 0 is no limit, as it is for a Topic.
+     */
+    @Test
+    public void testZeroLimits () throws Exception {
+        for (int i = 0; i < 100; i++) {
+            getEventLog().append(createEvent(i));
+        }
+
+        int before = getEventLog().getSegmentCount();
+
+        assert (getEventLog().deleteSegments(0, 0) == 0);
+        assert (getEventLog().deleteSegments(0, 60 * 60 * 1000) == 0);
+        assert (getEventLog().deleteSegments(Long.MAX_VALUE, 0) == 0);
+        assert (getEventLog().getSegmentCount() == before);
+        assert (getEventLog().size() == 100);
+    }
+}
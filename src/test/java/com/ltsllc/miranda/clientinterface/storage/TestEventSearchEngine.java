@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.basicclasses.KeyedStore;
+import com.ltsllc.miranda.clientinterface.requests.EventSearchRequest;
+import com.ltsllc.miranda.clientinterface.results.EventSearchResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestEventSearchEngine extends TestCase {
+    public static final int EVENTS_PER_PREFIX = 1000;
+
+    private KeyedStore<String, Event> store;
+    private ExecutorService executor;
+
+    public void reset () {
+        super.reset();
+
+        store = null;
+        executor = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        store = new KeyedStore<String, Event>();
+        executor = Executors.newFixedThreadPool(4);
+
+        for (String prefix : new String[] { "a-", "b-" }) {
+            for (int i = 0; i < EVENTS_PER_PREFIX; i++) {
+                store.put(new Event("a user", String.format("%s%04d", prefix, i), "a topic", i,
+                        Event.Methods.POST, new byte[0]));
+            }
+        }
+    }
+
+    @After
+    public void cleanup () {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Follow the cursors until the last page, checking that every page is in guid order.
+     */
+    public List<String> searchAll (EventSearchEngine engine, String regularExpression, int pageSize) {
+        List<String> guids = new ArrayList<String>();
+        String cursor = null;
+
+        while (true) {
+            EventSearchRequest request = new EventSearchRequest("a session");
+            request.setGuidRegularExpression(regularExpression);
+            request.setMaxResults(pageSize);
+            request.setCursor(cursor);
+
+            EventSearchResultObject result = engine.search(request);
+            assert (result.getResult() == Results.Success);
+            assert (result.getEvents().size() <= pageSize);
+
+            for (Event event : result.getEvents()) {
+                assert (guids.isEmpty() || event.getGuid().compareTo(guids.get(guids.size() - 1)) > 0);
+                guids.add(event.getGuid());
+            }
+
+            if (!result.isMore())
+                return guids;
+
+            assert (null != result.getCursor() && !result.getCursor().equals(cursor));
+            cursor = result.getCursor();
+        }
+    }
+
+    @Test
+    public void testPrefixPaging () {
+        EventSearchEngine engine = new EventSearchEngine(store);
+
+        EventSearchEngine.CompiledSearch compiledSearch = engine.compile("b-.*");
+        assert (compiledSearch.getPrefix().equals("b-"));
+        assert (compiledSearch.isPrefixOnly());
+
+        List<String> guids = searchAll(engine, "b-.*", 128);
+
+        assert (guids.size() == EVENTS_PER_PREFIX);
+        assert (guids.get(0).equals("b-0000"));
+        assert (guids.get(guids.size() - 1).equals("b-0999"));
+    }
+
+    @Test
+    public void testPrefixWithPattern () {
+        EventSearchEngine engine = new EventSearchEngine(store);
+
+        EventSearchEngine.CompiledSearch compiledSearch = engine.compile("a-0\\d5.");
+        assert (compiledSearch.getPrefix().equals("a-0"));
+        assert (!compiledSearch.isPrefixOnly());
+
+        List<String> guids = searchAll(engine, "a-0\\d5.", 7);
+
+        assert (guids.size() == 100);
+        for (String guid : guids) {
+            assert (guid.startsWith("a-0") && guid.charAt(4) == '5');
+        }
+    }
+
+    @Test
+    public void testParallelPaging () {
+        EventSearchEngine engine = new EventSearchEngine(store, executor, 4, EventSearchEngine.DEFAULT_MAX_SCANNED);
+
+        List<String> guids = searchAll(engine, ".*[13]$", 50);
+
+        assert (guids.size() == EVENTS_PER_PREFIX * 2 / 5);
+        for (String guid : guids) {
+            assert (guid.endsWith("1") || guid.endsWith("3"));
+        }
+    }
+
+    @Test
+    public void testMaxScanned () {
+        EventSearchEngine engine = new EventSearchEngine(store, null, 1, 300);
+
+        EventSearchRequest request = new EventSearchRequest("a session");
+        request.setGuidRegularExpression(".*-0999");
+
+        EventSearchResultObject result = engine.search(request);
+        assert (result.getResult() == Results.Success);
+        assert (result.getEvents().isEmpty());
+        assert (result.isMore());
+
+        List<String> guids = searchAll(engine, ".*-0999", 10);
+        assert (guids.size() == 2);
+        assert (guids.get(0).equals("a-0999"));
+        assert (guids.get(1).equals("b-0999"));
+    }
+
+    @Test
+    public void testInvalidExpression () {
+        EventSearchEngine engine = new EventSearchEngine(store);
+
+        EventSearchRequest request = new EventSearchRequest("a session");
+        request.setGuidRegularExpression("a-(");
+        assert (engine.search(request).getResult() == Results.InvalidRequest);
+
+        request.setGuidRegularExpression(null);
+        assert (engine.search(request).getResult() == Results.InvalidRequest);
+    }
+
+    @Test
+    public void testLiteralPrefix () {
+        StringBuilder prefix = new StringBuilder();
+        assert (EventSearchEngine.literalPrefix("^abc\\.d*", prefix) == 6);
+        assert (prefix.toString().equals("abc."));
+
+        prefix = new StringBuilder();
+        EventSearchEngine.literalPrefix("ab+c", prefix);
+        assert (prefix.toString().equals("ab"));
+
+        prefix = new StringBuilder();
+        EventSearchEngine.literalPrefix("abc|abd", prefix);
+        assert (prefix.length() == 0);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.requests.EventRangeRequest;
+import com.ltsllc.miranda.clientinterface.results.EventRangeResultObject;
+import com.ltsllc.miranda.clientinterface.results.Results;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestEventTimeIndex extends TestCase {
+    public static final int SEGMENT_SIZE = 4096;
+    public static final int BLOCK_SIZE = 8;
+
+    private File directory;
+    private EventLog eventLog;
+    private EventTimeIndex eventTimeIndex;
+
+    public void reset () {
+        super.reset();
+
+        directory = null;
+        eventLog = null;
+        eventTimeIndex = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            directory = Files.createTempDirectory("index").toFile();
+            eventLog = new EventLog(directory, SEGMENT_SIZE, false);
+            eventTimeIndex = new EventTimeIndex(eventLog, BLOCK_SIZE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () throws IOException {
+        eventLog.close();
+
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+
+    /**
+     * Add Events to two Topics, one after the other, with times 0, 1, 2 and so on.
+     */
+    public void appendEvents (int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            String topicName = i % 2 == 0 ? "even" : "odd";
+            eventTimeIndex.append(new Event("a user", "event " + i, topicName, i, Event.Methods.POST, new byte[10]));
+        }
+    }
+
+    public EventRangeResultObject query (String topicName, long from, long to, int limit, String cursor)
+            throws IOException {
+        EventRangeRequest request = new EventRangeRequest("a session", topicName, from, to);
+        request.setLimit(limit);
+        request.setCursor(cursor);
+
+        return eventTimeIndex.query(request);
+    }
+
+    @Test
+    public void testPaging () throws IOException {
+        appendEvents(400);
+
+        List<Long> times = new ArrayList<Long>();
+        String cursor = null;
+
+        while (true) {
+            EventRangeResultObject result = query("even", 100, 299, 7, cursor);
+            assert (result.getResult() == Results.Success);
+
+            for (Event event : result.getEvents()) {
+                assert (event.getTopicName().equals("even"));
+                times.add(event.getTimeOfCreation());
+            }
+
+            if (!result.isMore())
+                break;
+
+            cursor = result.getCursor();
+        }
+
+        assert (times.size() == 100);
+        for (int i = 0; i < times.size(); i++) {
+            assert (times.get(i) == 100 + 2 * i);
+        }
+    }
+
+    @Test
+    public void testRebuild () throws IOException {
+        appendEvents(100);
+
+        eventTimeIndex = new EventTimeIndex(eventLog, BLOCK_SIZE);
+        assert (eventTimeIndex.getBlockCount("odd") == 50 / BLOCK_SIZE + 1);
+
+        EventRangeResultObject result = query("odd", 0, 99, 100, null);
+        assert (result.getEvents().size() == 50);
+        assert (!result.isMore());
+    }
+
+    @Test
+    public void testInvalidCursor () throws IOException {
+        appendEvents(100);
+
+        EventRangeResultObject result = query("even", 0, 99, 5, null);
+        assert (result.isMore());
+        long position = Long.parseLong(result.getCursor());
+
+        assert (query("even", 0, 99, 5, Long.toString(position)).getResult() == Results.Success);
+        assert (query("even", 0, 99, 5, Long.toString(position + 1)).getResult() == Results.InvalidCursor);
+        assert (query("even", 0, 99, 5, Long.toString(-1)).getResult() == Results.InvalidCursor);
+        assert (query("even", 0, 99, 5, Long.toString(Long.MAX_VALUE)).getResult() == Results.InvalidCursor);
+        assert (query("even", 0, 99, 5, "not a number").getResult() == Results.InvalidCursor);
+    }
+
+    @Test
+    public void testStaleCursor () throws IOException {
+        appendEvents(100);
+
+        EventRangeResultObject result = query("even", 0, 99, 1, null);
+        String cursor = result.getCursor();
+        assert (EventLog.segmentOf(Long.parseLong(cursor)) == 1);
+
+        assert (eventLog.getSegmentCount() > 1);
+        assert (eventLog.deleteSegments(SEGMENT_SIZE, Long.MAX_VALUE) > 0);
+
+        assert (query("even", 0, 99, 1, cursor).getResult() == Results.InvalidCursor);
+    }
+
+    @Test
+    public void testPrune () throws IOException {
+        appendEvents(400);
+
+        int before = eventTimeIndex.getBlockCount("even");
+
+        assert (eventTimeIndex.deleteSegments(SEGMENT_SIZE, Long.MAX_VALUE) > 0);
+        assert (eventTimeIndex.getBlockCount("even") < before);
+
+        EventRangeResultObject result = query("even", 0, 399, EventTimeIndex.MAX_LIMIT, null);
+        assert (result.getResult() == Results.Success);
+        assert (!result.getEvents().isEmpty());
+        assert (result.getEvents().get(result.getEvents().size() - 1).getTimeOfCreation() == 398);
+
+        assert (eventTimeIndex.prune(Long.MAX_VALUE) > 0);
+        assert (eventTimeIndex.getBlockCount("even") == 0);
+    }
+}
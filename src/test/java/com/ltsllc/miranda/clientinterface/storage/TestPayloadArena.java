@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestPayloadArena extends TestCase {
+    public static final int SLAB_SIZE = 1024;
+    public static final int PAYLOAD_SIZE = 100;
+
+    private PayloadArena payloadArena;
+
+    public PayloadArena getPayloadArena() {
+        return payloadArena;
+    }
+
+    public void reset () {
+        super.reset();
+
+        payloadArena = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        payloadArena = new PayloadArena(SLAB_SIZE, 2, null);
+    }
+
+    @After
+    public void cleanup () {
+        payloadArena.close();
+    }
+
+    public static byte[] createContent (int value) {
+        byte[] content = new byte[PAYLOAD_SIZE];
+        Arrays.fill(content, (byte) value);
+        return content;
+    }
+
+    /**
+     * Fill a slab and move on to the next one.
+     */
+    public List<PayloadHandle> fillSlab (int value) throws IOException {
+        List<PayloadHandle> handles = new ArrayList<PayloadHandle>();
+        for (int i = 0; i < SLAB_SIZE / PAYLOAD_SIZE; i++) {
+            handles.add(getPayloadArena().allocate(createContent(value)));
+        }
+
+        return handles;
+    }
+
+    @Test
+    public void testReuseAfterRelease () throws IOException {
+        List<PayloadHandle> first = fillSlab(1);
+        fillSlab(2);
+
+        long slabsCreated = getPayloadArena().getSlabsCreated();
+        assert (getPayloadArena().getFreeSlabCount() == 0);
+
+        for (PayloadHandle handle : first) {
+            assert (handle.release());
+        }
+
+        assert (getPayloadArena().getFreeSlabCount() == 1);
+
+        List<PayloadHandle> third = fillSlab(3);
+
+        assert (getPayloadArena().getSlabsCreated() == slabsCreated);
+        assert (Arrays.equals(third.get(0).toBytes(), createContent(3)));
+
+        //
+        // the first payloads' space now holds the third's, so the old handles must not be readable
+        //
+        PayloadHandle released = first.get(0);
+        assert (released.isReleased());
+        assert (!released.tryRetain());
+
+        try {
+            released.toBytes();
+            throw new AssertionError("read a released payload");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRetainedNotReused () throws IOException {
+        List<PayloadHandle> first = fillSlab(1);
+        fillSlab(2);
+
+        PayloadHandle kept = first.get(0).retain();
+        for (PayloadHandle handle : first) {
+            handle.release();
+        }
+
+        assert (getPayloadArena().getFreeSlabCount() == 0);
+
+        fillSlab(3);
+        assert (Arrays.equals(kept.toBytes(), createContent(1)));
+
+        assert (kept.release());
+        assert (getPayloadArena().getFreeSlabCount() == 1);
+    }
+
+    /**
+     * A reader racing with {@link Event#releasePayload()} gets the Event's content or null, and
+     * never the bytes of a payload that reused the space.
+     */
+    @Test
+    public void testReadWhileReleasing () throws Exception {
+        final AtomicReference<Event> current = new AtomicReference<Event>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        Event event = current.get();
+                        if (null == event)
+                            continue;
+
+                        byte[] content = event.getContent();
+                        if (null != content && content[0] != content[PAYLOAD_SIZE - 1])
+                            throw new AssertionError("torn content");
+
+                        if (null != content && !event.getGuid().equals(Byte.toString(content[0])))
+                            throw new AssertionError("read another Event's content");
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+
+        reader.start();
+
+        try {
+            for (int i = 0; i < 5000 && null == failure.get(); i++) {
+                byte value = (byte) (i % 100);
+                Event event = new Event(Event.Methods.POST, createContent(value));
+                event.setGuid(Byte.toString(value));
+                event.moveContentOffHeap(getPayloadArena());
+
+                current.set(event);
+                Thread.yield();
+                event.releasePayload();
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+
+        if (null != failure.get())
+            throw new AssertionError(failure.get());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPositionIndex extends TestCase {
+    private PositionIndex positionIndex;
+
+    public PositionIndex getPositionIndex() {
+        return positionIndex;
+    }
+
+    public void reset () {
+        super.reset();
+
+        positionIndex = null;
+    }
+
+    @Before
+    public void setup () {
+        reset();
+
+        super.setup();
+
+        positionIndex = new PositionIndex();
+    }
+
+    @Test
+    public void testPutAndRemove () {
+        for (int i = 0; i < 1000; i++) {
+            getPositionIndex().put("key " + i, i);
+        }
+
+        getPositionIndex().put("key 7", 7000);
+
+        assert (getPositionIndex().size() == 1000);
+        assert (getPositionIndex().get("key 7") == 7000);
+        assert (getPositionIndex().get("key 1000") == PositionIndex.NONE);
+
+        for (int i = 0; i < 1000; i += 2) {
+            assert (getPositionIndex().remove("key " + i));
+        }
+
+        assert (!getPositionIndex().remove("key 0"));
+        assert (getPositionIndex().size() == 500);
+
+        for (int i = 1; i < 1000; i += 2) {
+            assert (getPositionIndex().get("key " + i) == (i == 7 ? 7000 : i));
+        }
+    }
+
+    @Test
+    public void testRemoveBefore () {
+        for (int i = 0; i < 100; i++) {
+            getPositionIndex().put("key " + i, i);
+        }
+
+        assert (getPositionIndex().removeBefore(50) == 50);
+        assert (getPositionIndex().size() == 50);
+        assert (!getPositionIndex().contains("key 49"));
+        assert (getPositionIndex().contains("key 50"));
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Long Term Software LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ltsllc.miranda.clientinterface.storage;
+
+import com.ltsllc.miranda.clientinterface.basicclasses.Event;
+import com.ltsllc.miranda.clientinterface.test.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+public class TestSortedTable extends TestCase {
+    public static final int NUMBER_OF_KEYS = 2000;
+
+    public static class EventCodec implements EntryCodec<Event> {
+        public void write (DataOutput dataOutput, Event event) throws IOException {
+            dataOutput.writeUTF(event.getUserName());
+            dataOutput.writeUTF(event.getGuid());
+            dataOutput.writeUTF(event.getTopicName());
+            dataOutput.writeLong(event.getTimeOfCreation());
+
+            byte[] content = event.getContent();
+            dataOutput.writeInt(content.length);
+            dataOutput.write(content);
+        }
+
+        public Event read (DataInput dataInput) throws IOException {
+            String userName = dataInput.readUTF();
+            String guid = dataInput.readUTF();
+            String topicName = dataInput.readUTF();
+            long timeOfCreation = dataInput.readLong();
+
+            byte[] content = new byte[dataInput.readInt()];
+            dataInput.readFully(content);
+
+            return new Event(userName, guid, topicName, timeOfCreation, Event.Methods.POST, content);
+        }
+    }
+
+    private File directory;
+    private EventCodec codec;
+
+    public void reset () {
+        super.reset();
+
+        directory = null;
+        codec = null;
+    }
+
+    @Before
+    public void setup () {
+        try {
+            reset();
+
+            super.setup();
+
+            directory = Files.createTempDirectory("tables").toFile();
+            codec = new EventCodec();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void cleanup () {
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+
+    public static String keyFor (int number) {
+        return String.format("key %06d", number);
+    }
+
+    public static Event createEvent (String key, int version) {
+        return new Event("a user", key, "a topic", version, Event.Methods.POST, new byte[] { (byte) version });
+    }
+
+    public SortedTable<Event> writeTable (String name, int from, int to, int step) throws IOException {
+        SortedTable.Writer<Event> writer = new SortedTable.Writer<Event>(new File(directory, name), codec,
+                (to - from) / step, 256);
+
+        for (int i = from; i < to; i += step) {
+            writer.add(keyFor(i), createEvent(keyFor(i), 1));
+        }
+
+        return writer.finish();
+    }
+
+    @Test
+    public void testLookups () throws IOException {
+        SortedTable<Event> table = writeTable("lookups.sst", 0, NUMBER_OF_KEYS, 2);
+
+        try {
+            assert (table.getCount() == NUMBER_OF_KEYS / 2);
+
+            for (int i = 0; i < NUMBER_OF_KEYS; i += 2) {
+                Event event = table.get(keyFor(i));
+                assert (null != event && event.getGuid().equals(keyFor(i)));
+            }
+
+            for (int i = 1; i < NUMBER_OF_KEYS; i += 2) {
+                assert (null == table.find(keyFor(i)));
+            }
+
+            assert (null == table.find("a key before the first"));
+            assert (null == table.find("zzz"));
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    public void testTombstone () throws IOException {
+        SortedTable.Writer<Event> writer = new SortedTable.Writer<Event>(new File(directory, "tombstone.sst"), codec, 2);
+        writer.add("a", createEvent("a", 1));
+        writer.add("b", null);
+        SortedTable<Event> table = writer.finish();
+
+        try {
+            SortedTable.Record<Event> record = table.find("b");
+            assert (null != record && record.isTombstone());
+            assert (null == table.get("b"));
+            assert (null != table.get("a"));
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate () throws IOException {
+        SortedTable<Event> table = writeTable("filter.sst", 0, NUMBER_OF_KEYS, 1);
+
+        try {
+            int lookups = 20000;
+            for (int i = 0; i < lookups; i++) {
+                assert (null == table.find(keyFor(i % NUMBER_OF_KEYS) + " absent " + i));
+            }
+
+            //
+            // every lookup the filter lets through costs a block read
+            //
+            long falsePositives = lookups - table.getFilteredLookups();
+            assert (falsePositives == table.getBlockReads());
+            assert (falsePositives < lookups * SortedTable.DEFAULT_FALSE_POSITIVE_RATE * 2);
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    public void testIterator () throws IOException {
+        SortedTable<Event> table = writeTable("iterator.sst", 0, NUMBER_OF_KEYS, 1);
+
+        try {
+            Iterator<SortedTable.Record<Event>> iterator = table.iterator();
+            int count = 0;
+            String last = null;
+
+            while (iterator.hasNext()) {
+                String key = iterator.next().getKey();
+                assert (null == last || key.compareTo(last) > 0);
+                last = key;
+                count++;
+            }
+
+            assert (count == NUMBER_OF_KEYS);
+
+            //
+            // stopping part way holds nothing open, so the table can still be deleted and closed
+            //
+            iterator = table.iterator();
+            iterator.next();
+            iterator.next();
+        } finally {
+            table.close();
+        }
+
+        assert (table.getFile().delete());
+    }
+
+    @Test
+    public void testCompaction () throws IOException {
+        SortedTableSet<Event> set = new SortedTableSet<Event>(directory, codec, null, 3);
+
+        try {
+            List<Event> first = new ArrayList<Event>();
+            for (int i = 0; i < 100; i++) {
+                first.add(createEvent(keyFor(i), 1));
+            }
+
+            set.write(first, Collections.<String>emptyList());
+            set.write(Collections.singletonList(createEvent(keyFor(5), 2)), Collections.singletonList(keyFor(6)));
+            assert (set.getTableCount() == 2);
+
+            set.write(Collections.singletonList(createEvent(keyFor(200), 3)), Collections.<String>emptyList());
+            assert (set.getTableCount() == 1);
+            assert (set.getCompactionFailures() == 0);
+
+            SortedTable<Event> merged = set.getTables().get(0);
+            assert (merged.getCount() == 100);
+            assert (set.get(keyFor(5)).getContent()[0] == 2);
+            assert (null == set.get(keyFor(6)));
+            assert (set.get(keyFor(200)).getContent()[0] == 3);
+            assert (set.get(keyFor(7)).getContent()[0] == 1);
+        } finally {
+            set.close();
+        }
+
+        set = new SortedTableSet<Event>(directory, codec, null, 3);
+
+        try {
+            assert (set.getTableCount() == 1);
+            assert (null == set.get(keyFor(6)));
+        } finally {
+            set.close();
+        }
+    }
+
+    @Test
+    public void testCompactionFailureKeepsTables () throws IOException {
+        SortedTableSet<Event> set = new SortedTableSet<Event>(directory, codec, null, 2);
+
+        try {
+            set.write(Collections.singletonList(createEvent(keyFor(1), 1)), Collections.<String>emptyList());
+
+            //
+            // a directory in the way of the merged table makes the compaction fail
+            //
+            File blocker = new File(directory, "table-2" + SortedTableSet.COMPACTED_SUFFIX + ".tmp");
+            assert (blocker.mkdir());
+
+            set.write(Collections.singletonList(createEvent(keyFor(2), 1)), Collections.<String>emptyList());
+
+            assert (set.getCompactionFailures() == 1);
+            assert (null != set.getLastCompactionFailure());
+            assert (set.getTableCount() == 2);
+            assert (null != set.get(keyFor(1)));
+            assert (null != set.get(keyFor(2)));
+
+            assert (blocker.delete());
+            set.compact();
+            assert (set.getTableCount() == 1);
+            assert (null != set.get(keyFor(1)));
+        } finally {
+            set.close();
+        }
+    }
+
+    @Test
+    public void testCompactionRejected () throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        SortedTableSet<Event> set = new SortedTableSet<Event>(directory, codec, executor, 2);
+
+        try {
+            set.write(Collections.singletonList(createEvent(keyFor(1), 1)), Collections.<String>emptyList());
+            set.write(Collections.singletonList(createEvent(keyFor(2), 1)), Collections.<String>emptyList());
+
+            assert (set.getCompactionFailures() == 1);
+            assert (set.getLastCompactionFailure() instanceof RejectedExecutionException);
+
+            //
+            // the rejected compaction must not look like it is still running
+            //
+            set.scheduleCompaction();
+            assert (set.getCompactionFailures() == 2);
+            assert (set.getTableCount() == 2);
+        } finally {
+            set.close();
+        }
+    }
+}